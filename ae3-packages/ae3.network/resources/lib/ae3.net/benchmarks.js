@@ -0,0 +1,228 @@
+// calc require('ae3.net/benchmarks')()
+// calc require('ae3.net/benchmarks')({ filter : 'MAC', iterations : 20, time : 500 })
+
+/**
+ * Micro-benchmarks of the hot paths: UdpServiceHelper send / crypto / build, BaseNetHelper
+ * and the MAC / IMEI set types. Every case runs through UdpServiceHelper.benchmark (see
+ * UdpBenchmark): warmup, timed iterations, ns/op with 99.9% error and bytes/op allocated.
+ *
+ * Cases are called from script, 'baseline' is an empty function - the cost of the call
+ * itself, to be kept in mind for the cheapest cases.
+ *
+ * options - optional:
+ * 	filter : string, only cases with the name containing it
+ * 	warmup : 5 - iterations
+ * 	iterations : 10 - timed iterations
+ * 	time : 200 - milliseconds per iteration
+ *
+ * Returns the array of reports, prints the table.
+ */
+module.exports = function(options){
+	const L = function(x){
+		console.log("ae3/net.benchmarks: ", x);
+	};
+
+	const ae3 = require('ae3');
+	const Transfer = ae3.Transfer;
+	const UdpServiceHelper = require('java.class/ru.myx.ae3.internal.net.UdpServiceHelper');
+
+	if(!UdpServiceHelper.benchmark){
+		throw new Error("UdpServiceHelper.benchmark is not available");
+	}
+
+	const net = require('ae3/net');
+	const mac = net.mac;
+	const imei = net.imei;
+
+	const WhirlpoolDigest = require("java.class/ru.myx.ae3.know.WhirlpoolDigest");
+	const Principal = require('ru.myx.ae3.internal/network/udp/Principal');
+	const MSG_Q_CALL = require('ru.myx.ae3.internal/network/udp/messages/MSG_Q_CALL');
+	const MSG_Q_HELO = require('ru.myx.ae3.internal/network/udp/messages/MSG_Q_HELO');
+	const MSG_RF_SEEN = require('ru.myx.ae3.internal/network/udp/messages/MSG_RF_SEEN');
+
+	/**
+	 * principal with a sink instead of the socket
+	 */
+	const BenchPrincipal = ae3.Class.create(
+		/* name */
+		"BenchPrincipal",
+		/* inherit */
+		Principal,
+		/* constructor */
+		function(key, dst, secret){
+			this.Principal(key, dst, secret, 0);
+			return this;
+		},
+		/* instance */
+		{
+			sendUdp : {
+				value : function(pkt, a){
+					return pkt.length();
+				}
+			}
+		},
+		/* static */
+		{
+		}
+	);
+
+	const principal = new BenchPrincipal(
+		Transfer.createCopierUtf8("benchmark-12"),
+		"127.0.0.1:9",
+		Transfer.createCopierUtf8("benchmark-secret-0123456789abcdef")
+	);
+
+	const buffer = new ArrayBuffer(1500);
+	const output = new ArrayBuffer(1500);
+	const digest = new WhirlpoolDigest();
+
+	/** 512 bytes of argument, typical RPC call */
+	const argument = Transfer.createCopierUtf8(Array(65).join("argument"));
+	const call = new MSG_Q_CALL("ae3.bench/component", argument);
+	const callPlain = Object.create(call, {
+		encrypt : {
+			value : false
+		}
+	});
+	const helo = new MSG_Q_HELO(net.socketAddress("10.1.2.3:14000"));
+	const seen = new MSG_RF_SEEN(1, 14000, 1);
+
+	/** encrypted CALL packet for 'payloadDecrypt' */
+	const packetLength = call.build(buffer, 32) + 32;
+	UdpServiceHelper.payloadEncrypt.call(principal, buffer, packetLength - 32, digest);
+	const packet = Transfer.createCopier(buffer, 0, packetLength);
+
+	/** plain CALL body for 'parseMsgCall' */
+	const callBody = new ArrayBuffer(1500);
+	const callBodyLength = call.build(callBody, 0);
+
+	const addressBuffer = new ArrayBuffer(6);
+	addressBuffer[0] = 10;
+	addressBuffer[1] = 1;
+	addressBuffer[2] = 2;
+	addressBuffer[3] = 3;
+	addressBuffer[4] = 14000 >> 8;
+	addressBuffer[5] = 14000 & 0xFF;
+
+	/**
+	 * sets: 256 ranges of 512 addresses, 'b' is shifted by half a range - every range
+	 * intersects with two of the other set
+	 */
+	const RANGES = 256;
+	const macRange = function(i, shift, count){
+		const h = (0x1000000 + i * 1024 + shift).toString(16).slice(-6);
+		return mac.parseRange('00:12:aa:' + h.slice(0, 2) + ':' + h.slice(2, 4) + ':' + h.slice(4, 6) + '/' + count);
+	};
+	const imeiRange = function(i, shift, count){
+		return imei.parseRange(String(49015420000000 + i * 1024 + shift) + '/' + count);
+	};
+	const macA = mac.MacSet.create(), macB = mac.MacSet.create(), macUnsorted = mac.MacSet.create();
+	const imeiA = imei.ImeiSet.create(), imeiB = imei.ImeiSet.create(), imeiUnsorted = imei.ImeiSet.create();
+	for(var i = 0; i < RANGES; ++i){
+		macA.addAddress(macRange(i, 0, 512));
+		macB.addAddress(macRange(i, 256, 512));
+		imeiA.addAddress(imeiRange(i, 0, 512));
+		imeiB.addAddress(imeiRange(i, 256, 512));
+		/** reversed, adjacent halves to be merged */
+		macUnsorted.addAddress(macRange(RANGES - 1 - i, 0, 256)).addAddress(macRange(RANGES - 1 - i, 256, 256));
+		imeiUnsorted.addAddress(imeiRange(RANGES - 1 - i, 0, 256)).addAddress(imeiRange(RANGES - 1 - i, 256, 256));
+	}
+	const macCount = macA.macCount;
+	const imeiCount = imeiA.imeiCount;
+	var index = 0;
+
+	const cases = [
+		["baseline", function(){
+		}],
+
+		["UdpServiceHelper.principalSendImpl, encrypt", function(){
+			return UdpServiceHelper.principalSendImpl.call(principal, buffer, digest, call, null);
+		}],
+		["UdpServiceHelper.principalSendImpl, plain", function(){
+			return UdpServiceHelper.principalSendImpl.call(principal, buffer, digest, callPlain, null);
+		}],
+		["UdpServiceHelper.payloadEncrypt, 512B", function(){
+			return UdpServiceHelper.payloadEncrypt.call(principal, output, packetLength - 32, digest);
+		}],
+		["UdpServiceHelper.payloadDecrypt, 512B", function(){
+			return UdpServiceHelper.payloadDecrypt.call(principal, packet, output, 0, packetLength - 32, digest);
+		}],
+		["UdpServiceHelper.buildMsgCall", function(){
+			return UdpServiceHelper.buildMsgCall.call(call, buffer, 32);
+		}],
+		["UdpServiceHelper.buildMsgHelo", function(){
+			return UdpServiceHelper.buildMsgHelo.call(helo, buffer, 32);
+		}],
+		["UdpServiceHelper.buildMsgSeen", function(){
+			return UdpServiceHelper.buildMsgSeen.call(seen, buffer, 32);
+		}],
+		["UdpServiceHelper.parseMsgCall, 512B", function(){
+			return UdpServiceHelper.parseMsgCall.call(MSG_Q_CALL, callBody, 0, 1, callBodyLength);
+		}],
+
+		["BaseNetHelper.socketAddressFromBuffer", function(){
+			return net.socketAddressFromBuffer(addressBuffer, 0, 6);
+		}],
+		["BaseNetHelper.isValidIPv4, valid", function(){
+			return net.isValidIPv4("192.168.100.254");
+		}],
+		["BaseNetHelper.isValidIPv4, invalid", function(){
+			return net.isValidIPv4("192.168.100.256");
+		}],
+
+		["MAC set union, " + RANGES + " ranges", function(){
+			return macA.union(macB);
+		}],
+		["MAC set intersect, " + RANGES + " ranges", function(){
+			return macA.intersect(macB);
+		}],
+		["MAC set substract, " + RANGES + " ranges", function(){
+			return macA.substract(macB);
+		}],
+		["MAC set normalizeRanges, " + (RANGES * 2) + " ranges", function(){
+			return mac.MacSet.create().addAddress(macUnsorted).normalizeRanges();
+		}],
+		["MAC set macAt", function(){
+			return macA.macAt((index = (index + 7919) % macCount));
+		}],
+
+		["IMEI set union, " + RANGES + " ranges", function(){
+			return imeiA.union(imeiB);
+		}],
+		["IMEI set intersect, " + RANGES + " ranges", function(){
+			return imeiA.intersect(imeiB);
+		}],
+		["IMEI set substract, " + RANGES + " ranges", function(){
+			return imeiA.substract(imeiB);
+		}],
+		["IMEI set normalizeRanges, " + (RANGES * 2) + " ranges", function(){
+			return imei.ImeiSet.create().addAddress(imeiUnsorted).normalizeRanges();
+		}],
+		["IMEI set imeiAt", function(){
+			return imeiA.imeiAt((index = (index + 7919) % imeiCount));
+		}],
+	];
+
+	const filter = options?.filter;
+	const reports = [];
+
+	L('start, cases: ' + cases.length + (filter ? ', filter: ' + filter : '') + '...');
+
+	cases.forEach(function(c){
+		const name = c[0];
+		if(filter && name.indexOf(filter) === -1){
+			return;
+		}
+		const report = UdpServiceHelper.benchmark.call(c, c[1], Object.assign({}, options, { name : name }));
+		reports.push(report);
+		L(
+			name + ': ' +
+			report.nsPerOp.toFixed(1) + ' ± ' + report.nsPerOpError.toFixed(1) + ' ns/op, ' +
+			Math.round(report.opsPerSecond) + ' ops/s, ' +
+			report.bytesPerOp.toFixed(1) + ' B/op, gc: ' + report.gcCount + ' (' + report.gcTime + ' ms)'
+		);
+	});
+
+	L('done.');
+	return reports;
+};
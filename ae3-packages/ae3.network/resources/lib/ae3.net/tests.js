@@ -519,6 +519,42 @@ module.exports = function(){
 		L('IMEI done.');
 	}
 	
+	/**
+	 * UDP, loopback round trips between local services, see 'udpload'
+	 */
+	{
+		L('UDP...');
+		
+		const udpload = require('ru.myx.ae3.internal/network/UdpLoadShellCommand');
+		
+		const R = function(name, args){
+			L('UDP ' + name + '...');
+			const report = udpload.run.apply(null, ["udpload", "-p", "2", "-t", "1", "-c", "4"].concat(args));
+			
+			A(report.failed + report.timeouts + report.offline + report.errors + report.unfinished, 
+			'0');
+			
+			A(report.ok > 0, 
+			'true');
+			
+			L('UDP ' + name + ' done, ok: ' + report.ok);
+		};
+		
+		R('buffered receive', ["-i", "buffered", "-m", "call=1"]);
+		R('batch receive', ["-i", "batch", "-m", "call=1"]);
+		R('sharded receive', ["-i", "sharded", "-m", "call=1"]);
+		R('plain receive', ["-i", "plain", "-m", "call=1"]);
+		R('CALL/CERR', ["-m", "cerr=1"]);
+		R('BTCH', ["-b", "-m", "call=1,poke=1"]);
+		R('BBLK', ["-m", "bulk=1", "-z", "65536"]);
+		R('mix', ["-m", "call=70,poke=10,rrst=10,multi=10"]);
+		R('hmac-sha256', ["-a", "hmac-sha256", "-m", "call=1,poke=1"]);
+		R('aes-ctr', ["-e", "aes-ctr", "-m", "call=1,poke=1"]);
+		R('pacing', ["-P", "1000", "-c", "64", "-m", "call=1"]);
+		
+		L('UDP done.');
+	}
+	
 	L('done.');
 	
 	return "Successfully Passed";
@@ -1,4 +1,5 @@
 import ru.myx.ae3.transfer.nio.UdpSocket;
+import ru.myx.ae3.internal.net.UdpDatagramChannel;
 import ru.myx.ae3.concurrent.FunctionWrapSyncThis;
 
 
@@ -66,6 +67,31 @@ module.exports = Object.create(LAZY_PROTOTYPE, {
 			return socket;
 		}
 	},
+	/**
+	 * returns UdpDatagramChannel
+	 * 
+	 * callbackFn(batch) is called with all datagrams received on one wake-up, the batch 
+	 * (size(), length(i), sourceAddress(i), byteAt(i, offset), copy(i, offset, buffer, 
+	 * bufferOffset, length)) is a view of pooled direct buffers and is only valid during 
+	 * the call.
+	 * 
+	 * options - optional: { batch : 64, bufferSize : 2048 }
+	 */
+	"listenBatch" : {
+		enumerable : true,
+		value : function(on, callbackFn/*(batch)*/, options){
+			if(!callbackFn){
+				throw "callbackFn is required for 'udp.listenBatch' method!";
+			}
+			return new UdpDatagramChannel(
+				on 
+					? 'number' === typeof on ? on : (on.port || on)
+					: 0, 
+				options?.batch ?? UdpDatagramChannel.DEFAULT_BATCH,
+				options?.bufferSize ?? UdpDatagramChannel.DEFAULT_BUFFER
+			).setCallback(callbackFn);
+		}
+	},
 	/**
 	 * returns UdpSocket
 	 */
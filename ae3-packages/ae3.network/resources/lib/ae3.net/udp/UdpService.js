@@ -11,13 +11,86 @@
 const ae3 = require("ae3");
 const Concurrent = ae3.Concurrent;
 
+const UdpServiceHelper = require("java.class/ru.myx.ae3.internal.net.UdpServiceHelper");
+const UdpPeerRegistry = require("java.class/ru.myx.ae3.internal.net.UdpPeerRegistry");
+const UdpPeerResolver = require("java.class/ru.myx.ae3.internal.net.UdpPeerResolver");
+
 const UdpService = module.exports = ae3.Class.create(
 	/* name */
 	"UdpService",
 	/* inherit */
 	undefined,
 	/* constructor */
-	function UdpService(port){
+	/**
+	 * port - port number, 0 or undefined for any
+	 * options - optional:
+	 * 	receive : "buffered" (default) or "batch" - DatagramChannel with pooled direct buffers, 
+	 * 		all ready datagrams are parsed as one batch on every wake-up.
+	 * 		"sharded" - N "batch" sockets on the same port with SO_REUSEPORT, one receiving 
+	 * 		thread each, principals are pinned to shards by their key.
+	 * 	batch : 64 - max datagrams per batch ("batch" and "sharded" modes)
+	 * 	bufferSize : 2048 - pooled buffer size ("batch" and "sharded" modes)
+	 * 	shards : number of processors - receiving sockets ("sharded" mode)
+	 * 	queue : 256 - max queued datagrams ("buffered" mode), replies are parsed ahead of 
+	 * 		requests and source keys are served round-robin, see 'rxQueue'; 0 - plain buffer of 256 
+	 * 		datagrams in arrival order, no priorities, see 'BufferedRxParser'
+	 * 	pacing : {rate, burst, peerRate, peerBurst, queue} - outbound token buckets, global and 
+	 * 		per destination, rates in datagrams per second, 0 - no limit; datagrams over the 
+	 * 		limits are queued and released by a timer, see 'pacer'
+	 */
+	function UdpService(port, options){
+		if(options?.pacing){
+			Object.defineProperty(this, "pacer", {
+				value : UdpServiceHelper.serviceSendPacer.call(this, options.pacing)
+			});
+		}
+		if("batch" === options?.receive){
+			Object.defineProperty(this, "sock", {
+				value : UdpServiceHelper.serviceListenBatch.call(
+					this, //
+					port ?? 0, //
+					new ArrayBuffer(1500), //
+					ae3.crypto.createDigestWhirlpool(), //
+					options //
+				)
+			});
+			return this;
+		}
+		if("sharded" === options?.receive){
+			Object.defineProperty(this, "sock", {
+				value : UdpServiceHelper.serviceListenSharded.call(
+					this, //
+					port ?? 0, //
+					function(){ return new ArrayBuffer(1500); }, //
+					ae3.crypto.createDigestWhirlpool(), //
+					options //
+				)
+			});
+			return this;
+		}
+		
+		if(0 !== options?.queue){
+			const rxQueue = UdpServiceHelper.serviceReceiveQueue.call(
+				this, //
+				new ArrayBuffer(1500), //
+				ae3.crypto.createDigestWhirlpool(), //
+				options ?? {} //
+			);
+			Object.defineProperty(this, "rxQueue", {
+				value : rxQueue
+			});
+			/**
+			 * to be stopped on 'destroy'
+			 */
+			this.receiveCallback = Object.assign(rxQueue.offer.bind(rxQueue), {
+				destroy : rxQueue.destroy.bind(rxQueue)
+			});
+			Object.defineProperty(this, "sock", {
+				value : ae3.net.udp.listen(port ?? 0, this.receiveCallback)
+			});
+			return this;
+		}
+		
 		/**
 		 * to be stopped on 'destroy'
 		 */
@@ -72,22 +145,47 @@ const UdpService = module.exports = ae3.Class.create(
 		 * format properties
 		 */
 		sock : {
-			value : 'the UdpSocket object'
+			value : 'the UdpSocket (UdpDatagramChannel in "batch", UdpShardedChannel in "sharded" receive mode) object'
+		},
+		rxParser : {
+			value : 'the java receive pipeline state, created on first receive when available'
+		},
+		rxQueue : {
+			value : 'the java priority receive queue ("buffered" receive mode): depth, dropped and shed counters'
+		},
+		pacer : {
+			value : 'the java outbound pacer ("pacing" option): queue depth, direct, dropped counters and queueing delay'
+		},
+		peerResolver : {
+			value : 'the java lookups of unknown keys, see resolveClientAsync: pending, parked, registered counters'
+		},
+		capture : {
+			value : 'the java datagram capture, see startCapture: path, records, bytes and skipped counters'
+		},
+		/**
+		 * principals by 12-byte key and 'alt' key, looked up by the receive pipeline before
+		 * 'resolvePeer' is called:
+		 * 	service.peers.register(principal), service.peers.unregister(principal)
+		 */
+		peers : {
+			execute : "once", get : function(){
+				return new UdpPeerRegistry();
+			}
 		},
 		/**
 		 * service port number
 		 */
 		port : {
 			execute : "once", get : function(){
-				return this.sock.port;
+				return this.sock.port ?? this.sock.getPort();
 			}
 		},
 		/**
-		 * sends actual payload
+		 * sends actual payload: through 'capture' and 'pacer' when there are any
 		 */
 		sendUdp : {
 			execute : "once", get : function(){
-				return this.sock.send.bind(this.sock);
+				return UdpServiceHelper.serviceSendUdp.bind(this);
 			}
 		},
 		description : {
@@ -95,12 +193,62 @@ const UdpService = module.exports = ae3.Class.create(
 				return String(this.sock);
 			}
 		},
+		/**
+		 * Override, optional: 'resolveClientAsync(key)' - starts the lookup of an unknown 12-byte 
+		 * key and returns, the lookup reports with 'peerResolved'. Packets of the key are parked 
+		 * meanwhile (see UdpPeerResolver), unknown keys are not looked up again for a while.
+		 * Found principal is registered in 'peers' for UdpPeerResolver.REGISTERED_TTL (10 minutes), 
+		 * then the key is looked up again; a lookup that finds nothing unregisters it.
+		 */
+		resolveClientAsync : {
+			value : undefined
+		},
+		/**
+		 * result of the 'resolveClientAsync' lookup: principal or null when the key is unknown,
+		 * parked packets are replayed with the principal through the receiver that parked them,
+		 * or dropped
+		 */
+		peerResolved : {
+			value : function(key, principal){
+				UdpPeerResolver.forService(this).resolved(key, principal || null);
+			}
+		},
 		/**
 		 * methods
 		 */
+		/**
+		 * Starts writing inbound and outbound datagrams to a file, for 'UdpService.replayCapture'.
+		 * A running capture is closed.
+		 * 
+		 * path - capture file, overwritten
+		 * options - optional:
+		 * 	limit : 1073741824 - max file size, bytes, datagrams past it are skipped
+		 */
+		startCapture : {
+			value : function(path, options){
+				return UdpServiceHelper.serviceStartCapture.call(this, String(path), options ?? {});
+			}
+		},
+		/**
+		 * Stops the capture started with 'startCapture', returns it or undefined
+		 */
+		stopCapture : {
+			value : function(){
+				const capture = this.capture;
+				if(capture && 'string' !== typeof capture){
+					this.capture = null;
+					capture.close();
+					return capture;
+				}
+				return undefined;
+			}
+		},
 		destroy : {
 			value : Concurrent.wrapSync(function(){
 				this.sock?.close();
+				this.pacer?.destroy?.();
+				this.peerResolver?.destroy?.();
+				this.stopCapture();
 				const receiveCallback = this.receiveCallback;
 				receiveCallback && (this.receiveCallback = null, receiveCallback.destroy?.());
 			})
@@ -184,6 +332,47 @@ const UdpService = module.exports = ae3.Class.create(
 				});
 			}
 		},
+		/**
+		 * Replays a file written by 'startCapture' through the receive pipeline of a new service
+		 * ("buffered" receive mode), returns the report: {records, inbound, outbound, accepted, 
+		 * dropped, elapsed, rate, stRxCount, stRxSkip, stCrcFail, stBadBody, replies}.
+		 * 
+		 * Inbound datagrams are fed in as received from their recorded source addresses, nothing 
+		 * is sent: replies go to a counting sink instead of the socket, 'replies' - datagrams sent
+		 * to it by the time the replay returns.
+		 * 
+		 * path - capture file
+		 * options - optional:
+		 * 	speed : 1 - recorded pace, N - N times faster, 0 - as fast as possible
+		 * 	service : UdpService class (subclass) to replay with, its message classes are used
+		 * 	serviceOptions : options for the service, "receive" is always "buffered"
+		 * 	principals : stand-in principals for the captured keys, with their secrets, to be
+		 * 		registered in 'peers'; their 'sendUdp' should go through 'service.sendUdp'
+		 */
+		"replayCapture" : {
+			value : function(path, options){
+				const serviceClass = options?.service ?? UdpService;
+				const service = new serviceClass(0, Object.assign({}, options?.serviceOptions, { receive : "buffered" }));
+				var replies = 0;
+				try{
+					Object.defineProperty(service, "sendUdp", {
+						/** handlers reply from the mailbox workers */
+						value : Concurrent.wrapSync(function(payload, address){
+							++ replies;
+							return payload.length();
+						})
+					});
+					options?.principals?.forEach(function(principal){
+						service.peers.register(principal);
+					});
+					const report = UdpServiceHelper.serviceReplayCapture.call(service, String(path), options ?? {});
+					report.replies = replies;
+					return report;
+				}finally{
+					service.destroy();
+				}
+			}
+		},
 		"resolvePeer" : {
 			/**
 			 * Override
@@ -218,6 +407,9 @@ const UdpService = module.exports = ae3.Class.create(
 		"ru.myx.ae3.internal/network/udp/messages/MSG_RF_CERR",
 		"ru.myx.ae3.internal/network/udp/messages/MSG_Q_RRST",
 		"ru.myx.ae3.internal/network/udp/messages/MSG_RF_RSST",
+		"ru.myx.ae3.internal/network/udp/messages/MSG_Q_BTCH",
+		"ru.myx.ae3.internal/network/udp/messages/MSG_Q_BBLK",
+		"ru.myx.ae3.internal/network/udp/messages/MSG_RC_BRPT",
 	].map(require).forEach(UdpService.registerMessageClass.bind(null, UdpService));
 
 }
@@ -0,0 +1,333 @@
+const ae3 = require("ae3");
+const Transfer = ae3.Transfer;
+
+const UdpServiceHelper = require("java.class/ru.myx.ae3.internal.net.UdpServiceHelper");
+const UdpLoadGenerator = require("java.class/ru.myx.ae3.internal.net.UdpLoadGenerator");
+
+const RemoteServicePrincipal = require("./udp/RemoteServicePrincipal");
+const TaskUdpSingle = require("./udp/TaskUdpSingle");
+const TaskUdpMultiple = require("./udp/TaskUdpMultiple");
+const MSG_Q_CALL = require("./udp/messages/MSG_Q_CALL");
+const MSG_Q_POKE = require("./udp/messages/MSG_Q_POKE");
+const MSG_Q_RRST = require("./udp/messages/MSG_Q_RRST");
+const MSG_RF_CACK = require("./udp/messages/MSG_RF_CACK");
+const MSG_RF_RSST = require("./udp/messages/MSG_RF_RSST");
+
+const SYNTAX = "Syntax:\n\tudpload [-p pairs] [-s services] [-t seconds] [-r rate | -c concurrency] [-m call=70,poke=10,rrst=10,multi=10] [-f fanout] [-z bytes] [-i receive] [-b] [-P rate] [-a auth] [-e cipher]"
+	+ "\n\t\t-p 16 - principal pairs, generated keys and secrets"
+	+ "\n\t\t-s 2 - UdpService instances on 127.0.0.1, pairs span two of them"
+	+ "\n\t\t-t 10 - run time, seconds"
+	+ "\n\t\t-r 0 - operations per second, open loop; 0 - closed loop"
+	+ "\n\t\t-c 64 - outstanding operations, closed loop"
+	+ "\n\t\t-m call=100 - operation mix, weights: call (CALL/CACK), poke (POKE/SEEN), rrst (RRST/RSST), multi (CALL to 'fanout' peers),"
+	+ "\n\t\t\tcerr (CALL to an unknown component/CERR), bulk (BBLK transfer of 'size' bytes/BRPT)"
+	+ "\n\t\t-f 8 - peers per 'multi' operation (TaskUdpMultiple)"
+	+ "\n\t\t-z 256 - CALL argument and bulk transfer size, bytes"
+	+ "\n\t\t-i buffered - receive mode of the services: buffered, batch, sharded or plain (buffered with 'queue: 0')"
+	+ "\n\t\t-b - principals coalesce messages into BTCH containers, see Principal 'batch'"
+	+ "\n\t\t-P 0 - outbound pacing of every service, datagrams per second, global and per destination, see UdpService 'pacing'"
+	+ "\n\t\t-a whirlpool - packet authentication of the principals: whirlpool or hmac-sha256, see Principal 'auth'"
+	+ "\n\t\t-e whirlpool - payload encryption of the principals: whirlpool or aes-ctr, see Principal 'cipher'";
+
+const randomBinary = function(length /* locals: */, b, i){
+	b = new ArrayBuffer(length);
+	for(i = 0; i < length; ++i){
+		b[i] = (Math.random() * 256) ^ 0;
+	}
+	return Transfer.createCopier(b, 0, length);
+};
+
+/**
+ * both ends of a pair: requests are answered right away, replies go to the waiting tasks
+ */
+const LoadPrincipal = ae3.Class.create(
+	/* name */
+	"LoadPrincipal",
+	/* inherit */
+	RemoteServicePrincipal,
+	/* constructor */
+	function(service, key, dst, secret){
+		this.RemoteServicePrincipal(key, dst, secret, 0);
+		this.service = service;
+		const onCall = function(message, address, serial){
+			this.sendSingle(new MSG_RF_CACK(serial), address);
+		};
+		this.registerComponent("load/call", onCall, this);
+		this.registerComponent("load/multi", onCall, this);
+		this.registerHandler(MSG_Q_RRST, function(message, address, serial){
+			this.sendSingle(new MSG_RF_RSST(null, serial), address);
+		}, this);
+		service.peers.register(this);
+		return this;
+	},
+	/* instance */
+	{
+		onReceiveBulk : {
+			/** the sender's callback reports the transfer */
+			value : function(transferId, binary, address){
+				++ this.bulkReceived;
+			}
+		},
+		bulkReceived : {
+			writable : true,
+			value : 0
+		},
+		sendUdp : {
+			value : function(payload, address){
+				return this.service.sendUdp(payload, address);
+			}
+		},
+		hostId : {
+			execute : "once", get : function(){
+				return "load-" + this.keyHex.substr(0, 8);
+			}
+		}
+	},
+	/* static */
+	{
+	}
+);
+
+const outcomeOf = function(task, result){
+	if(!result || result === task.timeoutReply){
+		return "timeout";
+	}
+	if(result === task.offlineReply){
+		return "offline";
+	}
+	if(result.isFAILURE){
+		return "fail";
+	}
+	return "ok";
+};
+
+function runUdpLoadCommand() {
+	var args = arguments;
+
+	args = Array.prototype.slice.call(args);
+	/* var selfName = */ args.shift();
+
+	const options = {
+		pairs : 16,
+		services : 2,
+		time : 10,
+		rate : 0,
+		concurrency : 64,
+		mix : "call=100",
+		fanout : 8,
+		size : 256,
+		receive : "buffered",
+		batch : false,
+		pacing : 0,
+		auth : "whirlpool",
+		cipher : "whirlpool"
+	};
+	const numeric = {
+		"-p" : "pairs",
+		"-s" : "services",
+		"-t" : "time",
+		"-r" : "rate",
+		"-c" : "concurrency",
+		"-f" : "fanout",
+		"-z" : "size",
+		"-P" : "pacing"
+	};
+	for(;;){
+		var argument = (args.shift() || '').trim();
+		if(!argument){
+			break;
+		}
+		if(numeric[argument]){
+			const value = parseInt(args.shift(), 10);
+			if(!(value >= 0)){
+				return console.fail("non-negative number expected: %s\n%s", argument, SYNTAX);
+			}
+			options[numeric[argument]] = value;
+			continue;
+		}
+		if(argument === "-m"){
+			options.mix = (args.shift() || '').trim();
+			continue;
+		}
+		if(argument === "-i"){
+			options.receive = (args.shift() || '').trim();
+			if(!["buffered", "batch", "sharded", "plain"].includes(options.receive)){
+				return console.fail("unsupported receive mode: %s\n%s", options.receive, SYNTAX);
+			}
+			continue;
+		}
+		if(argument === "-a"){
+			options.auth = (args.shift() || '').trim();
+			if(!["whirlpool", "hmac-sha256"].includes(options.auth)){
+				return console.fail("unsupported auth: %s\n%s", options.auth, SYNTAX);
+			}
+			continue;
+		}
+		if(argument === "-e"){
+			options.cipher = (args.shift() || '').trim();
+			if(!["whirlpool", "aes-ctr"].includes(options.cipher)){
+				return console.fail("unsupported cipher: %s\n%s", options.cipher, SYNTAX);
+			}
+			continue;
+		}
+		if(argument === "-b"){
+			options.batch = true;
+			continue;
+		}
+		return console.fail("unsupported option: %s\n%s", argument, SYNTAX);
+	}
+
+	/** operation weights, cumulative */
+	const mix = [];
+	var total = 0;
+	for(var entry of options.mix.split(',')){
+		const pair = entry.split('=');
+		const weight = parseInt(pair[1] ?? "1", 10);
+		if(!["call", "poke", "rrst", "multi", "cerr", "bulk"].includes(pair[0]) || !(weight >= 0)){
+			return console.fail("invalid mix entry: %s\n%s", entry, SYNTAX);
+		}
+		weight && mix.push({ op : pair[0], upTo : (total += weight) });
+	}
+	if(!total || options.pairs < 1 || options.time < 1 || options.concurrency < 1){
+		console.error(SYNTAX);
+		return false;
+	}
+	/** a pair needs two services: both ends have the same key */
+	options.services = Math.max(2, options.services);
+	options.fanout = Math.max(1, Math.min(options.fanout, options.pairs));
+
+	const UdpService = ae3.net.udp.UdpService;
+	const services = [];
+	const clients = [];
+	try{
+		for(var s = 0; s < options.services; ++s){
+			services.push(new UdpService(0, {
+				receive : options.receive,
+				queue : "plain" === options.receive ? 0 : undefined,
+				pacing : options.pacing ? { rate : options.pacing, peerRate : options.pacing } : undefined
+			}));
+		}
+		for(var i = 0; i < options.pairs; ++i){
+			const a = services[i % services.length];
+			const b = services[(i + 1) % services.length];
+			const key = randomBinary(12);
+			const secret = randomBinary(16);
+			const client = new LoadPrincipal(a, key, "127.0.0.1:" + b.port, secret);
+			const server = new LoadPrincipal(b, key, "127.0.0.1:" + a.port, secret);
+			client.initiator = true;
+			server.initiator = false;
+			client.auth = server.auth = options.auth;
+			client.cipher = server.cipher = options.cipher;
+			if(options.batch){
+				client.batch = server.batch = {};
+			}
+			clients.push(client);
+		}
+
+		const argument = randomBinary(options.size);
+		const retriesBefore = clients.reduce(function(sum, client){
+			return sum + (client.state.getRtt?.()?.getTimeouts() ?? 0);
+		}, 0);
+
+		console.log("UDP::Load: starting, pairs: %s, services: %s, receive: %s, batch: %s, auth: %s, cipher: %s, time: %ss, %s, mix: %s",
+			options.pairs,
+			options.services,
+			options.receive,
+			options.batch,
+			options.auth,
+			options.cipher,
+			options.time,
+			options.rate ? "rate: " + options.rate + "/s" : "concurrency: " + options.concurrency,
+			options.mix
+		);
+
+		const load = new UdpLoadGenerator(options.rate, options.concurrency, options.time * 1000, 7000);
+		var next = 0;
+		/** 'fanout' clients starting with the given one */
+		const peersFrom = function(start /* locals: */, peers, j){
+			peers = [];
+			for(j = 0; j < options.fanout; ++j){
+				peers.push(clients[(start + j) % clients.length]);
+			}
+			return peers;
+		};
+		/** per peer outcomes: the first one not "ok" is the outcome, peers not reported timed out */
+		const issueMulti = function(peers, started /* locals: */, outcome, left){
+			outcome = "ok";
+			left = peers.length;
+			return new TaskUdpMultiple(null, peers, new MSG_Q_CALL("load/multi", argument), function(task, single, result){
+				if(single === null){
+					load.finish(started, "ok" === outcome && left > 0 ? "timeout" : outcome);
+					return false;
+				}
+				--left;
+				"ok" === outcome && (outcome = outcomeOf(single, result));
+				return null;
+			}, "task-progress");
+		};
+		const report = UdpServiceHelper.loadRun.call(load, function(/* locals: */ r, op, client, started){
+			r = Math.random() * total;
+			op = mix.find(function(x){ return r < x.upTo; }).op;
+			client = clients[(next = (next + 1) % clients.length)];
+			started = load.start();
+			switch(op){
+			case "poke":
+				return new TaskUdpSingle(null, client, new MSG_Q_POKE(ae3.net.socketAddress("127.0.0.1:" + client.service.port)), false, function(task, result){
+					load.finish(started, outcomeOf(task, result));
+					return false;
+				});
+			case "rrst":
+				return new TaskUdpSingle(null, client, new MSG_Q_RRST(), false, function(task, result){
+					load.finish(started, outcomeOf(task, result));
+					return false;
+				});
+			case "multi":
+				return issueMulti(peersFrom(next), started);
+			case "cerr":
+				/** no such component: the registry of the remote side answers with CERR */
+				return new TaskUdpSingle(null, client, new MSG_Q_CALL("load/unknown", argument), false, function(task, result){
+					load.finish(started, result?.isCERR ? "ok" : result?.isCACK ? "fail" : outcomeOf(task, result));
+					return false;
+				});
+			case "bulk":
+				return client.sendBulk(argument, function(error, transferId){
+					load.finish(started, error ? "fail" : "ok");
+				});
+			default:
+				return new TaskUdpSingle(null, client, new MSG_Q_CALL("load/call", argument), false, function(task, result){
+					load.finish(started, outcomeOf(task, result));
+					return false;
+				});
+			}
+		});
+
+		report.retries = clients.reduce(function(sum, client){
+			return sum + (client.state.getRtt?.()?.getTimeouts() ?? 0);
+		}, 0) - retriesBefore;
+		report.dropped = services.reduce(function(sum, service, q){
+			q = service.rxQueue;
+			return sum
+				+ (q ? q.droppedRequest + q.droppedReply + q.droppedBulk + q.droppedUnknown + q.shed : 0)
+				+ (service.stCrcFail ?? 0)
+				+ (service.stBadBody ?? 0);
+		}, 0);
+		report.paced = services.reduce(function(sum, service){
+			return sum + (service.pacer?.getQueued() ?? 0);
+		}, 0);
+
+		console.log("UDP::Load: done, time: %sms, issued: %s, finished: %s, ok: %s, failed: %s, timeouts: %s, offline: %s, late: %s, skipped: %s, errors: %s, unfinished: %s",
+			report.time, report.issued, report.finished, report.ok, report.failed, report.timeouts, report.offline, report.late, report.skipped, report.errors, report.unfinished
+		);
+		console.log("UDP::Load: throughput: %s ops/s, latency, us: p50: %s, p99: %s, p99.9: %s, max: %s, mean: %s, retries: %s, dropped: %s, paced: %s",
+			Math.round(report.throughput), report.p50, report.p99, report.p999, report.max, report.mean, report.retries, report.dropped, report.paced
+		);
+		return report;
+	}finally{
+		services.forEach(function(service){
+			service.destroy();
+		});
+	}
+}
+
+exports.run = runUdpLoadCommand;
+exports.description = "Loopback UDP load generator: CALL, CERR, POKE, RRST and bulk round trips between local UdpService instances";
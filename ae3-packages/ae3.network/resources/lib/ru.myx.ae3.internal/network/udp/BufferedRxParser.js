@@ -4,6 +4,8 @@
 
 const ae3 = require("ae3");
 
+const UdpServiceHelper = require("java.class/ru.myx.ae3.internal.net.UdpServiceHelper");
+
 const wrapCopier = ae3.Transfer.wrapCopier;
 
 const FN_FORMAT_BINARY_AS_HEX = Format.binaryAsHex;
@@ -31,10 +33,13 @@ const FN_FORMAT_BINARY_AS_HEX = Format.binaryAsHex;
  * <li>ms - messageSerial</li>
  * <li>msg - message</li>
  * </ol>
+ * 
+ * UdpServiceHelper.serviceReceiveBuffer runs this pipeline on typed fields, together with
+ * peer registry, auth modes, BTCH and bulk transfer: this function is the plain reference.
  */
 
 
-const onReceiveBufferImpl = module.exports = function(b, d, q /* locals: */, pkt, load, key, peer, crc, m, l, ms, msg){
+const onReceiveBufferImpl = module.exports = UdpServiceHelper.serviceReceiveBuffer || (function(b, d, q /* locals: */, pkt, load, key, peer, crc, m, l, ms, msg){
 	++ this.stRxLoops;
 	
 	for(;;){
@@ -208,4 +213,4 @@ const onReceiveBufferImpl = module.exports = function(b, d, q /* locals: */, pkt
 
 		peer.onReceive(msg, pkt.sourceAddress, ms);
 	}
-};
+});
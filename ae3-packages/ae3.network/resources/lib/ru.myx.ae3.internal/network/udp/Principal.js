@@ -13,6 +13,60 @@ const isSocketAddress = ae3.net.isSocketAddress;
 const socketAddress = ae3.net.socketAddress;
 
 const WhirlpoolDigest = require("java.class/ru.myx.ae3.know.WhirlpoolDigest");
+const UdpPrincipalCrypto = require("java.class/ru.myx.ae3.internal.net.UdpPrincipalCrypto");
+const UdpBulkTransfer = require("java.class/ru.myx.ae3.internal.net.UdpBulkTransfer");
+const UdpPrincipal = require("java.class/ru.myx.ae3.internal.net.UdpPrincipal");
+const UdpComponentRegistry = require("java.class/ru.myx.ae3.internal.net.UdpComponentRegistry");
+
+/**
+ * Script fallback of the UdpPrincipalMailbox: handler calls of a principal are queued and
+ * run in arrival order by one timer task, at most 1024 are waiting.
+ * 
+ * 'list' holds (handler, message, address, serial) entries from 'head' on, 'scheduled' is
+ * set while a drain task is pending or running. Both ends go through the principal lock.
+ */
+const postMailbox = ae3.Concurrent.wrapSync(function(h, message, address, serial /* locals: */, q){
+	q = this.rxMailbox;
+	if(!q){
+		Object.defineProperty(this, 'rxMailbox', {
+			value : q = { list : [], head : 0, scheduled : false }
+		});
+	}
+	if(q.list.length - q.head >= 1024 * 4){
+		console.log("UDP::Principal:onReceive: %s: mailbox full, dropped: %s, address: %s, serial: %s", this, message, address, serial);
+		return;
+	}
+	q.list.push(h, message, address, serial);
+	if(!q.scheduled){
+		q.scheduled = true;
+		setTimeout(drainMailbox.bind(this, q), 0);
+	}
+});
+
+/**
+ * next entry of the mailbox or null, when empty the drain is over: 'scheduled' is cleared
+ */
+const takeMailbox = ae3.Concurrent.wrapSync(function(q /* locals: */, i){
+	i = q.head;
+	if(i >= q.list.length){
+		q.list.length = 0;
+		q.head = 0;
+		q.scheduled = false;
+		return null;
+	}
+	q.head = i + 4;
+	return q.list.slice(i, i + 4);
+});
+
+function drainMailbox(q /* locals: */, e){
+	while( (e = takeMailbox.call(this, q)) ){
+		try{
+			e[0].call(this, e[1], e[2], e[3]);
+		}catch(x){
+			console.log("UDP::Principal:onReceive: %s: handler error: %s, message: %s, serial: %s", this, x, e[1], e[3]);
+		}
+	}
+}
 
 const Principal = module.exports = ae3.Class.create(
 	/* name */
@@ -35,21 +89,14 @@ const Principal = module.exports = ae3.Class.create(
 			}
 		}
 		Object.defineProperties(this, {
-			'key' : {
-				writable : true, 
-				value : key || null
-			},
-			'dst' : {
-				writable : true, 
-				value : dst || null
-			},
-			'secret' : {
-				writable : true, 
-				configurable : true, 
-				value : secret || null
+			'state' : {
+				value : new UdpPrincipal()
 			},
 		});
-		this.sRx = this.sTx = (serial ^ 0) || 0;
+		this.key = key || null;
+		this.dst = dst || null;
+		this.secret = secret || null;
+		this.state.resetSerials((serial ^ 0) || 0);
 		return this;
 	},
 	/* instance */
@@ -69,17 +116,39 @@ const Principal = module.exports = ae3.Class.create(
 		MSG_Q_MEET : {
 			value : require('./messages/MSG_Q_MEET')
 		},
+		MSG_RF_CERR : {
+			value : require('./messages/MSG_RF_CERR')
+		},
 		TaskUdpSingle : {
 			value : require('./TaskUdpSingle')
 		},
 		/**
 		 * formal fields
 		 */
+		state : {
+			value : 'UdpPrincipal, typed fields behind dst, key, secret, sTx and sRx'
+		},
+		/**
+		 * null or socket address
+		 */
 		dst : {
-			value : 'null or socket address'
+			get : function(){
+				return this.state.getDst();
+			},
+			set : function(dst){
+				this.state.setDst(dst);
+			}
 		},
+		/**
+		 * the 12-byte binary key, primary
+		 */
 		key : {
-			value : 'the 12-byte binary key, primary'
+			get : function(){
+				return this.state.getKey();
+			},
+			set : function(key){
+				this.state.setKey(key);
+			}
 		},
 		/**
 		 * base16 representation of the key
@@ -93,36 +162,111 @@ const Principal = module.exports = ae3.Class.create(
 		alt : {
 			value : 'the 12-byte binary key, alternative'
 		},
+		/**
+		 * the 16-byte binary secret
+		 */
 		secret : {
-			value : 'the 16-byte binary secret'
+			get : function(){
+				return this.state.getSecret();
+			},
+			set : function(secret){
+				this.state.setSecret(secret);
+			}
+		},
+		/**
+		 * packet authentication mode, agreed with the remote side together with the secret:
+		 * 	"whirlpool" - legacy, digest(packet + secret)
+		 * 	"hmac-sha256" - keyed MAC, key schedule is computed once per secret
+		 */
+		auth : {
+			writable : true,
+			value : "whirlpool"
+		},
+		/**
+		 * payload encryption mode, agreed with the remote side together with the secret:
+		 * 	"whirlpool" - legacy, payload xor digest(header + secret)
+		 * 	"aes-ctr" - AES-CTR, key derived per secret, session serial and serial wrap, nonce 
+		 * 	from key, code, serial and direction, see 'initiator'
+		 */
+		cipher : {
+			writable : true,
+			value : "whirlpool"
+		},
+		/**
+		 * side of the secret for the "aes-ctr" nonce direction, the two sides must differ: 
+		 * usually true for the RemoteServicePrincipal and false for the service's own view of a 
+		 * client. Both sides look the same in the packets, so "aes-ctr" is refused until this is 
+		 * set to a boolean.
+		 */
+		initiator : {
+			writable : true,
+			value : undefined
 		},
+		crypto : {
+			value : 'UdpPrincipalCrypto, per secret, auth and cipher mode, built on first use'
+		},
+		/**
+		 * null or outbound coalescing options, 'sendSingle' packs messages into BTCH containers:
+		 * 	{count : 16, bytes : 1200 (up to 1468), delay : 200 (microseconds)}
+		 * the remote side must understand BTCH (0x3a), java only
+		 */
+		batch : {
+			writable : true,
+			value : null
+		},
+		bulk : {
+			value : 'UdpBulkTransfer, BBLK (0x3b) / BRPT (0x3c) transfers state, built on first use'
+		},
+		/**
+		 * uint32, serialIn
+		 */
 		sRx : {
-			value : 'uint32, serialIn'
+			get : function(){
+				return this.state.getRx();
+			},
+			set : function(serial){
+				this.state.setRx(serial);
+			}
 		},
+		/**
+		 * uint32, serialOut
+		 */
 		sTx : {
-			value : 'uint32, serialOut'
+			get : function(){
+				return this.state.getTx();
+			},
+			set : function(serial){
+				this.state.setTx(serial);
+			}
 		},
 		/**
 		 * methods
 		 */
 		updateSecret : {
-			value : function(secret, serial){
-				console.info("UDP::Principal:updateSecret: %s: secret?: %s, changed: %s, serial: %s", 
+			/**
+			 * auth - optional, authentication mode, see 'auth'
+			 * cipher - optional, payload encryption mode, see 'cipher'
+			 */
+			value : function(secret, serial, auth, cipher){
+				console.info("UDP::Principal:updateSecret: %s: secret?: %s, changed: %s, serial: %s, auth: %s, cipher: %s", 
 					this, 
 					!!secret, 
 					(secret && secret != this.secret), 
-					serial
+					serial,
+					auth ?? this.auth,
+					cipher ?? this.cipher
 				);
+				
+				if(auth){
+					this.auth = auth;
+				}
+				if(cipher){
+					this.cipher = cipher;
+				}
 
-				Object.defineProperties(this, {
-					'secret' : {
-						writable : true, 
-						configurable : true, 
-						value : secret ?? this.secret ?? null
-					}
-				});
+				this.secret = secret ?? this.secret ?? null;
 				
-				this.sRx = this.sTx = (serial ^ 0) || 0;
+				this.state.resetSerials((serial ^ 0) || 0);
 			}
 		},
 		address : {
@@ -176,12 +320,40 @@ const Principal = module.exports = ae3.Class.create(
 				;
 			}
 		},
+		registerComponent : {
+			/**
+			 * registers / overrides handler callback for incoming CALLs to the component
+			 * 
+			 * once a component is registered all CALLs of the principal go through the
+			 * components (UdpComponentRegistry, Java side): the 'handlers' entry of CALL is
+			 * not used, CALLs to unknown components are answered with CERR 0x01 right away.
+			 */
+			value : function(component, componentCallback, thisArg /* locals: */, registry){
+				if('function' !== typeof componentCallback){
+					throw this + ": 'componentCallback' is not a function!";
+				}
+				registry = this.state.getComponents();
+				if(!registry){
+					this.state.setComponents(registry = new UdpComponentRegistry(this.MSG_RF_CERR, 0x01 /* ERROR_UNKNOWN_COMPONENT */));
+				}
+				registry.register(String(component), thisArg
+					? Function.prototype.call.bind(componentCallback, thisArg)
+					: componentCallback
+				);
+			}
+		},
+		unregisterComponent : {
+			/**
+			 * returns true when the component was registered
+			 */
+			value : function(component){
+				return this.state.getComponents()?.unregister(String(component)) ?? false;
+			}
+		},
 		
 		onReceive : {
 			value : UdpServiceHelper.principalOnReceive || (function(message, address, serial /* locals: */, c, h){
-				if(this.sTx < serial && (serial > 16000000) === (this.sTx > 16000000)){
-					this.sTx = serial;
-				}
+				this.state.observeTx(serial);
 				
 				c = message.code;
 				if( ((c^0) !== c) ){
@@ -206,7 +378,7 @@ const Principal = module.exports = ae3.Class.create(
 						Format.jsDescribe(h)
 					);
 					*/
-					setTimeout(h.bind(this, message, address, serial), 0);
+					postMailbox.call(this, h, message, address, serial);
 					// h(message, address, serial);
 					return;
 				}
@@ -229,15 +401,61 @@ const Principal = module.exports = ae3.Class.create(
 				return new this.TaskUdpSingle(null, this, message, false, taskCallback);
 			}
 		},
+		sendBulk : {
+			/**
+			 * binary - up to 64 MiB, sent as BBLK blocks with selective repeat and congestion window
+			 * callback - optional, function(error, transferId), error is null on success
+			 * address - optional, 'dst' when not set
+			 * 
+			 * returns transfer id, the remote side gets it in 'onReceiveBulk'
+			 */
+			value : function(binary, callback, address){
+				return UdpBulkTransfer.forPrincipal(this).send(binary, callback ?? null, address ?? null);
+			}
+		},
+		receiveBulk : {
+			/**
+			 * BBLK or BRPT payload, verified and decrypted, script receive path only
+			 */
+			value : function(code, b, offset, length, address){
+				return UdpBulkTransfer.forPrincipal(this).receiveBuffer(code, b, offset, length, address);
+			}
+		},
+		onReceiveBulk : {
+			/**
+			 * complete incoming bulk transfer, override to consume
+			 * 
+			 * transferId - the id returned by 'sendBulk' on the remote side
+			 * binary - reassembled TransferCopier
+			 */
+			value : function(transferId, binary, address){
+				console.log("UDP::Principal:onReceiveBulk: %s: no consumer, id: %s, length: %s, address: %s", 
+					this, 
+					transferId, 
+					binary.length(), 
+					address
+				);
+			}
+		},
 		sendSingle : {
 			/**
 			 * message
 			 * address
 			 * 
-			 * should be overriden to re-use pre-allocated buffer and/or digest
+			 * java: buffer and digest are reused per thread, created with 'createSendBuffer',
+			 * an own 'sendImpl' of a subclass is called with them, see 'sendImplDefault'
+			 * fallback: allocates buffer and digest on every call
 			 */
-			value : function(m, a){
-				return this.sendImpl(new ArrayBuffer(1500), new WhirlpoolDigest(), m, a);
+			value : UdpServiceHelper.principalSendSingle || (function(m, a){
+				return this.sendImpl(this.createSendBuffer(), new WhirlpoolDigest(), m, a);
+			})
+		},
+		createSendBuffer : {
+			/**
+			 * send packet buffer, called once per sending thread by 'sendSingle'
+			 */
+			value : function(){
+				return new ArrayBuffer(1500);
 			}
 		},
 		sendImpl : {
@@ -285,7 +503,7 @@ const Principal = module.exports = ae3.Class.create(
 					}
 					this.cacheIncomingQuerySerial(s, m);
 				}else{
-					s = m.serial ||= (this.sTx = 1 + Math.max(this.sTx, this.sRx));
+					s = m.serial ||= this.state.nextSerial();
 				}
 				
 				b[16 + 12 + 1] = (s >> 16) & 0xFF;
@@ -306,14 +524,18 @@ const Principal = module.exports = ae3.Class.create(
 				/**
 				 * calculate signature
 				 */
-				d = d.clone();
-				pkt.slice(16, len - 16).updateMessageDigest(d);
-				this.secret.updateMessageDigest(d);
-				
-				/**
-				 * put signature in the header
-				 */
-				copyBytes(d.result, 0, b, 0, 16);
+				if("whirlpool" !== this.auth){
+					UdpPrincipalCrypto.forPrincipal(this).signBuffer(b, len, d);
+				}else{
+					d = d.clone();
+					pkt.slice(16, len - 16).updateMessageDigest(d);
+					this.secret.updateMessageDigest(d);
+					
+					/**
+					 * put signature in the header
+					 */
+					copyBytes(d.result, 0, b, 0, 16);
+				}
 				
 				if(true === m.log){
 					Object.keys( (m = Object.create(m)) ).forEach(function(k, v){
@@ -334,6 +556,15 @@ const Principal = module.exports = ae3.Class.create(
 				return this.sendUdp(pkt, a);
 			})
 		},
+		sendImplDefault : {
+			/**
+			 * 'sendImpl' of Principal: while a subclass keeps it the java 'sendSingle' runs the
+			 * send pipeline directly, an own 'sendImpl' is called instead
+			 */
+			execute : "once", get : function(){
+				return Principal.prototype.sendImpl;
+			}
+		},
 		/**
 		 * checks incoming query (outgoing reply) cache
 		 * function(serial)
@@ -360,6 +591,9 @@ const Principal = module.exports = ae3.Class.create(
 		
 		payloadEncrypt : {
 			value : UdpServiceHelper.payloadEncrypt || (function(b, payloadLength, digest){
+				if("whirlpool" !== this.cipher){
+					return UdpPrincipalCrypto.forPrincipal(this).encryptBuffer(b, payloadLength, digest);
+				}
 				digest = digest.clone();
 				updateMessageDigest(digest, b, 16, 16);
 				this.secret.updateMessageDigest(digest);
@@ -368,6 +602,9 @@ const Principal = module.exports = ae3.Class.create(
 		},
 		payloadDecrypt : {
 			value : UdpServiceHelper.payloadDecrypt || (function(pkt, b, offset, payloadLength, digest){
+				if("whirlpool" !== this.cipher){
+					return UdpPrincipalCrypto.forPrincipal(this).decryptBinary(pkt, b, offset, payloadLength, digest);
+				}
 				digest = digest.clone();
 				updateMessageDigest(digest, pkt, 16, 16);
 				this.secret.updateMessageDigest(digest);
@@ -426,6 +663,16 @@ const Principal = module.exports = ae3.Class.create(
 		 * Sends actial UDP datagram message to the address given
 		 */
 		sendUdp : {
+			/**
+			 * abstract: sends the signed datagram
+			 * 
+			 * payload - binary, only valid during the call: it is a view over the send buffer 
+			 * 		reused by the next send of the thread, an override that queues, relays or 
+			 * 		sends it asynchronously must copy it first (see UdpSendPacer)
+			 * addr - socket address
+			 * 
+			 * returns bytes sent, 0 when not sent
+			 */
 			value : function(payload, addr){
 				console.log("UDP::Principal:sendUdp: %s: sendUdp not implemented", this);
 				throw new Error("'sendUdp' of Principal is an abstract method and should be overriden!");
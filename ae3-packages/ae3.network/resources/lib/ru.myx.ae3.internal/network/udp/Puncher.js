@@ -104,10 +104,7 @@ const Puncher = module.exports = ae3.Class.create(
 		
 		"onSeen" : {
 			value : function(seen, address, serial){
-				Object.defineProperty(this.remote, "dst",{
-					writable : true,
-					value : address
-				});
+				this.remote.dst = address;
 				// sets loopInterval & loopLimit
 				if(!seen.parseMode(this)){
 					// mode is 0x00 - reset and exit
@@ -133,10 +130,7 @@ const Puncher = module.exports = ae3.Class.create(
 		"puncherReset" : {
 			value : function(){
 				if(this.remote.targetSpec){
-					Object.defineProperty(this.remote, "dst",{
-						writable : true,
-						value : null
-					});
+					this.remote.dst = null;
 					this.targetList = null;
 				}
 				this.since = 0;
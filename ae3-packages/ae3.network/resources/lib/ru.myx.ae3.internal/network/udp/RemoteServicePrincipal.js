@@ -16,29 +16,18 @@ const Principal = require('./Principal');
 const FN_ON_RECEIVE_PRINCIPAL = Principal.prototype.onReceive;
 const FN_UPDATE_SECRET_PRINCIPAL = Principal.prototype.updateSecret;
 
-const CoarseDelayCache = ae3.Concurrent.CoarseDelayCache;
-
 const UdpServiceHelper = require("java.class/ru.myx.ae3.internal.net.UdpServiceHelper");
+const UdpWaitingTasks = require("java.class/ru.myx.ae3.internal.net.UdpWaitingTasks");
 
 /**
  * 'this' should be bint to RemoteServicePrincipal instanc
  * 'task' - task or false.
  */
 const expireWaitingTaskSerial = UdpServiceHelper?.expireWaitingTaskSerial ?? function(serial, task){
-	this.receiveReplySerialsCache.put(serial, true);
+	this.state.getReplyWindow().mark(serial);
 	task.onDestroy?.();
 };
 
-/**
- * 'this' should be bint to RemoteServicePrincipal instance
- * 'x' true or message
- */
-const expireReceiveCachedSerial = UdpServiceHelper?.expireReceiveCachedSerial ?? function(serial, x){
-	if(this.sRx < serial && this.sTx > serial && (serial > 16000000) === (this.sRx > 16000000)){
-		this.sRx = serial;
-	}
-};
-
 const RemoteServicePrincipal = module.exports = ae3.Class.create(
 	/* name */
 	"RemoteServicePrincipal",
@@ -48,25 +37,16 @@ const RemoteServicePrincipal = module.exports = ae3.Class.create(
 	function(key, dst, secret, serial){
 		this.Principal(key, dst, secret, serial);
 		
-		Object.defineProperties(this, {
-			"waitingTaskSerialsCache" : {
-				/** tasks awaiting replies cache **/
-				value : new CoarseDelayCache(3100, 5, expireWaitingTaskSerial.bind(this))
-			},
-			"receiveQuerySerialsCache" : {
-				/** fresh incoming requests for us to ignore or repeat replies */
-				value : new CoarseDelayCache(3400, 5, expireReceiveCachedSerial.bind(this))
-			},
-			"receiveReplySerialsCache" : {
-				/** fresh incoming replies for us to ignore */
-				value : new CoarseDelayCache(3400, 5, expireReceiveCachedSerial.bind(this))
-			},
-		});
-		
 		return this;
 	},
 	/* instance */
 	{
+		waitingTaskSerialsCache : {
+			/** tasks awaiting replies cache, created on first request sent, expired by the shared UdpTimerWheel **/
+			execute : "once", get : function(){
+				return new UdpWaitingTasks(3100, expireWaitingTaskSerial.bind(this));
+			}
+		},
 		handlers : {
 			execute : "once", get : function(){
 				return [];
@@ -81,14 +61,17 @@ const RemoteServicePrincipal = module.exports = ae3.Class.create(
 				return FN_FORMAT_BINARY_AS_HEX(this.key);
 			}
 		},
-		
 		/**
 		 * register incoming routed request duplicates filter, see Principal.
+		 * 
+		 * Requests and replies have a replay window each (see UdpReplayWindow), the reply 
+		 * message is kept only for repeats.
 		 */
 		cacheIncomingQuerySerial : {
 			/** function put(serial, result/true) **/
-			execute : "once", get : function(){
-				return this.receiveQuerySerialsCache.put.bind(this.receiveQuerySerialsCache);
+			execute : "once", get : function(w){
+				w = this.state.getQueryWindow();
+				return w.put.bind(w);
 			}
 		},
 		/**
@@ -97,7 +80,7 @@ const RemoteServicePrincipal = module.exports = ae3.Class.create(
 		cacheIncomingReplySerial : {
 			/** function put(serial) **/
 			value : function(serial){
-				this.receiveReplySerialsCache.put(serial, true);
+				this.state.getReplyWindow().mark(serial);
 				this.waitingTaskSerialsCache.remove(serial);
 			}
 		},
@@ -106,18 +89,20 @@ const RemoteServicePrincipal = module.exports = ae3.Class.create(
 		 * check incoming routed request duplicates filter, see Principal.
 		 */
 		checkIncomingQuerySerial : {
-			/** function get(serial) **/
-			execute : "once", get : function(){
-				return this.receiveQuerySerialsCache.readCheck.bind(this.receiveQuerySerialsCache);
+			/** function check(serial) **/
+			execute : "once", get : function(w){
+				w = this.state.getQueryWindow();
+				return w.check.bind(w);
 			}
 		},
 		/**
 		 * check incoming routed reply duplicates filter, see Principal.
 		 */
 		checkIncomingReplySerial : {
-			/** function get(serial) **/
-			execute : "once", get : function(){
-				return this.receiveReplySerialsCache.readCheck.bind(this.receiveReplySerialsCache);
+			/** function check(serial) **/
+			execute : "once", get : function(w){
+				w = this.state.getReplyWindow();
+				return w.check.bind(w);
 			}
 		},
 		
@@ -185,9 +170,7 @@ const RemoteServicePrincipal = module.exports = ae3.Class.create(
 						/* ignore repeated messages with same serial */
 						this.cacheIncomingQuerySerial(serial, true);
 						/* check update local serial */
-						if(this.sTx < serial && (serial > 16000000) === (this.sTx > 16000000)){
-							this.sTx = serial;
-						}
+						this.state.observeTx(serial);
 						return this.sendSingle(
 								new this.MSG_RF_SEEN(
 										serial,
@@ -238,9 +221,9 @@ const RemoteServicePrincipal = module.exports = ae3.Class.create(
 			}
 		},
 		updateSecret : {
-			value : function(secret, serial){
+			value : function(secret, serial, auth, cipher){
 				console.log("UDP::UdpPrincipal:updateSecret: %s: secret?: %s, serial: %s, puncher: %s", this, !!secret, serial, this.puncher?.state);
-				return FN_UPDATE_SECRET_PRINCIPAL.call(this, secret, serial);
+				return FN_UPDATE_SECRET_PRINCIPAL.call(this, secret, serial, auth, cipher);
 			}
 		},
 		UHP_SEEN_HELO_MODE : {
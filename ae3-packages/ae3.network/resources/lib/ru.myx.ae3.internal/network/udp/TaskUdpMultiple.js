@@ -1,6 +1,10 @@
 const ae3 = require("ae3");
 const Concurrent = ae3.Concurrent;
 const Util = ae3.Util;
+const UdpServiceHelper = require("java.class/ru.myx.ae3.internal.net.UdpServiceHelper");
+/** same as in TaskUdpSingle */
+const TIMER_WHEEL = require("java.class/ru.myx.ae3.internal.net.UdpTimerWheel").getInstance();
+const SCHEDULE_TIMER = TIMER_WHEEL.schedule.bind(TIMER_WHEEL);
 
 /**
  * Multiple target UDP communiction exchange. One request, none or several replies from none or several target peers.
@@ -62,22 +66,36 @@ const TaskUdpMultiple = module.exports = ae3.Class.create(
 
 		const pending = this.pending = new Concurrent.HashMap();
 		
-		var peer, c = 0, single, m;
+		/** many peers: built once, serials reserved, tasks only wait for replies **/
+		const fan = peers.length >= FAN_OUT_MIN && this.prepareFanOut?.(peers, message) || null;
+		const fanned = fan && [];
+		
+		var peer, c = 0, single, m, s;
 		for(peer of peers){
 			m = message.serial ? message : Object.create(message);
+			(s = fan?.getSerial(c)) && (m.serial = s);
 			
 			if(null !== (single = new this.TaskUdpSingle(
 					this,
 					peer,
 					m, 
-					null, 
+					s ? true : null, 
 					callbackImpl.bind(this)
 				))){
 				/** this.pending may be null-ed async-ly */
 				pending.put(peer.key, single);
+				s && fanned.push(single);
 			}
 			++ c;
 		}
+		
+		if(fan){
+			/** every serial is awaited by its task now: sent in parallel, no reply is skipped */
+			for(single of fanned){
+				single.onRequestSent();
+			}
+			fan.send();
+		}
 
 		if(c === 0){
 			this.logFatal("invalid", "*", "no task, empty list of targets");
@@ -97,7 +115,7 @@ const TaskUdpMultiple = module.exports = ae3.Class.create(
 		}
 		{
 			// assignment in arguments
-			setTimeout( (this.timer = timerImpl.bind(this)) , 1000);
+			SCHEDULE_TIMER( (this.timer = timerImpl.bind(this)) , 1000);
 			console.log("UDP::TaskUdpMultiple: %s: count: %s, waiting for replies", this, c);
 			return this;
 		}
@@ -107,6 +125,26 @@ const TaskUdpMultiple = module.exports = ae3.Class.create(
 		TaskUdpSingle : {
 			value : require('./TaskUdpSingle')
 		},
+		prepareFanOut : {
+			/**
+			 * peers
+			 * message
+			 * 
+			 * java: builds the message once and reserves a serial per peer, fan.send() sends,
+			 * see UdpFanOut. Returns null when not available or not applicable
+			 */
+			value : UdpServiceHelper.taskPrepareFanOut || null
+		},
+		sendFanOut : {
+			/**
+			 * peers
+			 * message
+			 * 
+			 * java: sends the message to all peers, payload is built once, see UdpFanOut
+			 * returns null when not available or not applicable
+			 */
+			value : UdpServiceHelper.taskSendFanOut || null
+		},
 		/** 
 		 * default query TTL (when not specified by: message.queryTTL)
 		 */
@@ -210,9 +248,10 @@ const TaskUdpMultiple = module.exports = ae3.Class.create(
 		},
 		sendOnce : {
 			value : function(peers, message){
-				var c = 0, peer;
+				var c = 0, i = 0, peer;
+				const fan = peers.length >= FAN_OUT_MIN && this.prototype.sendFanOut?.call(this, peers, message) || null;
 				for(peer of peers){
-					if(peer.sendSingle( message.serial ? message : Object.create(message) )){
+					if(fan?.getSerial(i++) || peer.sendSingle( message.serial ? message : Object.create(message) )){
 						++c;
 					} 
 				}
@@ -226,6 +265,13 @@ const TaskUdpMultiple = module.exports = ae3.Class.create(
 
 
 
+/**
+ * peers count to send with 'sendFanOut'
+ */
+const FAN_OUT_MIN = 8;
+
+
+
 const callbackLast = Concurrent.wrapSync(function(singleTask){
 	if(this.pending === null){
 		// console.log("UDP::TaskUdpMultiple:callbackLast: %s: already done, singleTask: %s, reply: %s", this, singleTask, reply);
@@ -301,7 +347,7 @@ const timerImpl = Concurrent.wrapSync(function(/* locals: */p, deadLine){
 	deadLine = this.expire - Date.now() - 100;
 	if(deadLine > 0){
 		//// console.log('UDP::TaskUdpMultiple:time: %s: repeat', this);
-		setTimeout(this.timer, deadLine > 1100 ? 1100 : deadLine);
+		SCHEDULE_TIMER(this.timer, deadLine > 1100 ? 1100 : deadLine);
 		// this.logDebug("continue", "*", "timer re-set");
 		return;
 	}
@@ -1,4 +1,12 @@
 const ae3 = require("ae3");
+const UdpMetrics = require("java.class/ru.myx.ae3.internal.net.UdpMetrics").getInstance();
+const UdpRttEstimator = require("java.class/ru.myx.ae3.internal.net.UdpRttEstimator");
+
+/**
+ * setTimeout(fn, delay) replacement: the shared UdpTimerWheel when available, O(1) schedule and cancel
+ */
+const TIMER_WHEEL = require("java.class/ru.myx.ae3.internal.net.UdpTimerWheel").getInstance();
+const SCHEDULE_TIMER = TIMER_WHEEL.schedule.bind(TIMER_WHEEL);
 
 
 /**
@@ -42,7 +50,11 @@ const TaskUdpSingle = module.exports = ae3.Class.create(
 		this.left = 2;
 
 		this.CommunicationTask(parent);
-		this.expire = Date.now() + (message.queryTTL || this.defaultQueryTtl);
+		/** peer's round-trip time, see UdpRttEstimator, null - fixed retry schedule */
+		this.rtt = peer.state?.getRtt?.() || null;
+		/** a slow peer extends the class default, never shortens it **/
+		this.queryTtl = message.queryTTL || Math.max(this.defaultQueryTtl, this.rtt?.getQueryTtl() ?? 0);
+		this.expire = Date.now() + this.queryTtl;
 		this.peer = peer;
 		this.message = message;
 		if(dontSend !== true){
@@ -57,6 +69,7 @@ const TaskUdpSingle = module.exports = ae3.Class.create(
 				return this;
 			}
 			this.logDetail("request", this.peerName, message);
+			this.onRequestSent();
 		}
 
 		/** serial may be set by peer.sendSingle at last */
@@ -67,17 +80,18 @@ const TaskUdpSingle = module.exports = ae3.Class.create(
 		peer.cacheWaitingTaskSerial(this.serial, this);
 
 		if( (this.retryDelay = /* message.retryDelay ?? */ this.defaultRetryDelay) > 100 ){
-			/** do retries **/
+			/** do retries, first one after peer's retry timeout when known **/
+			this.rtt && (this.retryDelay = this.rtt.getRetryDelay());
 			this.timer = TIMER_IMPL.bind(this);
-			setTimeout(this.timer, Math.min( //
-				(message.queryTTL || this.defaultQueryTtl), 
+			this.timeout = SCHEDULE_TIMER(this.timer, Math.min( //
+				this.queryTtl, 
 				this.retryDelay
 			));
 			return this;
 		}else{
 			/** no retries **/
 			this.timer = TIMER_NO_RETRIES_IMPL.bind(this);
-			setTimeout(this.timer, (message.queryTTL || this.defaultQueryTtl));
+			this.timeout = SCHEDULE_TIMER(this.timer, this.queryTtl);
 			return this;
 		}
 	},
@@ -123,6 +137,7 @@ const TaskUdpSingle = module.exports = ae3.Class.create(
 			 */
 			value : ae3.Concurrent.wrapSync(function(){
 				delete this.left;
+				this.timeout?.cancel?.();
 			})
 		},
 		/**
@@ -211,6 +226,16 @@ const TaskUdpSingle = module.exports = ae3.Class.create(
 		"onTaskFinishedCallback" : {
 			value : null
 		},
+		"onRequestSent" : {
+			/**
+			 * the request is on its way: reply latency and RTT are measured from here,
+			 * called by TaskUdpMultiple for 'dontSend' tasks sent with the fan-out
+			 */
+			value : function(){
+				this.rttStart = UdpMetrics.taskStart();
+				this.rtt && (this.rttSent = UdpRttEstimator.now());
+			}
+		},
 		"onDestroy" : {
 			/**
 			 * when timed out
@@ -229,12 +254,15 @@ const TaskUdpSingle = module.exports = ae3.Class.create(
 			/**
 			 * parse payload from the buffer, return message
 			 */
-			value : ae3.Concurrent.wrapSync(function(message){
+			value : ae3.Concurrent.wrapSync(function(message, /* locals: */first){
 				if(0 === this.left){
 					// console.log("UDP::TaskUdpSingle:onReceive: %s: ignored, already done, reply: %s", this, message);
 					return;
 				}
 				// console.log("UDP::TaskUdpSingle:onReceive: %s: reply: %s", this, message);
+				if( (first = 2 === this.left) && this.rttStart){
+					UdpMetrics.taskReply(this.rttStart);
+				}
 				switch(this.onTaskProgress(message)){
 				case true:
 					// reply received means that send really succeed
@@ -242,9 +270,13 @@ const TaskUdpSingle = module.exports = ae3.Class.create(
 					return true;
 				case false:
 					delete this.left;
+					this.timeout?.cancel?.();
 					return false;
 				default:
+					/** request and its final reply, no resends (Karn) **/
+					first && this.rttSent && this.rtt.sample(this.rttSent);
 					delete this.left;
+					this.timeout?.cancel?.();
 					setTimeout(this.onTaskFinished.bind(this, message), 0);
 					return false;
 				}
@@ -301,16 +333,23 @@ const TIMER_IMPL = ae3.Concurrent.wrapSync(function(/* locals: */deadLine){
 		// reply seen, no need to re-send
 		if(1 === this.left){
 			// console.log("UDP::TaskUdpSingle:Timer: %s: timer, repeat", this);
-			setTimeout(this.timer, deadLine + 100);
+			this.timeout = SCHEDULE_TIMER(this.timer, deadLine + 100);
 			return true;
 		}
 		if(this.peer.sendSingle(this.message)){
 			this.logDetail("timer-repeat", this.peerName, this.message);
 			// console.log("UDP::TaskUdpSingle:Timer: %s: timer, repeat", this);
-			setTimeout( this.timer, Math.min( //
+			if(this.rtt){
+				/** resent, the reply can not be matched to a send: no RTT sample from this task **/
+				this.rttSent && this.rtt.timeout();
+				delete this.rttSent;
+			}
+			this.timeout = SCHEDULE_TIMER( this.timer, Math.min( //
 				deadLine + 100, 
-				( this.retryDelay = //
-					this.retryDelay * ( /* this.message.retryDelayMultiply ?? */ this.defaultRetryDelayMultiply) // 
+				( this.retryDelay = this.rtt
+					// exponential backoff
+					? Math.min(UdpRttEstimator.RTO_MAX, this.retryDelay * 2)
+					: this.retryDelay * ( /* this.message.retryDelayMultiply ?? */ this.defaultRetryDelayMultiply) // 
 					+ ( /* this.message.retryDelayIncrement ?? */ this.defaultRetryDelayIncrement) //
 				) //
 			));
@@ -330,7 +369,7 @@ const TIMER_NO_RETRIES_IMPL = ae3.Concurrent.wrapSync(function(/* locals: */dead
 	}
 	deadLine = this.expire - Date.now() - 100;
 	if(deadLine > 0){
-		setTimeout(this.timer, deadLine + 100);
+		this.timeout = SCHEDULE_TIMER(this.timer, deadLine + 100);
 		return;
 	}
 	this.logDetail("expired", "timer", "task timeout expired");
@@ -0,0 +1,82 @@
+const ae3 = require("ae3");
+const Transfer = ae3.Transfer;
+
+/**
+ * Bulk transfer block, one MTU-sized slice of a large binary.
+ *
+ * Payload:
+ * 	4 bytes - transfer id
+ * 	4 bytes - block index
+ * 	4 bytes - total length
+ * 	2 bytes - block size
+ * 	2 bytes - reserved, 0
+ * 	X bytes - block data
+ *
+ * Blocks are sent and reassembled by the java UdpBulkTransfer of the Principal (see 
+ * 'sendBulk' and 'onReceiveBulk'), never delivered to handlers. Every block has its own
+ * serial, repeated blocks too.
+ */
+const MSG_Q_BBLK = module.exports = ae3.Class.create(
+	/* name */
+	"MSG_Q_BBLK",
+	/* inherit */
+	require('./../Message').Request,
+	/* constructor */
+	/**
+	 *
+	 * @param payload binary, header and block data
+	 * @param transferId
+	 * @param block block index
+	 * @returns {@G}
+	 */
+	function(payload, serial, transferId, block){
+		// this.MessageRequest();
+		this.payload = payload;
+		this.serial = serial;
+		this.transferId = transferId;
+		this.block = block;
+		return this;
+	},
+	/* instance */
+	{
+		code : {
+			value : 0x3b // ';'.charCodeAt(0)
+		},
+		encrypt : {
+			value : true
+		},
+		isBULK : {
+			value : true
+		},
+		build : {
+			value : function(b, o){
+				return this.payload.copy(0, b, o, 1468);
+			}
+		},
+		toString : {
+			value : function(){
+				return "[BBLK id:" + this.transferId + ", block:" + this.block + ", " + Format.bytesRound(this.payload.length() - 16) + "B, sTx:"+(this.serial||0)+"]";
+			}
+		}
+	},
+	/* static */
+	{
+		"parseBinaryMessage" : {
+			value : function(b, o, s, L){
+				if(L < 16){
+					return null;
+				}
+				return new MSG_Q_BBLK(Transfer.createCopier(b, o, L), s, readInt(b, o), readInt(b, o + 4));
+			}
+		},
+		"toString" : {
+			value : function(){
+				return "MSG_Q_BBLK";
+			}
+		}
+	}
+);
+
+function readInt(b, o){
+	return ((b[o] & 0xFF) << 24) | ((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF);
+}
@@ -0,0 +1,94 @@
+const ae3 = require("ae3");
+const Transfer = ae3.Transfer;
+
+/**
+ * Batch container, many small messages of one principal in one datagram.
+ *
+ * Payload is a sequence of entries:
+ * 	1 byte - message code
+ * 	3 bytes - message serial
+ * 	2 bytes - payload length
+ * 	X bytes - message payload, not encrypted (the container is)
+ *
+ * Containers are built by the java coalescer (see 'batch' of the Principal) and unpacked by
+ * the receive pipeline into separate 'onReceive' calls, the container itself is never
+ * delivered to handlers.
+ */
+const MSG_Q_BTCH = module.exports = ae3.Class.create(
+	/* name */
+	"MSG_Q_BTCH",
+	/* inherit */
+	require('./../Message').Request,
+	/* constructor */
+	/**
+	 *
+	 * @param entries binary, encoded entries
+	 * @returns {@G}
+	 */
+	function(entries, serial){
+		// this.MessageRequest();
+		this.entries = entries;
+		this.serial = serial;
+		return this;
+	},
+	/* instance */
+	{
+		code : {
+			value : 0x3a // ':'.charCodeAt(0)
+		},
+		encrypt : {
+			value : true
+		},
+		isBTCH : {
+			value : true
+		},
+		build : {
+			value : function(b, o){
+				return this.entries.copy(0, b, o, 1468);
+			}
+		},
+		toString : {
+			value : function(){
+				return "[BTCH " + Format.bytesRound(this.entries.length()) + "B, sTx:"+(this.serial||0)+"]";
+			}
+		}
+	},
+	/* static */
+	{
+		"parseBinaryMessage" : {
+			value : function(b, o, s, L){
+				return new MSG_Q_BTCH(Transfer.createCopier(b, o, L), s);
+			}
+		},
+		/**
+		 * calls fn(code, serial, offset, length) for every entry of the binary buffer
+		 * returns false when the buffer is malformed
+		 */
+		"forEachEntry" : {
+			value : function(b, o, L, fn /* locals: */, e, l){
+				for(e = o + L; o < e;){
+					if(o + 6 > e){
+						return false;
+					}
+					l = ((b[o + 4] & 0xFF) << 8) | (b[o + 5] & 0xFF);
+					if(o + 6 + l > e){
+						return false;
+					}
+					fn(
+						b[o] & 0xFF,
+						((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF),
+						o + 6,
+						l
+					);
+					o += 6 + l;
+				}
+				return true;
+			}
+		},
+		"toString" : {
+			value : function(){
+				return "MSG_Q_BTCH";
+			}
+		}
+	}
+);
@@ -1,7 +1,7 @@
 const ae3 = require("ae3");
 const Transfer = ae3.Transfer;
 
-const UdpServiceHelper = (function(){ try{ return require('java.class/ru.myx.ae3.internal.net.UdpServiceHelper'); }catch(e){ return {}; } })();
+const UdpServiceHelper = require("java.class/ru.myx.ae3.internal.net.UdpServiceHelper");
 
 
 const MSG_Q_CALL = module.exports = ae3.Class.create(
@@ -57,16 +57,19 @@ const MSG_Q_CALL = module.exports = ae3.Class.create(
 	/* static */
 	{
 		"parseBinaryMessage" : {
-			value : function(b, o, s, L){
+			value : UdpServiceHelper.parseMsgCall || (function(b, o, s, L){
 				var l = 0, component;
-				for(;l < b.length; ++l){
+				for(;l < L; ++l){
 					if(b[o + l] === 0){
 						component = Transfer.wrapCopier(b, o, l++).toStringUtf8();
 						break;
 					}
 				}
+				if(component === undefined){
+					return null;
+				}
 				return new MSG_Q_CALL(component, Transfer.createCopier(b, o + l, L - l), s);
-			}
+			})
 		},
 		"toString" : {
 			value : function(){
@@ -0,0 +1,77 @@
+const ae3 = require("ae3");
+const Transfer = ae3.Transfer;
+
+/**
+ * Bulk transfer report, receiver state of one transfer.
+ *
+ * Payload:
+ * 	4 bytes - transfer id
+ * 	4 bytes - cumulative, all blocks below are received
+ * 	1 byte - flags: 1 - complete, 2 - rejected
+ * 	2 bytes - bitmap length
+ * 	X bytes - bitmap, bit N (msb first) is set when block cumulative + 1 + N is received
+ *
+ * Sent and consumed by the java UdpBulkTransfer of the Principal, never delivered to
+ * handlers. Has its own serial, not the serial of any block.
+ */
+const MSG_RC_BRPT = module.exports = ae3.Class.create(
+	/* name */
+	"MSG_RC_BRPT",
+	/* inherit */
+	require('./../Message').ReplyContinue,
+	/* constructor */
+	/**
+	 *
+	 * @param payload binary
+	 * @param transferId
+	 * @param cumulative
+	 * @returns {@G}
+	 */
+	function(payload, serial, transferId, cumulative){
+		// this.MessageReplyContinue();
+		this.payload = payload;
+		this.serial = serial;
+		this.transferId = transferId;
+		this.cumulative = cumulative;
+		return this;
+	},
+	/* instance */
+	{
+		code : {
+			value : 0x3c // '<'.charCodeAt(0)
+		},
+		isBULK : {
+			value : true
+		},
+		build : {
+			value : function(b, o){
+				return this.payload.copy(0, b, o, 1468);
+			}
+		},
+		toString : {
+			value : function(){
+				return "[BRPT id:" + this.transferId + ", cumulative:" + this.cumulative + ", serial:"+(this.serial||0)+"]";
+			}
+		}
+	},
+	/* static */
+	{
+		"parseBinaryMessage" : {
+			value : function(b, o, s, L){
+				if(L < 11){
+					return null;
+				}
+				return new MSG_RC_BRPT(Transfer.createCopier(b, o, L), s, readInt(b, o), readInt(b, o + 4));
+			}
+		},
+		"toString" : {
+			value : function(){
+				return "MSG_RC_BRPT";
+			}
+		}
+	}
+);
+
+function readInt(b, o){
+	return ((b[o] & 0xFF) << 24) | ((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF);
+}
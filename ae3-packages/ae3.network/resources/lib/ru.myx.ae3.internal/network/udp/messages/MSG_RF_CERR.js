@@ -1,3 +1,5 @@
+const UdpServiceHelper = require("java.class/ru.myx.ae3.internal.net.UdpServiceHelper");
+
 const MSG_RF_CERR = module.exports = require("ae3").Class.create(
 	/* name */
 	"MSG_RF_CERR",
@@ -22,10 +24,10 @@ const MSG_RF_CERR = module.exports = require("ae3").Class.create(
 			value : true
 		},
 		build : {
-			value : function(b, o){
+			value : UdpServiceHelper.buildMsgCerr || (function(b, o){
 				b[o] = this.errorCode & 0xFF;
 				return 1;
-			}
+			})
 		},
 		toString : {
 			value : function(){
@@ -0,0 +1,297 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.Objects;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.base.BaseProperty;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Per-principal outbound coalescer: built messages are appended to a pending BTCH (0x3a)
+ * container which is sent as one datagram, with one signature, when it is full by size or
+ * count or when the deadline since the first pending message passes.
+ *
+ * Enabled by the 'batch' property of the Principal:
+ *
+ * <code>
+ * 	{count : 16, bytes : 1200, delay : 200}
+ * </code> delay is in microseconds. Deadlines shorter than the UdpTimerWheel TICK are kept by
+ * one shared flusher thread ("UDP-TX-BATCH") to the microsecond, longer ones run on the wheel.
+ * Container bytes are kept within one 1500 byte datagram.
+ *
+ * Container serial is allocated as for any request, entries keep their own serials.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpBatchCoalescer {
+
+	/** default max messages per container */
+	public static final int DEFAULT_COUNT = 16;
+
+	/** default max container payload bytes */
+	public static final int DEFAULT_BYTES = 1200;
+
+	/** default deadline, microseconds */
+	public static final int DEFAULT_DELAY = 200;
+
+	/** max container payload bytes: the container datagram fits 1500 bytes */
+	public static final int MAX_BYTES = 1500 - UdpServiceReceiver.HEADER_LENGTH;
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(UdpTimerWheel.TICK);
+
+	/** sub-tick deadlines of all coalescers, see flusher() */
+	private static final DelayQueue<Deadline> DEADLINES = new DelayQueue<>();
+
+	static {
+		final Thread thread = new Thread(UdpBatchCoalescer::flusher, "UDP-TX-BATCH");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Sub-tick deadline of a pending container, stale ones are ignored by generation */
+	private record Deadline(UdpBatchCoalescer coalescer, long generation, long at) implements Delayed {
+
+		@Override
+		public int compareTo(final Delayed o) {
+
+			return Long.compare(this.at, ((Deadline) o).at);
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+
+			return unit.convert(this.at - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private final static BasePrimitiveString STR_batch = Base.forString("batch");
+	private final static BasePrimitiveString STR_batchCoalescer = Base.forString("batchCoalescer");
+	private final static BasePrimitiveString STR_bytes = Base.forString("bytes");
+	private final static BasePrimitiveString STR_count = Base.forString("count");
+	private final static BasePrimitiveString STR_delay = Base.forString("delay");
+
+	/** @param principal
+	 * @return coalescer for the principal or null when 'batch' is not set */
+	static UdpBatchCoalescer forPrincipal(final BaseObject principal) {
+
+		final BaseObject options = principal.baseGet(UdpBatchCoalescer.STR_batch, BaseObject.UNDEFINED);
+		if (!options.baseToJavaBoolean()) {
+			return null;
+		}
+		final Object existing = principal.baseGet(UdpBatchCoalescer.STR_batchCoalescer, BaseObject.UNDEFINED).baseValue();
+		if (existing instanceof final UdpBatchCoalescer coalescer && coalescer.options == options) {
+			return coalescer;
+		}
+		final UdpBatchCoalescer coalescer = new UdpBatchCoalescer(principal, options);
+		principal.baseDefine(UdpBatchCoalescer.STR_batchCoalescer, Base.forUnknown(coalescer), BaseProperty.ATTRS_MASK_WED);
+		return coalescer;
+	}
+
+	private static void flusher() {
+
+		for (;;) {
+			final Deadline deadline;
+			try {
+				deadline = UdpBatchCoalescer.DEADLINES.take();
+			} catch (final InterruptedException e) {
+				return;
+			}
+			final UdpBatchCoalescer coalescer = deadline.coalescer();
+			try {
+				coalescer.flushDeadline(coalescer.ctx, deadline.generation());
+			} catch (final RuntimeException e) {
+				coalescer.ctx.getConsole().log("UDP::Batch:Java: %s: flush-error: %s", coalescer.principal, e);
+			}
+		}
+	}
+
+	private static int option(final BaseObject options, final BasePrimitiveString name, final int defaultValue) {
+
+		final int value = options.baseGet(name, BaseObject.UNDEFINED).baseToJavaInteger();
+		return value > 0
+			? value
+			: defaultValue;
+	}
+
+	private final BaseObject principal;
+
+	private final BaseObject options;
+
+	private final int maxCount;
+
+	private final int maxBytes;
+
+	private final long delayMicros;
+
+	private final ExecProcess ctx;
+
+	/** container packet: header + entries */
+	private final byte[] packet;
+
+	/** scratch state for encrypt and sign of the container */
+	private final UdpSendContext context = new UdpSendContext();
+
+	private BaseObject address;
+
+	private int count;
+
+	/** end of the pending entries in the packet */
+	private int length = UdpServiceReceiver.HEADER_LENGTH;
+
+	/** incremented on every flush, stale deadline tasks are ignored */
+	private long generation;
+
+	/** deadline of the pending container, cancelled on flush */
+	private UdpTimerWheel.Timeout deadline;
+
+	long stTxContainers;
+
+	long stTxMessages;
+
+	long stTxDirect;
+
+	private UdpBatchCoalescer(final BaseObject principal, final BaseObject options) {
+
+		this.principal = principal;
+		this.options = options;
+		this.maxCount = UdpBatchCoalescer.option(options, UdpBatchCoalescer.STR_count, UdpBatchCoalescer.DEFAULT_COUNT);
+		this.maxBytes = Math.max(
+				UdpServiceReceiver.ENTRY_HEADER_LENGTH + 1,
+				Math.min(UdpBatchCoalescer.MAX_BYTES, UdpBatchCoalescer.option(options, UdpBatchCoalescer.STR_bytes, UdpBatchCoalescer.DEFAULT_BYTES)));
+		this.delayMicros = UdpBatchCoalescer.option(options, UdpBatchCoalescer.STR_delay, UdpBatchCoalescer.DEFAULT_DELAY);
+		this.packet = new byte[UdpServiceReceiver.HEADER_LENGTH + this.maxBytes];
+		this.ctx = Exec.createProcess(Exec.getRootProcess(), "UdpBatchCoalescer, principal: " + principal);
+	}
+
+	/** Appends built packet as a container entry, flushes the pending container first when the
+	 * entry does not fit, goes to another address or another key.
+	 *
+	 * @param ctx
+	 * @param b
+	 *            complete unsigned packet: key, code, serial and payload
+	 * @param len
+	 *            packet length
+	 * @param a
+	 *            destination address
+	 * @return false when the message is too big for any container and should be sent as is */
+	synchronized boolean append(final ExecProcess ctx, final byte[] b, final int len, final BaseObject a) {
+
+		final int payloadLength = len - UdpServiceReceiver.HEADER_LENGTH;
+		final int entryLength = UdpServiceReceiver.ENTRY_HEADER_LENGTH + payloadLength;
+		if (this.count > 0) {
+			if (this.address != a && !Objects.equals(this.address.baseValue(), a.baseValue()) //
+					|| this.length + entryLength > this.packet.length //
+					|| !UdpBatchCoalescer.sameKey(this.packet, b)) {
+				this.flush(ctx);
+			}
+		}
+		if (UdpServiceReceiver.HEADER_LENGTH + entryLength > this.packet.length || payloadLength > 0xFFFF) {
+			++this.stTxDirect;
+			return false;
+		}
+		final byte[] packet = this.packet;
+		if (this.count == 0) {
+			System.arraycopy(b, 16, packet, 16, 12);
+			this.address = a;
+			final long generation = this.generation;
+			final long delay = TimeUnit.MICROSECONDS.toNanos(this.delayMicros);
+			if (delay < UdpBatchCoalescer.TICK_NANOS) {
+				UdpBatchCoalescer.DEADLINES.add(new Deadline(this, generation, System.nanoTime() + delay));
+			} else {
+				this.deadline = UdpTimerWheel.INSTANCE.schedule(
+						timerCtx -> this.flushDeadline(timerCtx, generation),
+						(delay + 999_999L) / 1_000_000L);
+			}
+		}
+		int position = this.length;
+		packet[position++] = b[16 + 12];
+		packet[position++] = b[16 + 12 + 1];
+		packet[position++] = b[16 + 12 + 2];
+		packet[position++] = b[16 + 12 + 3];
+		packet[position++] = (byte) (payloadLength >> 8);
+		packet[position++] = (byte) payloadLength;
+		System.arraycopy(b, UdpServiceReceiver.HEADER_LENGTH, packet, position, payloadLength);
+		this.length = position + payloadLength;
+		++this.stTxMessages;
+		if (++this.count >= this.maxCount) {
+			this.flush(ctx);
+		}
+		return true;
+	}
+
+	/** Sends pending container now
+	 *
+	 * @return container length sent, 0 when nothing was pending */
+	@ReflectionExplicit
+	public synchronized int flush() {
+
+		return this.flush(this.ctx);
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpBatchCoalescer count=" + this.maxCount + ", bytes=" + this.maxBytes + ", delay=" + this.delayMicros + "us, containers=" + this.stTxContainers
+				+ ", messages=" + this.stTxMessages + "]";
+	}
+
+	private synchronized void flushDeadline(final ExecProcess ctx, final long generation) {
+
+		if (this.generation == generation) {
+			this.deadline = null;
+			this.flush(ctx);
+		}
+	}
+
+	/** must be called while synchronized */
+	private int flush(final ExecProcess ctx) {
+
+		if (this.count == 0) {
+			return 0;
+		}
+		final byte[] packet = this.packet;
+		final int length = this.length;
+		final BaseObject address = this.address;
+		++this.generation;
+		final UdpTimerWheel.Timeout deadline = this.deadline;
+		if (deadline != null) {
+			this.deadline = null;
+			deadline.cancel();
+		}
+		this.count = 0;
+		this.length = UdpServiceReceiver.HEADER_LENGTH;
+		this.address = null;
+
+		final int serial = UdpServiceHelper.nextSerial(this.principal);
+		packet[16 + 12] = (byte) UdpServiceReceiver.CODE_BTCH;
+		packet[16 + 12 + 1] = (byte) (serial >> 16 & 0xFF);
+		packet[16 + 12 + 2] = (byte) (serial >> 8 & 0xFF);
+		packet[16 + 12 + 3] = (byte) (serial >> 0 & 0xFF);
+
+		final UdpPrincipalCrypto crypto = UdpPrincipalCrypto.forPrincipal(this.principal);
+		crypto.encrypt(this.context, packet, length - UdpServiceReceiver.HEADER_LENGTH);
+		crypto.sign(this.context, packet, length);
+
+		++this.stTxContainers;
+		UdpPrincipal.forPrincipal(this.principal).sendUdp(this.principal).callIE2(ctx, this.principal, Transfer.wrapCopier(packet, 0, length), address);
+		return length;
+	}
+
+	private static boolean sameKey(final byte[] packet, final byte[] b) {
+
+		for (int i = 16; i < 16 + 12; ++i) {
+			if (packet[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,188 @@
+package ru.myx.ae3.internal.net;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.management.ThreadMXBean;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.exec.ExecProcess;
+
+/** Micro-benchmark runner for the hot paths of the package, see UdpServiceHelper.benchmark and
+ * 'ae3.net/benchmarks'.
+ *
+ * Runs like a single JMH fork in throughput mode: 'warmup' iterations are thrown away, then
+ * 'iterations' timed iterations of 'time' milliseconds each call the function back to back
+ * on the calling thread. Results are consumed by a volatile sink so the calls can not be
+ * optimized away.
+ *
+ * Allocation is measured with the per-thread allocated bytes counter of the JVM (HotSpot
+ * com.sun.management.ThreadMXBean), -1 when not supported, collections with the garbage
+ * collector beans, both over the timed iterations only.
+ *
+ * @author myx */
+final class UdpBenchmark {
+
+	/** Student t, 99.9% two-sided, by degrees of freedom 1..30, larger - normal */
+	private static final double[] T_999 = {
+			636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768,
+			3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+	};
+
+	private final static BasePrimitiveString STR_iterations = Base.forString("iterations");
+	private final static BasePrimitiveString STR_name = Base.forString("name");
+	private final static BasePrimitiveString STR_time = Base.forString("time");
+	private final static BasePrimitiveString STR_warmup = Base.forString("warmup");
+
+	/** consumes results */
+	static volatile BaseObject sink;
+
+	/** @param ctx
+	 * @param thisObject
+	 *            'this' of the calls
+	 * @param fn
+	 *            benchmarked operation, no arguments
+	 * @param options
+	 *            {name, warmup: 5, iterations: 10, time: 200}
+	 * @return report: {name, iterations, ops, nsPerOp, nsPerOpError, opsPerSecond, bytesPerOp,
+	 *         gcCount, gcTime} */
+	static BaseObject measure(final ExecProcess ctx, final BaseObject thisObject, final BaseFunction fn, final BaseObject options) {
+
+		final int warmup = UdpBenchmark.option(options, UdpBenchmark.STR_warmup, 5);
+		final int iterations = Math.max(1, UdpBenchmark.option(options, UdpBenchmark.STR_iterations, 10));
+		final long time = TimeUnit.MILLISECONDS.toNanos(Math.max(1, UdpBenchmark.option(options, UdpBenchmark.STR_time, 200)));
+
+		for (int i = 0; i < warmup; ++i) {
+			UdpBenchmark.iteration(ctx, thisObject, fn, time);
+		}
+
+		final ThreadMXBean allocation = UdpBenchmark.allocation();
+		final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		final long allocatedBefore = allocation == null
+			? 0
+			: allocation.getCurrentThreadAllocatedBytes();
+		final long gcCountBefore = UdpBenchmark.gcCount(collectors);
+		final long gcTimeBefore = UdpBenchmark.gcTime(collectors);
+
+		final double[] nsPerOp = new double[iterations];
+		long ops = 0;
+		long elapsed = 0;
+		for (int i = 0; i < iterations; ++i) {
+			final long started = System.nanoTime();
+			final long count = UdpBenchmark.iteration(ctx, thisObject, fn, time);
+			final long spent = System.nanoTime() - started;
+			nsPerOp[i] = (double) spent / count;
+			ops += count;
+			elapsed += spent;
+		}
+
+		final long allocated = allocation == null
+			? -1
+			: allocation.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+		double mean = 0;
+		for (final double value : nsPerOp) {
+			mean += value;
+		}
+		mean /= iterations;
+		double variance = 0;
+		for (final double value : nsPerOp) {
+			variance += (value - mean) * (value - mean);
+		}
+		final double error = iterations < 2
+			? Double.NaN
+			: UdpBenchmark.t999(iterations - 1) * Math.sqrt(variance / (iterations - 1)) / Math.sqrt(iterations);
+
+		final BaseObject report = BaseObject.createObject(null);
+		report.baseDefine(UdpBenchmark.STR_name, options.baseGet(UdpBenchmark.STR_name, BaseObject.UNDEFINED));
+		report.baseDefine(UdpBenchmark.STR_iterations, Base.forInteger(iterations));
+		report.baseDefine(Base.forString("ops"), Base.forLong(ops));
+		report.baseDefine(Base.forString("nsPerOp"), Base.forDouble(mean));
+		report.baseDefine(Base.forString("nsPerOpError"), Base.forDouble(error));
+		report.baseDefine(Base.forString("opsPerSecond"), Base.forDouble(ops * 1e9 / Math.max(1L, elapsed)));
+		report.baseDefine(Base.forString("bytesPerOp"), Base.forDouble(allocated < 0
+			? -1
+			: (double) allocated / ops));
+		report.baseDefine(Base.forString("gcCount"), Base.forLong(UdpBenchmark.gcCount(collectors) - gcCountBefore));
+		report.baseDefine(Base.forString("gcTime"), Base.forLong(UdpBenchmark.gcTime(collectors) - gcTimeBefore));
+		return report;
+	}
+
+	/** @return HotSpot thread allocation counter, null when not available */
+	private static ThreadMXBean allocation() {
+
+		if (ManagementFactory.getThreadMXBean() instanceof final ThreadMXBean hotspot && hotspot.isThreadAllocatedMemorySupported()) {
+			if (!hotspot.isThreadAllocatedMemoryEnabled()) {
+				hotspot.setThreadAllocatedMemoryEnabled(true);
+			}
+			return hotspot;
+		}
+		return null;
+	}
+
+	private static long gcCount(final List<GarbageCollectorMXBean> collectors) {
+
+		long count = 0;
+		for (final GarbageCollectorMXBean collector : collectors) {
+			count += Math.max(0L, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcTime(final List<GarbageCollectorMXBean> collectors) {
+
+		long time = 0;
+		for (final GarbageCollectorMXBean collector : collectors) {
+			time += Math.max(0L, collector.getCollectionTime());
+		}
+		return time;
+	}
+
+	/** @return calls made, the clock is checked every 'batch' calls */
+	private static long iteration(final ExecProcess ctx, final BaseObject thisObject, final BaseFunction fn, final long time) {
+
+		final long deadline = System.nanoTime() + time;
+		long count = 0;
+		int batch = 1;
+		do {
+			for (int i = 0; i < batch; ++i) {
+				UdpBenchmark.sink = fn.callNE0(ctx, thisObject);
+			}
+			count += batch;
+			if (batch < 1024) {
+				batch <<= 1;
+			}
+		} while (System.nanoTime() < deadline);
+		return count;
+	}
+
+	private static int option(final BaseObject options, final BasePrimitiveString name, final int defaultValue) {
+
+		final BaseObject value = options.baseGet(name, BaseObject.UNDEFINED);
+		if (value == BaseObject.UNDEFINED) {
+			return defaultValue;
+		}
+		final int result = value.baseToJavaInteger();
+		if (result < 0) {
+			throw new IllegalArgumentException("non-negative '" + name + "' is expected, value: " + value);
+		}
+		return result;
+	}
+
+	private static double t999(final int degrees) {
+
+		return degrees <= UdpBenchmark.T_999.length
+			? UdpBenchmark.T_999[degrees - 1]
+			: 3.291;
+	}
+
+	private UdpBenchmark() {
+
+		//
+	}
+}
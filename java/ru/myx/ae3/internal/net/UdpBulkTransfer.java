@@ -0,0 +1,875 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.base.BaseProperty;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Bulk block transfer of one principal: BBLK (0x3b) blocks and BRPT (0x3c) reports.
+ *
+ * A binary is cut into blocks that fit one datagram. The sender keeps a congestion window of
+ * blocks in flight (slow start, then additive increase, halved on loss, collapsed on
+ * timeout), the receiver reports cumulative and selective acknowledgements and only the
+ * lost blocks are repeated. Every block and report is a regular datagram of the principal:
+ * own serial, principal signature, blocks are encrypted.
+ *
+ * <ol>
+ * BBLK payload:
+ * <li>0..4 - transfer id</li>
+ * <li>4..8 - block index</li>
+ * <li>8..12 - total length</li>
+ * <li>12..14 - block size</li>
+ * <li>14..16 - reserved, 0</li>
+ * <li>16.. - block data</li>
+ * </ol>
+ *
+ * <ol>
+ * BRPT payload:
+ * <li>0..4 - transfer id</li>
+ * <li>4..8 - cumulative, all blocks below are received</li>
+ * <li>8 - flags: 1 - complete, 2 - rejected</li>
+ * <li>9..11 - bitmap length</li>
+ * <li>11.. - bitmap, bit N (msb first) set when block cumulative + 1 + N is received</li>
+ * </ol>
+ *
+ * Received binary is passed to 'onReceiveBulk(transferId, binary, address)' of the
+ * principal as a TransferCopier, through the mailbox of the principal. Sender callbacks go
+ * through the same mailbox.
+ *
+ * Retransmissions and delayed reports are driven by a TICK_MILLIS tick on the UdpTimerWheel
+ * while there are transfers in either direction, completed ids alone are swept once IDLE
+ * is over.
+ *
+ * Incoming transfers start with block 0 only and take the BLOCK_SIZE blocks this class sends.
+ * The data is allocated a chunk of CHUNK_BLOCKS blocks at a time, as the blocks arrive,
+ * against MAX_INCOMING_BYTES for all principals together: a transfer that does not fit is
+ * rejected, a signed header alone does not reserve the whole length.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpBulkTransfer {
+
+	/** BBLK block message code, see MSG_Q_BBLK */
+	static final int CODE_BBLK = 0x3b;
+
+	/** BRPT report message code, see MSG_RC_BRPT */
+	static final int CODE_BRPT = 0x3c;
+
+	/** block payload header: id + index + total + block size + reserved */
+	static final int BLOCK_HEADER_LENGTH = 16;
+
+	/** report payload header: id + cumulative + flags + bitmap length */
+	static final int REPORT_HEADER_LENGTH = 11;
+
+	/** block data bytes, whole block datagram stays under 1280 */
+	public static final int BLOCK_SIZE = 1200;
+
+	/** max transfer length */
+	public static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	/** max concurrent incoming transfers per principal, others are rejected */
+	static final int MAX_INCOMING = 8;
+
+	/** blocks per allocation of incoming data */
+	static final int CHUNK_BLOCKS = 64;
+
+	/** incoming data allocated, all transfers of all principals together */
+	public static final long MAX_INCOMING_BYTES = 128L * 1024 * 1024;
+
+	/** incoming data allocated now */
+	private static final AtomicLong INCOMING_BYTES = new AtomicLong();
+
+	/** max report bitmap bytes, the sender never runs further ahead of the first missing block */
+	static final int MAX_BITMAP = 128;
+
+	static final int MAX_WINDOW = 512;
+
+	static final int INITIAL_WINDOW = 4;
+
+	/** a block is lost when that many blocks sent after it are acknowledged */
+	static final int DUPLICATE_THRESHOLD = 3;
+
+	/** receiver reports after that many in-order blocks */
+	static final int REPORT_EVERY = 2;
+
+	static final int FLAG_COMPLETE = 1;
+
+	static final int FLAG_REJECTED = 2;
+
+	/** consecutive timeouts before the transfer fails */
+	static final int MAX_TIMEOUTS = 8;
+
+	static final long TICK_MILLIS = 20;
+
+	static final long RTO_INITIAL = TimeUnit.MILLISECONDS.toNanos(300);
+
+	static final long RTO_MIN = TimeUnit.MILLISECONDS.toNanos(50);
+
+	static final long RTO_MAX = TimeUnit.MILLISECONDS.toNanos(5000);
+
+	/** incoming transfers without blocks and completed ids are forgotten after */
+	static final long IDLE = TimeUnit.SECONDS.toNanos(30);
+
+	private final static BasePrimitiveString STR_bulk = Base.forString("bulk");
+	private final static BasePrimitiveString STR_onReceiveBulk = Base.forString("onReceiveBulk");
+
+	/** @param principal
+	 * @return bulk transfer state of the principal, created on first use */
+	@ReflectionExplicit
+	public static UdpBulkTransfer forPrincipal(final BaseObject principal) {
+
+		final Object existing = principal.baseGet(UdpBulkTransfer.STR_bulk, BaseObject.UNDEFINED).baseValue();
+		if (existing instanceof final UdpBulkTransfer bulk) {
+			return bulk;
+		}
+		final UdpBulkTransfer bulk = new UdpBulkTransfer(principal);
+		principal.baseDefine(UdpBulkTransfer.STR_bulk, Base.forUnknown(bulk), BaseProperty.ATTRS_MASK_WED);
+		return bulk;
+	}
+
+	private static final class Outgoing {
+
+		final int id;
+
+		final byte[] data;
+
+		final int blocks;
+
+		final BaseFunction callback;
+
+		final BaseObject address;
+
+		final BitSet acked;
+
+		/** waiting for repeat */
+		final BitSet lost = new BitSet();
+
+		/** sent more than once, no RTT samples from these (Karn) */
+		final BitSet repeated = new BitSet();
+
+		/** nanoTime of the last send, 0 - not in flight */
+		final long[] sentAt;
+
+		int nextBlock;
+
+		int inFlight;
+
+		int ackedCount;
+
+		double window = UdpBulkTransfer.INITIAL_WINDOW;
+
+		double threshold = UdpBulkTransfer.MAX_WINDOW;
+
+		/** smoothed RTT of the block acknowledgements */
+		final UdpRttEstimator rtt = new UdpRttEstimator();
+
+		/** retransmission timeout, nanoseconds, backed off by this transfer's timeouts */
+		long rto = UdpBulkTransfer.RTO_INITIAL;
+
+		/** losses of blocks sent before are the same congestion event */
+		long recoveryUntil;
+
+		/** send time of the latest block acknowledged */
+		long ackedSentAt;
+
+		int timeouts;
+
+		Outgoing(final int id, final byte[] data, final BaseFunction callback, final BaseObject address) {
+
+			this.id = id;
+			this.data = data;
+			this.blocks = UdpBulkTransfer.blockCount(data.length, UdpBulkTransfer.BLOCK_SIZE);
+			this.callback = callback;
+			this.address = address;
+			this.acked = new BitSet(this.blocks);
+			this.sentAt = new long[this.blocks];
+		}
+	}
+
+	private static final class Incoming {
+
+		final int id;
+
+		final int total;
+
+		final int blocks;
+
+		final BitSet received;
+
+		/** CHUNK_BLOCKS blocks each, allocated on the first block of the chunk */
+		byte[][] chunks;
+
+		/** bytes reserved of INCOMING_BYTES */
+		long reserved;
+
+		BaseObject address;
+
+		/** first missing block */
+		int cumulative;
+
+		int highest = -1;
+
+		int receivedCount;
+
+		int unreported;
+
+		long lastActive;
+
+		Incoming(final int id, final int total) {
+
+			this.id = id;
+			this.total = total;
+			this.blocks = UdpBulkTransfer.blockCount(total, UdpBulkTransfer.BLOCK_SIZE);
+			this.received = new BitSet(this.blocks);
+			this.chunks = new byte[(this.blocks + UdpBulkTransfer.CHUNK_BLOCKS - 1) / UdpBulkTransfer.CHUNK_BLOCKS][];
+		}
+
+		/** @return the whole binary, chunks are released */
+		byte[] assemble() {
+
+			final byte[] data = new byte[this.total];
+			final int chunkBytes = UdpBulkTransfer.CHUNK_BLOCKS * UdpBulkTransfer.BLOCK_SIZE;
+			for (int i = 0; i < this.chunks.length; ++i) {
+				System.arraycopy(this.chunks[i], 0, data, i * chunkBytes, this.chunks[i].length);
+			}
+			this.release();
+			return data;
+		}
+
+		/** @return false when the chunk of the block can not be allocated within
+		 *         MAX_INCOMING_BYTES */
+		boolean put(final int index, final byte[] buffer, final int offset, final int length) {
+
+			final int chunkBytes = UdpBulkTransfer.CHUNK_BLOCKS * UdpBulkTransfer.BLOCK_SIZE;
+			final int chunk = index / UdpBulkTransfer.CHUNK_BLOCKS;
+			byte[] data = this.chunks[chunk];
+			if (data == null) {
+				final int size = Math.min(chunkBytes, this.total - chunk * chunkBytes);
+				if (!UdpBulkTransfer.reserve(size)) {
+					return false;
+				}
+				this.reserved += size;
+				this.chunks[chunk] = data = new byte[size];
+			}
+			System.arraycopy(buffer, offset, data, index % UdpBulkTransfer.CHUNK_BLOCKS * UdpBulkTransfer.BLOCK_SIZE, length);
+			return true;
+		}
+
+		/** gives the reserved bytes back, the transfer is finished or dropped */
+		void release() {
+
+			UdpBulkTransfer.INCOMING_BYTES.addAndGet(-this.reserved);
+			this.reserved = 0;
+			this.chunks = null;
+		}
+	}
+
+	/** @return false when MAX_INCOMING_BYTES would be exceeded */
+	private static boolean reserve(final int size) {
+
+		for (;;) {
+			final long current = UdpBulkTransfer.INCOMING_BYTES.get();
+			if (current + size > UdpBulkTransfer.MAX_INCOMING_BYTES) {
+				return false;
+			}
+			if (UdpBulkTransfer.INCOMING_BYTES.compareAndSet(current, current + size)) {
+				return true;
+			}
+		}
+	}
+
+	private static int blockCount(final int total, final int blockSize) {
+
+		return total == 0
+			? 1
+			: (int) ((total + (long) blockSize - 1) / blockSize);
+	}
+
+	private static int readInt(final byte[] b, final int o) {
+
+		return (b[o] & 0xFF) << 24 | (b[o + 1] & 0xFF) << 16 | (b[o + 2] & 0xFF) << 8 | b[o + 3] & 0xFF;
+	}
+
+	private static void writeInt(final byte[] b, final int o, final int value) {
+
+		b[o] = (byte) (value >> 24);
+		b[o + 1] = (byte) (value >> 16);
+		b[o + 2] = (byte) (value >> 8);
+		b[o + 3] = (byte) value;
+	}
+
+	private final BaseObject principal;
+
+	private final ExecProcess ctx;
+
+	/** block and report packet, used while synchronized */
+	private final byte[] packet = new byte[UdpServiceReceiver.HEADER_LENGTH + UdpBulkTransfer.BLOCK_HEADER_LENGTH + UdpBulkTransfer.BLOCK_SIZE];
+
+	/** scratch state for encrypt and sign */
+	private final UdpSendContext context = new UdpSendContext();
+
+	private final Map<Integer, Outgoing> outgoing = new HashMap<>();
+
+	private final Map<Integer, Incoming> incoming = new HashMap<>();
+
+	/** completed incoming id -> nanoTime, late blocks are answered with a complete report */
+	private final Map<Integer, Long> completed = new HashMap<>();
+
+	private int nextId = ThreadLocalRandom.current().nextInt();
+
+	/** next 'tick', null when there is nothing to do */
+	private UdpTimerWheel.Timeout ticker;
+
+	/** 'ticker' only sweeps completed ids, no transfers are running */
+	private boolean tickerIdle;
+
+	long stTxBlocks;
+
+	long stTxRepeats;
+
+	long stTxReports;
+
+	long stRxBlocks;
+
+	long stRxDuplicates;
+
+	long stRxReports;
+
+	long stTransfersOut;
+
+	long stTransfersIn;
+
+	long stTransfersFailed;
+
+	private UdpBulkTransfer(final BaseObject principal) {
+
+		this.principal = principal;
+		this.ctx = Exec.createProcess(Exec.getRootProcess(), "UdpBulkTransfer, principal: " + principal);
+	}
+
+	/** Starts outgoing transfer
+	 *
+	 * @param binaryObject
+	 *            binary to transfer, up to MAX_LENGTH bytes
+	 * @param callbackObject
+	 *            optional, function(error, transferId), error is null on success
+	 * @param addressObject
+	 *            optional, principal 'dst' when not set
+	 * @return transfer id */
+	@ReflectionExplicit
+	public int send(final BaseObject binaryObject, final BaseObject callbackObject, final BaseObject addressObject) {
+
+		final TransferCopier binary = Transfer.createCopierFromBinary(binaryObject);
+		if (binary == null) {
+			throw new IllegalArgumentException("binary is expected, class: " + binaryObject.getClass().getName());
+		}
+		if (binary.length() > UdpBulkTransfer.MAX_LENGTH) {
+			throw new IllegalArgumentException("binary is too long: " + binary.length() + ", max: " + UdpBulkTransfer.MAX_LENGTH);
+		}
+		final BaseFunction callback = callbackObject == null
+			? null
+			: callbackObject.baseCall();
+		final BaseObject address = addressObject != null && addressObject.baseToJavaBoolean()
+			? addressObject
+			: null;
+		final byte[] data = new byte[(int) binary.length()];
+		binary.copy(0, data, 0, data.length);
+		synchronized (this) {
+			int id;
+			do {
+				id = this.nextId++;
+			} while (this.outgoing.containsKey(id));
+			final Outgoing o = new Outgoing(id, data, callback, address);
+			this.outgoing.put(id, o);
+			++this.stTransfersOut;
+			this.schedule();
+			this.pump(o, System.nanoTime());
+			return id;
+		}
+	}
+
+	/** Script fallback receive path, same as the java receiver does after signature check and
+	 * decryption.
+	 *
+	 * @param code
+	 * @param bufferObject
+	 *            ArrayBuffer with the payload
+	 * @param offset
+	 * @param length
+	 *            payload length
+	 * @param addressObject
+	 *            source address
+	 * @return true when accepted */
+	@ReflectionExplicit
+	public boolean receiveBuffer(final int code, final BaseObject bufferObject, final int offset, final int length, final BaseObject addressObject) {
+
+		final byte[] buffer = (byte[]) bufferObject.baseValue();
+		if (buffer == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
+		}
+		return this.receive(this.ctx, code, buffer, offset, length, addressObject);
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpBulkTransfer out=" + this.outgoing.size() + ", in=" + this.incoming.size() + ", txBlocks=" + this.stTxBlocks + ", txRepeats=" + this.stTxRepeats
+				+ ", rxBlocks=" + this.stRxBlocks + ", rxDuplicates=" + this.stRxDuplicates + "]";
+	}
+
+	/** Verified and decrypted BBLK or BRPT payload
+	 *
+	 * @return true when accepted */
+	boolean receive(final ExecProcess ctx, final int code, final byte[] buffer, final int offset, final int length, final BaseObject address) {
+
+		final Runnable done;
+		synchronized (this) {
+			switch (code) {
+				case CODE_BBLK :
+					if (length < UdpBulkTransfer.BLOCK_HEADER_LENGTH) {
+						return false;
+					}
+					++this.stRxBlocks;
+					done = this.onBlock(ctx, buffer, offset, length, address);
+					break;
+				case CODE_BRPT :
+					if (length < UdpBulkTransfer.REPORT_HEADER_LENGTH) {
+						return false;
+					}
+					++this.stRxReports;
+					done = this.onReport(buffer, offset, length);
+					break;
+				default :
+					return false;
+			}
+		}
+		if (done != null) {
+			done.run();
+		}
+		return true;
+	}
+
+	/** must be called while synchronized */
+	private Runnable onBlock(final ExecProcess ctx, final byte[] buffer, final int offset, final int length, final BaseObject address) {
+
+		final int id = UdpBulkTransfer.readInt(buffer, offset);
+		final int index = UdpBulkTransfer.readInt(buffer, offset + 4);
+		final int total = UdpBulkTransfer.readInt(buffer, offset + 8);
+		final int blockSize = (buffer[offset + 12] & 0xFF) << 8 | buffer[offset + 13] & 0xFF;
+		if (total < 0 || total > UdpBulkTransfer.MAX_LENGTH || blockSize != UdpBulkTransfer.BLOCK_SIZE) {
+			this.sendReport(id, 0, UdpBulkTransfer.FLAG_REJECTED, null, address);
+			return null;
+		}
+		final int blocks = UdpBulkTransfer.blockCount(total, blockSize);
+		final int dataLength = length - UdpBulkTransfer.BLOCK_HEADER_LENGTH;
+		if (index < 0 || index >= blocks || dataLength != Math.min(blockSize, total - index * blockSize)) {
+			return null;
+		}
+		if (this.completed.containsKey(id)) {
+			++this.stRxDuplicates;
+			this.sendReport(id, blocks, UdpBulkTransfer.FLAG_COMPLETE, null, address);
+			return null;
+		}
+		final long now = System.nanoTime();
+		Incoming in = this.incoming.get(id);
+		if (in == null) {
+			/** unknown or expired transfer: only the first block starts one, replayed or late
+			 * blocks do not */
+			if (index != 0) {
+				return null;
+			}
+			if (this.incoming.size() >= UdpBulkTransfer.MAX_INCOMING) {
+				this.sendReport(id, 0, UdpBulkTransfer.FLAG_REJECTED, null, address);
+				return null;
+			}
+			in = new Incoming(id, total);
+			this.incoming.put(id, in);
+			this.schedule();
+		} else if (in.total != total) {
+			return null;
+		}
+		in.address = address;
+		in.lastActive = now;
+		if (in.received.get(index)) {
+			/** our report was lost or late */
+			++this.stRxDuplicates;
+			this.sendReport(in.id, in.cumulative, 0, in, address);
+			return null;
+		}
+		if (!in.put(index, buffer, offset + UdpBulkTransfer.BLOCK_HEADER_LENGTH, dataLength)) {
+			this.incoming.remove(id);
+			in.release();
+			++this.stTransfersFailed;
+			this.sendReport(id, 0, UdpBulkTransfer.FLAG_REJECTED, null, address);
+			this.ctx.getConsole().log("UDP::Bulk:Java: %s: incoming rejected, no memory, id: %s, total: %s", this.principal, Integer.toString(id), Integer.toString(total));
+			return null;
+		}
+		in.received.set(index);
+		++in.receivedCount;
+		if (index > in.highest) {
+			in.highest = index;
+		}
+		final boolean inOrder = index == in.cumulative;
+		if (inOrder) {
+			in.cumulative = in.received.nextClearBit(index + 1);
+		}
+		if (in.receivedCount == in.blocks) {
+			this.incoming.remove(id);
+			this.completed.put(id, now);
+			++this.stTransfersIn;
+			this.sendReport(id, in.blocks, UdpBulkTransfer.FLAG_COMPLETE, null, address);
+			final Incoming complete = in;
+			return () -> this.deliver(complete);
+		}
+		if (!inOrder || ++in.unreported >= UdpBulkTransfer.REPORT_EVERY) {
+			this.sendReport(in.id, in.cumulative, 0, in, address);
+		}
+		return null;
+	}
+
+	/** must be called while synchronized */
+	private Runnable onReport(final byte[] buffer, final int offset, final int length) {
+
+		final int id = UdpBulkTransfer.readInt(buffer, offset);
+		final Outgoing o = this.outgoing.get(id);
+		if (o == null) {
+			return null;
+		}
+		final int cumulative = UdpBulkTransfer.readInt(buffer, offset + 4);
+		final int flags = buffer[offset + 8] & 0xFF;
+		final int bitmapLength = (buffer[offset + 9] & 0xFF) << 8 | buffer[offset + 10] & 0xFF;
+		if (UdpBulkTransfer.REPORT_HEADER_LENGTH + bitmapLength > length || cumulative < 0) {
+			return null;
+		}
+		if ((flags & UdpBulkTransfer.FLAG_REJECTED) != 0) {
+			this.outgoing.remove(id);
+			return this.finish(o, "rejected by peer");
+		}
+		final long now = System.nanoTime();
+		final int limit = (flags & UdpBulkTransfer.FLAG_COMPLETE) != 0
+			? o.blocks
+			: Math.min(cumulative, o.blocks);
+		int acked = 0;
+		for (int i = o.acked.nextClearBit(0); i < limit; i = o.acked.nextClearBit(i + 1)) {
+			this.ack(o, i, now);
+			++acked;
+		}
+		final int bitmap = offset + UdpBulkTransfer.REPORT_HEADER_LENGTH;
+		for (int bit = 0; bit < bitmapLength * 8; ++bit) {
+			final int index = cumulative + 1 + bit;
+			if (index >= o.blocks) {
+				break;
+			}
+			if ((buffer[bitmap + (bit >> 3)] & 0x80 >>> (bit & 7)) != 0 && !o.acked.get(index)) {
+				this.ack(o, index, now);
+				++acked;
+			}
+		}
+		if (o.ackedCount == o.blocks) {
+			this.outgoing.remove(id);
+			return this.finish(o, null);
+		}
+		if (acked > 0) {
+			o.timeouts = 0;
+		}
+
+		/** selective repeat: in flight blocks sent before an acknowledged one, with enough
+		 * acknowledged blocks above them */
+		final int highest = bitmapLength == 0
+			? limit - 1
+			: Math.max(limit - 1, UdpBulkTransfer.highestBit(buffer, bitmap, bitmapLength, cumulative));
+		boolean loss = false;
+		for (int i = o.acked.nextClearBit(0); i <= highest - UdpBulkTransfer.DUPLICATE_THRESHOLD; i = o.acked.nextClearBit(i + 1)) {
+			final long sentAt = o.sentAt[i];
+			if (sentAt != 0 && o.ackedSentAt - sentAt > 0) {
+				o.sentAt[i] = 0;
+				--o.inFlight;
+				o.lost.set(i);
+				loss = true;
+			}
+		}
+		if (loss && now - o.recoveryUntil >= 0) {
+			o.threshold = Math.max(2, o.window / 2);
+			o.window = o.threshold;
+			o.recoveryUntil = now + Math.max(TimeUnit.MICROSECONDS.toNanos(o.rtt.getSrtt()), UdpBulkTransfer.RTO_MIN);
+		}
+		this.pump(o, now);
+		return null;
+	}
+
+	private static int highestBit(final byte[] buffer, final int bitmap, final int bitmapLength, final int cumulative) {
+
+		for (int i = bitmapLength - 1; i >= 0; --i) {
+			final int bits = buffer[bitmap + i] & 0xFF;
+			if (bits != 0) {
+				return cumulative + 1 + i * 8 + 7 - Integer.numberOfTrailingZeros(bits);
+			}
+		}
+		return cumulative;
+	}
+
+	/** must be called while synchronized */
+	private void ack(final Outgoing o, final int index, final long now) {
+
+		o.acked.set(index);
+		o.lost.clear(index);
+		++o.ackedCount;
+		final long sentAt = o.sentAt[index];
+		if (sentAt != 0) {
+			o.sentAt[index] = 0;
+			--o.inFlight;
+			if (o.ackedSentAt == 0 || sentAt - o.ackedSentAt > 0) {
+				o.ackedSentAt = sentAt;
+			}
+			if (!o.repeated.get(index)) {
+				UdpBulkTransfer.sampleRtt(o, now - sentAt);
+			}
+		}
+		o.window += o.window < o.threshold
+			? 1
+			: 1 / o.window;
+		if (o.window > UdpBulkTransfer.MAX_WINDOW) {
+			o.window = UdpBulkTransfer.MAX_WINDOW;
+		}
+	}
+
+	/** smoothed RTT and deviation, see UdpRttEstimator; a valid sample resets the backoff */
+	private static void sampleRtt(final Outgoing o, final long sample) {
+
+		o.rtt.sampleMicros(TimeUnit.NANOSECONDS.toMicros(sample));
+		o.rto = Math.min(UdpBulkTransfer.RTO_MAX, Math.max(UdpBulkTransfer.RTO_MIN, TimeUnit.MICROSECONDS.toNanos(o.rtt.getTimeoutMicros())));
+	}
+
+	/** Sends lost blocks first, then new ones, while the window allows. Must be called while
+	 * synchronized */
+	private void pump(final Outgoing o, final long now) {
+
+		final int horizon = o.acked.nextClearBit(0) + UdpBulkTransfer.MAX_BITMAP * 8;
+		while (o.inFlight < (int) o.window) {
+			int index = o.lost.nextSetBit(0);
+			if (index >= 0) {
+				o.lost.clear(index);
+				o.repeated.set(index);
+				++this.stTxRepeats;
+			} else if (o.nextBlock < o.blocks && o.nextBlock < horizon) {
+				index = o.nextBlock++;
+			} else {
+				break;
+			}
+			o.sentAt[index] = now;
+			++o.inFlight;
+			this.sendBlock(o, index);
+		}
+	}
+
+	/** must be called while synchronized */
+	private void sendBlock(final Outgoing o, final int index) {
+
+		final byte[] packet = this.packet;
+		final int position = UdpServiceReceiver.HEADER_LENGTH;
+		final int start = index * UdpBulkTransfer.BLOCK_SIZE;
+		final int length = Math.min(UdpBulkTransfer.BLOCK_SIZE, o.data.length - start);
+		UdpBulkTransfer.writeInt(packet, position, o.id);
+		UdpBulkTransfer.writeInt(packet, position + 4, index);
+		UdpBulkTransfer.writeInt(packet, position + 8, o.data.length);
+		packet[position + 12] = (byte) (UdpBulkTransfer.BLOCK_SIZE >> 8);
+		packet[position + 13] = (byte) UdpBulkTransfer.BLOCK_SIZE;
+		packet[position + 14] = 0;
+		packet[position + 15] = 0;
+		System.arraycopy(o.data, start, packet, position + UdpBulkTransfer.BLOCK_HEADER_LENGTH, length);
+		++this.stTxBlocks;
+		UdpServiceHelper.sendPacket(
+				this.ctx,
+				this.principal,
+				this.context,
+				packet,
+				position + UdpBulkTransfer.BLOCK_HEADER_LENGTH + length,
+				UdpBulkTransfer.CODE_BBLK,
+				true,
+				o.address);
+	}
+
+	/** must be called while synchronized
+	 *
+	 * @param in
+	 *            null - no bitmap */
+	private void sendReport(final int id, final int cumulative, final int flags, final Incoming in, final BaseObject address) {
+
+		final byte[] packet = this.packet;
+		final int position = UdpServiceReceiver.HEADER_LENGTH;
+		final int bitmapLength = in == null || in.highest <= cumulative
+			? 0
+			: Math.min(UdpBulkTransfer.MAX_BITMAP, (in.highest - cumulative + 7) / 8);
+		UdpBulkTransfer.writeInt(packet, position, id);
+		UdpBulkTransfer.writeInt(packet, position + 4, cumulative);
+		packet[position + 8] = (byte) flags;
+		packet[position + 9] = (byte) (bitmapLength >> 8);
+		packet[position + 10] = (byte) bitmapLength;
+		final int bitmap = position + UdpBulkTransfer.REPORT_HEADER_LENGTH;
+		if (bitmapLength > 0) {
+			Arrays.fill(packet, bitmap, bitmap + bitmapLength, (byte) 0);
+			final int end = cumulative + 1 + bitmapLength * 8;
+			for (int i = in.received.nextSetBit(cumulative + 1); i >= 0 && i < end; i = in.received.nextSetBit(i + 1)) {
+				final int bit = i - cumulative - 1;
+				packet[bitmap + (bit >> 3)] |= (byte) (0x80 >>> (bit & 7));
+			}
+		}
+		if (in != null) {
+			in.unreported = 0;
+		}
+		++this.stTxReports;
+		UdpServiceHelper.sendPacket(this.ctx, this.principal, this.context, packet, bitmap + bitmapLength, UdpBulkTransfer.CODE_BRPT, false, address);
+	}
+
+	/** must be called while synchronized, returned callback is to be run after */
+	private Runnable finish(final Outgoing o, final String error) {
+
+		if (error != null) {
+			++this.stTransfersFailed;
+		}
+		final BaseFunction callback = o.callback;
+		if (callback == null) {
+			if (error != null) {
+				this.ctx.getConsole().log("UDP::Bulk:Java: %s: transfer failed, id: %s, error: %s", this.principal, Integer.toString(o.id), error);
+			}
+			return null;
+		}
+		return () -> {
+			if (!UdpPrincipal.forPrincipal(this.principal).mailbox(this.principal, this.ctx).post(
+					callback,
+					error == null
+						? BaseObject.NULL
+						: Base.forString(error),
+					Base.forInteger(o.id),
+					BaseObject.UNDEFINED)) {
+				this.ctx.getConsole().log("UDP::Bulk:Java: %s: mailbox full, callback dropped, id: %s, error: %s", this.principal, Integer.toString(o.id), error);
+			}
+		};
+	}
+
+	/** hands the binary to 'onReceiveBulk' in order with the other handlers of the principal,
+	 * see UdpPrincipalMailbox */
+	private void deliver(final Incoming in) {
+
+		final byte[] data = in.assemble();
+		final BaseFunction onReceiveBulk = this.principal.baseGet(UdpBulkTransfer.STR_onReceiveBulk, BaseObject.UNDEFINED).baseCall();
+		if (onReceiveBulk == null) {
+			throw new IllegalArgumentException("onReceiveBulk function is expected, principal: " + this.principal);
+		}
+		if (!UdpPrincipal.forPrincipal(this.principal).mailbox(this.principal, this.ctx)
+				.post(onReceiveBulk, Base.forInteger(in.id), Base.forUnknown(Transfer.wrapCopier(data)), in.address)) {
+			this.ctx.getConsole().log("UDP::Bulk:Java: %s: mailbox full, transfer dropped, id: %s, length: %s", this.principal, Integer.toString(in.id), Integer.toString(data.length));
+		}
+	}
+
+	/** Starts ticking for a new transfer. Must be called while synchronized */
+	private void schedule() {
+
+		if (this.ticker != null) {
+			/** an idle sweep that can not be cancelled is running and re-arms by the maps */
+			if (!this.tickerIdle || !this.ticker.cancel()) {
+				return;
+			}
+		}
+		this.tickerIdle = false;
+		this.ticker = UdpTimerWheel.INSTANCE.schedule(this::tick, UdpBulkTransfer.TICK_MILLIS);
+	}
+
+	/** Retransmission timeouts, delayed reports, expiry
+	 *
+	 * @param ctx */
+	private void tick(final ExecProcess ctx) {
+
+		final List<Runnable> done = new ArrayList<>();
+		synchronized (this) {
+			final long now = System.nanoTime();
+			for (final Iterator<Outgoing> iterator = this.outgoing.values().iterator(); iterator.hasNext();) {
+				final Outgoing o = iterator.next();
+				boolean expired = false;
+				for (int i = o.acked.nextClearBit(0); i < o.nextBlock; i = o.acked.nextClearBit(i + 1)) {
+					final long sentAt = o.sentAt[i];
+					if (sentAt != 0 && now - sentAt >= o.rto) {
+						o.sentAt[i] = 0;
+						--o.inFlight;
+						o.lost.set(i);
+						expired = true;
+					}
+				}
+				if (expired) {
+					if (++o.timeouts > UdpBulkTransfer.MAX_TIMEOUTS) {
+						iterator.remove();
+						final Runnable callback = this.finish(o, "timeout");
+						if (callback != null) {
+							done.add(callback);
+						}
+						continue;
+					}
+					o.threshold = Math.max(2, o.window / 2);
+					o.window = 1;
+					o.rtt.timeout();
+					o.rto = Math.min(UdpBulkTransfer.RTO_MAX, o.rto * 2);
+					o.recoveryUntil = now + o.rto;
+				}
+				try {
+					this.pump(o, now);
+				} catch (final RuntimeException e) {
+					this.ctx.getConsole().log("UDP::Bulk:Java: %s: send error, id: %s, error: %s", this.principal, Integer.toString(o.id), e);
+				}
+			}
+			for (final Iterator<Incoming> iterator = this.incoming.values().iterator(); iterator.hasNext();) {
+				final Incoming in = iterator.next();
+				if (now - in.lastActive > UdpBulkTransfer.IDLE) {
+					iterator.remove();
+					in.release();
+					continue;
+				}
+				if (in.unreported > 0) {
+					try {
+						this.sendReport(in.id, in.cumulative, 0, in, in.address);
+					} catch (final RuntimeException e) {
+						this.ctx.getConsole().log("UDP::Bulk:Java: %s: report error, id: %s, error: %s", this.principal, Integer.toString(in.id), e);
+					}
+				}
+			}
+			this.completed.values().removeIf(time -> now - time > UdpBulkTransfer.IDLE);
+			if (!this.outgoing.isEmpty() || !this.incoming.isEmpty()) {
+				this.tickerIdle = false;
+				this.ticker = UdpTimerWheel.INSTANCE.schedule(this::tick, UdpBulkTransfer.TICK_MILLIS);
+			} else if (!this.completed.isEmpty()) {
+				long oldest = now;
+				for (final Long time : this.completed.values()) {
+					oldest = Math.min(oldest, time.longValue());
+				}
+				this.tickerIdle = true;
+				this.ticker = UdpTimerWheel.INSTANCE.schedule(this::tick, TimeUnit.NANOSECONDS.toMillis(oldest + UdpBulkTransfer.IDLE - now) + 1);
+			} else {
+				this.ticker = null;
+			}
+		}
+		for (final Runnable callback : done) {
+			try {
+				callback.run();
+			} catch (final RuntimeException e) {
+				this.ctx.getConsole().log("UDP::Bulk:Java: %s: callback error: %s", this.principal, e);
+			}
+		}
+	}
+}
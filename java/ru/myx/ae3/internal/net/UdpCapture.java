@@ -0,0 +1,299 @@
+package ru.myx.ae3.internal.net;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Append-only capture of the datagrams of one UdpService, inbound as seen by the receive
+ * pipeline and outbound as passed to 'sendUdp', see UdpService.startCapture and
+ * UdpCaptureReplay.
+ *
+ * File: MAGIC (8 bytes), then records, big-endian:
+ *
+ * <pre>
+ * direction   1   IN / OUT
+ * delay       4   microseconds since the previous record, saturated
+ * addrLength  1   4, 16 or 0 - no address
+ * addr        addrLength
+ * port        2
+ * length      2
+ * datagram    length
+ * </pre>
+ *
+ * Records are buffered, the file is complete after 'close'. Datagrams past 'limit' bytes of
+ * file are not written and counted as skipped.
+ *
+ * The receive and send threads only copy the datagram and queue it, a writer thread of the
+ * capture does the file I/O. Datagrams arriving while QUEUE records wait for the writer are
+ * skipped as well, capturing never stalls the receive pipeline.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpCapture implements Runnable {
+
+	/** inbound datagram */
+	public static final int IN = 0;
+
+	/** outbound datagram */
+	public static final int OUT = 1;
+
+	/** records waiting for the writer, at most */
+	public static final int QUEUE = 4096;
+
+	/** "AE3UDPC1" */
+	static final long MAGIC = 0x4145335544504331L;
+
+	/** One datagram on its way to the file */
+	private static final class Record {
+
+		final int direction;
+
+		final long time;
+
+		final Object address;
+
+		final byte[] datagram;
+
+		Record(final int direction, final long time, final Object address, final byte[] datagram) {
+
+			this.direction = direction;
+			this.time = time;
+			this.address = address;
+			this.datagram = datagram;
+		}
+	}
+
+	/** end of the queue, see 'close' */
+	private static final Record END = new Record(0, 0L, null, new byte[0]);
+
+	private final File file;
+
+	private final DataOutputStream out;
+
+	private final long limit;
+
+	private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(UdpCapture.QUEUE);
+
+	private final Thread writer;
+
+	/** writer thread only */
+	private long last = System.nanoTime();
+
+	/** file size with the queued records */
+	private long bytes = 8;
+
+	private long records;
+
+	private long skipped;
+
+	private boolean closed;
+
+	/** @param file
+	 * @param limit
+	 *            max file size, bytes
+	 * @throws IOException */
+	UdpCapture(final File file, final long limit) throws IOException {
+
+		this.file = file;
+		this.limit = limit;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		this.out.writeLong(UdpCapture.MAGIC);
+		this.writer = new Thread(this, "UDP-CAPTURE");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/** Writes the queued records, flushes and closes the file, later datagrams are not
+	 * recorded */
+	@ReflectionExplicit
+	public void close() {
+
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+		}
+		try {
+			this.queue.put(UdpCapture.END);
+			if (Thread.currentThread() != this.writer) {
+				this.writer.join();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** @return file size, bytes, records still queued included */
+	@ReflectionExplicit
+	public synchronized long getBytes() {
+
+		return this.bytes;
+	}
+
+	/** @return capture file path */
+	@ReflectionExplicit
+	public String getPath() {
+
+		return this.file.getAbsolutePath();
+	}
+
+	/** @return datagrams recorded */
+	@ReflectionExplicit
+	public synchronized long getRecords() {
+
+		return this.records;
+	}
+
+	/** @return datagrams not recorded: over the limit, queue full or closed */
+	@ReflectionExplicit
+	public synchronized long getSkipped() {
+
+		return this.skipped;
+	}
+
+	/** @return true when closed */
+	@ReflectionExplicit
+	public synchronized boolean isClosed() {
+
+		return this.closed;
+	}
+
+	/** writer thread */
+	@Override
+	public void run() {
+
+		try {
+			for (Record record; (record = this.queue.take()) != UdpCapture.END;) {
+				this.write(record);
+			}
+		} catch (final InterruptedException e) {
+			// stopped
+		} finally {
+			try {
+				this.out.close();
+			} catch (final IOException e) {
+				// nothing to do, file is incomplete
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpCapture " + this.file + ", records=" + this.records + ", bytes=" + this.bytes + ", skipped=" + this.skipped + (this.closed
+			? ", closed]"
+			: "]");
+	}
+
+	/** @param direction
+	 * @param packet
+	 *            absolute indexing, position and limit are not changed
+	 * @param offset
+	 * @param length
+	 * @param addressObject */
+	void record(final int direction, final ByteBuffer packet, final int offset, final int length, final BaseObject addressObject) {
+
+		if (!this.accept(length)) {
+			return;
+		}
+		final byte[] datagram = new byte[length];
+		packet.get(offset, datagram, 0, length);
+		this.enqueue(direction, datagram, addressObject);
+	}
+
+	/** @param direction
+	 * @param payloadObject
+	 * @param addressObject */
+	void record(final int direction, final BaseObject payloadObject, final BaseObject addressObject) {
+
+		final TransferCopier payload = Transfer.createCopierFromBinary(payloadObject);
+		if (payload == null || payload.length() > 0xFFFF || !this.accept((int) payload.length())) {
+			return;
+		}
+		final byte[] datagram = new byte[(int) payload.length()];
+		payload.copy(0, datagram, 0, datagram.length);
+		this.enqueue(direction, datagram, addressObject);
+	}
+
+	/** reserves file space for the record: header, IPv6 address at most, datagram */
+	private synchronized boolean accept(final int length) {
+
+		if (this.closed || this.bytes + 14 + 16 + length > this.limit) {
+			++this.skipped;
+			return false;
+		}
+		this.bytes += 10 + 16 + length;
+		return true;
+	}
+
+	private void enqueue(final int direction, final byte[] datagram, final BaseObject addressObject) {
+
+		final Object address = addressObject == null
+			? null
+			: addressObject.baseValue();
+		if (!this.queue.offer(new Record(direction, System.nanoTime(), address, datagram))) {
+			synchronized (this) {
+				this.bytes -= 10 + 16 + datagram.length;
+				++this.skipped;
+			}
+		}
+	}
+
+	/** writer thread */
+	private void write(final Record record) {
+
+		final long delay = TimeUnit.NANOSECONDS.toMicros(record.time - this.last);
+		this.last = record.time;
+		final int length = record.datagram.length;
+		int addressLength = 16;
+		try {
+			this.out.writeByte(record.direction);
+			this.out.writeInt((int) Math.max(0L, Math.min(Integer.MAX_VALUE, delay)));
+			if (record.address instanceof final InetSocketAddress socketAddress && socketAddress.getAddress() != null) {
+				final byte[] ip = socketAddress.getAddress().getAddress();
+				this.out.writeByte(ip.length);
+				this.out.write(ip);
+				this.out.writeShort(socketAddress.getPort());
+				addressLength = ip.length;
+			} else {
+				this.out.writeByte(0);
+				this.out.writeShort(0);
+				addressLength = 0;
+			}
+			this.out.writeShort(length);
+			this.out.write(record.datagram, 0, length);
+			synchronized (this) {
+				/** reserved with 16 address bytes */
+				this.bytes -= 16 - addressLength;
+				++this.records;
+			}
+		} catch (final IOException e) {
+			/** file is incomplete: this and the queued records are skipped, the writer stops */
+			synchronized (this) {
+				this.closed = true;
+				this.bytes -= 10 + 16 + length;
+				++this.skipped;
+				for (Record queued; (queued = this.queue.poll()) != null;) {
+					if (queued != UdpCapture.END) {
+						this.bytes -= 10 + 16 + queued.datagram.length;
+						++this.skipped;
+					}
+				}
+			}
+			this.queue.offer(UdpCapture.END);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package ru.myx.ae3.internal.net;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.exec.ExecProcess;
+
+/** Feeds a UdpCapture file through the receive callback of a UdpService, see
+ * UdpService.replayCapture.
+ *
+ * Inbound records are given to 'receiveCallback' as UdpSocket message objects {payLoad,
+ * sourceAddress}, exactly like the socket does, so the whole receive pipeline runs: queue,
+ * peer lookup, verification, parsing and handlers. Outbound records are only counted, they
+ * keep the timing. Nothing is sent or received on the network.
+ *
+ * Speed: 1 - recorded pace, N - N times faster, 0 - as fast as possible.
+ *
+ * @author myx */
+final class UdpCaptureReplay {
+
+	/** wait for the receive queue to drain after the last record, milliseconds */
+	static final long DRAIN_TIMEOUT = 10_000L;
+
+	private final static BasePrimitiveString STR_payLoad = Base.forString("payLoad");
+	private final static BasePrimitiveString STR_receiveCallback = Base.forString("receiveCallback");
+	private final static BasePrimitiveString STR_rxQueue = Base.forString("rxQueue");
+	private final static BasePrimitiveString STR_sourceAddress = Base.forString("sourceAddress");
+	private final static BasePrimitiveString STR_stBadBody = Base.forString("stBadBody");
+	private final static BasePrimitiveString STR_stCrcFail = Base.forString("stCrcFail");
+	private final static BasePrimitiveString STR_stRxCount = Base.forString("stRxCount");
+	private final static BasePrimitiveString STR_stRxSkip = Base.forString("stRxSkip");
+
+	/** @param ctx
+	 * @param service
+	 *            UdpService, "buffered" receive mode
+	 * @param file
+	 * @param speed
+	 * @return report: {records, inbound, outbound, accepted, dropped, elapsed, rate, stRxCount,
+	 *         stRxSkip, stCrcFail, stBadBody}
+	 * @throws IOException */
+	static BaseObject replay(final ExecProcess ctx, final BaseObject service, final File file, final double speed) throws IOException {
+
+		final BaseFunction receiveCallback = service.baseGet(UdpCaptureReplay.STR_receiveCallback, BaseObject.UNDEFINED).baseCall();
+		if (receiveCallback == null) {
+			throw new IllegalArgumentException("receiveCallback function is expected (\"buffered\" receive mode), service: " + service);
+		}
+		if (speed < 0) {
+			throw new IllegalArgumentException("non-negative speed is expected, speed: " + speed);
+		}
+
+		long records = 0;
+		long inbound = 0;
+		long outbound = 0;
+		long accepted = 0;
+		long dropped = 0;
+
+		final long started = System.nanoTime();
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+			if (in.readLong() != UdpCapture.MAGIC) {
+				throw new IllegalArgumentException("not a capture file: " + file);
+			}
+			/** recorded time of the current record, microseconds from the first */
+			long recorded = 0;
+			final byte[] ip4 = new byte[4];
+			final byte[] ip6 = new byte[16];
+			for (;;) {
+				final int direction;
+				try {
+					direction = in.readUnsignedByte();
+				} catch (final EOFException e) {
+					break;
+				}
+				recorded += in.readInt();
+				final int addressLength = in.readUnsignedByte();
+				final byte[] ip = switch (addressLength) {
+					case 0 -> null;
+					case 4 -> ip4;
+					case 16 -> ip6;
+					default -> throw new IllegalArgumentException("bad address length: " + addressLength + ", record: " + records + ", file: " + file);
+				};
+				if (ip != null) {
+					in.readFully(ip);
+				}
+				final int port = in.readUnsignedShort();
+				final int length = in.readUnsignedShort();
+				final byte[] datagram = new byte[length];
+				in.readFully(datagram);
+				++records;
+
+				if (speed > 0) {
+					final long due = started + (long) (TimeUnit.MICROSECONDS.toNanos(recorded) / speed);
+					for (long wait; (wait = due - System.nanoTime()) > 0;) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				if (direction != UdpCapture.IN) {
+					++outbound;
+					continue;
+				}
+				++inbound;
+
+				final BaseObject pkt = BaseObject.createObject(null);
+				pkt.baseDefine(UdpCaptureReplay.STR_payLoad, Transfer.wrapCopier(datagram));
+				pkt.baseDefine(UdpCaptureReplay.STR_sourceAddress, ip == null
+					? BaseObject.NULL
+					: Base.forUnknown(new InetSocketAddress(InetAddress.getByAddress(ip), port)));
+				final BaseObject result = receiveCallback.callNE1(ctx, service, pkt);
+				if (result == BaseObject.FALSE) {
+					++dropped;
+				} else {
+					++accepted;
+				}
+			}
+		}
+
+		/** the queue is drained by its own thread */
+		if (service.baseGet(UdpCaptureReplay.STR_rxQueue, BaseObject.UNDEFINED).baseValue() instanceof final UdpReceiveQueue queue) {
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(UdpCaptureReplay.DRAIN_TIMEOUT);
+			while (queue.getDepth() > 0 && System.nanoTime() < deadline) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		}
+		final long elapsed = Math.max(1L, System.nanoTime() - started);
+
+		final BaseObject report = BaseObject.createObject(null);
+		report.baseDefine(Base.forString("records"), Base.forLong(records));
+		report.baseDefine(Base.forString("inbound"), Base.forLong(inbound));
+		report.baseDefine(Base.forString("outbound"), Base.forLong(outbound));
+		report.baseDefine(Base.forString("accepted"), Base.forLong(accepted));
+		report.baseDefine(Base.forString("dropped"), Base.forLong(dropped));
+		report.baseDefine(Base.forString("elapsed"), Base.forLong(TimeUnit.NANOSECONDS.toMillis(elapsed)));
+		report.baseDefine(Base.forString("rate"), Base.forLong(inbound * TimeUnit.SECONDS.toNanos(1) / elapsed));
+		for (final BasePrimitiveString counter : new BasePrimitiveString[]{
+				UdpCaptureReplay.STR_stRxCount, UdpCaptureReplay.STR_stRxSkip, UdpCaptureReplay.STR_stCrcFail, UdpCaptureReplay.STR_stBadBody
+		}) {
+			report.baseDefine(counter, service.baseGet(counter, BaseObject.UNDEFINED));
+		}
+		return report;
+	}
+
+	private UdpCaptureReplay() {
+
+		//
+	}
+}
@@ -0,0 +1,135 @@
+package ru.myx.ae3.internal.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BasePrimitiveString;
+
+/** Intern table of CALL component names keyed on their raw UTF-8 bytes, see
+ * UdpServiceHelper.parseMsgCall.
+ *
+ * A service talks to a handful of components, so the same few names arrive in every packet.
+ * Lookup hashes and compares the bytes in place and returns the string decoded the first time,
+ * nothing is allocated for a known name.
+ *
+ * Open addressing, linear probing, entries are immutable and published by a single reference
+ * store: lookups take no lock, only inserts are synchronized. The table never grows: names
+ * longer than MAX_NAME or arriving when it is half full are decoded on every packet and
+ * counted as 'overflow'.
+ *
+ * @author myx */
+final class UdpComponentNames {
+
+	/** slots, power of two */
+	static final int CAPACITY = 2048;
+
+	/** longest name interned, bytes - same as the build limit of MSG_Q_CALL */
+	static final int MAX_NAME = 128;
+
+	static final UdpComponentNames INSTANCE = new UdpComponentNames();
+
+	private static final class Entry {
+
+		final byte[] key;
+
+		final int hash;
+
+		final BasePrimitiveString name;
+
+		Entry(final byte[] key, final int hash, final BasePrimitiveString name) {
+
+			this.key = key;
+			this.hash = hash;
+			this.name = name;
+		}
+	}
+
+	private static int hash(final byte[] buffer, final int offset, final int length) {
+
+		/** FNV-1a */
+		int hash = 0x811C9DC5;
+		for (int i = offset, end = offset + length; i < end; ++i) {
+			hash = (hash ^ buffer[i] & 0xFF) * 0x01000193;
+		}
+		return hash ^ hash >>> 16;
+	}
+
+	private final Entry[] table = new Entry[UdpComponentNames.CAPACITY];
+
+	private int size;
+
+	private final LongAdder overflow = new LongAdder();
+
+	private UdpComponentNames() {
+
+		//
+	}
+
+	/** @return names decoded without interning */
+	long getOverflow() {
+
+		return this.overflow.sum();
+	}
+
+	/** @return names interned */
+	int getSize() {
+
+		return this.size;
+	}
+
+	/** @param buffer
+	 * @param offset
+	 * @param length
+	 *            bytes, without the NUL terminator
+	 * @return interned name */
+	BasePrimitiveString intern(final byte[] buffer, final int offset, final int length) {
+
+		if (length > UdpComponentNames.MAX_NAME) {
+			this.overflow.increment();
+			return Base.forString(new String(buffer, offset, length, StandardCharsets.UTF_8));
+		}
+		final int hash = UdpComponentNames.hash(buffer, offset, length);
+		final Entry[] table = this.table;
+		final int mask = table.length - 1;
+		for (int i = hash & mask;; i = i + 1 & mask) {
+			final Entry entry = table[i];
+			if (entry == null) {
+				break;
+			}
+			if (entry.hash == hash && Arrays.equals(entry.key, 0, entry.key.length, buffer, offset, offset + length)) {
+				return entry.name;
+			}
+		}
+		return this.insert(buffer, offset, length, hash);
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpComponentNames size=" + this.size + ", overflow=" + this.overflow.sum() + "]";
+	}
+
+	private synchronized BasePrimitiveString insert(final byte[] buffer, final int offset, final int length, final int hash) {
+
+		final byte[] key = Arrays.copyOfRange(buffer, offset, offset + length);
+		final Entry[] table = this.table;
+		final int mask = table.length - 1;
+		int i = hash & mask;
+		/** inserted by another thread since the lookup */
+		for (Entry entry; (entry = table[i]) != null; i = i + 1 & mask) {
+			if (entry.hash == hash && Arrays.equals(entry.key, key)) {
+				return entry.name;
+			}
+		}
+		final BasePrimitiveString name = Base.forString(new String(key, StandardCharsets.UTF_8));
+		if (this.size >= table.length >> 1) {
+			this.overflow.increment();
+			return name;
+		}
+		table[i] = new Entry(key, hash, name);
+		++this.size;
+		return name;
+	}
+}
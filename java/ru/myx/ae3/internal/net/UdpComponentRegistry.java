@@ -0,0 +1,165 @@
+package ru.myx.ae3.internal.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.base.BaseProperty;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Component dispatch of a principal: CALL (0x35) component name -> handler, see
+ * Principal.registerComponent and UdpServiceHelper.principalOnReceive.
+ *
+ * Names are interned through UdpComponentNames when registered, the same table the Java CALL
+ * parser resolves the received bytes with, so the received component is the very string the
+ * handler was registered under and the lookup is an identity hit. Strings from the script
+ * parser are found by value.
+ *
+ * Once anything is registered every CALL of the principal goes through the registry: known
+ * components are posted to the mailbox like 'handlers' entries, unknown ones are answered
+ * with CERR (0x36) 'errorCode' right on the receive thread, nothing is posted.
+ *
+ * Copy on write: lookups take no lock, registrations replace the map.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpComponentRegistry {
+
+	/** MSG_Q_CALL */
+	static final int CODE_CALL = 0x35;
+
+	/** CERR error code for an unknown component */
+	public static final int ERROR_UNKNOWN_COMPONENT = 0x01;
+
+	private final static BasePrimitiveString STR_errorCode = Base.forString("errorCode");
+	private final static BasePrimitiveString STR_prototype = Base.forString("prototype");
+	private final static BasePrimitiveString STR_serial = Base.forString("serial");
+
+	private final BaseObject rejectPrototype;
+
+	private final int errorCode;
+
+	private volatile Map<String, BaseFunction> handlers = Map.of();
+
+	private final LongAdder dispatched = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	/** @param rejectClass
+	 *            MSG_RF_CERR class
+	 * @param errorCode
+	 *            code of the CERR for unknown components */
+	@ReflectionExplicit
+	public UdpComponentRegistry(final BaseObject rejectClass, final int errorCode) {
+
+		final BaseObject prototype = rejectClass.baseGet(UdpComponentRegistry.STR_prototype, BaseObject.UNDEFINED);
+		if (prototype == BaseObject.UNDEFINED || !prototype.baseToJavaBoolean()) {
+			throw new IllegalArgumentException("message class is expected, rejectClass: " + rejectClass);
+		}
+		if (errorCode < 0 || errorCode > 255) {
+			throw new IllegalArgumentException("errorCode in [0..255] range is expected, errorCode: " + errorCode);
+		}
+		this.rejectPrototype = prototype;
+		this.errorCode = errorCode;
+	}
+
+	/** @return CALLs dispatched to component handlers */
+	@ReflectionExplicit
+	public long getDispatched() {
+
+		return this.dispatched.sum();
+	}
+
+	/** @return CALLs to unknown components answered with CERR */
+	@ReflectionExplicit
+	public long getRejected() {
+
+		return this.rejected.sum();
+	}
+
+	/** @return components registered */
+	@ReflectionExplicit
+	public int getSize() {
+
+		return this.handlers.size();
+	}
+
+	/** Registers or replaces the handler of the component
+	 *
+	 * @param component
+	 * @param handlerObject
+	 *            function(message, address, serial), called with the principal as 'this' */
+	@ReflectionExplicit
+	public synchronized void register(final String component, final BaseObject handlerObject) {
+
+		if (component == null || component.isEmpty()) {
+			throw new IllegalArgumentException("non empty component name is expected");
+		}
+		final BaseFunction handler = handlerObject.baseCall();
+		if (handler == null) {
+			throw new IllegalArgumentException("handler function is expected, component: " + component + ", handler: " + handlerObject);
+		}
+		final byte[] bytes = component.getBytes(StandardCharsets.UTF_8);
+		final String name = UdpComponentNames.INSTANCE.intern(bytes, 0, bytes.length).baseToJavaString();
+		final Map<String, BaseFunction> handlers = new HashMap<>(this.handlers);
+		handlers.put(name, handler);
+		this.handlers = handlers;
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpComponentRegistry size=" + this.handlers.size() + ", dispatched=" + this.dispatched.sum() + ", rejected=" + this.rejected.sum() + "]";
+	}
+
+	/** @param component
+	 * @return true when the component was registered */
+	@ReflectionExplicit
+	public synchronized boolean unregister(final String component) {
+
+		if (!this.handlers.containsKey(component)) {
+			return false;
+		}
+		final Map<String, BaseFunction> handlers = new HashMap<>(this.handlers);
+		handlers.remove(component);
+		this.handlers = handlers;
+		return true;
+	}
+
+	/** @return true when nothing is registered and CALLs go to 'handlers' */
+	boolean isEmpty() {
+
+		return this.handlers.isEmpty();
+	}
+
+	/** @param componentObject
+	 *            'component' of the received CALL
+	 * @return handler, null when the component is unknown - counted as rejected */
+	BaseFunction lookup(final BaseObject componentObject) {
+
+		final BaseFunction handler = this.handlers.get(componentObject.baseToJavaString());
+		if (handler == null) {
+			this.rejected.increment();
+			return null;
+		}
+		this.dispatched.increment();
+		return handler;
+	}
+
+	/** @param serial
+	 *            serial of the CALL
+	 * @return CERR reply for an unknown component */
+	BaseObject reject(final BaseObject serial) {
+
+		final BaseObject reply = BaseObject.createObject(this.rejectPrototype);
+		reply.baseDefine(UdpComponentRegistry.STR_serial, serial, BaseProperty.ATTRS_MASK_WED);
+		reply.baseDefine(UdpComponentRegistry.STR_errorCode, Base.forInteger(this.errorCode), BaseProperty.ATTRS_MASK_WED);
+		return reply;
+	}
+}
@@ -0,0 +1,126 @@
+package ru.myx.ae3.internal.net;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** A batch of datagrams received on one selector wake-up. Elements are views of pooled
+ * direct buffers, valid only until the batch handler returns.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpDatagramBatch {
+
+	/** Batch consumer, called on the receiving thread */
+	@FunctionalInterface
+	public interface Handler {
+
+		/** @param batch
+		 *            valid only during the call */
+		void onBatch(UdpDatagramBatch batch);
+	}
+
+	final ByteBuffer[] buffers;
+
+	final SocketAddress[] addresses;
+
+	int size;
+
+	UdpDatagramBatch(final int capacity, final int bufferSize) {
+
+		this.buffers = new ByteBuffer[capacity];
+		this.addresses = new SocketAddress[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			this.buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+		}
+	}
+
+	/** @param index
+	 * @return datagram view, position is the first byte, limit is the end */
+	public ByteBuffer buffer(final int index) {
+
+		return this.buffers[this.checkIndex(index)];
+	}
+
+	/** @param index
+	 * @param offset
+	 * @return */
+	@ReflectionExplicit
+	public int byteAt(final int index, final int offset) {
+
+		final ByteBuffer buffer = this.buffers[this.checkIndex(index)];
+		return buffer.get(buffer.position() + offset) & 0xFF;
+	}
+
+	/** Copies datagram bytes into an ArrayBuffer
+	 *
+	 * @param index
+	 * @param sourceOffset
+	 * @param targetObject
+	 * @param targetOffset
+	 * @param length
+	 * @return bytes copied */
+	@ReflectionExplicit
+	public int copy(final int index, final int sourceOffset, final BaseObject targetObject, final int targetOffset, final int length) {
+
+		final byte[] target = (byte[]) targetObject.baseValue();
+		if (target == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, targetObject class: " + targetObject.getClass().getName());
+		}
+		final ByteBuffer buffer = this.buffers[this.checkIndex(index)];
+		final int count = Math.min(Math.min(length, buffer.remaining() - sourceOffset), target.length - targetOffset);
+		if (count <= 0) {
+			return 0;
+		}
+		buffer.get(buffer.position() + sourceOffset, target, targetOffset, count);
+		return count;
+	}
+
+	/** @param index
+	 * @return datagram length */
+	@ReflectionExplicit
+	public int length(final int index) {
+
+		return this.buffers[this.checkIndex(index)].remaining();
+	}
+
+	/** @return number of datagrams in the batch */
+	@ReflectionExplicit
+	public int size() {
+
+		return this.size;
+	}
+
+	/** @param index
+	 * @return */
+	public SocketAddress socketAddress(final int index) {
+
+		return this.addresses[this.checkIndex(index)];
+	}
+
+	/** @param index
+	 * @return */
+	@ReflectionExplicit
+	public BaseObject sourceAddress(final int index) {
+
+		return Base.forUnknown(this.addresses[this.checkIndex(index)]);
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpDatagramBatch size=" + this.size + ", capacity=" + this.buffers.length + "]";
+	}
+
+	private int checkIndex(final int index) {
+
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: " + this.size);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,348 @@
+package ru.myx.ae3.internal.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** UDP socket backed by a non-blocking DatagramChannel. The receiving thread drains all
+ * ready datagrams on every selector wake-up into a pool of direct buffers and hands them
+ * to the handler as one batch, no per-packet heap allocation or copy.
+ *
+ * Sending API is compatible with the UdpSocket: send(payload, socketAddress).
+ *
+ * Receive errors do not stop the thread: they are counted, logged and the loop continues
+ * after a short pause. MAX_FAILURES receive errors in a row close the channel as 'failed'.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpDatagramChannel implements Runnable {
+
+	/** default number of datagrams per batch */
+	public static final int DEFAULT_BATCH = 64;
+
+	/** default pooled buffer size, enough for any datagram the UdpService would accept */
+	public static final int DEFAULT_BUFFER = 2048;
+
+	/** receive errors in a row, without a single successful wake-up, to give up */
+	public static final int MAX_FAILURES = 16;
+
+	private static final ExecProcess CTX = Exec.createProcess(Exec.getRootProcess(), "UdpDatagramChannel Context");
+
+	private static final ThreadLocal<ByteBuffer> SEND_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(65536));
+
+	private final DatagramChannel channel;
+
+	private final Selector selector;
+
+	private final UdpDatagramBatch batch;
+
+	private final int port;
+
+	/** tasks to run on the receiving thread, see execute() */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	private UdpDatagramBatch.Handler handler;
+
+	private Thread thread;
+
+	private volatile boolean closed;
+
+	private volatile boolean failed;
+
+	long stRxWakeups;
+
+	long stRxDatagrams;
+
+	long stRxFullBatches;
+
+	long stRxErrors;
+
+	/** last failure of the batch handler or of the receive, for diagnostics */
+	volatile Throwable lastError;
+
+	/** @param port
+	 *            0 for any
+	 * @param batchCapacity
+	 * @param bufferSize
+	 * @throws IOException */
+	public UdpDatagramChannel(final int port, final int batchCapacity, final int bufferSize) throws IOException {
+
+		this(UdpDatagramChannel.openBound(port, false), batchCapacity, bufferSize);
+	}
+
+	UdpDatagramChannel(final DatagramChannel channel, final int batchCapacity, final int bufferSize) throws IOException {
+
+		this.channel = channel;
+		this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+		this.batch = new UdpDatagramBatch(
+				batchCapacity > 0
+					? batchCapacity
+					: UdpDatagramChannel.DEFAULT_BATCH,
+				bufferSize > 0
+					? bufferSize
+					: UdpDatagramChannel.DEFAULT_BUFFER);
+	}
+
+	static DatagramChannel openBound(final int port, final boolean reusePort) throws IOException {
+
+		final DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if (reusePort) {
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+			}
+			channel.bind(new InetSocketAddress(port));
+			return channel;
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** Stops receiving and closes the socket */
+	@ReflectionExplicit
+	public void close() {
+
+		this.closed = true;
+		try {
+			this.selector.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+		try {
+			this.channel.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	/** Runs the task on the receiving thread, between batches
+	 *
+	 * @param task */
+	public void execute(final Runnable task) {
+
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	/** @return last error, null when none */
+	@ReflectionExplicit
+	public String getLastError() {
+
+		final Throwable error = this.lastError;
+		return error == null
+			? null
+			: error.toString();
+	}
+
+	/** @return local port */
+	@ReflectionExplicit
+	public int getPort() {
+
+		return this.port;
+	}
+
+	/** @return datagrams received */
+	@ReflectionExplicit
+	public long getRxDatagrams() {
+
+		return this.stRxDatagrams;
+	}
+
+	/** @return receive and handler errors */
+	@ReflectionExplicit
+	public long getRxErrors() {
+
+		return this.stRxErrors;
+	}
+
+	/** @return true when closed or failed */
+	@ReflectionExplicit
+	public boolean isClosed() {
+
+		return this.closed;
+	}
+
+	/** @return true when the receiving thread gave up, see MAX_FAILURES */
+	@ReflectionExplicit
+	public boolean isFailed() {
+
+		return this.failed;
+	}
+
+	@Override
+	public void run() {
+
+		for (int failures = 0; !this.closed;) {
+			try {
+				this.receive();
+				failures = 0;
+			} catch (final IOException | RuntimeException | Error e) {
+				if (this.closed) {
+					return;
+				}
+				++this.stRxErrors;
+				this.lastError = e;
+				if (++failures >= UdpDatagramChannel.MAX_FAILURES || e instanceof ClosedChannelException) {
+					this.failed = true;
+					UdpDatagramChannel.CTX.getConsole().log("UDP::DatagramChannel:Java: port: %s, receive-failed, errors in a row: %s, closing, error: %s", Integer.toString(this.port), Integer.toString(failures), e);
+					this.close();
+					return;
+				}
+				UdpDatagramChannel.CTX.getConsole().log("UDP::DatagramChannel:Java: port: %s, receive-error, errors in a row: %s, error: %s", Integer.toString(this.port), Integer.toString(failures), e);
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(failures));
+			}
+		}
+	}
+
+	/** Sends datagram, UdpSocket compatible
+	 *
+	 * @param payloadObject
+	 *            binary
+	 * @param addressObject
+	 *            SocketAddress
+	 * @return bytes sent
+	 * @throws IOException */
+	@ReflectionExplicit
+	public int send(final BaseObject payloadObject, final BaseObject addressObject) throws IOException {
+
+		final TransferCopier payload = Transfer.createCopierFromBinary(payloadObject);
+		if (payload == null) {
+			throw new IllegalArgumentException("binary payload is expected, payload: " + payloadObject);
+		}
+		final Object address = addressObject.baseValue();
+		if (!(address instanceof SocketAddress)) {
+			throw new IllegalArgumentException("SocketAddress is expected, address: " + addressObject);
+		}
+		final ByteBuffer buffer = UdpDatagramChannel.SEND_BUFFER.get();
+		buffer.clear();
+		final int length = payload.copy(0, buffer.array(), 0, buffer.capacity());
+		buffer.limit(length);
+		return this.send(buffer, (SocketAddress) address);
+	}
+
+	/** @param datagram
+	 *            position to limit is sent
+	 * @param address
+	 * @return bytes sent
+	 * @throws IOException */
+	public int send(final ByteBuffer datagram, final SocketAddress address) throws IOException {
+
+		return this.channel.send(datagram, address);
+	}
+
+	/** Sets JS batch callback and starts receiving: callbackFn(batch), the batch is only valid
+	 * during the call.
+	 *
+	 * @param callbackObject
+	 * @return this */
+	@ReflectionExplicit
+	public UdpDatagramChannel setCallback(final BaseObject callbackObject) {
+
+		final BaseFunction callback = callbackObject.baseCall();
+		if (callback == null) {
+			throw new IllegalArgumentException("callback function is expected, callback: " + callbackObject);
+		}
+		final ExecProcess ctx = Exec.createProcess(Exec.getRootProcess(), "UdpDatagramChannel Callback, port: " + this.port);
+		final BaseObject batchObject = Base.forUnknown(this.batch);
+		return this.start(batch -> callback.callVEA(ctx, BaseObject.NULL, batchObject));
+	}
+
+	/** Starts the receiving thread, only once
+	 *
+	 * @param handler
+	 * @return this */
+	public synchronized UdpDatagramChannel start(final UdpDatagramBatch.Handler handler) {
+
+		if (this.thread != null) {
+			throw new IllegalStateException("Already started, port: " + this.port);
+		}
+		this.handler = handler;
+		final Thread thread = new Thread(this, "UDP-RX-BATCH:" + this.port);
+		thread.setDaemon(true);
+		this.thread = thread;
+		thread.start();
+		return this;
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpDatagramChannel port=" + this.port + ", rx=" + this.stRxDatagrams + ", wakeups=" + this.stRxWakeups + ", errors=" + this.stRxErrors + (this.failed
+			? ", failed"
+			: "") + "]";
+	}
+
+	/** one selector wake-up: tasks, then everything ready */
+	private void receive() throws IOException {
+
+		final UdpDatagramBatch batch = this.batch;
+		final int capacity = batch.buffers.length;
+		final int ready = this.selector.select();
+		for (Runnable task; (task = this.tasks.poll()) != null;) {
+			try {
+				task.run();
+			} catch (final RuntimeException | Error e) {
+				++this.stRxErrors;
+				this.lastError = e;
+			}
+		}
+		if (ready == 0) {
+			return;
+		}
+		this.selector.selectedKeys().clear();
+		++this.stRxWakeups;
+		/** drain everything ready, refill while batches come full */
+		for (;;) {
+			int count = 0;
+			for (; count < capacity; ++count) {
+				final ByteBuffer buffer = batch.buffers[count];
+				buffer.clear();
+				final SocketAddress address = this.channel.receive(buffer);
+				if (address == null) {
+					break;
+				}
+				buffer.flip();
+				batch.addresses[count] = address;
+			}
+			if (count == 0) {
+				return;
+			}
+			batch.size = count;
+			this.stRxDatagrams += count;
+			try {
+				this.handler.onBatch(batch);
+			} catch (final RuntimeException | Error e) {
+				++this.stRxErrors;
+				this.lastError = e;
+			} finally {
+				batch.size = 0;
+			}
+			if (count < capacity) {
+				return;
+			}
+			++this.stRxFullBatches;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** One message sent to many principals, see UdpServiceHelper.taskSendFanOut and
+ * TaskUdpMultiple.
+ *
+ * The payload is built once, every peer only gets the header: key, code and own serial,
+ * then encryption and signature with its secret (UdpServiceHelper.sendPacket). Peer lists
+ * longer than CHUNK are split between the caller thread and the worker pool, the caller
+ * waits for all of them.
+ *
+ * Two steps: prepare reserves a serial per peer and sends nothing, send sends once. Tasks
+ * register themselves under the reserved serials in between, a reply can not come first.
+ *
+ * Serial 0 means the peer was not sent to (no address, no key, error), such peers are left
+ * to the regular 'sendSingle' path which reports them.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpFanOut {
+
+	/** peers per worker task */
+	public static final int CHUNK = 128;
+
+	private static final ThreadPoolExecutor WORKERS = UdpFanOut.createWorkers();
+
+	private static ThreadPoolExecutor createWorkers() {
+
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+			final Thread thread = new Thread(task, "UDP-TX-FANOUT");
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/** Reserves a serial for every peer with an address and a key, nothing is sent
+	 *
+	 * @param ctx
+	 *            used by send
+	 * @param peers
+	 * @param payload
+	 *            built packet, header space included, not changed
+	 * @param length
+	 * @param code
+	 * @param encrypt
+	 * @return result, reserved serial per peer */
+	static UdpFanOut prepare(final ExecProcess ctx, final List<BaseObject> peers, final byte[] payload, final int length, final int code, final boolean encrypt) {
+
+		final UdpFanOut result = new UdpFanOut(ctx, peers, payload, length, code, encrypt);
+		for (int i = peers.size() - 1; i >= 0; --i) {
+			final BaseObject peer = peers.get(i);
+			try {
+				final UdpPrincipal state = UdpPrincipal.forPrincipal(peer);
+				if (state.dst() != null && state.keyBinary() != null) {
+					result.serials[i] = state.nextSerial();
+				}
+			} catch (final RuntimeException e) {
+				ctx.getConsole().log("UDP::FanOut:Java: %s: udp-send-skip, code: %s, error: %s", peer, Integer.toString(code), e);
+			}
+		}
+		return result;
+	}
+
+	/** @param peersObject
+	 *            array or iterable
+	 * @return list of peers */
+	static List<BaseObject> toList(final BaseObject peersObject) {
+
+		final List<BaseObject> peers = new ArrayList<>();
+		for (final Iterator<? extends BaseObject> iterator = peersObject.baseArray().baseIterator(); iterator.hasNext();) {
+			peers.add(iterator.next());
+		}
+		return peers;
+	}
+
+	private final ExecProcess ctx;
+
+	private final List<BaseObject> peers;
+
+	private final byte[] payload;
+
+	private final int length;
+
+	private final int code;
+
+	private final boolean encrypt;
+
+	private final int[] serials;
+
+	private int sent;
+
+	private boolean done;
+
+	private UdpFanOut(final ExecProcess ctx, final List<BaseObject> peers, final byte[] payload, final int length, final int code, final boolean encrypt) {
+
+		this.ctx = ctx;
+		this.peers = peers;
+		this.payload = payload;
+		this.length = length;
+		this.code = code;
+		this.encrypt = encrypt;
+		this.serials = new int[peers.size()];
+	}
+
+	/** @return peers */
+	@ReflectionExplicit
+	public int getCount() {
+
+		return this.serials.length;
+	}
+
+	/** @return peers sent to */
+	@ReflectionExplicit
+	public synchronized int getSent() {
+
+		return this.sent;
+	}
+
+	/** @param index
+	 *            index in the peers array
+	 * @return serial or 0 when not sent */
+	@ReflectionExplicit
+	public int getSerial(final int index) {
+
+		return this.serials[index];
+	}
+
+	/** Sends to every peer with a reserved serial, once. Peers the send failed for get serial 0.
+	 *
+	 * @return peers sent to */
+	@ReflectionExplicit
+	public int send() {
+
+		synchronized (this) {
+			if (this.done) {
+				throw new IllegalStateException("already sent: " + this);
+			}
+			this.done = true;
+		}
+		final int count = this.serials.length;
+		if (count <= UdpFanOut.CHUNK) {
+			this.sendChunk(this.ctx, 0, count);
+			return this.getSent();
+		}
+		final int chunks = (count + UdpFanOut.CHUNK - 1) / UdpFanOut.CHUNK;
+		final CountDownLatch done = new CountDownLatch(chunks - 1);
+		for (int chunk = 1; chunk < chunks; ++chunk) {
+			final int start = chunk * UdpFanOut.CHUNK;
+			final int end = Math.min(count, start + UdpFanOut.CHUNK);
+			UdpFanOut.WORKERS.execute(() -> {
+				try {
+					this.sendChunk(Exec.createProcess(this.ctx, "UdpFanOut::send"), start, end);
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		this.sendChunk(this.ctx, 0, UdpFanOut.CHUNK);
+		try {
+			done.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while sending, peers: " + count, e);
+		}
+		return this.getSent();
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpFanOut count=" + this.serials.length + ", sent=" + this.getSent() + "]";
+	}
+
+	private void sendChunk(final ExecProcess ctx, final int start, final int end) {
+
+		/** copy of the payload per peer: encryption is in place */
+		final byte[] packet = new byte[this.length];
+		int sent = 0;
+		for (int i = start; i < end; ++i) {
+			final int serial = this.serials[i];
+			if (serial == 0) {
+				continue;
+			}
+			final BaseObject peer = this.peers.get(i);
+			final UdpSendContext context = UdpSendContext.obtain(ctx, peer);
+			try {
+				System.arraycopy(this.payload, 32, packet, 32, this.length - 32);
+				if (UdpServiceHelper.sendPacket(ctx, peer, context, packet, this.length, this.code, this.encrypt, null, serial) != 0) {
+					++sent;
+				} else {
+					this.serials[i] = 0;
+				}
+			} catch (final RuntimeException e) {
+				this.serials[i] = 0;
+				ctx.getConsole().log("UDP::FanOut:Java: %s: udp-send-error, code: %s, error: %s", peer, Integer.toString(this.code), e);
+			} finally {
+				context.release();
+			}
+		}
+		synchronized (this) {
+			this.sent += sent;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Log-linear latency histogram, HDR-style: values below 8 have own buckets, above that every
+ * power of 2 is split into 8 buckets, so any value is within 12.5% of its bucket. Nanoseconds
+ * up to 2^63 fit in 488 buckets.
+ *
+ * Recording is one bucket increment and two adders, no locks and no allocation. Percentiles
+ * are computed on read from a racy (not atomic as a whole) view of the buckets, which is fine
+ * for monitoring.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpLatencyHistogram {
+
+	/** sub-buckets per power of 2, log2 */
+	private static final int SUB_BITS = 3;
+
+	private static final int SUB = 1 << UdpLatencyHistogram.SUB_BITS;
+
+	static final int BUCKETS = UdpLatencyHistogram.SUB + (63 - UdpLatencyHistogram.SUB_BITS) * UdpLatencyHistogram.SUB;
+
+	/** @param value
+	 * @return bucket index */
+	static int bucketOf(final long value) {
+
+		if (value < UdpLatencyHistogram.SUB) {
+			return value < 0
+				? 0
+				: (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> exponent - UdpLatencyHistogram.SUB_BITS) & UdpLatencyHistogram.SUB - 1;
+		return UdpLatencyHistogram.SUB + (exponent - UdpLatencyHistogram.SUB_BITS) * UdpLatencyHistogram.SUB + sub;
+	}
+
+	/** @param bucket
+	 * @return highest value of the bucket */
+	static long bucketHigh(final int bucket) {
+
+		if (bucket < UdpLatencyHistogram.SUB) {
+			return bucket;
+		}
+		final int exponent = (bucket - UdpLatencyHistogram.SUB) / UdpLatencyHistogram.SUB + UdpLatencyHistogram.SUB_BITS;
+		final int sub = (bucket - UdpLatencyHistogram.SUB) % UdpLatencyHistogram.SUB;
+		final long low = (long) (UdpLatencyHistogram.SUB + sub) << exponent - UdpLatencyHistogram.SUB_BITS;
+		return low + (1L << exponent - UdpLatencyHistogram.SUB_BITS) - 1;
+	}
+
+	private final String name;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(UdpLatencyHistogram.BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder total = new LongAdder();
+
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/** @param name */
+	UdpLatencyHistogram(final String name) {
+
+		this.name = name;
+	}
+
+	/** @return values recorded */
+	@ReflectionExplicit
+	public long getCount() {
+
+		return this.count.sum();
+	}
+
+	/** @return max value recorded, nanoseconds */
+	@ReflectionExplicit
+	public long getMax() {
+
+		return this.max.get();
+	}
+
+	/** @return average value, nanoseconds */
+	@ReflectionExplicit
+	public long getMean() {
+
+		final long count = this.count.sum();
+		return count == 0
+			? 0
+			: this.total.sum() / count;
+	}
+
+	/** @return histogram name */
+	@ReflectionExplicit
+	public String getName() {
+
+		return this.name;
+	}
+
+	/** @param percentile
+	 *            0..100
+	 * @return value at the percentile (bucket upper bound), nanoseconds */
+	@ReflectionExplicit
+	public long getPercentile(final double percentile) {
+
+		final long[] snapshot = new long[UdpLatencyHistogram.BUCKETS];
+		long count = 0;
+		for (int i = 0; i < UdpLatencyHistogram.BUCKETS; ++i) {
+			count += snapshot[i] = this.buckets.get(i);
+		}
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < UdpLatencyHistogram.BUCKETS; ++i) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(UdpLatencyHistogram.bucketHigh(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	/** @param nanos */
+	@ReflectionExplicit
+	public void record(final long nanos) {
+
+		this.buckets.incrementAndGet(UdpLatencyHistogram.bucketOf(nanos));
+		this.count.increment();
+		this.total.add(nanos);
+		this.max.accumulate(nanos);
+	}
+
+	/** Clears all buckets, values recorded meanwhile may be lost */
+	@ReflectionExplicit
+	public void reset() {
+
+		for (int i = 0; i < UdpLatencyHistogram.BUCKETS; ++i) {
+			this.buckets.set(i, 0);
+		}
+		this.count.reset();
+		this.total.reset();
+		this.max.reset();
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpLatencyHistogram " + this.name + " count=" + this.getCount() + ", mean=" + this.getMean() + "ns, p50=" + this.getPercentile(50) + "ns, p99="
+				+ this.getPercentile(99) + "ns, max=" + this.getMax() + "ns]";
+	}
+}
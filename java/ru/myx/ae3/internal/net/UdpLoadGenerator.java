@@ -0,0 +1,236 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Driver of the loopback load generator, see UdpLoadShellCommand ('udpload').
+ *
+ * The script side builds services, principals and tasks, this class decides when the next
+ * operation is issued, blocks the calling thread for the run and collects the outcomes:
+ *
+ * <pre>
+ * rate &gt; 0   - open loop: 'rate' operations per second on schedule, regardless of replies;
+ *              operations due while 'inflight' are outstanding wait and are issued later
+ * rate == 0  - closed loop: 'concurrency' operations outstanding, next one on every finish
+ * </pre>
+ *
+ * The issue function calls 'start' once per operation and passes the result to 'finish' with
+ * the outcome when the task is done. Latency is start-to-finish, recorded in a
+ * UdpLatencyHistogram. Throughput counts operations finished within 'time', the drain that
+ * follows only waits for the rest to report.
+ *
+ * Open loop measures from the scheduled time, not from the actual issue: a stall of the
+ * service or of the generator itself shows in the latency of every operation it delayed
+ * instead of being left out (coordinated omission). Operations issued an interval or more
+ * behind schedule are counted as 'late', the ones still due when the run ends as 'skipped',
+ * recorded with the latency they have waited so far.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpLoadGenerator {
+
+	private final int rate;
+
+	private final int concurrency;
+
+	private final int inflightMax;
+
+	private final long time;
+
+	private final long drain;
+
+	private final UdpLatencyHistogram latency = new UdpLatencyHistogram("load");
+
+	private final AtomicInteger inflight = new AtomicInteger();
+
+	private final LongAdder ok = new LongAdder();
+
+	private final LongAdder failed = new LongAdder();
+
+	private final LongAdder timeouts = new LongAdder();
+
+	private final LongAdder offline = new LongAdder();
+
+	private volatile Thread runner;
+
+	private long issued;
+
+	private long late;
+
+	private long skipped;
+
+	private long errors;
+
+	/** open loop: scheduled time of the operation being issued, see 'start' */
+	private long scheduled;
+
+	/** @param rate
+	 *            operations per second, 0 - closed loop
+	 * @param concurrency
+	 *            outstanding operations, closed loop
+	 * @param time
+	 *            run time, milliseconds
+	 * @param drain
+	 *            max wait for outstanding operations after the run, milliseconds */
+	@ReflectionExplicit
+	public UdpLoadGenerator(final int rate, final int concurrency, final int time, final int drain) {
+
+		if (rate < 0 || concurrency < 1 || time < 1 || drain < 0) {
+			throw new IllegalArgumentException("invalid arguments, rate: " + rate + ", concurrency: " + concurrency + ", time: " + time + ", drain: " + drain);
+		}
+		this.rate = rate;
+		this.concurrency = concurrency;
+		/** open loop: one second worth of outstanding operations at most, queryTTL is more */
+		this.inflightMax = rate == 0
+			? concurrency
+			: Math.max(concurrency, rate);
+		this.time = TimeUnit.MILLISECONDS.toNanos(time);
+		this.drain = TimeUnit.MILLISECONDS.toNanos(drain);
+	}
+
+	/** @param started
+	 *            'start' result
+	 * @param outcome
+	 *            "ok", "fail", "timeout" or "offline" */
+	@ReflectionExplicit
+	public void finish(final long started, final String outcome) {
+
+		this.latency.record(System.nanoTime() - started);
+		switch (outcome) {
+			case "ok" -> this.ok.increment();
+			case "timeout" -> this.timeouts.increment();
+			case "offline" -> this.offline.increment();
+			default -> this.failed.increment();
+		}
+		this.inflight.decrementAndGet();
+		final Thread runner = this.runner;
+		if (runner != null) {
+			LockSupport.unpark(runner);
+		}
+	}
+
+	/** @return round trip, nanoseconds */
+	@ReflectionExplicit
+	public UdpLatencyHistogram getLatency() {
+
+		return this.latency;
+	}
+
+	/** Called by the issue function, on the thread of 'run'
+	 *
+	 * @return token for 'finish' */
+	@ReflectionExplicit
+	public long start() {
+
+		this.inflight.incrementAndGet();
+		return this.rate > 0
+			? this.scheduled
+			: System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpLoadGenerator rate=" + this.rate + ", concurrency=" + this.concurrency + ", inflight=" + this.inflight.get() + ", " + this.latency + "]";
+	}
+
+	private void issue(final ExecProcess ctx, final BaseObject thisObject, final BaseFunction issue) {
+
+		++this.issued;
+		try {
+			issue.callNE0(ctx, thisObject);
+		} catch (final RuntimeException e) {
+			if (this.errors++ == 0) {
+				ctx.getConsole().log("UDP::Load:Java: issue-error, error: %s", e);
+			}
+		}
+	}
+
+	private long finished() {
+
+		return this.ok.sum() + this.failed.sum() + this.timeouts.sum() + this.offline.sum();
+	}
+
+	/** @param ctx
+	 * @param thisObject
+	 * @param issue
+	 *            starts one operation
+	 * @return report: {time, issued, finished, ok, failed, timeouts, offline, late, skipped,
+	 *         errors, unfinished, throughput, p50, p99, p999, max, mean}, latencies in microseconds */
+	BaseObject run(final ExecProcess ctx, final BaseObject thisObject, final BaseFunction issue) {
+
+		this.runner = Thread.currentThread();
+		final long started = System.nanoTime();
+		final long end = started + this.time;
+		try {
+			if (this.rate > 0) {
+				final long interval = Math.max(1L, TimeUnit.SECONDS.toNanos(1) / this.rate);
+				long next = started;
+				for (long now; (now = System.nanoTime()) < end;) {
+					/** overdue operations keep their place in the schedule */
+					for (; next <= now && this.inflight.get() < this.inflightMax; next += interval) {
+						if (now - next >= interval) {
+							++this.late;
+						}
+						this.scheduled = next;
+						this.issue(ctx, thisObject, issue);
+					}
+					/** waiting for 'finish' to unpark when at 'inflightMax' */
+					LockSupport.parkNanos(next <= now
+						? TimeUnit.MILLISECONDS.toNanos(1)
+						: Math.min(next, end) - now);
+				}
+				for (final long now = System.nanoTime(); next < end; next += interval) {
+					this.latency.record(now - next);
+					++this.skipped;
+				}
+			} else {
+				while (System.nanoTime() < end) {
+					/** bounded: an issue that fails before 'start' does not spin */
+					for (int i = this.concurrency - this.inflight.get(); i > 0; --i) {
+						this.issue(ctx, thisObject, issue);
+					}
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+			}
+			final long finishedInTime = this.finished();
+			final long elapsed = System.nanoTime() - started;
+
+			final long deadline = System.nanoTime() + this.drain;
+			for (long now; this.inflight.get() > 0 && (now = System.nanoTime()) < deadline;) {
+				LockSupport.parkNanos(Math.min(deadline - now, TimeUnit.MILLISECONDS.toNanos(10)));
+			}
+
+			final BaseObject report = BaseObject.createObject(null);
+			report.baseDefine(Base.forString("time"), Base.forLong(TimeUnit.NANOSECONDS.toMillis(elapsed)));
+			report.baseDefine(Base.forString("issued"), Base.forLong(this.issued));
+			report.baseDefine(Base.forString("finished"), Base.forLong(this.finished()));
+			report.baseDefine(Base.forString("ok"), Base.forLong(this.ok.sum()));
+			report.baseDefine(Base.forString("failed"), Base.forLong(this.failed.sum()));
+			report.baseDefine(Base.forString("timeouts"), Base.forLong(this.timeouts.sum()));
+			report.baseDefine(Base.forString("offline"), Base.forLong(this.offline.sum()));
+			report.baseDefine(Base.forString("late"), Base.forLong(this.late));
+			report.baseDefine(Base.forString("skipped"), Base.forLong(this.skipped));
+			report.baseDefine(Base.forString("errors"), Base.forLong(this.errors));
+			report.baseDefine(Base.forString("unfinished"), Base.forLong(this.inflight.get()));
+			report.baseDefine(Base.forString("throughput"), Base.forDouble(finishedInTime * 1e9 / elapsed));
+			report.baseDefine(Base.forString("p50"), Base.forLong(TimeUnit.NANOSECONDS.toMicros(this.latency.getPercentile(50))));
+			report.baseDefine(Base.forString("p99"), Base.forLong(TimeUnit.NANOSECONDS.toMicros(this.latency.getPercentile(99))));
+			report.baseDefine(Base.forString("p999"), Base.forLong(TimeUnit.NANOSECONDS.toMicros(this.latency.getPercentile(99.9))));
+			report.baseDefine(Base.forString("max"), Base.forLong(TimeUnit.NANOSECONDS.toMicros(this.latency.getMax())));
+			report.baseDefine(Base.forString("mean"), Base.forLong(TimeUnit.NANOSECONDS.toMicros(this.latency.getMean())));
+			return report;
+		} finally {
+			this.runner = null;
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package ru.myx.ae3.internal.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Counters and latency histograms of the UDP stack, one set per JVM.
+ *
+ * Counters are LongAdders per message code and outcome, histograms (see UdpLatencyHistogram)
+ * are for packet verification, message parsing, handler run time and task round-trip time.
+ * Recording takes no locks and allocates nothing, timing costs two System.nanoTime calls per
+ * measured step; the 'ae3.udp.metrics' system property set to 'false' turns timing off,
+ * counters are always on.
+ *
+ * Per-principal counters (see UdpPeerMetrics) are off by default, 'setPerPrincipal(true)'.
+ *
+ * Readable from JS with 'snapshot()' and from JMX as
+ * 'ru.myx.ae3.internal.net:type=UdpMetrics'.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpMetrics implements UdpMetricsMXBean {
+
+	/** message delivered to the principal */
+	public static final int RX_DELIVERED = 0;
+
+	/** skipped: unknown peer, old serial, repeat, no secret */
+	public static final int RX_SKIP = 1;
+
+	/** signature mismatch */
+	public static final int RX_CRC_FAIL = 2;
+
+	/** malformed packet or payload */
+	public static final int RX_BAD_BODY = 3;
+
+	/** message sent */
+	public static final int TX = 4;
+
+	static final int OUTCOMES = 5;
+
+	private static final String[] OUTCOME_NAMES = {
+			"rx.%s.delivered", "rx.%s.skip", "rx.%s.crcFail", "rx.%s.badBody", "tx.%s"
+	};
+
+	/** timing is on */
+	static final boolean TIMING = !"false".equals(System.getProperty("ae3.udp.metrics"));
+
+	/** the metrics */
+	public static final UdpMetrics INSTANCE = new UdpMetrics();
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(UdpMetrics.INSTANCE, new ObjectName("ru.myx.ae3.internal.net:type=UdpMetrics"));
+		} catch (final Exception e) {
+			// no JMX or already registered by another class loader, JS snapshot still works
+		}
+	}
+
+	/** @return the metrics */
+	@ReflectionExplicit
+	public static UdpMetrics getInstance() {
+
+		return UdpMetrics.INSTANCE;
+	}
+
+	/** @return System.nanoTime() when timing is on, 0 otherwise */
+	static long start() {
+
+		return UdpMetrics.TIMING
+			? System.nanoTime()
+			: 0L;
+	}
+
+	/** by code * OUTCOMES + outcome */
+	private final LongAdder[] counters = new LongAdder[256 * UdpMetrics.OUTCOMES];
+
+	/** packet signature verification */
+	final UdpLatencyHistogram verify = new UdpLatencyHistogram("verify");
+
+	/** message parsing, parseBinaryMessage */
+	final UdpLatencyHistogram parse = new UdpLatencyHistogram("parse");
+
+	/** principal handler run, see UdpPrincipalMailbox */
+	final UdpLatencyHistogram handler = new UdpLatencyHistogram("handler");
+
+	/** request to first reply of a task */
+	final UdpLatencyHistogram taskRtt = new UdpLatencyHistogram("taskRtt");
+
+	private volatile boolean perPrincipal;
+
+	private UdpMetrics() {
+
+		for (int i = 0; i < this.counters.length; ++i) {
+			this.counters[i] = new LongAdder();
+		}
+	}
+
+	/** @param code
+	 * @param outcome
+	 * @return count */
+	@ReflectionExplicit
+	public long getCount(final int code, final int outcome) {
+
+		return this.counters[(code & 0xFF) * UdpMetrics.OUTCOMES + outcome].sum();
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+
+		final Map<String, Long> result = new TreeMap<>();
+		for (int code = 0; code < 256; ++code) {
+			for (int outcome = 0; outcome < UdpMetrics.OUTCOMES; ++outcome) {
+				final long value = this.counters[code * UdpMetrics.OUTCOMES + outcome].sum();
+				if (value != 0) {
+					result.put(String.format(UdpMetrics.OUTCOME_NAMES[outcome], String.format("0x%02x", Integer.valueOf(code))), Long.valueOf(value));
+				}
+			}
+		}
+		return result;
+	}
+
+	/** @return handler run time histogram */
+	@ReflectionExplicit
+	public UdpLatencyHistogram getHandler() {
+
+		return this.handler;
+	}
+
+	@Override
+	public Map<String, Long> getLatencies() {
+
+		final Map<String, Long> result = new TreeMap<>();
+		for (final UdpLatencyHistogram histogram : this.histograms()) {
+			final String name = histogram.getName();
+			result.put(name + ".count", Long.valueOf(histogram.getCount()));
+			result.put(name + ".mean", Long.valueOf(histogram.getMean()));
+			result.put(name + ".p50", Long.valueOf(histogram.getPercentile(50)));
+			result.put(name + ".p90", Long.valueOf(histogram.getPercentile(90)));
+			result.put(name + ".p99", Long.valueOf(histogram.getPercentile(99)));
+			result.put(name + ".p999", Long.valueOf(histogram.getPercentile(99.9)));
+			result.put(name + ".max", Long.valueOf(histogram.getMax()));
+		}
+		return result;
+	}
+
+	/** @return parse time histogram */
+	@ReflectionExplicit
+	public UdpLatencyHistogram getParse() {
+
+		return this.parse;
+	}
+
+	/** @return task round-trip time histogram */
+	@ReflectionExplicit
+	public UdpLatencyHistogram getTaskRtt() {
+
+		return this.taskRtt;
+	}
+
+	/** @return verify time histogram */
+	@ReflectionExplicit
+	public UdpLatencyHistogram getVerify() {
+
+		return this.verify;
+	}
+
+	@Override
+	@ReflectionExplicit
+	public boolean isPerPrincipal() {
+
+		return this.perPrincipal;
+	}
+
+	@Override
+	@ReflectionExplicit
+	public void reset() {
+
+		for (final LongAdder counter : this.counters) {
+			counter.reset();
+		}
+		for (final UdpLatencyHistogram histogram : this.histograms()) {
+			histogram.reset();
+		}
+	}
+
+	@Override
+	@ReflectionExplicit
+	public void setPerPrincipal(final boolean perPrincipal) {
+
+		this.perPrincipal = perPrincipal;
+	}
+
+	/** @return object: {counters : {'rx.0x21.delivered' : n, ...}, latencies : {'parse.p99' :
+	 *         ns, ...}} */
+	@ReflectionExplicit
+	public BaseObject snapshot() {
+
+		final BaseObject result = BaseObject.createObject(null);
+		result.baseDefine(Base.forString("counters"), UdpMetrics.toObject(this.getCounters()));
+		result.baseDefine(Base.forString("latencies"), UdpMetrics.toObject(this.getLatencies()));
+		return result;
+	}
+
+	/** Task sent its request, see TaskUdpSingle
+	 *
+	 * @return start mark for 'taskReply' */
+	@ReflectionExplicit
+	public long taskStart() {
+
+		return UdpMetrics.start();
+	}
+
+	/** Task got its first reply, see TaskUdpSingle
+	 *
+	 * @param started
+	 *            'taskStart' result */
+	@ReflectionExplicit
+	public void taskReply(final long started) {
+
+		if (started != 0) {
+			this.taskRtt.record(System.nanoTime() - started);
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpMetrics " + this.verify + ", " + this.parse + ", " + this.handler + ", " + this.taskRtt + "]";
+	}
+
+	/** @param code
+	 * @param outcome */
+	void count(final int code, final int outcome) {
+
+		this.counters[(code & 0xFF) * UdpMetrics.OUTCOMES + outcome].increment();
+	}
+
+	/** @param histogram
+	 * @param started
+	 *            'start()' result, nothing is recorded for 0 */
+	void record(final UdpLatencyHistogram histogram, final long started) {
+
+		if (started != 0) {
+			histogram.record(System.nanoTime() - started);
+		}
+	}
+
+	private UdpLatencyHistogram[] histograms() {
+
+		return new UdpLatencyHistogram[]{
+				this.verify, this.parse, this.handler, this.taskRtt
+		};
+	}
+
+	private static BaseObject toObject(final Map<String, Long> map) {
+
+		final BaseObject result = BaseObject.createObject(null);
+		for (final Map.Entry<String, Long> entry : map.entrySet()) {
+			result.baseDefine(Base.forString(entry.getKey()), Base.forLong(entry.getValue().longValue()));
+		}
+		return result;
+	}
+}
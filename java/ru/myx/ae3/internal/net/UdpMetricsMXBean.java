@@ -0,0 +1,24 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.Map;
+
+/** JMX view of UdpMetrics, registered as 'ru.myx.ae3.internal.net:type=UdpMetrics'
+ *
+ * @author myx */
+public interface UdpMetricsMXBean {
+
+	/** @return non-zero counters: 'rx.0x21.delivered', 'tx.0x21', ... */
+	Map<String, Long> getCounters();
+
+	/** @return histogram values, nanoseconds: 'parse.p99', 'verify.mean', ... */
+	Map<String, Long> getLatencies();
+
+	/** @return true when principals count their own messages */
+	boolean isPerPrincipal();
+
+	/** clears all counters and histograms */
+	void reset();
+
+	/** @param perPrincipal */
+	void setPerPrincipal(boolean perPrincipal);
+}
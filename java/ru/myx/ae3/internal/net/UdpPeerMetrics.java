@@ -0,0 +1,52 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Counters of one principal, kept when UdpMetrics 'perPrincipal' is on, see
+ * UdpPrincipal.getMetrics
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpPeerMetrics {
+
+	final LongAdder rx = new LongAdder();
+
+	final LongAdder tx = new LongAdder();
+
+	final LongAdder dropped = new LongAdder();
+
+	UdpPeerMetrics() {
+
+		//
+	}
+
+	/** @return messages dropped: mailbox full */
+	@ReflectionExplicit
+	public long getDropped() {
+
+		return this.dropped.sum();
+	}
+
+	/** @return messages delivered */
+	@ReflectionExplicit
+	public long getRx() {
+
+		return this.rx.sum();
+	}
+
+	/** @return messages sent */
+	@ReflectionExplicit
+	public long getTx() {
+
+		return this.tx.sum();
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpPeerMetrics rx=" + this.rx.sum() + ", tx=" + this.tx.sum() + ", dropped=" + this.dropped.sum() + "]";
+	}
+}
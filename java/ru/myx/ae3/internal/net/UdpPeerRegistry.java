@@ -0,0 +1,347 @@
+package ru.myx.ae3.internal.net;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Principals of a service indexed by their 12-byte key and by the 'alt' key, for the
+ * receive pipeline to find the peer right from the packet: no key slice, no hex string.
+ *
+ * A key is a (long, int) pair. Entries are kept in open-addressing tables of primitive arrays,
+ * split into SEGMENTS by the key hash. Reads take no locks: a slot is published by a release
+ * write of its state after the key and the value are in place, and a published key is never
+ * changed (removed slots stay tombstones until the segment is rehashed into a new table).
+ * Writes lock one segment.
+ *
+ * The service has one as its 'peers' property, the receive pipeline looks there before
+ * calling 'resolvePeer'. Principals are to be registered again when their key changes.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpPeerRegistry {
+
+	/** segments, selected by the top 6 bits of the hash */
+	static final int SEGMENTS = 64;
+
+	/** initial slots per segment, power of 2 */
+	static final int INITIAL = 16;
+
+	private static final int EMPTY = 0;
+
+	private static final int USED = 1;
+
+	private static final int REMOVED = 2;
+
+	private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(int[].class);
+
+	private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(BaseObject[].class);
+
+	private final static BasePrimitiveString STR_alt = Base.forString("alt");
+
+	private static final class Table {
+
+		final long[] high;
+
+		final int[] low;
+
+		final int[] states;
+
+		final BaseObject[] values;
+
+		final int mask;
+
+		Table(final int capacity) {
+
+			this.high = new long[capacity];
+			this.low = new int[capacity];
+			this.states = new int[capacity];
+			this.values = new BaseObject[capacity];
+			this.mask = capacity - 1;
+		}
+	}
+
+	private static final class Segment {
+
+		volatile Table table = new Table(UdpPeerRegistry.INITIAL);
+
+		int size;
+
+		int removed;
+
+		Segment() {
+
+			//
+		}
+	}
+
+	private static long hash(final long high, final int low) {
+
+		long h = high * 0x9E3779B97F4A7C15L ^ (low & 0xFFFFFFFFL) * 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 31;
+		h *= 0xBF58476D1CE4E5B9L;
+		return h ^ h >>> 29;
+	}
+
+	private static long high(final byte[] b, final int o) {
+
+		return (b[o] & 0xFFL) << 56 | (b[o + 1] & 0xFFL) << 48 | (b[o + 2] & 0xFFL) << 40 | (b[o + 3] & 0xFFL) << 32 //
+				| (b[o + 4] & 0xFFL) << 24 | (b[o + 5] & 0xFFL) << 16 | (b[o + 6] & 0xFFL) << 8 | b[o + 7] & 0xFFL;
+	}
+
+	private static int low(final byte[] b, final int o) {
+
+		return (b[o + 8] & 0xFF) << 24 | (b[o + 9] & 0xFF) << 16 | (b[o + 10] & 0xFF) << 8 | b[o + 11] & 0xFF;
+	}
+
+	/** @return 12 bytes of the binary key */
+	private static byte[] keyBytes(final BaseObject key) {
+
+		final TransferCopier binary = key == null || !key.baseToJavaBoolean()
+			? null
+			: Transfer.createCopierFromBinary(key);
+		if (binary == null || binary.length() != 12) {
+			throw new IllegalArgumentException("12-byte binary key is expected, key: " + key);
+		}
+		final byte[] bytes = new byte[12];
+		binary.copy(0, bytes, 0, 12);
+		return bytes;
+	}
+
+	private final Segment[] segments = new Segment[UdpPeerRegistry.SEGMENTS];
+
+	/** empty registry */
+	@ReflectionExplicit
+	public UdpPeerRegistry() {
+
+		for (int i = 0; i < UdpPeerRegistry.SEGMENTS; ++i) {
+			this.segments[i] = new Segment();
+		}
+	}
+
+	/** @param key
+	 *            12-byte binary
+	 * @return principal or undefined */
+	@ReflectionExplicit
+	public BaseObject get(final BaseObject key) {
+
+		final byte[] bytes = UdpPeerRegistry.keyBytes(key);
+		final BaseObject principal = this.find(UdpPeerRegistry.high(bytes, 0), UdpPeerRegistry.low(bytes, 0));
+		return principal == null
+			? BaseObject.UNDEFINED
+			: principal;
+	}
+
+	/** @return principals and alt keys registered */
+	@ReflectionExplicit
+	public int getSize() {
+
+		int size = 0;
+		for (final Segment segment : this.segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/** @param key
+	 *            12-byte binary
+	 * @param principal
+	 * @return previous principal for the key or undefined */
+	@ReflectionExplicit
+	public BaseObject put(final BaseObject key, final BaseObject principal) {
+
+		if (principal == null || principal.baseValue() == null) {
+			throw new IllegalArgumentException("principal is expected, key: " + key);
+		}
+		final byte[] bytes = UdpPeerRegistry.keyBytes(key);
+		final BaseObject previous = this.put(UdpPeerRegistry.high(bytes, 0), UdpPeerRegistry.low(bytes, 0), principal);
+		return previous == null
+			? BaseObject.UNDEFINED
+			: previous;
+	}
+
+	/** Indexes principal by its 'key' and, when set, by its 'alt' key
+	 *
+	 * @param principal */
+	@ReflectionExplicit
+	public void register(final BaseObject principal) {
+
+		final TransferCopier key = UdpPrincipal.forPrincipal(principal).keyBinary();
+		if (key == null) {
+			throw new IllegalArgumentException("principal has no key, principal: " + principal);
+		}
+		this.putBinary(key, principal);
+		final BaseObject alt = principal.baseGet(UdpPeerRegistry.STR_alt, BaseObject.UNDEFINED);
+		if (alt instanceof final TransferCopier altBinary && altBinary.length() == 12) {
+			this.putBinary(altBinary, principal);
+		}
+	}
+
+	/** @param key
+	 *            12-byte binary
+	 * @return removed principal or undefined */
+	@ReflectionExplicit
+	public BaseObject remove(final BaseObject key) {
+
+		final byte[] bytes = UdpPeerRegistry.keyBytes(key);
+		final BaseObject removed = this.remove(UdpPeerRegistry.high(bytes, 0), UdpPeerRegistry.low(bytes, 0), null);
+		return removed == null
+			? BaseObject.UNDEFINED
+			: removed;
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpPeerRegistry size=" + this.getSize() + "]";
+	}
+
+	/** Removes 'key' and 'alt' entries that point to the principal
+	 *
+	 * @param principal */
+	@ReflectionExplicit
+	public void unregister(final BaseObject principal) {
+
+		final TransferCopier key = UdpPrincipal.forPrincipal(principal).keyBinary();
+		if (key != null) {
+			final byte[] bytes = UdpPeerRegistry.keyBytes(key);
+			this.remove(UdpPeerRegistry.high(bytes, 0), UdpPeerRegistry.low(bytes, 0), principal);
+		}
+		final BaseObject alt = principal.baseGet(UdpPeerRegistry.STR_alt, BaseObject.UNDEFINED);
+		if (alt instanceof final TransferCopier altBinary && altBinary.length() == 12) {
+			final byte[] bytes = UdpPeerRegistry.keyBytes(altBinary);
+			this.remove(UdpPeerRegistry.high(bytes, 0), UdpPeerRegistry.low(bytes, 0), principal);
+		}
+	}
+
+	/** @param packet
+	 * @param offset
+	 *            of the 12-byte key, absolute
+	 * @return principal or null */
+	BaseObject find(final ByteBuffer packet, final int offset) {
+
+		if (packet.order() == ByteOrder.BIG_ENDIAN) {
+			return this.find(packet.getLong(offset), packet.getInt(offset + 8));
+		}
+		return this.find(Long.reverseBytes(packet.getLong(offset)), Integer.reverseBytes(packet.getInt(offset + 8)));
+	}
+
+	/** lock-free */
+	BaseObject find(final long high, final int low) {
+
+		final long hash = UdpPeerRegistry.hash(high, low);
+		final Table table = this.segments[(int) (hash >>> 58)].table;
+		final int mask = table.mask;
+		for (int i = (int) hash & mask;; i = i + 1 & mask) {
+			final int state = (int) UdpPeerRegistry.STATES.getAcquire(table.states, i);
+			if (state == UdpPeerRegistry.EMPTY) {
+				return null;
+			}
+			if (state == UdpPeerRegistry.USED && table.high[i] == high && table.low[i] == low) {
+				return (BaseObject) UdpPeerRegistry.VALUES.getAcquire(table.values, i);
+			}
+		}
+	}
+
+	private BaseObject putBinary(final TransferCopier key, final BaseObject principal) {
+
+		final byte[] bytes = UdpPeerRegistry.keyBytes(key);
+		return this.put(UdpPeerRegistry.high(bytes, 0), UdpPeerRegistry.low(bytes, 0), principal);
+	}
+
+	private BaseObject put(final long high, final int low, final BaseObject principal) {
+
+		final long hash = UdpPeerRegistry.hash(high, low);
+		final Segment segment = this.segments[(int) (hash >>> 58)];
+		synchronized (segment) {
+			Table table = segment.table;
+			for (int i = (int) hash & table.mask;; i = i + 1 & table.mask) {
+				final int state = table.states[i];
+				if (state == UdpPeerRegistry.EMPTY) {
+					break;
+				}
+				if (state == UdpPeerRegistry.USED && table.high[i] == high && table.low[i] == low) {
+					final BaseObject previous = table.values[i];
+					UdpPeerRegistry.VALUES.setRelease(table.values, i, principal);
+					return previous;
+				}
+			}
+			/** load, tombstones included, is kept under 3/4 so probes always end */
+			if ((segment.size + segment.removed + 1) * 4 > table.states.length * 3) {
+				table = this.rehash(segment, table);
+			}
+			UdpPeerRegistry.insert(table, hash, high, low, principal);
+			++segment.size;
+			return null;
+		}
+	}
+
+	/** must be called while synchronized on the segment */
+	private Table rehash(final Segment segment, final Table table) {
+
+		final int capacity = (segment.size + 1) * 2 > table.states.length
+			? table.states.length * 2
+			: table.states.length;
+		final Table created = new Table(capacity);
+		for (int i = 0; i < table.states.length; ++i) {
+			if (table.states[i] == UdpPeerRegistry.USED) {
+				UdpPeerRegistry.insert(created, UdpPeerRegistry.hash(table.high[i], table.low[i]), table.high[i], table.low[i], table.values[i]);
+			}
+		}
+		segment.removed = 0;
+		segment.table = created;
+		return created;
+	}
+
+	/** @param expected
+	 *            principal to remove or null for any */
+	private BaseObject remove(final long high, final int low, final BaseObject expected) {
+
+		final long hash = UdpPeerRegistry.hash(high, low);
+		final Segment segment = this.segments[(int) (hash >>> 58)];
+		synchronized (segment) {
+			final Table table = segment.table;
+			for (int i = (int) hash & table.mask;; i = i + 1 & table.mask) {
+				final int state = table.states[i];
+				if (state == UdpPeerRegistry.EMPTY) {
+					return null;
+				}
+				if (state == UdpPeerRegistry.USED && table.high[i] == high && table.low[i] == low) {
+					final BaseObject previous = table.values[i];
+					if (expected != null && previous != expected) {
+						return null;
+					}
+					UdpPeerRegistry.STATES.setRelease(table.states, i, UdpPeerRegistry.REMOVED);
+					UdpPeerRegistry.VALUES.setRelease(table.values, i, (BaseObject) null);
+					--segment.size;
+					++segment.removed;
+					return previous;
+				}
+			}
+		}
+	}
+
+	/** slot is filled first, then published by its state */
+	private static void insert(final Table table, final long hash, final long high, final int low, final BaseObject principal) {
+
+		for (int i = (int) hash & table.mask;; i = i + 1 & table.mask) {
+			if (table.states[i] == UdpPeerRegistry.EMPTY) {
+				table.high[i] = high;
+				table.low[i] = low;
+				table.values[i] = principal;
+				UdpPeerRegistry.STATES.setRelease(table.states, i, UdpPeerRegistry.USED);
+				return;
+			}
+		}
+	}
+}
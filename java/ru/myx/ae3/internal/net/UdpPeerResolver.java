@@ -0,0 +1,442 @@
+package ru.myx.ae3.internal.net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.base.BaseProperty;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Asynchronous resolution of unknown peer keys for the receive pipeline.
+ *
+ * The first packet from an unknown key calls 'resolveClientAsync(key)' of the service once,
+ * packets arriving while the lookup runs are parked, up to PARK_PER_KEY per key. The service
+ * reports the result with 'peerResolved(key, principal)': parked packets are replayed through
+ * the receivers that parked them, or, when no principal was found, dropped and the key is
+ * remembered as unknown for NEGATIVE_TTL so floods of bogus keys cost one map lookup each.
+ *
+ * Lookups not answered in RESOLVE_TIMEOUT are treated as failed.
+ *
+ * A principal found by a lookup is registered in 'peers' of the service for REGISTERED_TTL,
+ * then unregistered, so the next packet of the key asks 'resolveClientAsync' again. A later
+ * lookup that finds nothing unregisters it right away.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpPeerResolver {
+
+	/** max packets parked per key */
+	public static final int PARK_PER_KEY = 4;
+
+	/** max keys being resolved at the same time */
+	public static final int MAX_PENDING = 4096;
+
+	/** max keys remembered as unknown */
+	public static final int MAX_NEGATIVE = 65536;
+
+	/** unknown key is not looked up again for, milliseconds */
+	public static final long NEGATIVE_TTL = 30_000L;
+
+	/** lookup is considered failed after, milliseconds */
+	public static final long RESOLVE_TIMEOUT = 10_000L;
+
+	/** principal found by a lookup stays registered for, milliseconds */
+	public static final long REGISTERED_TTL = 600_000L;
+
+	private final static BasePrimitiveString STR_peerResolver = Base.forString("peerResolver");
+	private final static BasePrimitiveString STR_peers = Base.forString("peers");
+
+	private record Key(long high, int low) {
+
+		static Key forBinary(final BaseObject key) {
+
+			final TransferCopier binary = key == null || !key.baseToJavaBoolean()
+				? null
+				: Transfer.createCopierFromBinary(key);
+			if (binary == null || binary.length() != 12) {
+				throw new IllegalArgumentException("12-byte binary key is expected, key: " + key);
+			}
+			final ByteBuffer b = ByteBuffer.allocate(12);
+			binary.copy(0, b.array(), 0, 12);
+			return new Key(b.getLong(0), b.getInt(8));
+		}
+
+		static Key forPacket(final ByteBuffer packet, final int offset) {
+
+			if (packet.order() == ByteOrder.BIG_ENDIAN) {
+				return new Key(packet.getLong(offset + 16), packet.getInt(offset + 16 + 8));
+			}
+			return new Key(Long.reverseBytes(packet.getLong(offset + 16)), Integer.reverseBytes(packet.getInt(offset + 16 + 8)));
+		}
+	}
+
+	private record Parked(UdpServiceReceiver receiver, byte[] packet, BaseObject address) {
+		//
+	}
+
+	private record Registered(BaseObject principal, long expires) {
+		//
+	}
+
+	private static final class Pending {
+
+		final long started = System.currentTimeMillis();
+
+		final List<Parked> parked = new ArrayList<>(UdpPeerResolver.PARK_PER_KEY);
+
+		Pending() {
+
+			//
+		}
+	}
+
+	/** @param service
+	 * @return resolver of the service, created on first call */
+	@ReflectionExplicit
+	public static UdpPeerResolver forService(final BaseObject service) {
+
+		synchronized (service) {
+			final Object existing = service.baseGet(UdpPeerResolver.STR_peerResolver, BaseObject.UNDEFINED).baseValue();
+			if (existing instanceof final UdpPeerResolver resolver) {
+				return resolver;
+			}
+			final UdpPeerResolver resolver = new UdpPeerResolver(service);
+			service.baseDefine(UdpPeerResolver.STR_peerResolver, Base.forUnknown(resolver), BaseProperty.ATTRS_MASK_WED);
+			return resolver;
+		}
+	}
+
+	private final BaseObject service;
+
+	private final ExecProcess ctx;
+
+	private final Map<Key, Pending> pending = new HashMap<>();
+
+	/** expiry time by key, in insertion order */
+	private final LinkedHashMap<Key, Long> negative = new LinkedHashMap<>();
+
+	/** principals registered by lookups, in expiry order */
+	private final LinkedHashMap<Key, Registered> registered = new LinkedHashMap<>();
+
+	/** next 'expireRegistered', null when there is nothing to expire */
+	private UdpTimerWheel.Timeout sweep;
+
+	private long stLookups;
+
+	private long stParked;
+
+	private long stReplayed;
+
+	private long stDropped;
+
+	private long stNegative;
+
+	private long stExpired;
+
+	private UdpPeerResolver(final BaseObject service) {
+
+		this.service = service;
+		this.ctx = Exec.createProcess(Exec.getRootProcess(), "UdpPeerResolver, service: " + service);
+	}
+
+	/** Stops expiring registrations, parked packets are dropped, see 'destroy' of the service */
+	@ReflectionExplicit
+	public synchronized void destroy() {
+
+		if (this.sweep != null) {
+			this.sweep.cancel();
+			this.sweep = null;
+		}
+		for (final Pending pending : this.pending.values()) {
+			this.stDropped += pending.parked.size();
+		}
+		this.pending.clear();
+		this.registered.clear();
+	}
+
+	/** @return packets dropped: negative cache, parking limits, failed lookups */
+	@ReflectionExplicit
+	public synchronized long getDropped() {
+
+		return this.stDropped;
+	}
+
+	/** @return registrations of found principals expired */
+	@ReflectionExplicit
+	public synchronized long getExpired() {
+
+		return this.stExpired;
+	}
+
+	/** @return lookups started */
+	@ReflectionExplicit
+	public synchronized long getLookups() {
+
+		return this.stLookups;
+	}
+
+	/** @return keys remembered as unknown now */
+	@ReflectionExplicit
+	public synchronized int getNegativeCount() {
+
+		return this.negative.size();
+	}
+
+	/** @return packets rejected by the negative cache */
+	@ReflectionExplicit
+	public synchronized long getNegativeHits() {
+
+		return this.stNegative;
+	}
+
+	/** @return packets parked */
+	@ReflectionExplicit
+	public synchronized long getParked() {
+
+		return this.stParked;
+	}
+
+	/** @return lookups running now */
+	@ReflectionExplicit
+	public synchronized int getPendingCount() {
+
+		return this.pending.size();
+	}
+
+	/** @return principals registered by lookups now */
+	@ReflectionExplicit
+	public synchronized int getRegisteredCount() {
+
+		return this.registered.size();
+	}
+
+	/** @return parked packets replayed */
+	@ReflectionExplicit
+	public synchronized long getReplayed() {
+
+		return this.stReplayed;
+	}
+
+	/** Result of the 'resolveClientAsync' lookup, see 'peerResolved' of the service: found
+	 * principal is registered for REGISTERED_TTL, the one registered before for the key is
+	 * unregistered.
+	 *
+	 * @param key
+	 *            12-byte binary
+	 * @param principal
+	 *            principal or null when the key is unknown */
+	@ReflectionExplicit
+	public void resolved(final BaseObject key, final BaseObject principal) {
+
+		final Key k = Key.forBinary(key);
+		final boolean found = principal != null && principal.baseValue() != null && principal.baseToJavaBoolean();
+		final UdpPeerRegistry registry = this.service.baseGet(UdpPeerResolver.STR_peers, BaseObject.UNDEFINED).baseValue() instanceof final UdpPeerRegistry peers
+			? peers
+			: null;
+		final Pending pending;
+		final Registered previous;
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			pending = this.pending.remove(k);
+			previous = this.registered.remove(k);
+			if (found) {
+				this.negative.remove(k);
+				if (registry != null) {
+					this.registered.put(k, new Registered(principal, now + UdpPeerResolver.REGISTERED_TTL));
+					this.armSweep(now);
+				}
+			} else {
+				this.rememberUnknown(k, now);
+				if (pending != null) {
+					this.stDropped += pending.parked.size();
+				}
+			}
+		}
+		if (registry != null) {
+			if (previous != null && previous.principal != principal) {
+				registry.unregister(previous.principal);
+			}
+			if (found) {
+				registry.register(principal);
+			}
+		}
+		if (!found) {
+			return;
+		}
+		if (pending == null) {
+			return;
+		}
+		for (final Parked parked : pending.parked) {
+			try {
+				parked.receiver.replay(this.ctx, parked.packet, parked.address, principal);
+			} catch (final RuntimeException e) {
+				this.ctx.getConsole().log("UDP::Read:Java: replay-error: iface: %s, addr: %s, error: %s", this.service, parked.address, e);
+			}
+		}
+		synchronized (this) {
+			this.stReplayed += pending.parked.size();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpPeerResolver pending=" + this.pending.size() + ", negative=" + this.negative.size() + ", registered=" + this.registered.size() + ", lookups="
+				+ this.stLookups + ", parked=" + this.stParked + ", dropped=" + this.stDropped + "]";
+	}
+
+	/** Parks the packet of an unknown key, starts the lookup for the first one
+	 *
+	 * @param ctx
+	 * @param receiver
+	 *            to replay the packet through
+	 * @param resolveClientAsync
+	 *            'resolveClientAsync' method of the service
+	 * @param packet
+	 * @param offset
+	 * @param length
+	 * @param address
+	 * @return false when the packet is dropped: key is known to be unknown or limits are
+	 *         reached */
+	boolean park(final ExecProcess ctx,
+			final UdpServiceReceiver receiver,
+			final BaseFunction resolveClientAsync,
+			final ByteBuffer packet,
+			final int offset,
+			final int length,
+			final BaseObject address) {
+
+		final Key key = Key.forPacket(packet, offset);
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			final Long expires = this.negative.get(key);
+			if (expires != null) {
+				if (expires.longValue() - now > 0) {
+					++this.stNegative;
+					++this.stDropped;
+					return false;
+				}
+				this.negative.remove(key);
+			}
+			final Pending existing = this.pending.get(key);
+			if (existing != null && now - existing.started < UdpPeerResolver.RESOLVE_TIMEOUT) {
+				if (existing.parked.size() >= UdpPeerResolver.PARK_PER_KEY) {
+					++this.stDropped;
+					return false;
+				}
+				existing.parked.add(new Parked(receiver, UdpPeerResolver.copy(packet, offset, length), address));
+				++this.stParked;
+				return true;
+			}
+			if (existing != null) {
+				/** lookup timed out: key is unknown */
+				this.pending.remove(key);
+				this.stDropped += existing.parked.size();
+				this.rememberUnknown(key, now);
+				++this.stDropped;
+				return false;
+			}
+			if (this.pending.size() >= UdpPeerResolver.MAX_PENDING) {
+				this.expirePending(now);
+				if (this.pending.size() >= UdpPeerResolver.MAX_PENDING) {
+					++this.stDropped;
+					return false;
+				}
+			}
+			final Pending created = new Pending();
+			created.parked.add(new Parked(receiver, UdpPeerResolver.copy(packet, offset, length), address));
+			this.pending.put(key, created);
+			++this.stParked;
+			++this.stLookups;
+		}
+		final byte[] keyBytes = new byte[12];
+		packet.get(offset + 16, keyBytes);
+		resolveClientAsync.callVE1(ctx, this.service, Transfer.wrapCopier(keyBytes, 0, 12));
+		return true;
+	}
+
+	/** must be called while synchronized */
+	private void armSweep(final long now) {
+
+		if (this.sweep != null || this.registered.isEmpty()) {
+			return;
+		}
+		final long expires = this.registered.values().iterator().next().expires();
+		this.sweep = UdpTimerWheel.INSTANCE.schedule(this::expireRegistered, Math.max(0L, expires - now));
+	}
+
+	/** Unregisters principals found by lookups longer than REGISTERED_TTL ago
+	 *
+	 * @param ctx */
+	private void expireRegistered(final ExecProcess ctx) {
+
+		final List<BaseObject> expired = new ArrayList<>();
+		synchronized (this) {
+			this.sweep = null;
+			final long now = System.currentTimeMillis();
+			for (final Iterator<Registered> iterator = this.registered.values().iterator(); iterator.hasNext();) {
+				final Registered registered = iterator.next();
+				if (registered.expires - now > 0) {
+					break;
+				}
+				iterator.remove();
+				expired.add(registered.principal);
+			}
+			this.stExpired += expired.size();
+			this.armSweep(now);
+		}
+		if (!expired.isEmpty() && this.service.baseGet(UdpPeerResolver.STR_peers, BaseObject.UNDEFINED).baseValue() instanceof final UdpPeerRegistry registry) {
+			for (final BaseObject principal : expired) {
+				registry.unregister(principal);
+			}
+		}
+	}
+
+	/** must be called while synchronized */
+	private void expirePending(final long now) {
+
+		for (final Iterator<Map.Entry<Key, Pending>> iterator = this.pending.entrySet().iterator(); iterator.hasNext();) {
+			final Map.Entry<Key, Pending> entry = iterator.next();
+			if (now - entry.getValue().started >= UdpPeerResolver.RESOLVE_TIMEOUT) {
+				iterator.remove();
+				this.stDropped += entry.getValue().parked.size();
+				this.rememberUnknown(entry.getKey(), now);
+			}
+		}
+	}
+
+	/** must be called while synchronized */
+	private void rememberUnknown(final Key key, final long now) {
+
+		this.negative.remove(key);
+		this.negative.put(key, Long.valueOf(now + UdpPeerResolver.NEGATIVE_TTL));
+		for (final Iterator<Long> iterator = this.negative.values().iterator(); iterator.hasNext();) {
+			final long expires = iterator.next().longValue();
+			if (this.negative.size() <= UdpPeerResolver.MAX_NEGATIVE && expires - now > 0) {
+				return;
+			}
+			iterator.remove();
+		}
+	}
+
+	private static byte[] copy(final ByteBuffer packet, final int offset, final int length) {
+
+		final byte[] copy = new byte[length];
+		packet.get(offset, copy);
+		return copy;
+	}
+}
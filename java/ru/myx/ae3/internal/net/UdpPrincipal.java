@@ -0,0 +1,469 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Typed state of the 'ru.myx.ae3.internal/network/udp/Principal': serials, key, secret and
+ * destination address are fields instead of script properties.
+ *
+ * Script classes can not extend a java class, so the Principal constructor creates one
+ * instance as its 'state' property and 'sTx', 'sRx', 'key', 'secret' and 'dst' are accessors
+ * of the Principal prototype backed by these fields. Java helpers take the state once per
+ * message and read fields directly, serial updates are atomic.
+ *
+ * Receive, send and timer threads all read the state: a value and its binary form are kept
+ * in one immutable Binary published by a single volatile write, so a reader never sees the
+ * binary of one secret with the object of another.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpPrincipal {
+
+	/** serial space half, serials are only compared within the same half */
+	static final int SERIAL_HALF = 16000000;
+
+	private static final AtomicIntegerFieldUpdater<UdpPrincipal> TX = AtomicIntegerFieldUpdater.newUpdater(UdpPrincipal.class, "sTx");
+
+	private final static BasePrimitiveString STR_sendUdp = Base.forString("sendUdp");
+	private final static BasePrimitiveString STR_state = Base.forString("state");
+
+	/** Script value and its binary, immutable */
+	private static final class Binary {
+
+		static final Binary EMPTY = new Binary(BaseObject.NULL, null);
+
+		static Binary of(final BaseObject object) {
+
+			return object == null
+				? Binary.EMPTY
+				: new Binary(object, UdpPrincipal.binaryOrNull(object));
+		}
+
+		final BaseObject object;
+
+		/** null when not set or empty */
+		final TransferCopier binary;
+
+		private Binary(final BaseObject object, final TransferCopier binary) {
+
+			this.object = object;
+			this.binary = binary;
+		}
+	}
+
+	/** 'sendUdp' property value and the function it was resolved to, immutable */
+	private static final class SendUdp {
+
+		final BaseObject object;
+
+		final BaseFunction function;
+
+		SendUdp(final BaseObject object, final BaseFunction function) {
+
+			this.object = object;
+			this.function = function;
+		}
+	}
+
+	/** @param principal
+	 * @return state of the principal
+	 * @throws IllegalArgumentException
+	 *             when the principal was not constructed by the Principal constructor */
+	@ReflectionExplicit
+	public static UdpPrincipal forPrincipal(final BaseObject principal) {
+
+		final Object state = principal.baseGet(UdpPrincipal.STR_state, BaseObject.UNDEFINED).baseValue();
+		if (state instanceof final UdpPrincipal udpPrincipal) {
+			return udpPrincipal;
+		}
+		throw new IllegalArgumentException("'state' UdpPrincipal property is expected, principal: " + principal);
+	}
+
+	private volatile int sTx;
+
+	private volatile int sRx;
+
+	/** serial the session was started with, see resetSerials */
+	private volatile int session;
+
+	private volatile Binary key = Binary.EMPTY;
+
+	private volatile Binary secret = Binary.EMPTY;
+
+	private volatile BaseObject dst = BaseObject.NULL;
+
+	/** 'sendUdp' method, resolved again when the property changes */
+	private volatile SendUdp sendUdp;
+
+	/** inbound handler mailbox, created on first message */
+	private volatile UdpPrincipalMailbox mailbox;
+
+	/** own counters, created on first use when UdpMetrics 'perPrincipal' is on */
+	private volatile UdpPeerMetrics metrics;
+
+	/** round-trip time, created on first use */
+	private volatile UdpRttEstimator rtt;
+
+	/** CALL component dispatch, null - CALLs go to 'handlers' */
+	private volatile UdpComponentRegistry components;
+
+	/** incoming requests replay window, created on first use */
+	private UdpReplayWindow queryWindow;
+
+	/** incoming replies replay window, created on first use */
+	private UdpReplayWindow replyWindow;
+
+	/** new state, all fields are empty */
+	@ReflectionExplicit
+	public UdpPrincipal() {
+
+		//
+	}
+
+	/** @return CALL component dispatch or null when not set */
+	@ReflectionExplicit
+	public UdpComponentRegistry getComponents() {
+
+		return this.components;
+	}
+
+	/** @return destination address object or null */
+	@ReflectionExplicit
+	public BaseObject getDst() {
+
+		return this.dst;
+	}
+
+	/** @return 12-byte key binary object or null */
+	@ReflectionExplicit
+	public BaseObject getKey() {
+
+		return this.key.object;
+	}
+
+	/** @return inbound handler mailbox or null when nothing was received yet */
+	@ReflectionExplicit
+	public UdpPrincipalMailbox getMailbox() {
+
+		return this.mailbox;
+	}
+
+	/** @return own counters or null when UdpMetrics 'perPrincipal' was never on */
+	@ReflectionExplicit
+	public UdpPeerMetrics getMetrics() {
+
+		return this.metrics;
+	}
+
+	/** @return incoming requests replay window, created on first call */
+	@ReflectionExplicit
+	public synchronized UdpReplayWindow getQueryWindow() {
+
+		final UdpReplayWindow existing = this.queryWindow;
+		return existing != null
+			? existing
+			: (this.queryWindow = new UdpReplayWindow());
+	}
+
+	/** @return incoming replies (to our requests) replay window, created on first call */
+	@ReflectionExplicit
+	public synchronized UdpReplayWindow getReplyWindow() {
+
+		final UdpReplayWindow existing = this.replyWindow;
+		return existing != null
+			? existing
+			: (this.replyWindow = new UdpReplayWindow());
+	}
+
+	/** @return round-trip time estimator, created on first call */
+	@ReflectionExplicit
+	public UdpRttEstimator getRtt() {
+
+		final UdpRttEstimator existing = this.rtt;
+		if (existing != null) {
+			return existing;
+		}
+		synchronized (this) {
+			final UdpRttEstimator created = this.rtt;
+			return created != null
+				? created
+				: (this.rtt = new UdpRttEstimator());
+		}
+	}
+
+	/** @return incoming serial, the floor of the session: serials at or below are rejected */
+	@ReflectionExplicit
+	public int getRx() {
+
+		return this.sRx;
+	}
+
+	/** @return secret binary object or null */
+	@ReflectionExplicit
+	public BaseObject getSecret() {
+
+		return this.secret.object;
+	}
+
+	/** @return serial the current session was started with, see resetSerials */
+	@ReflectionExplicit
+	public int getSession() {
+
+		return this.session;
+	}
+
+	/** @return outgoing serial */
+	@ReflectionExplicit
+	public int getTx() {
+
+		return this.sTx;
+	}
+
+	/** <code>
+		s = this.sTx = 1 + Math.max(this.sTx, this.sRx);
+	 * </code>
+	 *
+	 * @return next outgoing serial */
+	@ReflectionExplicit
+	public int nextSerial() {
+
+		for (;;) {
+			final int tx = this.sTx;
+			final int serial = 1 + Math.max(tx, this.sRx);
+			if (UdpPrincipal.TX.compareAndSet(this, tx, serial)) {
+				return serial;
+			}
+		}
+	}
+
+	/** <code>
+		if(this.sTx < serial && (serial > 16000000) === (this.sTx > 16000000)){
+			this.sTx = serial;
+		}
+	 * </code>
+	 *
+	 * @param serial
+	 *            incoming message serial */
+	@ReflectionExplicit
+	public void observeTx(final int serial) {
+
+		for (;;) {
+			final int tx = this.sTx;
+			if (tx >= serial || serial > UdpPrincipal.SERIAL_HALF != tx > UdpPrincipal.SERIAL_HALF) {
+				return;
+			}
+			if (UdpPrincipal.TX.compareAndSet(this, tx, serial)) {
+				return;
+			}
+		}
+	}
+
+	/** <code>
+		this.sRx = this.sTx = serial;
+	 * </code> replay windows are reset as well, serials of the new session start over. The
+	 * serial is kept as the session one, AES-CTR keys are derived from it.
+	 *
+	 * @param serial */
+	@ReflectionExplicit
+	public void resetSerials(final int serial) {
+
+		this.session = serial;
+		this.sRx = serial;
+		this.sTx = serial;
+		final UdpReplayWindow queryWindow;
+		final UdpReplayWindow replyWindow;
+		synchronized (this) {
+			queryWindow = this.queryWindow;
+			replyWindow = this.replyWindow;
+		}
+		if (queryWindow != null) {
+			queryWindow.reset();
+		}
+		if (replyWindow != null) {
+			replyWindow.reset();
+		}
+	}
+
+	/** @param components
+	 *            CALL component dispatch or null */
+	@ReflectionExplicit
+	public void setComponents(final UdpComponentRegistry components) {
+
+		this.components = components;
+	}
+
+	/** @param dst
+	 *            socket address object or null */
+	@ReflectionExplicit
+	public void setDst(final BaseObject dst) {
+
+		this.dst = dst == null
+			? BaseObject.NULL
+			: dst;
+	}
+
+	/** @param key
+	 *            12-byte binary or null */
+	@ReflectionExplicit
+	public void setKey(final BaseObject key) {
+
+		this.key = Binary.of(key);
+	}
+
+	/** @param rx */
+	@ReflectionExplicit
+	public void setRx(final int rx) {
+
+		this.sRx = rx;
+	}
+
+	/** @param secret
+	 *            binary or null */
+	@ReflectionExplicit
+	public void setSecret(final BaseObject secret) {
+
+		this.secret = Binary.of(secret);
+	}
+
+	/** @param tx */
+	@ReflectionExplicit
+	public void setTx(final int tx) {
+
+		this.sTx = tx;
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpPrincipal sTx=" + this.sTx + ", sRx=" + this.sRx + ", key=" + (this.key.binary != null) + ", secret=" + (this.secret.binary != null) + "]";
+	}
+
+	/** @return address object or null when not set */
+	BaseObject dst() {
+
+		final BaseObject dst = this.dst;
+		return dst != null && dst.baseToJavaBoolean()
+			? dst
+			: null;
+	}
+
+	/** @param principal
+	 *            owner of the state
+	 * @param parent
+	 *            parent process for handler calls
+	 * @return inbound handler mailbox, created on first call */
+	UdpPrincipalMailbox mailbox(final BaseObject principal, final ExecProcess parent) {
+
+		final UdpPrincipalMailbox existing = this.mailbox;
+		if (existing != null) {
+			return existing;
+		}
+		synchronized (this) {
+			final UdpPrincipalMailbox created = this.mailbox;
+			if (created != null) {
+				return created;
+			}
+			return this.mailbox = new UdpPrincipalMailbox(principal, parent);
+		}
+	}
+
+	/** @return own counters, null when UdpMetrics 'perPrincipal' is off */
+	UdpPeerMetrics metrics() {
+
+		if (!UdpMetrics.INSTANCE.isPerPrincipal()) {
+			return null;
+		}
+		final UdpPeerMetrics existing = this.metrics;
+		if (existing != null) {
+			return existing;
+		}
+		synchronized (this) {
+			final UdpPeerMetrics created = this.metrics;
+			return created != null
+				? created
+				: (this.metrics = new UdpPeerMetrics());
+		}
+	}
+
+	/** @return incoming requests replay window or null when the principal does not track
+	 *         requests */
+	synchronized UdpReplayWindow queryWindow() {
+
+		return this.queryWindow;
+	}
+
+	/** The packet carries 24 bits of the serial: the full one is the nearest to the current
+	 * serials of the session, the bits above 24 count wraps of the packet field.
+	 *
+	 * @param serial
+	 *            24-bit serial of a packet
+	 * @return full serial */
+	int fullSerial(final int serial) {
+
+		final int reference = Math.max(this.sTx, this.sRx);
+		final int full = reference & ~0xFFFFFF | serial & 0xFFFFFF;
+		final int diff = full - reference;
+		return diff > 0x800000
+			? full - 0x1000000
+			: diff < -0x800000
+				? full + 0x1000000
+				: full;
+	}
+
+	/** @return key binary or null when not set */
+	TransferCopier keyBinary() {
+
+		return this.key.binary;
+	}
+
+	/** @return secret object, identity changes with every update */
+	BaseObject secretObject() {
+
+		return this.secret.object;
+	}
+
+	/** @return secret binary or null when not set */
+	TransferCopier secretBinary() {
+
+		return this.secret.binary;
+	}
+
+	/** @param principal
+	 *            owner of the state
+	 * @return 'sendUdp' method of the principal, resolved again only when the property value
+	 *         is another object - own or inherited, assigned at any time */
+	BaseFunction sendUdp(final BaseObject principal) {
+
+		final BaseObject object = principal.baseGet(UdpPrincipal.STR_sendUdp, BaseObject.UNDEFINED);
+		final SendUdp cached = this.sendUdp;
+		if (cached != null && cached.object == object) {
+			return cached.function;
+		}
+		final BaseFunction sendUdp = object.baseCall();
+		if (sendUdp == null) {
+			throw new IllegalArgumentException("sendUdp function is expected, instance: " + principal);
+		}
+		this.sendUdp = new SendUdp(object, sendUdp);
+		return sendUdp;
+	}
+
+	private static TransferCopier binaryOrNull(final BaseObject object) {
+
+		if (object == null || !object.baseToJavaBoolean()) {
+			return null;
+		}
+		final TransferCopier binary = Transfer.createCopierFromBinary(object);
+		return binary == null || binary.length() == 0
+			? null
+			: binary;
+	}
+}
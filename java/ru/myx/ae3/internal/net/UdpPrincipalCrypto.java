@@ -0,0 +1,628 @@
+package ru.myx.ae3.internal.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.base.BaseProperty;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Per-principal packet authentication and payload encryption state, built once per
+ * 'secret', 'auth' and 'cipher' and cached in the 'crypto' property of the Principal.
+ *
+ * <ol>
+ * Authentication modes ('auth' property of the Principal):
+ * <li>"whirlpool" (default) - legacy, digest(packet[16..length] + secret), the secret is
+ * absorbed last, nothing to precompute</li>
+ * <li>"hmac-sha256" - HMAC-SHA256(secret, packet[16..length]), the keyed inner and outer
+ * states are computed once, every packet only hashes its own bytes</li>
+ * </ol>
+ * Signature is the first 16 bytes of the result in both cases.
+ *
+ * <ol>
+ * Payload encryption modes ('cipher' property of the Principal):
+ * <li>"whirlpool" (default) - legacy, payload xor digest(packet[16..32] + secret), one 64-byte
+ * key block repeated over the payload</li>
+ * <li>"aes-ctr" - AES-128-CTR, the key and an 8-byte salt are derived from the secret, the
+ * session serial (see UdpPrincipal.resetSerials) and the count of 24-bit serial wraps: a new
+ * session or a wrap of the packet serial gets a new key. The initial counter block is built
+ * from packet[16..32] and the salt: code, serial, principal key folded to 8 bytes xor salt, the
+ * direction byte and 3 zero bytes for the block counter, see counterBlock()</li>
+ * </ol>
+ * Direction: the two sides of one secret must differ in the 'initiator' property of the
+ * Principal, so a query of either side and the replies to it never share the keystream. Nothing
+ * in the packets tells the sides apart, so "aes-ctr" is refused until 'initiator' is set to a
+ * boolean on the principal.
+ *
+ * Thread-safe, keyed MAC and cipher instances are recycled through a single spare slot.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpPrincipalCrypto {
+
+	/** legacy authentication mode */
+	public static final String AUTH_WHIRLPOOL = "whirlpool";
+
+	/** keyed MAC authentication mode */
+	public static final String AUTH_HMAC_SHA256 = "hmac-sha256";
+
+	/** legacy payload encryption mode */
+	public static final String CIPHER_WHIRLPOOL = "whirlpool";
+
+	/** CTR payload encryption mode */
+	public static final String CIPHER_AES_CTR = "aes-ctr";
+
+	/** signature length in the packet header */
+	static final int SIGNATURE_LENGTH = 16;
+
+	private final static BasePrimitiveString STR_auth = Base.forString("auth");
+	private final static BasePrimitiveString STR_cipher = Base.forString("cipher");
+	private final static BasePrimitiveString STR_crypto = Base.forString("crypto");
+	private final static BasePrimitiveString STR_initiator = Base.forString("initiator");
+
+	/** Returns crypto state for the principal, rebuilds it when 'secret', 'auth', 'cipher' or
+	 * 'initiator' were changed.
+	 *
+	 * @param principal
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             when secret is not set, mode is unknown or 'initiator' is not set for
+	 *             "aes-ctr" */
+	@ReflectionExplicit
+	public static UdpPrincipalCrypto forPrincipal(final BaseObject principal) {
+
+		final UdpPrincipal state = UdpPrincipal.forPrincipal(principal);
+		final BaseObject secretObject = state.secretObject();
+		final BaseObject authObject = principal.baseGet(UdpPrincipalCrypto.STR_auth, BaseObject.UNDEFINED);
+		final BaseObject cipherObject = principal.baseGet(UdpPrincipalCrypto.STR_cipher, BaseObject.UNDEFINED);
+		final BaseObject initiatorObject = principal.baseGet(UdpPrincipalCrypto.STR_initiator, BaseObject.UNDEFINED);
+		final Object existing = principal.baseGet(UdpPrincipalCrypto.STR_crypto, BaseObject.UNDEFINED).baseValue();
+		if (existing instanceof final UdpPrincipalCrypto crypto && crypto.secretObject == secretObject && crypto.authObject == authObject
+				&& crypto.cipherObject == cipherObject && crypto.state == state && crypto.initiatorObject == initiatorObject) {
+			return crypto;
+		}
+		final UdpPrincipalCrypto crypto = new UdpPrincipalCrypto(state, initiatorObject, secretObject, authObject, cipherObject);
+		principal.baseDefine(UdpPrincipalCrypto.STR_crypto, Base.forUnknown(crypto), BaseProperty.ATTRS_MASK_WED);
+		return crypto;
+	}
+
+	/** @param auth
+	 * @return normalized auth mode name
+	 * @throws IllegalArgumentException */
+	static String checkAuth(final String auth) {
+
+		if (auth == null || auth.isEmpty() || UdpPrincipalCrypto.AUTH_WHIRLPOOL.equals(auth)) {
+			return UdpPrincipalCrypto.AUTH_WHIRLPOOL;
+		}
+		if (UdpPrincipalCrypto.AUTH_HMAC_SHA256.equals(auth)) {
+			return UdpPrincipalCrypto.AUTH_HMAC_SHA256;
+		}
+		throw new IllegalArgumentException("unsupported 'auth' mode: " + auth);
+	}
+
+	/** @param cipher
+	 * @return normalized cipher mode name
+	 * @throws IllegalArgumentException */
+	static String checkCipher(final String cipher) {
+
+		if (cipher == null || cipher.isEmpty() || UdpPrincipalCrypto.CIPHER_WHIRLPOOL.equals(cipher)) {
+			return UdpPrincipalCrypto.CIPHER_WHIRLPOOL;
+		}
+		if (UdpPrincipalCrypto.CIPHER_AES_CTR.equals(cipher)) {
+			return UdpPrincipalCrypto.CIPHER_AES_CTR;
+		}
+		throw new IllegalArgumentException("unsupported 'cipher' mode: " + cipher);
+	}
+
+	private static String modeName(final BaseObject modeObject) {
+
+		return modeObject == BaseObject.UNDEFINED || modeObject == BaseObject.NULL
+			? null
+			: modeObject.baseToJavaString();
+	}
+
+	/** AES key and counter block salt of one session and serial wrap, immutable */
+	private static final class Keys {
+
+		final int session;
+
+		final int wrap;
+
+		final SecretKeySpec key;
+
+		/** 8 bytes */
+		final byte[] salt;
+
+		Keys(final int session, final int wrap, final byte[] derived) {
+
+			this.session = session;
+			this.wrap = wrap;
+			this.key = new SecretKeySpec(derived, 0, 16, "AES");
+			this.salt = Arrays.copyOfRange(derived, 16, 24);
+		}
+	}
+
+	private final UdpPrincipal state;
+
+	private final boolean initiator;
+
+	private final BaseObject initiatorObject;
+
+	private final BaseObject secretObject;
+
+	private final BaseObject authObject;
+
+	private final BaseObject cipherObject;
+
+	private final TransferCopier secret;
+
+	private final String auth;
+
+	private final String cipher;
+
+	/** keyed prototype, null in legacy mode */
+	private final Mac mac;
+
+	private final AtomicReference<Mac> spareMac = new AtomicReference<>();
+
+	/** keyed prototype for AES key derivation, null in legacy mode */
+	private final Mac derive;
+
+	/** keys of the latest session and wrap, derived on first use */
+	private volatile Keys keys;
+
+	/** keys before the latest, for packets of the previous wrap still in flight */
+	private volatile Keys previous;
+
+	private final AtomicReference<Cipher> spareCipher = new AtomicReference<>();
+
+	private UdpPrincipalCrypto(final UdpPrincipal state, final BaseObject initiatorObject, final BaseObject secretObject, final BaseObject authObject, final BaseObject cipherObject) {
+
+		final TransferCopier secret = Transfer.createCopierFromBinary(secretObject);
+		if (secret == null || secret.length() == 0) {
+			throw new IllegalArgumentException("non empty 'secret' binary property is expected, secret: " + secretObject);
+		}
+		this.state = state;
+		this.initiator = initiatorObject.baseToJavaBoolean();
+		this.initiatorObject = initiatorObject;
+		this.secretObject = secretObject;
+		this.authObject = authObject;
+		this.cipherObject = cipherObject;
+		this.secret = secret;
+		this.auth = UdpPrincipalCrypto.checkAuth(UdpPrincipalCrypto.modeName(authObject));
+		this.cipher = UdpPrincipalCrypto.checkCipher(UdpPrincipalCrypto.modeName(cipherObject));
+		if (UdpPrincipalCrypto.CIPHER_AES_CTR.equals(this.cipher) && UdpPrincipalCrypto.modeName(initiatorObject) == null) {
+			throw new IllegalArgumentException("'initiator' must be set to true on one side and false on the other for 'aes-ctr' cipher");
+		}
+		final byte[] key = new byte[(int) secret.length()];
+		secret.copy(0, key, 0, key.length);
+		try {
+			final Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			this.mac = UdpPrincipalCrypto.AUTH_HMAC_SHA256.equals(this.auth)
+				? mac
+				: null;
+			if (UdpPrincipalCrypto.CIPHER_AES_CTR.equals(this.cipher)) {
+				this.derive = (Mac) mac.clone();
+				/** fail early when the platform has no CTR */
+				Cipher.getInstance("AES/CTR/NoPadding");
+			} else {
+				this.derive = null;
+			}
+		} catch (final GeneralSecurityException | CloneNotSupportedException e) {
+			throw new IllegalStateException("HmacSHA256 or AES/CTR is not available", e);
+		}
+	}
+
+	/** Decrypts the payload of the packet into the target
+	 *
+	 * @param packet
+	 *            absolute indexing
+	 * @param offset
+	 *            packet start
+	 * @param target
+	 * @param targetOffset
+	 * @param payloadLength
+	 * @param digest
+	 *            whirlpool prototype for the legacy mode, cloned */
+	public void decrypt(final ByteBuffer packet, final int offset, final byte[] target, final int targetOffset, final int payloadLength, final MessageDigest digest) {
+
+		packet.get(offset + UdpServiceReceiver.HEADER_LENGTH, target, targetOffset, payloadLength);
+		if (this.derive == null) {
+			final MessageDigest key = UdpPrincipalCrypto.cloneDigest(digest);
+			for (int i = 16; i < UdpServiceReceiver.HEADER_LENGTH; ++i) {
+				key.update(packet.get(offset + i));
+			}
+			this.secret.updateMessageDigest(key);
+			Transfer.xorBytes(target, targetOffset, key.digest(), payloadLength);
+			return;
+		}
+		final byte[] header = new byte[16];
+		packet.get(offset + 16, header);
+		this.ctr(header, 0, false, new byte[16], target, targetOffset, payloadLength);
+	}
+
+	/** JS form of decrypt(), Principal.payloadDecrypt
+	 *
+	 * @param pktObject
+	 *            binary, whole packet
+	 * @param bufferObject
+	 * @param offset
+	 * @param payloadLength
+	 * @param digestObject
+	 *            whirlpool prototype for the legacy mode */
+	@ReflectionExplicit
+	public void decryptBinary(final BaseObject pktObject, final BaseObject bufferObject, final int offset, final int payloadLength, final BaseObject digestObject) {
+
+		final TransferCopier pkt = Transfer.createCopierFromBinary(pktObject);
+		if (pkt == null) {
+			throw new IllegalArgumentException("'pkt' binary argument is expected, pkt: " + pktObject);
+		}
+		final byte[] buffer = (byte[]) bufferObject.baseValue();
+		if (buffer == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
+		}
+		final byte[] header = new byte[UdpServiceReceiver.HEADER_LENGTH];
+		pkt.copy(0, header, 0, UdpServiceReceiver.HEADER_LENGTH);
+		pkt.copy(UdpServiceReceiver.HEADER_LENGTH, buffer, offset, payloadLength);
+		this.xor(header, buffer, offset, payloadLength, (MessageDigest) digestObject.baseValue(), false);
+	}
+
+	/** Encrypts packet[32..32 + payloadLength] in place, the header must be complete
+	 *
+	 * @param packet
+	 * @param payloadLength
+	 * @param digest
+	 *            whirlpool prototype for the legacy mode, cloned */
+	public void encrypt(final byte[] packet, final int payloadLength, final MessageDigest digest) {
+
+		this.xor(packet, packet, UdpServiceReceiver.HEADER_LENGTH, payloadLength, digest, true);
+	}
+
+	/** JS form of encrypt(), Principal.payloadEncrypt
+	 *
+	 * @param bufferObject
+	 *            ArrayBuffer with the packet
+	 * @param payloadLength
+	 * @param digestObject
+	 *            whirlpool prototype for the legacy mode */
+	@ReflectionExplicit
+	public void encryptBuffer(final BaseObject bufferObject, final int payloadLength, final BaseObject digestObject) {
+
+		final byte[] packet = (byte[]) bufferObject.baseValue();
+		if (packet == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
+		}
+		this.encrypt(packet, payloadLength, (MessageDigest) digestObject.baseValue());
+	}
+
+	/** @return authentication mode name */
+	@ReflectionExplicit
+	public String getAuth() {
+
+		return this.auth;
+	}
+
+	/** @return payload encryption mode name */
+	@ReflectionExplicit
+	public String getCipher() {
+
+		return this.cipher;
+	}
+
+	/** @return secret this state was built for */
+	public TransferCopier getSecret() {
+
+		return this.secret;
+	}
+
+	/** Calculates signature of packet[16..length] and puts it at packet[0..16]
+	 *
+	 * @param packet
+	 * @param length
+	 * @param digest
+	 *            whirlpool prototype for the legacy mode, cloned */
+	public void sign(final byte[] packet, final int length, final MessageDigest digest) {
+
+		if (this.mac == null) {
+			final MessageDigest crc = UdpPrincipalCrypto.cloneDigest(digest);
+			crc.update(packet, 16, length - 16);
+			this.secret.updateMessageDigest(crc);
+			System.arraycopy(crc.digest(), 0, packet, 0, UdpPrincipalCrypto.SIGNATURE_LENGTH);
+			return;
+		}
+		final Mac mac = this.obtainMac();
+		mac.update(packet, 16, length - 16);
+		System.arraycopy(mac.doFinal(), 0, packet, 0, UdpPrincipalCrypto.SIGNATURE_LENGTH);
+		this.releaseMac(mac);
+	}
+
+	/** sign() on the scratch state of the send context, the digest is reset and used directly */
+	void sign(final UdpSendContext context, final byte[] packet, final int length) {
+
+		final byte[] result = context.result;
+		if (this.mac == null) {
+			final MessageDigest crc = context.digest;
+			crc.reset();
+			crc.update(packet, 16, length - 16);
+			this.secret.updateMessageDigest(crc);
+			System.arraycopy(UdpPrincipalCrypto.finish(crc, result), 0, packet, 0, UdpPrincipalCrypto.SIGNATURE_LENGTH);
+			return;
+		}
+		final Mac mac = this.obtainMac();
+		mac.update(packet, 16, length - 16);
+		try {
+			mac.doFinal(result, 0);
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("mac failed: " + e.getMessage(), e);
+		}
+		System.arraycopy(result, 0, packet, 0, UdpPrincipalCrypto.SIGNATURE_LENGTH);
+		this.releaseMac(mac);
+	}
+
+	/** JS form of sign(), for the script fallbacks
+	 *
+	 * @param bufferObject
+	 *            ArrayBuffer with the packet
+	 * @param length
+	 * @param digestObject
+	 *            whirlpool prototype for the legacy mode */
+	@ReflectionExplicit
+	public void signBuffer(final BaseObject bufferObject, final int length, final BaseObject digestObject) {
+
+		final byte[] packet = (byte[]) bufferObject.baseValue();
+		if (packet == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
+		}
+		this.sign(packet, length, (MessageDigest) digestObject.baseValue());
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpPrincipalCrypto auth=" + this.auth + ", cipher=" + this.cipher + "]";
+	}
+
+	/** Checks signature at packet[offset..offset + 16], constant time compare
+	 *
+	 * @param packet
+	 *            absolute indexing, position and limit are restored
+	 * @param offset
+	 * @param length
+	 * @param digest
+	 *            whirlpool prototype for the legacy mode, cloned
+	 * @return */
+	public boolean verify(final ByteBuffer packet, final int offset, final int length, final MessageDigest digest) {
+
+		final byte[] result;
+		final int position = packet.position();
+		final int limit = packet.limit();
+		if (this.mac == null) {
+			final MessageDigest crc = UdpPrincipalCrypto.cloneDigest(digest);
+			try {
+				packet.limit(offset + length).position(offset + 16);
+				crc.update(packet);
+			} finally {
+				packet.limit(limit).position(position);
+			}
+			this.secret.updateMessageDigest(crc);
+			result = crc.digest();
+		} else {
+			final Mac mac = this.obtainMac();
+			try {
+				packet.limit(offset + length).position(offset + 16);
+				mac.update(packet);
+				result = mac.doFinal();
+			} finally {
+				packet.limit(limit).position(position);
+			}
+			this.releaseMac(mac);
+		}
+		int diff = 0;
+		for (int i = 0; i < UdpPrincipalCrypto.SIGNATURE_LENGTH; ++i) {
+			diff |= result[i] ^ packet.get(offset + i);
+		}
+		return diff == 0;
+	}
+
+	/** JS form of verify(), for the script fallbacks
+	 *
+	 * @param packetObject
+	 *            binary, whole packet
+	 * @param digestObject
+	 *            whirlpool prototype for the legacy mode
+	 * @return */
+	@ReflectionExplicit
+	public boolean verifyBinary(final BaseObject packetObject, final BaseObject digestObject) {
+
+		final TransferCopier packet = Transfer.createCopierFromBinary(packetObject);
+		if (packet == null) {
+			throw new IllegalArgumentException("binary packet is expected, packet: " + packetObject);
+		}
+		final byte[] bytes = new byte[(int) packet.length()];
+		packet.copy(0, bytes, 0, bytes.length);
+		return this.verify(ByteBuffer.wrap(bytes), 0, bytes.length, (MessageDigest) digestObject.baseValue());
+	}
+
+	/** xor with AES-CTR keystream, in place
+	 *
+	 * @param header
+	 * @param headerOffset
+	 *            position of packet[16] in the header
+	 * @param outbound
+	 *            direction of the packet
+	 * @param counter
+	 *            16 bytes scratch
+	 * @param data
+	 * @param offset
+	 * @param length */
+	private void ctr(final byte[] header, final int headerOffset, final boolean outbound, final byte[] counter, final byte[] data, final int offset, final int length) {
+
+		final int serial = (header[headerOffset + 13] & 0xFF) << 16 | (header[headerOffset + 14] & 0xFF) << 8 | header[headerOffset + 15] & 0xFF;
+		final Keys keys = this.keys(this.state.fullSerial(serial) >>> 24);
+		final int direction = outbound == this.initiator
+			? 0
+			: 0x80;
+		UdpPrincipalCrypto.counterBlock(header, headerOffset, keys, direction, counter);
+		Cipher cipher = this.spareCipher.getAndSet(null);
+		try {
+			if (cipher == null) {
+				cipher = Cipher.getInstance("AES/CTR/NoPadding");
+			}
+			cipher.init(Cipher.ENCRYPT_MODE, keys.key, new IvParameterSpec(counter));
+			cipher.doFinal(data, offset, length, data, offset);
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("AES/CTR failed: " + e.getMessage(), e);
+		}
+		this.spareCipher.set(cipher);
+	}
+
+	/** HMAC-SHA256(secret, "cipher" + session(4) + wrap(4)): key [0..16], salt [16..24] */
+	private Keys derive(final int session, final int wrap) {
+
+		final Mac mac;
+		try {
+			mac = (Mac) this.derive.clone();
+		} catch (final CloneNotSupportedException e) {
+			throw new IllegalStateException("mac is not cloneable: " + this.derive, e);
+		}
+		mac.update("cipher".getBytes(StandardCharsets.US_ASCII));
+		mac.update(ByteBuffer.allocate(8).putInt(session).putInt(wrap).array());
+		return new Keys(session, wrap, mac.doFinal());
+	}
+
+	/** @param wrap
+	 *            serial wraps since the start of the serial space
+	 * @return keys of the current session and the wrap */
+	private Keys keys(final int wrap) {
+
+		final int session = this.state.getSession();
+		final Keys keys = this.keys;
+		if (keys != null && keys.session == session && keys.wrap == wrap) {
+			return keys;
+		}
+		final Keys previous = this.previous;
+		if (previous != null && previous.session == session && previous.wrap == wrap) {
+			return previous;
+		}
+		final Keys derived = this.derive(session, wrap);
+		this.previous = keys;
+		this.keys = derived;
+		return derived;
+	}
+
+	/** @param header
+	 *            packet[0..32] at least, packet[16..32] is the nonce
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param digest
+	 * @param outbound
+	 *            true to encrypt a packet being sent, false to decrypt a received one */
+	private void xor(final byte[] header, final byte[] data, final int offset, final int length, final MessageDigest digest, final boolean outbound) {
+
+		if (this.derive == null) {
+			final MessageDigest key = UdpPrincipalCrypto.cloneDigest(digest);
+			key.update(header, 16, 16);
+			this.secret.updateMessageDigest(key);
+			Transfer.xorBytes(data, offset, key.digest(), length);
+			return;
+		}
+		this.ctr(header, 16, outbound, new byte[16], data, offset, length);
+	}
+
+	/** encrypt() on the scratch state of the send context, the digest is reset and used
+	 * directly */
+	void encrypt(final UdpSendContext context, final byte[] packet, final int payloadLength) {
+
+		if (this.derive == null) {
+			final MessageDigest key = context.digest;
+			key.reset();
+			key.update(packet, 16, 16);
+			this.secret.updateMessageDigest(key);
+			Transfer.xorBytes(packet, UdpServiceReceiver.HEADER_LENGTH, UdpPrincipalCrypto.finish(key, context.result), payloadLength);
+			return;
+		}
+		this.ctr(packet, 16, true, context.counter, packet, UdpServiceReceiver.HEADER_LENGTH, payloadLength);
+	}
+
+	private Mac obtainMac() {
+
+		final Mac spare = this.spareMac.getAndSet(null);
+		if (spare != null) {
+			return spare;
+		}
+		try {
+			return (Mac) this.mac.clone();
+		} catch (final CloneNotSupportedException e) {
+			throw new IllegalStateException("mac is not cloneable: " + this.mac, e);
+		}
+	}
+
+	private void releaseMac(final Mac mac) {
+
+		/** doFinal resets to the keyed state, instances are only released after it */
+		this.spareMac.set(mac);
+	}
+
+	/** Initial CTR block: code, serial(3), key[0..8] ^ key[8..12] ^ salt, direction, 0(3).
+	 * Serial must not sit in the low bytes, those are incremented per 16-byte block and would
+	 * run into the next serial.
+	 *
+	 * @param header
+	 * @param offset
+	 *            position of packet[16] in the header
+	 * @param keys
+	 * @param direction
+	 *            0 or 0x80
+	 * @param counter
+	 *            16 bytes, filled and returned */
+	private static byte[] counterBlock(final byte[] header, final int offset, final Keys keys, final int direction, final byte[] counter) {
+
+		System.arraycopy(header, offset + 12, counter, 0, 4);
+		System.arraycopy(header, offset, counter, 4, 8);
+		for (int i = 0; i < 4; ++i) {
+			counter[4 + i] ^= header[offset + 8 + i];
+		}
+		for (int i = 0; i < 8; ++i) {
+			counter[4 + i] ^= keys.salt[i];
+		}
+		counter[12] = (byte) direction;
+		counter[13] = counter[14] = counter[15] = 0;
+		return counter;
+	}
+
+	/** digest into the result array, no allocation when the digest implements it */
+	private static byte[] finish(final MessageDigest digest, final byte[] result) {
+
+		try {
+			digest.digest(result, 0, result.length);
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("digest failed: " + e.getMessage(), e);
+		}
+		return result;
+	}
+
+	private static MessageDigest cloneDigest(final MessageDigest digest) {
+
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (final CloneNotSupportedException e) {
+			throw new IllegalStateException("digest is not cloneable: " + digest, e);
+		}
+	}
+}
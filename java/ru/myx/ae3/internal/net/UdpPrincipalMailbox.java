@@ -0,0 +1,295 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Bounded inbound mailbox of one principal: handler calls are queued in arrival order and
+ * drained in batches by one worker at a time, so handlers of a peer never run concurrently
+ * or out of order.
+ *
+ * Entries are kept in ring arrays, grown on demand up to CAPACITY, and every mailbox has one
+ * process for all of its handler calls, nothing is allocated per message. Messages arriving
+ * to a full mailbox are dropped and counted.
+ *
+ * Workers are a shared daemon pool, one thread per processor. With the
+ * 'ae3.udp.dispatch.virtual' system property set to 'true' (and a runtime that has them)
+ * every drain runs on a virtual thread instead, for handlers that block.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpPrincipalMailbox {
+
+	/** max queued messages per principal */
+	public static final int CAPACITY = 1024;
+
+	/** max handler calls per drain, then the worker is yielded to other mailboxes */
+	public static final int BATCH = 32;
+
+	/** initial ring size */
+	static final int INITIAL = 16;
+
+	private static final Executor WORKERS = UdpPrincipalMailbox.createWorkers();
+
+	private static Executor createWorkers() {
+
+		if (Boolean.getBoolean("ae3.udp.dispatch.virtual")) {
+			try {
+				return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (final ReflectiveOperationException e) {
+				// no virtual threads in this runtime, use the pool
+			}
+		}
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+			final Thread thread = new Thread(task, "UDP-RX-DISPATCH");
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private final BaseObject principal;
+
+	private final ExecProcess ctx;
+
+	private final Runnable drain = this::drain;
+
+	private BaseFunction[] handlers = new BaseFunction[UdpPrincipalMailbox.INITIAL];
+
+	private BaseObject[] messages = new BaseObject[UdpPrincipalMailbox.INITIAL];
+
+	private BaseObject[] addresses = new BaseObject[UdpPrincipalMailbox.INITIAL];
+
+	private BaseObject[] serials = new BaseObject[UdpPrincipalMailbox.INITIAL];
+
+	private long[] queuedAt = new long[UdpPrincipalMailbox.INITIAL];
+
+	private int head;
+
+	private int size;
+
+	/** drain is submitted or running */
+	private boolean scheduled;
+
+	private long stQueued;
+
+	private long stDispatched;
+
+	private long stDropped;
+
+	private long stErrors;
+
+	private int stMaxDepth;
+
+	private long stLatencyTotal;
+
+	private long stLatencyMax;
+
+	/** @param principal
+	 * @param parent
+	 *            parent process for handler calls */
+	UdpPrincipalMailbox(final BaseObject principal, final ExecProcess parent) {
+
+		this.principal = principal;
+		this.ctx = Exec.createProcess(parent, "UdpPrincipal::onReceive, handler, principal: " + principal);
+	}
+
+	/** @return messages dispatched to handlers */
+	@ReflectionExplicit
+	public synchronized long getDispatched() {
+
+		return this.stDispatched;
+	}
+
+	/** @return messages dropped since the mailbox was full */
+	@ReflectionExplicit
+	public synchronized long getDropped() {
+
+		return this.stDropped;
+	}
+
+	/** @return handler calls that failed */
+	@ReflectionExplicit
+	public synchronized long getErrors() {
+
+		return this.stErrors;
+	}
+
+	/** @return average time from post to handler call, microseconds */
+	@ReflectionExplicit
+	public synchronized long getLatencyAverage() {
+
+		return this.stDispatched == 0
+			? 0
+			: this.stLatencyTotal / this.stDispatched / 1000;
+	}
+
+	/** @return max time from post to handler call, microseconds */
+	@ReflectionExplicit
+	public synchronized long getLatencyMax() {
+
+		return this.stLatencyMax / 1000;
+	}
+
+	/** @return max queue depth seen */
+	@ReflectionExplicit
+	public synchronized int getMaxDepth() {
+
+		return this.stMaxDepth;
+	}
+
+	/** @return messages queued now */
+	@ReflectionExplicit
+	public synchronized int getQueueDepth() {
+
+		return this.size;
+	}
+
+	/** @return messages accepted */
+	@ReflectionExplicit
+	public synchronized long getQueued() {
+
+		return this.stQueued;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpPrincipalMailbox depth=" + this.size + ", maxDepth=" + this.stMaxDepth + ", queued=" + this.stQueued + ", dropped=" + this.stDropped + ", errors="
+				+ this.stErrors + "]";
+	}
+
+	/** Queues handler call, starts a drain when the mailbox was idle
+	 *
+	 * @return false when the mailbox is full and the message is dropped */
+	boolean post(final BaseFunction handler, final BaseObject message, final BaseObject address, final BaseObject serial) {
+
+		synchronized (this) {
+			if (this.size == this.handlers.length) {
+				if (this.size == UdpPrincipalMailbox.CAPACITY) {
+					++this.stDropped;
+					return false;
+				}
+				this.grow();
+			}
+			final int index = (this.head + this.size) % this.handlers.length;
+			this.handlers[index] = handler;
+			this.messages[index] = message;
+			this.addresses[index] = address;
+			this.serials[index] = serial;
+			this.queuedAt[index] = System.nanoTime();
+			if (++this.size > this.stMaxDepth) {
+				this.stMaxDepth = this.size;
+			}
+			++this.stQueued;
+			if (this.scheduled) {
+				return true;
+			}
+			this.scheduled = true;
+		}
+		UdpPrincipalMailbox.WORKERS.execute(this.drain);
+		return true;
+	}
+
+	/** doubles the ring, entries are moved to the start. Must be called while synchronized */
+	private void grow() {
+
+		final int length = this.handlers.length;
+		final int capacity = Math.min(UdpPrincipalMailbox.CAPACITY, length * 2);
+		final int head = this.head;
+		final int tail = length - head;
+		final BaseFunction[] handlers = new BaseFunction[capacity];
+		System.arraycopy(this.handlers, head, handlers, 0, tail);
+		System.arraycopy(this.handlers, 0, handlers, tail, head);
+		final BaseObject[] messages = new BaseObject[capacity];
+		System.arraycopy(this.messages, head, messages, 0, tail);
+		System.arraycopy(this.messages, 0, messages, tail, head);
+		final BaseObject[] addresses = new BaseObject[capacity];
+		System.arraycopy(this.addresses, head, addresses, 0, tail);
+		System.arraycopy(this.addresses, 0, addresses, tail, head);
+		final BaseObject[] serials = new BaseObject[capacity];
+		System.arraycopy(this.serials, head, serials, 0, tail);
+		System.arraycopy(this.serials, 0, serials, tail, head);
+		final long[] queuedAt = new long[capacity];
+		System.arraycopy(this.queuedAt, head, queuedAt, 0, tail);
+		System.arraycopy(this.queuedAt, 0, queuedAt, tail, head);
+		this.handlers = handlers;
+		this.messages = messages;
+		this.addresses = addresses;
+		this.serials = serials;
+		this.queuedAt = queuedAt;
+		this.head = 0;
+	}
+
+	private void drain() {
+
+		boolean idle = false;
+		try {
+			idle = this.drainBatch();
+		} finally {
+			if (!idle) {
+				/** batch is over and more is queued, or the drain failed: back to the end of the worker
+				 * queue, still scheduled - the next drain clears the flag when nothing is left */
+				UdpPrincipalMailbox.WORKERS.execute(this.drain);
+			}
+		}
+	}
+
+	/** @return true when the mailbox is empty and no longer scheduled */
+	private boolean drainBatch() {
+
+		for (int count = 0;; ++count) {
+			final BaseFunction handler;
+			final BaseObject message;
+			final BaseObject address;
+			final BaseObject serial;
+			synchronized (this) {
+				if (this.size == 0) {
+					this.scheduled = false;
+					return true;
+				}
+				if (count == UdpPrincipalMailbox.BATCH) {
+					return false;
+				}
+				final int index = this.head;
+				handler = this.handlers[index];
+				message = this.messages[index];
+				address = this.addresses[index];
+				serial = this.serials[index];
+				this.handlers[index] = null;
+				this.messages[index] = null;
+				this.addresses[index] = null;
+				this.serials[index] = null;
+				this.head = (index + 1) % this.handlers.length;
+				--this.size;
+				final long latency = System.nanoTime() - this.queuedAt[index];
+				this.stLatencyTotal += latency;
+				if (latency > this.stLatencyMax) {
+					this.stLatencyMax = latency;
+				}
+				++this.stDispatched;
+			}
+			final long started = UdpMetrics.start();
+			try {
+				handler.callVEA(this.ctx, this.principal, message, address, serial);
+				UdpMetrics.INSTANCE.record(UdpMetrics.INSTANCE.handler, started);
+			} catch (final Throwable e) {
+				synchronized (this) {
+					++this.stErrors;
+				}
+				this.ctx.getConsole().log("UDP::Principal:onReceive:Java: %s: handler error: %s, message: %s, serial: %s", this.principal, e, message, serial);
+			}
+		}
+	}
+}
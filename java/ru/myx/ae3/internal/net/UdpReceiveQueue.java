@@ -0,0 +1,464 @@
+package ru.myx.ae3.internal.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseArray;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Receive queue of the UdpService in "buffered" receive mode, instead of one FIFO with
+ * 'overflow: drop'.
+ *
+ * Datagrams are classified by the code byte before parsing: replies first, then requests,
+ * then bulk transfer blocks and reports (they repeat what is lost by themselves). Within a
+ * class every source key has its own queue and keys are served round-robin, one datagram per
+ * turn, and no key may hold more than 1/PEER_SHARE of the capacity per class.
+ *
+ * When the queue is full, a datagram of a lower class is shed to make room, or one of the
+ * same class from a key that holds more than the incoming key does. Otherwise the incoming
+ * datagram is dropped. Drops are counted per class and per key.
+ *
+ * One daemon thread per queue runs the receive pipeline.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpReceiveQueue {
+
+	/** default max queued datagrams */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** max datagrams per pipeline run, counters are published after each */
+	public static final int BATCH = 64;
+
+	/** replies, final and continued */
+	public static final int CLASS_REPLY = 0;
+
+	/** requests */
+	public static final int CLASS_REQUEST = 1;
+
+	/** bulk transfer blocks and reports */
+	public static final int CLASS_BULK = 2;
+
+	static final int CLASSES = 3;
+
+	/** a key may hold up to capacity / PEER_SHARE datagrams per class, at least 4 */
+	static final int PEER_SHARE = 8;
+
+	/** keys with drop counters kept, least recently dropping are forgotten */
+	static final int MAX_PEER_STATS = 1024;
+
+	private final static BasePrimitiveString STR_commandByKey = Base.forString("commandByKey");
+	private final static BasePrimitiveString STR_isBULK = Base.forString("isBULK");
+	private final static BasePrimitiveString STR_isReply = Base.forString("isReply");
+	private final static BasePrimitiveString STR_payLoad = Base.forString("payLoad");
+	private final static BasePrimitiveString STR_prototype = Base.forString("prototype");
+
+	private record Key(long high, int low) {
+
+		@Override
+		public String toString() {
+
+			return String.format("%016x%08x", Long.valueOf(this.high), Integer.valueOf(this.low));
+		}
+	}
+
+	private static final class PeerQueue {
+
+		final Key key;
+
+		final ArrayDeque<BaseObject> packets = new ArrayDeque<>(4);
+
+		PeerQueue(final Key key) {
+
+			this.key = key;
+		}
+	}
+
+	private final BaseObject service;
+
+	private final UdpServiceReceiver receiver;
+
+	private final ExecProcess ctx;
+
+	private final int capacity;
+
+	private final int perPeer;
+
+	/** key and code of the datagram being offered */
+	private final byte[] header = new byte[13];
+
+	private final ByteBuffer headerView = ByteBuffer.wrap(this.header);
+
+	/** class + 1 by code, 0 - not resolved yet or unknown */
+	private final byte[] classOf = new byte[256];
+
+	/** commandByKey the classes are resolved for */
+	private BaseArray commandByKey;
+
+	private final List<Map<Key, PeerQueue>> peers = new ArrayList<>(UdpReceiveQueue.CLASSES);
+
+	private final List<ArrayDeque<PeerQueue>> rings = new ArrayList<>(UdpReceiveQueue.CLASSES);
+
+	private int size;
+
+	private boolean destroyed;
+
+	private final long[] stQueued = new long[UdpReceiveQueue.CLASSES];
+
+	private final long[] stDropped = new long[UdpReceiveQueue.CLASSES];
+
+	private long stShed;
+
+	private long stUnknown;
+
+	/** drops by key, access order */
+	private final LinkedHashMap<Key, long[]> peerDrops = new LinkedHashMap<>(64, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Key, long[]> eldest) {
+
+			return this.size() > UdpReceiveQueue.MAX_PEER_STATS;
+		}
+	};
+
+	private final Thread thread;
+
+	/** @param service
+	 * @param receiver
+	 * @param ctx
+	 * @param capacity
+	 *            max queued datagrams, DEFAULT_CAPACITY when not positive */
+	UdpReceiveQueue(final BaseObject service, final UdpServiceReceiver receiver, final ExecProcess ctx, final int capacity) {
+
+		this.service = service;
+		this.receiver = receiver;
+		this.ctx = ctx;
+		this.capacity = capacity > 0
+			? capacity
+			: UdpReceiveQueue.DEFAULT_CAPACITY;
+		this.perPeer = Math.max(4, this.capacity / UdpReceiveQueue.PEER_SHARE);
+		for (int i = 0; i < UdpReceiveQueue.CLASSES; ++i) {
+			this.peers.add(new HashMap<>());
+			this.rings.add(new ArrayDeque<>());
+		}
+		this.thread = new Thread(this::run, "UDP-RX-QUEUE");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/** Stops the receiving thread, queued datagrams are dropped */
+	@ReflectionExplicit
+	public void destroy() {
+
+		synchronized (this) {
+			this.destroyed = true;
+			this.notifyAll();
+		}
+	}
+
+	/** @return max queued datagrams */
+	@ReflectionExplicit
+	public int getCapacity() {
+
+		return this.capacity;
+	}
+
+	/** @return datagrams queued now */
+	@ReflectionExplicit
+	public synchronized int getDepth() {
+
+		return this.size;
+	}
+
+	/** @return bulk datagrams dropped */
+	@ReflectionExplicit
+	public synchronized long getDroppedBulk() {
+
+		return this.stDropped[UdpReceiveQueue.CLASS_BULK];
+	}
+
+	/** @return replies dropped */
+	@ReflectionExplicit
+	public synchronized long getDroppedReply() {
+
+		return this.stDropped[UdpReceiveQueue.CLASS_REPLY];
+	}
+
+	/** @return requests dropped */
+	@ReflectionExplicit
+	public synchronized long getDroppedRequest() {
+
+		return this.stDropped[UdpReceiveQueue.CLASS_REQUEST];
+	}
+
+	/** @return datagrams without a known message code or too short */
+	@ReflectionExplicit
+	public synchronized long getDroppedUnknown() {
+
+		return this.stUnknown;
+	}
+
+	/** @param key
+	 *            12-byte binary
+	 * @return datagrams of the key dropped, 0 when not known */
+	@ReflectionExplicit
+	public synchronized long getPeerDrops(final BaseObject key) {
+
+		final TransferCopier binary = Transfer.createCopierFromBinary(key);
+		if (binary == null || binary.length() != 12) {
+			throw new IllegalArgumentException("12-byte binary key is expected, key: " + key);
+		}
+		final ByteBuffer b = ByteBuffer.allocate(12);
+		binary.copy(0, b.array(), 0, 12);
+		final long[] drops = this.peerDrops.get(new Key(b.getLong(0), b.getInt(8)));
+		return drops == null
+			? 0
+			: drops[0];
+	}
+
+	/** @param limit
+	 * @return keys dropped the most, in hex: "key: count, ..." */
+	@ReflectionExplicit
+	public synchronized String getPeerDropsTop(final int limit) {
+
+		final List<Map.Entry<Key, long[]>> entries = new ArrayList<>(this.peerDrops.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < entries.size() && i < limit; ++i) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(entries.get(i).getKey()).append(": ").append(entries.get(i).getValue()[0]);
+		}
+		return builder.toString();
+	}
+
+	/** @return bulk datagrams queued */
+	@ReflectionExplicit
+	public synchronized long getQueuedBulk() {
+
+		return this.stQueued[UdpReceiveQueue.CLASS_BULK];
+	}
+
+	/** @return replies queued */
+	@ReflectionExplicit
+	public synchronized long getQueuedReply() {
+
+		return this.stQueued[UdpReceiveQueue.CLASS_REPLY];
+	}
+
+	/** @return requests queued */
+	@ReflectionExplicit
+	public synchronized long getQueuedRequest() {
+
+		return this.stQueued[UdpReceiveQueue.CLASS_REQUEST];
+	}
+
+	/** @return queued datagrams shed for ones of a higher class or a quieter key */
+	@ReflectionExplicit
+	public synchronized long getShed() {
+
+		return this.stShed;
+	}
+
+	/** UdpSocket receive callback
+	 *
+	 * @param pkt
+	 *            UdpSocket message object
+	 * @return false when dropped */
+	@ReflectionExplicit
+	public boolean offer(final BaseObject pkt) {
+
+		final TransferCopier load = Transfer.createCopierFromBinary(pkt.baseGet(UdpReceiveQueue.STR_payLoad, TransferCopier.NUL_COPIER));
+		synchronized (this) {
+			if (this.destroyed) {
+				return false;
+			}
+			/** the command map is set on the service after the queue is created */
+			this.refreshClasses();
+			if (load == null || load.length() < UdpServiceReceiver.HEADER_LENGTH) {
+				++this.stUnknown;
+				return false;
+			}
+			load.copy(16, this.header, 0, 13);
+			final int cls = this.classify(this.header[12] & 0xFF);
+			if (cls < 0) {
+				++this.stUnknown;
+				return false;
+			}
+			final Key key = new Key(this.headerView.getLong(0), this.headerView.getInt(8));
+			final Map<Key, PeerQueue> peers = this.peers.get(cls);
+			PeerQueue queue = peers.get(key);
+			final int held = queue == null
+				? 0
+				: queue.packets.size();
+			if (held >= this.perPeer || this.size >= this.capacity && !this.shed(cls, held)) {
+				this.drop(cls, key);
+				return false;
+			}
+			if (queue == null) {
+				peers.put(key, queue = new PeerQueue(key));
+				this.rings.get(cls).add(queue);
+			}
+			queue.packets.add(pkt);
+			++this.stQueued[cls];
+			if (this.size++ == 0) {
+				this.notifyAll();
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpReceiveQueue depth=" + this.size + "/" + this.capacity + ", dropped=" + this.stDropped[UdpReceiveQueue.CLASS_REPLY] + "/"
+				+ this.stDropped[UdpReceiveQueue.CLASS_REQUEST] + "/" + this.stDropped[UdpReceiveQueue.CLASS_BULK] + ", shed=" + this.stShed + "]";
+	}
+
+	/** Next datagram: highest class first, round-robin over keys within the class
+	 *
+	 * @return UdpSocket message object or null when empty */
+	synchronized BaseObject poll() {
+
+		for (int cls = 0; cls < UdpReceiveQueue.CLASSES; ++cls) {
+			final ArrayDeque<PeerQueue> ring = this.rings.get(cls);
+			final PeerQueue queue = ring.poll();
+			if (queue == null) {
+				continue;
+			}
+			final BaseObject pkt = queue.packets.poll();
+			if (queue.packets.isEmpty()) {
+				this.peers.get(cls).remove(queue.key);
+			} else {
+				ring.add(queue);
+			}
+			--this.size;
+			return pkt;
+		}
+		return null;
+	}
+
+	/** must be called while synchronized */
+	private int classify(final int code) {
+
+		final byte known = this.classOf[code];
+		if (known != 0) {
+			return known - 1;
+		}
+		final BaseArray commandByKey = this.commandByKey;
+		final BaseObject m = commandByKey == null
+			? null
+			: commandByKey.baseGet(code, BaseObject.UNDEFINED);
+		if (m == null || m == BaseObject.UNDEFINED || !m.baseToJavaBoolean()) {
+			/** not remembered: the map may be missing yet or get the class later */
+			return -1;
+		}
+		final BaseObject prototype = m.baseGet(UdpReceiveQueue.STR_prototype, BaseObject.UNDEFINED);
+		final int cls = prototype.baseGet(UdpReceiveQueue.STR_isBULK, BaseObject.UNDEFINED).baseToJavaBoolean()
+			? UdpReceiveQueue.CLASS_BULK
+			: prototype.baseGet(UdpReceiveQueue.STR_isReply, BaseObject.UNDEFINED).baseToJavaBoolean()
+				? UdpReceiveQueue.CLASS_REPLY
+				: UdpReceiveQueue.CLASS_REQUEST;
+		this.classOf[code] = (byte) (cls + 1);
+		return cls;
+	}
+
+	/** must be called while synchronized */
+	private void drop(final int cls, final Key key) {
+
+		++this.stDropped[cls];
+		final long[] drops = this.peerDrops.get(key);
+		if (drops == null) {
+			this.peerDrops.put(key, new long[]{
+					1L
+			});
+		} else {
+			++drops[0];
+		}
+	}
+
+	/** must be called while synchronized, re-reads the command map, classes are resolved again
+	 * when it is replaced */
+	private void refreshClasses() {
+
+		final BaseArray commandByKey = this.service.baseGet(UdpReceiveQueue.STR_commandByKey, BaseObject.UNDEFINED).baseArray();
+		if (commandByKey != this.commandByKey) {
+			this.commandByKey = commandByKey;
+			Arrays.fill(this.classOf, (byte) 0);
+		}
+	}
+
+	private void run() {
+
+		for (;;) {
+			synchronized (this) {
+				while (this.size == 0 && !this.destroyed) {
+					try {
+						this.wait();
+					} catch (final InterruptedException e) {
+						return;
+					}
+				}
+				if (this.destroyed) {
+					return;
+				}
+			}
+			try {
+				this.receiver.receiveQueue(this.ctx, this);
+			} catch (final RuntimeException e) {
+				this.ctx.getConsole().log("UDP::Read:Java: queue-error: iface: %s, error: %s", this.service, e);
+			}
+		}
+	}
+
+	/** Makes room for a datagram of the class: sheds the newest datagram of the lowest class
+	 * below it, or of the same class from the key holding the most when it holds more than the
+	 * incoming key. Must be called while synchronized
+	 *
+	 * @param cls
+	 *            class of the incoming datagram
+	 * @param held
+	 *            datagrams of the class the incoming key holds
+	 * @return false when nothing may be shed */
+	private boolean shed(final int cls, final int held) {
+
+		for (int victimClass = UdpReceiveQueue.CLASSES - 1; victimClass >= cls; --victimClass) {
+			final ArrayDeque<PeerQueue> ring = this.rings.get(victimClass);
+			PeerQueue victim = null;
+			for (final PeerQueue queue : ring) {
+				if (victim == null || queue.packets.size() > victim.packets.size()) {
+					victim = queue;
+				}
+			}
+			if (victim == null || victimClass == cls && victim.packets.size() <= held + 1) {
+				continue;
+			}
+			victim.packets.pollLast();
+			if (victim.packets.isEmpty()) {
+				ring.remove(victim);
+				this.peers.get(victimClass).remove(victim.key);
+			}
+			--this.size;
+			++this.stShed;
+			this.drop(victimClass, victim.key);
+			return true;
+		}
+		return false;
+	}
+}
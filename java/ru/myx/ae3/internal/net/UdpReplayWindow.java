@@ -0,0 +1,318 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Anti-replay window of one direction of a principal, as in IPsec: the highest serial seen
+ * and a bitmap of the serials just below it. Serials within the window are accepted in any
+ * order, each one only once, serials below the window are rejected.
+ *
+ * Replaces the per-principal CoarseDelayCaches: the window is a few hundred bytes of
+ * primitives, reply objects are kept only for requests already answered, for REPLY_TTL, so
+ * repeated requests get the same reply again. Expired replies and their datagrams are
+ * dropped by 'put', 'check' and the datagram lookup, whichever comes first.
+ *
+ * With 'keepPackets' on (the 'ae3.udp.reply.packets' system property sets the default) the
+ * signed datagram of every reply sent is kept along with it, see
+ * UdpServiceHelper.principalSend: a repeat is then written to the socket as is, without
+ * building, encrypting and signing it again. The datagram is only used while the secret of
+ * the principal is the one it was signed with.
+ *
+ * <code>
+ * 	check(serial) - undefined: new, true: seen or too old, reply message: repeat it
+ * 	put(serial, true | reply)
+ * </code>
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpReplayWindow {
+
+	/** default window size, bits */
+	public static final int DEFAULT_BITS = 2048;
+
+	/** min window size, bits */
+	public static final int MIN_BITS = 1024;
+
+	/** max window size, bits */
+	public static final int MAX_BITS = 4096;
+
+	/** time to keep a reply for repeats, milliseconds */
+	public static final long REPLY_TTL = 3400L;
+
+	/** default of 'keepPackets' */
+	static final boolean KEEP_PACKETS = Boolean.getBoolean("ae3.udp.reply.packets");
+
+	private static final class Reply {
+
+		final BaseObject message;
+
+		final long expires;
+
+		/** signed datagram, null when not kept */
+		byte[] packet;
+
+		/** secret object the datagram is signed with */
+		BaseObject secret;
+
+		Reply(final BaseObject message, final long expires) {
+
+			this.message = message;
+			this.expires = expires;
+		}
+	}
+
+	/** ring of bits, bit of the serial S is (S & mask) */
+	private final long[] bitmap;
+
+	private final int mask;
+
+	/** highest serial marked, 0 - nothing yet */
+	private int high;
+
+	/** replies to repeat, in insertion (and expiry) order, created on first reply */
+	private LinkedHashMap<Integer, Reply> replies;
+
+	private boolean keepPackets = UdpReplayWindow.KEEP_PACKETS;
+
+	/** repeats written from the kept datagram */
+	private long stPacketRepeats;
+
+	/** window of the default size */
+	@ReflectionExplicit
+	public UdpReplayWindow() {
+
+		this(UdpReplayWindow.DEFAULT_BITS);
+	}
+
+	/** @param bits
+	 *            window size, power of 2 from MIN_BITS to MAX_BITS */
+	@ReflectionExplicit
+	public UdpReplayWindow(final int bits) {
+
+		if (bits < UdpReplayWindow.MIN_BITS || bits > UdpReplayWindow.MAX_BITS || (bits & bits - 1) != 0) {
+			throw new IllegalArgumentException("window size should be a power of 2 from " + UdpReplayWindow.MIN_BITS + " to " + UdpReplayWindow.MAX_BITS + ", bits: " + bits);
+		}
+		this.bitmap = new long[bits >> 6];
+		this.mask = bits - 1;
+	}
+
+	/** @param serial
+	 * @return undefined when serial is new, true when seen or below the window, reply message
+	 *         when it is to be repeated */
+	@ReflectionExplicit
+	public synchronized BaseObject check(final int serial) {
+
+		if (!this.seen(serial)) {
+			return BaseObject.UNDEFINED;
+		}
+		final LinkedHashMap<Integer, Reply> replies = this.replies;
+		if (replies != null) {
+			this.expire(System.currentTimeMillis());
+			final Reply reply = replies.get(Integer.valueOf(serial));
+			if (reply != null) {
+				return reply.message;
+			}
+		}
+		return BaseObject.TRUE;
+	}
+
+	/** @return highest serial marked */
+	@ReflectionExplicit
+	public synchronized int getHigh() {
+
+		return this.high;
+	}
+
+	/** @return repeats written from the kept datagram */
+	@ReflectionExplicit
+	public synchronized long getPacketRepeats() {
+
+		return this.stPacketRepeats;
+	}
+
+	/** @return replies kept for repeats */
+	@ReflectionExplicit
+	public synchronized int getReplyCount() {
+
+		if (this.replies == null) {
+			return 0;
+		}
+		this.expire(System.currentTimeMillis());
+		return this.replies.size();
+	}
+
+	/** @return window size, bits */
+	@ReflectionExplicit
+	public int getSize() {
+
+		return this.mask + 1;
+	}
+
+	/** @return true when signed datagrams of the replies are kept */
+	@ReflectionExplicit
+	public synchronized boolean isKeepPackets() {
+
+		return this.keepPackets;
+	}
+
+	/** @param serial
+	 * @return true when serial is seen or below the window */
+	@ReflectionExplicit
+	public synchronized boolean isReplay(final int serial) {
+
+		return this.seen(serial);
+	}
+
+	/** Marks the serial as seen, slides the window when it is above the highest one
+	 *
+	 * @param serial */
+	@ReflectionExplicit
+	public synchronized void mark(final int serial) {
+
+		final int high = this.high;
+		if (serial > high) {
+			final int shift = serial - high;
+			if (shift > this.mask) {
+				Arrays.fill(this.bitmap, 0L);
+			} else {
+				for (int i = high + 1; i < serial; ++i) {
+					this.bitmap[(i & this.mask) >> 6] &= ~(1L << (i & 63));
+				}
+			}
+			this.high = serial;
+		} else if (high - serial > this.mask) {
+			return;
+		}
+		this.bitmap[(serial & this.mask) >> 6] |= 1L << (serial & 63);
+	}
+
+	/** <code>
+		this.cacheIncomingQuerySerial(serial, true | reply);
+	 * </code>
+	 *
+	 * @param serial
+	 * @param result
+	 *            true or reply message to repeat */
+	@ReflectionExplicit
+	public synchronized void put(final int serial, final BaseObject result) {
+
+		this.mark(serial);
+		if (result == null || result.baseValue() == null || result == BaseObject.TRUE || result == BaseObject.FALSE) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		LinkedHashMap<Integer, Reply> replies = this.replies;
+		if (replies == null) {
+			this.replies = replies = new LinkedHashMap<>();
+		} else {
+			this.expire(now);
+		}
+		replies.put(Integer.valueOf(serial), new Reply(result, now + UdpReplayWindow.REPLY_TTL));
+	}
+
+	/** @param keepPackets
+	 *            keep signed datagrams of the replies for repeats */
+	@ReflectionExplicit
+	public synchronized void setKeepPackets(final boolean keepPackets) {
+
+		this.keepPackets = keepPackets;
+		if (!keepPackets && this.replies != null) {
+			for (final Reply reply : this.replies.values()) {
+				reply.packet = null;
+				reply.secret = null;
+			}
+		}
+	}
+
+	/** Forgets everything, for a new session */
+	@ReflectionExplicit
+	public synchronized void reset() {
+
+		Arrays.fill(this.bitmap, 0L);
+		this.high = 0;
+		this.replies = null;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpReplayWindow bits=" + (this.mask + 1) + ", high=" + this.high + ", replies=" + (this.replies == null
+			? 0
+			: this.replies.size()) + "]";
+	}
+
+	/** @param serial
+	 * @param message
+	 *            reply message, as given to 'put'
+	 * @param secret
+	 *            current secret object of the principal
+	 * @return signed datagram of the reply or null when there is none or it is signed with
+	 *         another secret */
+	synchronized byte[] packet(final int serial, final BaseObject message, final BaseObject secret) {
+
+		final LinkedHashMap<Integer, Reply> replies = this.replies;
+		if (replies == null) {
+			return null;
+		}
+		this.expire(System.currentTimeMillis());
+		final Reply reply = replies.get(Integer.valueOf(serial));
+		if (reply == null || reply.message != message || reply.packet == null || reply.secret != secret) {
+			return null;
+		}
+		++this.stPacketRepeats;
+		return reply.packet;
+	}
+
+	/** Keeps the signed datagram of the reply 'put' before, when 'keepPackets' is on
+	 *
+	 * @param serial
+	 * @param message
+	 *            reply message, as given to 'put'
+	 * @param packet
+	 *            signed datagram, not modified afterwards
+	 * @param secret
+	 *            secret object the datagram is signed with */
+	synchronized void putPacket(final int serial, final BaseObject message, final byte[] packet, final BaseObject secret) {
+
+		if (!this.keepPackets || this.replies == null) {
+			return;
+		}
+		final Reply reply = this.replies.get(Integer.valueOf(serial));
+		if (reply == null || reply.message != message) {
+			return;
+		}
+		reply.packet = packet;
+		reply.secret = secret;
+	}
+
+	/** drops expired replies and ones below the window. Must be called while synchronized */
+	private void expire(final long now) {
+
+		for (final Iterator<Map.Entry<Integer, Reply>> iterator = this.replies.entrySet().iterator(); iterator.hasNext();) {
+			final Map.Entry<Integer, Reply> entry = iterator.next();
+			if (entry.getValue().expires - now > 0 && this.high - entry.getKey().intValue() <= this.mask) {
+				return;
+			}
+			iterator.remove();
+		}
+	}
+
+	/** must be called while synchronized */
+	private boolean seen(final int serial) {
+
+		final int high = this.high;
+		if (serial > high) {
+			return false;
+		}
+		if (high - serial > this.mask) {
+			return true;
+		}
+		return (this.bitmap[(serial & this.mask) >> 6] & 1L << (serial & 63)) != 0;
+	}
+}
@@ -0,0 +1,163 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.concurrent.TimeUnit;
+
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Round-trip time of one principal, see UdpPrincipal.getRtt and TaskUdpSingle, and of one
+ * outgoing UdpBulkTransfer.
+ *
+ * Jacobson/Karels smoothed RTT and mean deviation: srtt = 7/8 srtt + 1/8 sample, rttvar = 3/4
+ * rttvar + 1/4 |srtt - sample|, retry timeout is srtt + 4 rttvar. Samples come from request /
+ * final reply pairs of requests sent only once (Karn), a task that had to resend reports
+ * 'timeout' instead. The estimate itself is never backed off, every task (and transfer)
+ * doubles its own retry delay, so one lossy exchange does not slow down the others.
+ *
+ * Query TTL is derived from the estimate too, before the first sample it is 0: the task uses
+ * the 'defaultQueryTtl' of its class.
+ *
+ * Times are microseconds from 'now()', JS numbers hold them exactly.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpRttEstimator {
+
+	/** retry timeout before the first sample, milliseconds, TaskUdpSingle.defaultRetryDelay */
+	public static final int RTO_INITIAL = 500;
+
+	/** milliseconds */
+	public static final int RTO_MIN = 20;
+
+	/** milliseconds */
+	public static final int RTO_MAX = 5000;
+
+	/** query TTL is this many retry timeouts */
+	public static final int QUERY_TTL_RTOS = 16;
+
+	/** milliseconds */
+	public static final int QUERY_TTL_MIN = 2000;
+
+	/** milliseconds */
+	public static final int QUERY_TTL_MAX = 30000;
+
+	private static final long ORIGIN = System.nanoTime();
+
+	/** @return microseconds, for 'sample' */
+	@ReflectionExplicit
+	public static long now() {
+
+		return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - UdpRttEstimator.ORIGIN);
+	}
+
+	/** microseconds, 0 - no samples */
+	private long srtt;
+
+	/** microseconds */
+	private long rttvar;
+
+	/** milliseconds, srtt + 4 rttvar within RTO_MIN..RTO_MAX */
+	private int rto = UdpRttEstimator.RTO_INITIAL;
+
+	private long samples;
+
+	private long timeouts;
+
+	UdpRttEstimator() {
+
+		//
+	}
+
+	/** @return query TTL for messages without own 'queryTTL', milliseconds, 0 when no samples;
+	 *         TaskUdpSingle takes the larger of it and its 'defaultQueryTtl' */
+	@ReflectionExplicit
+	public synchronized int getQueryTtl() {
+
+		if (this.samples == 0) {
+			return 0;
+		}
+		return Math.min(UdpRttEstimator.QUERY_TTL_MAX, Math.max(UdpRttEstimator.QUERY_TTL_MIN, this.rto * UdpRttEstimator.QUERY_TTL_RTOS));
+	}
+
+	/** @return first retry timeout, milliseconds, RTO_INITIAL when no samples */
+	@ReflectionExplicit
+	public synchronized int getRetryDelay() {
+
+		return this.rto;
+	}
+
+	/** @return mean deviation, microseconds */
+	@ReflectionExplicit
+	public synchronized long getRttVar() {
+
+		return this.rttvar;
+	}
+
+	/** @return samples taken */
+	@ReflectionExplicit
+	public synchronized long getSamples() {
+
+		return this.samples;
+	}
+
+	/** @return smoothed RTT, microseconds, 0 when no samples */
+	@ReflectionExplicit
+	public synchronized long getSrtt() {
+
+		return this.srtt;
+	}
+
+	/** @return timeouts reported */
+	@ReflectionExplicit
+	public synchronized long getTimeouts() {
+
+		return this.timeouts;
+	}
+
+	/** Final reply to a request that was sent once
+	 *
+	 * @param started
+	 *            'now()' when the request was sent */
+	@ReflectionExplicit
+	public void sample(final long started) {
+
+		this.sampleMicros(UdpRttEstimator.now() - started);
+	}
+
+	/** Request had to be resent, counted only: backoff is up to the task */
+	@ReflectionExplicit
+	public synchronized void timeout() {
+
+		++this.timeouts;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpRttEstimator srtt=" + this.srtt + "us, rttvar=" + this.rttvar + "us, rto=" + this.rto + "ms, samples=" + this.samples + ", timeouts=" + this.timeouts + "]";
+	}
+
+	/** @return srtt + 4 rttvar, microseconds, 0 when no samples */
+	synchronized long getTimeoutMicros() {
+
+		return this.samples == 0
+			? 0
+			: this.srtt + 4 * this.rttvar;
+	}
+
+	/** @param rtt
+	 *            round trip, microseconds */
+	synchronized void sampleMicros(final long rtt) {
+
+		final long sample = Math.max(1L, rtt);
+		if (this.srtt == 0) {
+			this.srtt = sample;
+			this.rttvar = sample / 2;
+		} else {
+			this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - sample)) / 4;
+			this.srtt = (7 * this.srtt + sample) / 8;
+		}
+		++this.samples;
+		this.rto = (int) Math.min(UdpRttEstimator.RTO_MAX, Math.max(UdpRttEstimator.RTO_MIN, TimeUnit.MICROSECONDS.toMillis(this.srtt + 4 * this.rttvar + 999)));
+	}
+}
@@ -0,0 +1,92 @@
+package ru.myx.ae3.internal.net;
+
+import java.security.MessageDigest;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.know.WhirlpoolDigest;
+
+/** Per-thread send state of the Principal.sendSingle: packet buffer, digest and result
+ * scratch, reused by every send on the thread.
+ *
+ * The packet buffer is a script ArrayBuffer since message 'build' functions write into it,
+ * it is created once per thread by the 'createSendBuffer' method of the first principal
+ * sending on the thread.
+ *
+ * Not reentrant: a send started from inside another send on the same thread gets a
+ * one-off context.
+ *
+ * @author myx */
+final class UdpSendContext {
+
+	private final static BasePrimitiveString STR_createSendBuffer = Base.forString("createSendBuffer");
+
+	private static final ThreadLocal<UdpSendContext> CONTEXT = ThreadLocal.withInitial(UdpSendContext::new);
+
+	/** @param ctx
+	 * @param principal
+	 *            to create the buffer with on first use
+	 * @return context, must be released */
+	static UdpSendContext obtain(final ExecProcess ctx, final BaseObject principal) {
+
+		final UdpSendContext cached = UdpSendContext.CONTEXT.get();
+		final UdpSendContext context = cached.busy
+			? new UdpSendContext()
+			: cached;
+		if (context.bufferObject == null) {
+			final BaseFunction createSendBuffer = principal.baseGet(UdpSendContext.STR_createSendBuffer, BaseObject.UNDEFINED).baseCall();
+			if (createSendBuffer == null) {
+				throw new IllegalArgumentException("createSendBuffer function is expected, principal: " + principal);
+			}
+			final BaseObject bufferObject = createSendBuffer.callNE0(ctx, principal);
+			final byte[] buffer = (byte[]) bufferObject.baseValue();
+			if (buffer == null) {
+				throw new IllegalArgumentException("byte[] buffer is expected, createSendBuffer result class: " + bufferObject.getClass().getName());
+			}
+			context.bufferObject = bufferObject;
+			context.buffer = buffer;
+		}
+		context.busy = true;
+		return context;
+	}
+
+	BaseObject bufferObject;
+
+	byte[] buffer;
+
+	/** scratch digest, reset before every use */
+	final MessageDigest digest = new WhirlpoolDigest();
+
+	/** the digest for script 'sendImpl' overrides */
+	final BaseObject digestObject = Base.forUnknown(this.digest);
+
+	/** digest or mac output, 64 bytes fit both */
+	final byte[] result = new byte[64];
+
+	/** CTR counter block */
+	final byte[] counter = new byte[16];
+
+	private boolean busy;
+
+	UdpSendContext() {
+
+		//
+	}
+
+	/** Makes the context available for the next send on the thread */
+	void release() {
+
+		this.busy = false;
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpSendContext buffer=" + (this.buffer == null
+			? "none"
+			: Integer.toString(this.buffer.length)) + ", busy=" + this.busy + "]";
+	}
+}
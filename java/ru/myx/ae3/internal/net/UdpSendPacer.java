@@ -0,0 +1,385 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Outbound pacing of the UdpService: global and per-destination token buckets in front of
+ * 'sock.send', see UdpService 'pacing' option.
+ *
+ * Buckets are kept as GCRA (virtual scheduling): one 'theoretical arrival time' per bucket,
+ * a datagram conforms when it is not earlier than 'burst' intervals ahead of it. A datagram
+ * conforming to both the global and its destination's bucket, with nothing queued for the
+ * destination, is sent right away on the caller thread. Others are copied and queued per
+ * destination, the release timer (UdpTimerWheel) serves the destinations round-robin, each
+ * one while it conforms, BATCH datagrams per run at most, and re-arms itself for the earliest
+ * conforming time.
+ *
+ * The timer runs once per UdpTimerWheel.TICK at best: bucket tolerance is one tick worth of
+ * datagrams at least, so a run can release everything that became due since the previous one
+ * and the configured rate holds for queued datagrams as well.
+ *
+ * A full queue drops the datagram: 'send' returns 0, the same as a send that failed, and the
+ * task retries it later. Time spent in the queue is recorded in the 'delay' histogram.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpSendPacer {
+
+	private static final class Destination {
+
+		final ArrayDeque<Queued> queue = new ArrayDeque<>();
+
+		/** GCRA theoretical arrival time, nanoseconds */
+		long tat;
+
+		/** in the ready ring */
+		boolean ready;
+
+		Destination(final long now) {
+
+			this.tat = now;
+		}
+	}
+
+	private record Queued(TransferCopier payload, BaseObject address, long queuedAt) {
+		//
+	}
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(UdpTimerWheel.TICK);
+
+	/** max datagrams sent per release run */
+	public static final int BATCH = 256;
+
+	/** idle destinations are forgotten when there are more than this */
+	public static final int MAX_DESTINATIONS = 4096;
+
+	private final static BasePrimitiveString STR_burst = Base.forString("burst");
+	private final static BasePrimitiveString STR_peerBurst = Base.forString("peerBurst");
+	private final static BasePrimitiveString STR_peerRate = Base.forString("peerRate");
+	private final static BasePrimitiveString STR_queue = Base.forString("queue");
+	private final static BasePrimitiveString STR_rate = Base.forString("rate");
+	private final static BasePrimitiveString STR_send = Base.forString("send");
+	private final static BasePrimitiveString STR_sock = Base.forString("sock");
+
+	private static int option(final BaseObject options, final BasePrimitiveString name, final int defaultValue) {
+
+		final BaseObject value = options.baseGet(name, BaseObject.UNDEFINED);
+		if (value == BaseObject.UNDEFINED) {
+			return defaultValue;
+		}
+		final int result = value.baseToJavaInteger();
+		if (result < 0) {
+			throw new IllegalArgumentException("non-negative '" + name + "' is expected, value: " + value);
+		}
+		return result;
+	}
+
+	private final BaseObject service;
+
+	/** global: nanoseconds per datagram, 0 - no limit */
+	private final long interval;
+
+	private final long tolerance;
+
+	/** per destination */
+	private final long peerInterval;
+
+	private final long peerTolerance;
+
+	private final int capacity;
+
+	private final Map<Object, Destination> destinations = new HashMap<>();
+
+	private final ArrayDeque<Destination> ready = new ArrayDeque<>();
+
+	private final UdpLatencyHistogram delay = new UdpLatencyHistogram("pacing");
+
+	private BaseObject sock;
+
+	private BaseFunction sockSend;
+
+	private long tat;
+
+	private int queued;
+
+	private boolean scheduled;
+
+	private boolean destroyed;
+
+	private long stDirect;
+
+	private long stQueued;
+
+	private long stReleased;
+
+	private long stDropped;
+
+	/** @param service
+	 * @param options
+	 *            {rate, burst, peerRate, peerBurst, queue}, rates in datagrams per second, 0 -
+	 *            no limit */
+	UdpSendPacer(final BaseObject service, final BaseObject options) {
+
+		this.service = service;
+		final int rate = UdpSendPacer.option(options, UdpSendPacer.STR_rate, 0);
+		final int burst = Math.max(1, UdpSendPacer.option(options, UdpSendPacer.STR_burst, 64));
+		final int peerRate = UdpSendPacer.option(options, UdpSendPacer.STR_peerRate, 0);
+		final int peerBurst = Math.max(1, UdpSendPacer.option(options, UdpSendPacer.STR_peerBurst, 16));
+		this.interval = rate == 0
+			? 0
+			: TimeUnit.SECONDS.toNanos(1) / rate;
+		this.tolerance = this.interval == 0
+			? 0
+			: Math.max(this.interval * (burst - 1), UdpSendPacer.TICK_NANOS);
+		this.peerInterval = peerRate == 0
+			? 0
+			: TimeUnit.SECONDS.toNanos(1) / peerRate;
+		this.peerTolerance = this.peerInterval == 0
+			? 0
+			: Math.max(this.peerInterval * (peerBurst - 1), UdpSendPacer.TICK_NANOS);
+		this.capacity = Math.max(1, UdpSendPacer.option(options, UdpSendPacer.STR_queue, 16384));
+		this.tat = System.nanoTime();
+	}
+
+	/** Drops everything queued, later sends go straight to the socket */
+	@ReflectionExplicit
+	public synchronized void destroy() {
+
+		this.destroyed = true;
+		this.destinations.clear();
+		this.ready.clear();
+		this.queued = 0;
+	}
+
+	/** @return time spent queued, nanoseconds */
+	@ReflectionExplicit
+	public UdpLatencyHistogram getDelay() {
+
+		return this.delay;
+	}
+
+	/** @return destinations known */
+	@ReflectionExplicit
+	public synchronized int getDestinations() {
+
+		return this.destinations.size();
+	}
+
+	/** @return datagrams sent without queueing */
+	@ReflectionExplicit
+	public synchronized long getDirect() {
+
+		return this.stDirect;
+	}
+
+	/** @return datagrams dropped, queue full */
+	@ReflectionExplicit
+	public synchronized long getDropped() {
+
+		return this.stDropped;
+	}
+
+	/** @return datagrams queued now */
+	@ReflectionExplicit
+	public synchronized int getQueueDepth() {
+
+		return this.queued;
+	}
+
+	/** @return datagrams ever queued */
+	@ReflectionExplicit
+	public synchronized long getQueued() {
+
+		return this.stQueued;
+	}
+
+	/** @return queued datagrams sent by the release timer */
+	@ReflectionExplicit
+	public synchronized long getReleased() {
+
+		return this.stReleased;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpSendPacer depth=" + this.queued + ", direct=" + this.stDirect + ", queued=" + this.stQueued + ", dropped=" + this.stDropped + ", " + this.delay + "]";
+	}
+
+	/** @param ctx
+	 * @param payloadObject
+	 * @param addressObject
+	 * @return 'sock.send' result, payload length when queued, 0 when dropped */
+	int send(final ExecProcess ctx, final BaseObject payloadObject, final BaseObject addressObject) {
+
+		final BaseFunction sockSend;
+		synchronized (this) {
+			sockSend = this.sockSend();
+			if (!this.destroyed) {
+				final long now = System.nanoTime();
+				final Object key = addressObject.baseValue();
+				Destination destination = this.destinations.get(key);
+				if (destination == null) {
+					if (this.destinations.size() >= UdpSendPacer.MAX_DESTINATIONS) {
+						this.forgetIdle(now);
+					}
+					this.destinations.put(key, destination = new Destination(now));
+				}
+				if (!destination.queue.isEmpty() || this.wait(destination, now) > 0) {
+					return this.enqueue(destination, payloadObject, addressObject, now);
+				}
+				this.take(destination, now);
+				++this.stDirect;
+			}
+		}
+		return sockSend.callIE2(ctx, this.sock, payloadObject, addressObject);
+	}
+
+	private int enqueue(final Destination destination, final BaseObject payloadObject, final BaseObject addressObject, final long now) {
+
+		if (this.queued >= this.capacity) {
+			++this.stDropped;
+			return 0;
+		}
+		/** the caller reuses its buffer */
+		final TransferCopier payload = Transfer.createCopierFromBinary(payloadObject);
+		if (payload == null) {
+			throw new IllegalArgumentException("binary payload is expected, payload: " + payloadObject);
+		}
+		final int length = (int) payload.length();
+		final byte[] copy = new byte[length];
+		payload.copy(0, copy, 0, length);
+		destination.queue.add(new Queued(Transfer.wrapCopier(copy, 0, length), addressObject, now));
+		if (!destination.ready) {
+			destination.ready = true;
+			this.ready.add(destination);
+		}
+		++this.queued;
+		++this.stQueued;
+		this.schedule(this.wait(destination, now));
+		return length;
+	}
+
+	private void forgetIdle(final long now) {
+
+		for (final Iterator<Destination> iterator = this.destinations.values().iterator(); iterator.hasNext();) {
+			final Destination destination = iterator.next();
+			if (destination.queue.isEmpty() && destination.tat <= now) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private void release(final ExecProcess ctx) {
+
+		final List<Queued> batch = new ArrayList<>();
+		final BaseFunction sockSend;
+		synchronized (this) {
+			this.scheduled = false;
+			if (this.destroyed) {
+				return;
+			}
+			sockSend = this.sockSend();
+			final long now = System.nanoTime();
+			long wait = Long.MAX_VALUE;
+			for (int attempts = this.ready.size(); attempts > 0 && batch.size() < UdpSendPacer.BATCH; --attempts) {
+				final Destination destination = this.ready.poll();
+				long destinationWait;
+				while ((destinationWait = this.wait(destination, now)) <= 0 && batch.size() < UdpSendPacer.BATCH) {
+					final Queued queued = destination.queue.poll();
+					this.take(destination, now);
+					this.delay.record(now - queued.queuedAt());
+					batch.add(queued);
+					--this.queued;
+					if (destination.queue.isEmpty()) {
+						break;
+					}
+				}
+				if (destination.queue.isEmpty()) {
+					destination.ready = false;
+					continue;
+				}
+				wait = Math.min(wait, destinationWait);
+				this.ready.add(destination);
+			}
+			this.stReleased += batch.size();
+			if (this.queued > 0) {
+				/** destinations left unvisited by a full batch are due now */
+				this.schedule(batch.size() >= UdpSendPacer.BATCH
+					? 0
+					: wait);
+			}
+		}
+		for (final Queued queued : batch) {
+			try {
+				sockSend.callIE2(ctx, this.sock, queued.payload(), queued.address());
+			} catch (final RuntimeException e) {
+				ctx.getConsole().log("UDP::Pacer:Java: %s: udp-send-error, address: %s, error: %s", this.service, queued.address(), e);
+			}
+		}
+	}
+
+	private void schedule(final long wait) {
+
+		if (this.scheduled) {
+			return;
+		}
+		this.scheduled = true;
+		/** rounded up, released no earlier than conforming */
+		UdpTimerWheel.INSTANCE.schedule(this::release, (Math.max(0L, wait) + 999_999L) / 1_000_000L);
+	}
+
+	/** 'sock.send', resolved once */
+	private BaseFunction sockSend() {
+
+		if (this.sockSend != null) {
+			return this.sockSend;
+		}
+		final BaseObject sock = this.service.baseGet(UdpSendPacer.STR_sock, BaseObject.UNDEFINED);
+		final BaseFunction sockSend = sock.baseGet(UdpSendPacer.STR_send, BaseObject.UNDEFINED).baseCall();
+		if (sockSend == null) {
+			throw new IllegalArgumentException("sock.send function is expected, service: " + this.service);
+		}
+		this.sock = sock;
+		return this.sockSend = sockSend;
+	}
+
+	/** takes a token from both buckets */
+	private void take(final Destination destination, final long now) {
+
+		if (this.interval != 0) {
+			this.tat = Math.max(this.tat, now) + this.interval;
+		}
+		if (this.peerInterval != 0) {
+			destination.tat = Math.max(destination.tat, now) + this.peerInterval;
+		}
+	}
+
+	/** @return nanoseconds until a datagram to the destination conforms to both buckets */
+	private long wait(final Destination destination, final long now) {
+
+		long wait = 0;
+		if (this.interval != 0) {
+			wait = this.tat - this.tolerance - now;
+		}
+		if (this.peerInterval != 0) {
+			wait = Math.max(wait, destination.tat - this.peerTolerance - now);
+		}
+		return wait;
+	}
+}
@@ -1,11 +1,14 @@
 package ru.myx.ae3.internal.net;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.security.DigestException;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 
 import ru.myx.ae3.base.Base;
 import ru.myx.ae3.base.BaseArray;
@@ -18,7 +21,6 @@ import ru.myx.ae3.base.BaseProperty;
 import ru.myx.ae3.base.ToPrimitiveHint;
 import ru.myx.ae3.binary.Transfer;
 import ru.myx.ae3.binary.TransferCopier;
-import ru.myx.ae3.concurrent.CoarseDelayCache;
 import ru.myx.ae3.exec.Exec;
 import ru.myx.ae3.exec.ExecProcess;
 import ru.myx.ae3.exec.ResultHandler;
@@ -40,31 +42,68 @@ public final class UdpServiceHelper {
 	
 	private final static BasePrimitiveString STR_address = Base.forString("address");
 	private final static BasePrimitiveString STR_argument = Base.forString("argument");
+	private final static BasePrimitiveString STR_batch = Base.forString("batch");
+	private final static BasePrimitiveString STR_bufferSize = Base.forString("bufferSize");
 	private final static BasePrimitiveString STR_build = Base.forString("build");
+	private final static BasePrimitiveString STR_capture = Base.forString("capture");
 	private final static BasePrimitiveString STR_code = Base.forString("code");
 	private final static BasePrimitiveString STR_component = Base.forString("component");
-	private final static BasePrimitiveString STR_dst = Base.forString("dst");
 	private final static BasePrimitiveString STR_encrypt = Base.forString("encrypt");
+	private final static BasePrimitiveString STR_errorCode = Base.forString("errorCode");
 	private final static BasePrimitiveString STR_handlers = Base.forString("handlers");
 	private final static BasePrimitiveString STR_hostAddress = Base.forString("hostAddress");
 	private final static BasePrimitiveString STR_isReply = Base.forString("isReply");
 	private final static BasePrimitiveString STR_key = Base.forString("key");
+	private final static BasePrimitiveString STR_limit = Base.forString("limit");
 	private final static BasePrimitiveString STR_log = Base.forString("log");
 	private final static BasePrimitiveString STR_mode = Base.forString("mode");
 	private final static BasePrimitiveString STR_onDestroy = Base.forString("onDestroy");
+	private final static BasePrimitiveString STR_pacer = Base.forString("pacer");
 	private final static BasePrimitiveString STR_port = Base.forString("port");
-	private final static BasePrimitiveString STR_receiveQuerySerialsCache = Base.forString("receiveQuerySerialsCache");
-	private final static BasePrimitiveString STR_receiveReplySerialsCache = Base.forString("receiveReplySerialsCache");
+	private final static BasePrimitiveString STR_prototype = Base.forString("prototype");
+	private final static BasePrimitiveString STR_queue = Base.forString("queue");
 	
 	private final static BasePrimitiveString STR_secret = Base.forString("secret");
-	private final static BasePrimitiveString STR_sendUdp = Base.forString("sendUdp");
+	private final static BasePrimitiveString STR_send = Base.forString("send");
+	private final static BasePrimitiveString STR_sendImpl = Base.forString("sendImpl");
+	private final static BasePrimitiveString STR_sendImplDefault = Base.forString("sendImplDefault");
 	private final static BasePrimitiveString STR_serial = Base.forString("serial");
+	private final static BasePrimitiveString STR_shards = Base.forString("shards");
+	private final static BasePrimitiveString STR_sock = Base.forString("sock");
+	private final static BasePrimitiveString STR_speed = Base.forString("speed");
 	private final static BasePrimitiveString STR_src = Base.forString("src");
 	
-	private final static BasePrimitiveString STR_sRx = Base.forString("sRx");
-	private final static BasePrimitiveString STR_sTx = Base.forString("sTx");
 	private final static BasePrimitiveString STR_waitingTaskSerialsCache = Base.forString("waitingTaskSerialsCache");
 	
+	/** Measures the throughput and allocation of a function, see UdpBenchmark and
+	 * 'ae3.net/benchmarks'.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - 'this' of the calls
+	 * @param fnObject
+	 *            - benchmarked operation, no arguments
+	 * @param optionsObject
+	 *            - optional: {name, warmup: 5, iterations: 10, time: 200}
+	 * @return report: {name, iterations, ops, nsPerOp, nsPerOpError, opsPerSecond, bytesPerOp,
+	 *         gcCount, gcTime} */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static BaseObject benchmark(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject fnObject,
+			final BaseObject optionsObject//
+	) {
+		
+		final BaseFunction fn = fnObject.baseCall();
+		if (fn == null) {
+			throw new IllegalArgumentException("function is expected, fnObject: " + fnObject);
+		}
+		return UdpBenchmark.measure(ctx, instance, fn, optionsObject);
+	}
+	
 	/** @param instance
 	 * @param bufferObject
 	 * @param offsetObject
@@ -124,6 +163,39 @@ public final class UdpServiceHelper {
 		return length;
 	}
 	
+	/** @param instance
+	 * @param bufferObject
+	 * @param offsetObject
+	 * @return
+	 * @throws IllegalArgumentException
+	 *
+	 *             <code>
+			function(b, o){
+				b[o] = this.errorCode & 0xFF;
+				return 1;
+			}
+	 </code> */
+	@ReflectionExplicit
+	@ReflectionThisArgument
+	public static int buildMsgCerr(//
+			final BaseObject instance,
+			final BaseObject bufferObject,
+			final BaseObject offsetObject) throws IllegalArgumentException {
+		
+		final byte[] buffer = (byte[]) bufferObject.baseValue();
+		if (buffer == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
+		}
+		
+		final int offset = offsetObject.baseToJavaInteger();
+		if (offset >= buffer.length) {
+			throw new IllegalArgumentException("invalid offset: buffer length: " + buffer.length + ", offset: " + offset);
+		}
+		
+		buffer[offset] = (byte) (instance.baseGet(UdpServiceHelper.STR_errorCode, BaseObject.UNDEFINED).baseToJavaInteger() & 0xFF);
+		return 1;
+	}
+	
 	/** @param instance
 	 * @param bufferObject
 	 * @param offsetObject
@@ -248,61 +320,133 @@ public final class UdpServiceHelper {
 		return 3;
 	}
 	
-	/** finished task expired
+	/** pending task timeout expired...
 	 *
+	 * @param ctx
 	 * @param instance
 	 * @param serial
+	 * @param task
 	 *
 	 *
 	 *            <code>
-		function(serial, task){
-			if(this.sRx < serial && (serial > 16000000) === (this.sRx > 16000000)){
-				this.sRx = serial;
-			}
-		}
+	function(serial, task){
+		this.state.getReplyWindow().mark(serial);
+		task.onDestroy();
+	}
 	 </code> */
 	@ReflectionExplicit
+	@ReflectionContextArgument
 	@ReflectionThisArgument
-	public static void expireReceiveCachedSerial(final BaseObject instance, final BaseObject serial) {
+	public static void expireWaitingTaskSerial(final ExecProcess ctx, final BaseObject instance, final BaseObject serial, final BaseObject task) {
 		
-		final int thisRx = instance.baseGet(UdpServiceHelper.STR_sRx, BasePrimitiveNumber.ZERO).baseToJavaInteger();
-		final int thisTx = instance.baseGet(UdpServiceHelper.STR_sTx, BasePrimitiveNumber.ZERO).baseToJavaInteger();
-		final int taskAx = serial.baseToJavaInteger();
-		if (thisRx < taskAx && thisTx > taskAx && taskAx > 16000000 == thisRx > 16000000) {
-			instance.baseDefine(UdpServiceHelper.STR_sRx, serial, BaseProperty.ATTRS_MASK_WED);
+		UdpPrincipal.forPrincipal(instance).getReplyWindow().mark(serial.baseToInt32());
+		final BaseFunction onDestroy = task.baseGet(UdpServiceHelper.STR_onDestroy, BaseObject.UNDEFINED).baseCall();
+		if (onDestroy == null) {
+			return;
 		}
+		onDestroy.callVE0(ctx, task);
 	}
 	
-	/** pending task timeout expired...
+	/** Runs the load generator on the calling thread until the run is over and the outstanding
+	 * operations reported, see UdpLoadGenerator and 'udpload' shell command.
 	 *
 	 * @param ctx
 	 * @param instance
-	 * @param serial
-	 * @param task
+	 *            - UdpLoadGenerator
+	 * @param issueFnObject
+	 *            - starts one operation, called with the generator as 'this'
+	 * @return report */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static BaseObject loadRun(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject issueFnObject//
+	) {
+		
+		if (!(instance.baseValue() instanceof final UdpLoadGenerator generator)) {
+			throw new IllegalArgumentException("UdpLoadGenerator is expected, instance: " + instance);
+		}
+		final BaseFunction issue = issueFnObject.baseCall();
+		if (issue == null) {
+			throw new IllegalArgumentException("function is expected, issueFnObject: " + issueFnObject);
+		}
+		return generator.run(ctx, instance, issue);
+	}
+	
+	/** Parses CALL body: component name up to the NUL byte, argument - the rest of the payload.
+	 * The terminator is looked for within the payload only, no terminator - no message (bad
+	 * body). Component names are resolved by their bytes through UdpComponentNames, the common
+	 * ones are not decoded again.
 	 *
+	 * The parse buffer is reused by the next packet while the message waits in the mailbox of
+	 * the principal, so the argument is a view over its own copy of the bytes: exactly one copy,
+	 * no copy at all for an empty argument.
 	 *
-	 *            <code>
-	function(serial, task){
-		this.receiveReplySerialsCache.put(serial, task);
-		task.onDestroy();
-	}
+	 * @param instance
+	 *            - MSG_Q_CALL class
+	 * @param bufferObject
+	 * @param offsetObject
+	 * @param serialObject
+	 * @param lengthObject
+	 * @return message or null
+	 *
+	 *         <code>
+			function(b, o, s, L){
+				var l = 0, component;
+				for(;l < L; ++l){
+					if(b[o + l] === 0){
+						component = Transfer.wrapCopier(b, o, l++).toStringUtf8();
+						break;
+					}
+				}
+				if(component === undefined){
+					return null;
+				}
+				return new MSG_Q_CALL(component, Transfer.createCopier(b, o + l, L - l), s);
+			}
 	 </code> */
 	@ReflectionExplicit
-	@ReflectionContextArgument
 	@ReflectionThisArgument
-	public static void expireWaitingTaskSerial(final ExecProcess ctx, final BaseObject instance, final BaseObject serial, final BaseObject task) {
+	public static BaseObject parseMsgCall(//
+			final BaseObject instance,
+			final BaseObject bufferObject,
+			final BaseObject offsetObject,
+			final BaseObject serialObject,
+			final BaseObject lengthObject//
+	) {
 		
-		final BaseObject receiveReplySerialsCache = instance.baseGet(UdpServiceHelper.STR_receiveReplySerialsCache, BaseObject.UNDEFINED);
-		if (receiveReplySerialsCache instanceof final CoarseDelayCache coarseDelayCache) {
-			coarseDelayCache.put(serial.baseToInt32(), task);
-		} else {
-			receiveReplySerialsCache.baseDefine(serial.baseToInt32(), task);
+		final byte[] buffer = (byte[]) bufferObject.baseValue();
+		if (buffer == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
 		}
-		final BaseFunction onDestroy = task.baseGet(UdpServiceHelper.STR_onDestroy, BaseObject.UNDEFINED).baseCall();
-		if (onDestroy == null) {
-			return;
+		final int offset = offsetObject.baseToJavaInteger();
+		final int length = lengthObject.baseToJavaInteger();
+		if (offset < 0 || length < 0 || buffer.length - offset < length) {
+			throw new IllegalArgumentException("payload is out of the buffer: length: " + buffer.length + ", offset: " + offset + ", payload: " + length);
 		}
-		onDestroy.callVE0(ctx, task);
+		
+		final int end = offset + length;
+		int terminator = offset;
+		for (; terminator < end && buffer[terminator] != 0; ++terminator) {
+			//
+		}
+		if (terminator == end) {
+			return null;
+		}
+		
+		final BasePrimitiveString component = UdpComponentNames.INSTANCE.intern(buffer, offset, terminator - offset);
+		final BaseObject argument = terminator + 1 == end
+			? TransferCopier.NUL_COPIER
+			: Transfer.wrapCopier(Arrays.copyOfRange(buffer, terminator + 1, end));
+		
+		/** same as the constructor does */
+		final BaseObject message = BaseObject.createObject(instance.baseGet(UdpServiceHelper.STR_prototype, BaseObject.UNDEFINED));
+		message.baseDefine(UdpServiceHelper.STR_component, component, BaseProperty.ATTRS_MASK_WED);
+		message.baseDefine(UdpServiceHelper.STR_argument, argument, BaseProperty.ATTRS_MASK_WED);
+		message.baseDefine(UdpServiceHelper.STR_serial, serialObject, BaseProperty.ATTRS_MASK_WED);
+		return message;
 	}
 	
 	/** @param instance
@@ -352,15 +496,8 @@ public final class UdpServiceHelper {
 			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
 		}
 		
-		final TransferCopier secret = Transfer.createCopierFromBinary(instance.baseGet(UdpServiceHelper.STR_secret, TransferCopier.NUL_COPIER));
-		if (secret == null || secret.length() == 0) {
-			throw new IllegalArgumentException("non empty 'secret' binary property is expected, secret: " + secret);
-		}
-		
-		final MessageDigest digest = (MessageDigest) ((MessageDigest) digestObject.baseValue()).clone();
-		Transfer.updateMessageDigest(digest, pkt, 16, 16);
-		secret.updateMessageDigest(digest);
-		Transfer.xorBytes(pkt, 32, digest.digest(), buffer, offset, payloadLength);
+		/** or 'cipher' mode of the principal, see UdpPrincipalCrypto */
+		UdpPrincipalCrypto.forPrincipal(instance).decryptBinary(pkt, bufferObject, offset, payloadLength, digestObject);
 		return payloadLength;
 	}
 	/** @param instance
@@ -395,15 +532,8 @@ public final class UdpServiceHelper {
 			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
 		}
 		final int payloadLength = payloadLengthObject.baseToJavaInteger();
-		final TransferCopier secret = Transfer.createCopierFromBinary(instance.baseGet(UdpServiceHelper.STR_secret, TransferCopier.NUL_COPIER));
-		if (secret == null || secret.length() == 0) {
-			throw new IllegalArgumentException("non empty 'secret' binary property is expected, secret: " + secret);
-		}
-		
-		final MessageDigest digest = (MessageDigest) ((MessageDigest) digestObject.baseValue()).clone();
-		Transfer.updateMessageDigest(digest, buffer, 16, 16);
-		secret.updateMessageDigest(digest);
-		Transfer.xorBytes(buffer, 32, digest.digest(), payloadLength);
+		/** or 'cipher' mode of the principal, see UdpPrincipalCrypto */
+		UdpPrincipalCrypto.forPrincipal(instance).encrypt(buffer, payloadLength, (MessageDigest) digestObject.baseValue());
 		return payloadLength;
 	}
 	
@@ -450,13 +580,8 @@ public final class UdpServiceHelper {
 				this.sTx = serial;
 			}
 		</code> */
-		{
-			final int thisTx = instance.baseGet(UdpServiceHelper.STR_sTx, BasePrimitiveNumber.ZERO).baseToJavaInteger();
-			final int serial = serialObject.baseToJavaInteger();
-			if (thisTx < serial && serial > 16000000 == thisTx > 16000000) {
-				instance.baseDefine(UdpServiceHelper.STR_sTx, serialObject, BaseProperty.ATTRS_MASK_WED);
-			}
-		}
+		final UdpPrincipal state = UdpPrincipal.forPrincipal(instance);
+		state.observeTx(serialObject.baseToJavaInteger());
 		
 		/** <code>
 			c = message.code;
@@ -478,6 +603,28 @@ public final class UdpServiceHelper {
 			return;
 		}
 		
+		/** CALL component dispatch: unknown components are answered right here, see
+		 * UdpComponentRegistry */
+		if (code == UdpComponentRegistry.CODE_CALL) {
+			final UdpComponentRegistry components = state.getComponents();
+			if (components != null && !components.isEmpty()) {
+				final BaseFunction handler = components.lookup(messageObject.baseGet(UdpServiceHelper.STR_component, BaseObject.UNDEFINED));
+				if (handler != null) {
+					UdpServiceHelper.principalPost(ctx, instance, state, handler, messageObject, addressObject, serialObject);
+					return;
+				}
+				if (Report.MODE_DEBUG) {
+					ctx.getConsole().log("UDP::Principal:onReceive:Java: %s: unknown component: %s, address: %s, serial: %s", instance, messageObject, addressObject, serialObject);
+				}
+				try {
+					UdpServiceHelper.principalSendSingle(ctx, instance, components.reject(serialObject), addressObject);
+				} catch (final IOException e) {
+					ctx.getConsole().log("UDP::Principal:onReceive:Java: %s: reject failed, message: %s, error: %s", instance, messageObject, e);
+				}
+				return;
+			}
+		}
+		
 		/** <code>
 			h = this.handlers[c];
 			if(h){
@@ -516,18 +663,7 @@ public final class UdpServiceHelper {
 			}
 			final BaseFunction handler = handlerObject.baseCall();
 			if (handler != null) {
-				Exec.callAsyncUnrelated(
-						Exec.createProcess(UdpServiceHelper.CTX, ctx, "UdpPrincipal::onReceive, handler"),
-						handler,
-						instance,
-						ResultHandler.FU_BNN_NXT,
-						messageObject,
-						addressObject,
-						serialObject//
-				);
-				
-				// handler.callVEA(ctx, BaseObject.NULL, messageObject, addressObject,
-				// serialObject);
+				UdpServiceHelper.principalPost(ctx, instance, state, handler, messageObject, addressObject, serialObject);
 			}
 		}
 		
@@ -609,14 +745,375 @@ public final class UdpServiceHelper {
 			final BaseObject addressObject//
 	) throws IOException, CloneNotSupportedException, DigestException {
 		
+		final MessageDigest digest = (MessageDigest) digestObject.baseValue();
+		if (digest == null) {
+			throw new IllegalArgumentException("MessageDigest is expected, digestObject class: " + digestObject.getClass().getName());
+		}
+		return UdpServiceHelper.principalSend(ctx, instance, bufferObject, digest, null, null, m, addressObject);
+	}
+	
+	/** Repeats the reply kept by the query replay window from its signed datagram, when
+	 * there is one, see UdpReplayWindow 'keepPackets'.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - Principal
+	 * @param serialObject
+	 *            - serial of the repeated request
+	 * @param m
+	 *            - reply message from the replay window
+	 * @param addressObject
+	 * @return false when nothing is kept, the reply is to be sent with 'sendImpl' */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static boolean principalSendRepeat(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject serialObject,
+			final BaseObject m,
+			final BaseObject addressObject//
+	) {
+		
+		return UdpServiceHelper.sendRepeat(ctx, instance, UdpPrincipal.forPrincipal(instance), serialObject.baseToJavaInteger(), m, addressObject);
+	}
+	
+	/** Sends the message with the send context of the current thread: buffer, digest and
+	 * scratch arrays are reused, see UdpSendContext. With the 'batch' property set on the
+	 * principal messages are coalesced into BTCH containers, see UdpBatchCoalescer.
+	 *
+	 * Runs the java sendImpl pipeline directly while 'sendImpl' of the principal is the
+	 * Principal one ('sendImplDefault'), an own 'sendImpl' of a subclass is called with the
+	 * buffer and digest of the send context instead.
+	 *
+	 * @param ctx
+	 * @param instance
+	 * @param m
+	 *            messageObject
+	 * @param addressObject
+	 *            addressObject
+	 *
+	 *            <code>
+			value : UdpServiceHelper.principalSendSingle || (function(m, a){
+				return this.sendImpl(new ArrayBuffer(1500), new WhirlpoolDigest(), m, a);
+			})
+	 * </code>
+	 *
+	 * @return
+	 * @throws IOException */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static int principalSendSingle(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject m,
+			final BaseObject addressObject//
+	) throws IOException {
+		
+		final BaseObject sendImpl = instance.baseGet(UdpServiceHelper.STR_sendImpl, BaseObject.UNDEFINED);
+		final UdpSendContext context = UdpSendContext.obtain(ctx, instance);
+		try {
+			if (sendImpl != instance.baseGet(UdpServiceHelper.STR_sendImplDefault, BaseObject.UNDEFINED)) {
+				final BaseFunction function = sendImpl.baseCall();
+				if (function == null) {
+					throw new IllegalArgumentException("sendImpl function is expected, principal: " + instance);
+				}
+				context.digest.reset();
+				return function.callNEA(ctx, instance, context.bufferObject, context.digestObject, m, addressObject).baseToJavaInteger();
+			}
+			return UdpServiceHelper.principalSend(ctx, instance, context.bufferObject, context.digest, context, UdpBatchCoalescer.forPrincipal(instance), m, addressObject);
+		} finally {
+			context.release();
+		}
+	}
+	
+	/** Prepares one request message for every peer of the list: the payload is built once and
+	 * a serial is reserved per peer, nothing is sent until UdpFanOut.send. The caller registers
+	 * the waiting tasks under the reserved serials first, so no reply can arrive before its task
+	 * is known.
+	 *
+	 * <code>
+		prepareFanOut : {
+			value : UdpServiceHelper.taskPrepareFanOut || null
+		},
+	 * </code>
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - task, for logging
+	 * @param peersObject
+	 *            - array of Principal
+	 * @param m
+	 *            - request message, without 'serial', same for every peer
+	 * @return UdpFanOut, reserved serial per peer, or null when the message can not be sent this
+	 *         way */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static UdpFanOut taskPrepareFanOut(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject peersObject,
+			final BaseObject m//
+	) {
+		
+		if (m.baseGet(UdpServiceHelper.STR_isReply, BaseObject.UNDEFINED).baseToJavaBoolean() || m.baseGet(UdpServiceHelper.STR_serial, BaseObject.UNDEFINED).baseToJavaBoolean()) {
+			return null;
+		}
+		final List<BaseObject> peers = UdpFanOut.toList(peersObject);
+		if (peers.isEmpty()) {
+			return null;
+		}
+		final BaseFunction messageBuildFn = m.baseGet(UdpServiceHelper.STR_build, BaseObject.UNDEFINED).baseCall();
+		if (messageBuildFn == null) {
+			throw new IllegalArgumentException("Message type build function is expected, messageObject: " + m);
+		}
+		
+		/** built once, in the send buffer of the thread */
+		final byte[] payload;
+		final int len;
+		{
+			final UdpSendContext context = UdpSendContext.obtain(ctx, peers.get(0));
+			try {
+				len = messageBuildFn.callIE2(ctx, m, context.bufferObject, UdpServiceHelper.INT_32) + 32;
+				payload = Arrays.copyOf(context.buffer, len);
+			} finally {
+				context.release();
+			}
+		}
+		
+		final UdpFanOut result = UdpFanOut.prepare(//
+				ctx,
+				peers,
+				payload,
+				len,
+				m.baseGet(UdpServiceHelper.STR_code, BaseObject.UNDEFINED).baseToJavaInteger() & 0xFF,
+				m.baseGet(UdpServiceHelper.STR_encrypt, BaseObject.UNDEFINED).baseToJavaBoolean()//
+		);
+		if (Report.MODE_DEVEL || m.baseGet(UdpServiceHelper.STR_log, BaseObject.UNDEFINED) == BaseObject.TRUE) {
+			ctx.getConsole().log(//
+					"UDP::Task:prepareFanOut:Java: %s: udp-send-prepared: peers: %s, len: %s, %s",
+					instance.baseToPrimitive(ToPrimitiveHint.STRING).baseValue(),
+					Integer.toString(result.getCount()),
+					Integer.toString(len),
+					m.baseToPrimitive(ToPrimitiveHint.STRING).baseValue()//
+			);
+		}
+		return result;
+	}
+	
+	/** Sends one request message to every peer of the list: the payload is built once, each
+	 * peer gets own header, serial, encryption and signature, see UdpFanOut. For requests
+	 * which are not awaited, tasks use taskPrepareFanOut.
+	 *
+	 * <code>
+		sendFanOut : {
+			value : UdpServiceHelper.taskSendFanOut || null
+		},
+	 * </code>
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - task, for logging
+	 * @param peersObject
+	 *            - array of Principal
+	 * @param m
+	 *            - request message, without 'serial', same for every peer
+	 * @return UdpFanOut, serial per peer, or null when the message can not be sent this way */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static UdpFanOut taskSendFanOut(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject peersObject,
+			final BaseObject m//
+	) {
+		
+		final UdpFanOut result = UdpServiceHelper.taskPrepareFanOut(ctx, instance, peersObject, m);
+		if (result == null) {
+			return null;
+		}
+		result.send();
+		if (Report.MODE_DEVEL || m.baseGet(UdpServiceHelper.STR_log, BaseObject.UNDEFINED) == BaseObject.TRUE) {
+			ctx.getConsole().log(//
+					"UDP::Task:sendFanOut:Java: %s: udp-send: peers: %s, sent: %s, %s",
+					instance.baseToPrimitive(ToPrimitiveHint.STRING).baseValue(),
+					Integer.toString(result.getCount()),
+					Integer.toString(result.getSent()),
+					m.baseToPrimitive(ToPrimitiveHint.STRING).baseValue()//
+			);
+		}
+		return result;
+	}
+	
+	/** <code>
+		s = this.sTx = 1 + Math.max(this.sTx, this.sRx);
+	 * </code>
+	 *
+	 * @param instance
+	 *            - Principal
+	 * @return next outgoing serial */
+	static int nextSerial(final BaseObject instance) {
+		
+		return UdpPrincipal.forPrincipal(instance).nextSerial();
+	}
+	
+	/** Sends a packet built outside of the Message classes (containers, bulk blocks) on behalf
+	 * of the principal: next serial, payload encryption, signature and 'sendUdp'.
+	 *
+	 * @param packet
+	 *            header space and payload, the key (16..28) is written here
+	 * @param length
+	 *            packet length, header included
+	 * @param code
+	 *            message code
+	 * @param encrypt
+	 * @param address
+	 *            null - principal 'dst'
+	 * @return serial used, 0 when not sent */
+	static int sendPacket(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final UdpSendContext context,
+			final byte[] packet,
+			final int length,
+			final int code,
+			final boolean encrypt,
+			final BaseObject address//
+	) {
+		
+		return UdpServiceHelper.sendPacket(ctx, instance, context, packet, length, code, encrypt, address, 0);
+	}
+	
+	/** @param reserved
+	 *            serial taken with nextSerial beforehand, 0 - next serial
+	 * @see #sendPacket(ExecProcess, BaseObject, UdpSendContext, byte[], int, int, boolean,
+	 *      BaseObject) */
+	static int sendPacket(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final UdpSendContext context,
+			final byte[] packet,
+			final int length,
+			final int code,
+			final boolean encrypt,
+			final BaseObject address,
+			final int reserved//
+	) {
+		
+		final UdpPrincipal state = UdpPrincipal.forPrincipal(instance);
+		final BaseObject a = address != null && address.baseToJavaBoolean()
+			? address
+			: state.dst();
+		if (a == null) {
+			ctx.getConsole().log(//
+					"UDP::Principal:sendPacket:Java: %s: udp-send-skip, no address, code: %s",
+					instance.baseToPrimitive(ToPrimitiveHint.STRING).baseValue(),
+					Integer.toString(code)//
+			);
+			return 0;
+		}
+		final TransferCopier keyBinary = state.keyBinary();
+		if (keyBinary == null) {
+			throw new IllegalArgumentException("non empty 'key' binary property is expected, instance: " + instance);
+		}
+		keyBinary.copy(0, packet, 16, 12);
+		
+		final int serial = reserved != 0
+			? reserved
+			: state.nextSerial();
+		packet[16 + 12] = (byte) code;
+		UdpServiceHelper.countTx(state, code);
+		packet[16 + 12 + 1] = (byte) (serial >> 16 & 0xFF);
+		packet[16 + 12 + 2] = (byte) (serial >> 8 & 0xFF);
+		packet[16 + 12 + 3] = (byte) (serial >> 0 & 0xFF);
+		
+		final UdpPrincipalCrypto crypto = UdpPrincipalCrypto.forPrincipal(instance);
+		if (encrypt) {
+			crypto.encrypt(context, packet, length - 32);
+		}
+		crypto.sign(context, packet, length);
+		
+		state.sendUdp(instance).callIE2(ctx, instance, Transfer.wrapCopier(packet, 0, length), a);
+		return serial;
+	}
+	
+	/** @return false when the query replay window has no signed datagram of the reply */
+	static boolean sendRepeat(final ExecProcess ctx, final BaseObject instance, final UdpPrincipal state, final int serial, final BaseObject m, final BaseObject address) {
+		
+		final UdpReplayWindow queryWindow = state.queryWindow();
+		if (queryWindow == null) {
+			return false;
+		}
+		final byte[] packet = queryWindow.packet(serial, m, state.secretObject());
+		if (packet == null) {
+			return false;
+		}
+		UdpServiceHelper.countTx(state, packet[16 + 12]);
+		state.sendUdp(instance).callIE2(ctx, instance, Transfer.wrapCopier(packet), address);
+		return true;
+	}
+	
+	/** message sent or coalesced, see UdpMetrics */
+	private static void countTx(final UdpPrincipal state, final int code) {
+		
+		UdpMetrics.INSTANCE.count(code, UdpMetrics.TX);
+		final UdpPeerMetrics metrics = state.metrics();
+		if (metrics != null) {
+			metrics.tx.increment();
+		}
+	}
+	
+	/** handler call in order per principal, see UdpPrincipalMailbox */
+	private static void principalPost(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final UdpPrincipal state,
+			final BaseFunction handler,
+			final BaseObject messageObject,
+			final BaseObject addressObject,
+			final BaseObject serialObject//
+	) {
+		
+		if (!state.mailbox(instance, UdpServiceHelper.CTX).post(handler, messageObject, addressObject, serialObject)) {
+			ctx.getConsole().log("UDP::Principal:onReceive:Java: %s: mailbox full, dropped: %s, address: %s, serial: %s", instance, messageObject, addressObject, serialObject);
+			final UdpPeerMetrics metrics = state.metrics();
+			if (metrics != null) {
+				metrics.dropped.increment();
+			}
+		}
+	}
+	
+	/** @param context
+	 *            null - digest is a prototype and cloned, otherwise scratch state of the
+	 *            context is used
+	 * @param batch
+	 *            null - send the datagram, otherwise the built packet is appended to the
+	 *            coalescer when it fits */
+	static int principalSend(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject bufferObject,
+			final MessageDigest digest,
+			final UdpSendContext context,
+			final UdpBatchCoalescer batch,
+			final BaseObject m,
+			final BaseObject addressObject//
+	) throws IOException {
+		
 		/** <code>
 			if( ! (a ||= this.dst) ){
 		</code> */
+		/** typed fields of the principal */
+		final UdpPrincipal state = UdpPrincipal.forPrincipal(instance);
+		
 		/** a - addressObject **/
 		final BaseObject a = addressObject.baseToJavaBoolean()
 			? addressObject
-			: instance.baseGet(UdpServiceHelper.STR_dst, BaseObject.UNDEFINED);
-		if (!a.baseToJavaBoolean()) {
+			: state.dst();
+		if (a == null) {
 			/** <code>
 				if(false !== m.log){
 			</code> */
@@ -648,13 +1145,18 @@ public final class UdpServiceHelper {
 					return 0;
 				}
 		</code> */
-		final BaseObject keyObject;
+		final TransferCopier keyBinary;
 		{
-			final BaseObject keyInstanceObject = instance.baseGet(UdpServiceHelper.STR_key, BaseObject.UNDEFINED);
-			keyObject = keyInstanceObject != BaseObject.UNDEFINED
-				? keyInstanceObject
-				: m.baseGet(UdpServiceHelper.STR_key, BaseObject.UNDEFINED);
-			if (!keyObject.baseToJavaBoolean()) {
+			final TransferCopier keyInstanceBinary = state.keyBinary();
+			if (keyInstanceBinary != null) {
+				keyBinary = keyInstanceBinary;
+			} else {
+				final BaseObject keyObject = m.baseGet(UdpServiceHelper.STR_key, BaseObject.UNDEFINED);
+				keyBinary = keyObject.baseToJavaBoolean()
+					? Transfer.createCopierFromBinary(keyObject)
+					: null;
+			}
+			if (keyBinary == null || keyBinary.length() == 0) {
 				ctx.getConsole().log(//
 						"UDP::Principal:sendImpl:Java: %s: udp-send-skip, no dst alias, message: %s",
 						instance.baseToPrimitive(ToPrimitiveHint.STRING).baseValue(),
@@ -667,6 +1169,9 @@ public final class UdpServiceHelper {
 		/** message serial int **/
 		final int serial;
 		
+		/** replay window the reply is kept by, to keep the signed datagram as well */
+		UdpReplayWindow replyWindow = null;
+		
 		/** <code>
 				if(m.isReply){
 		 * </code> */
@@ -697,12 +1202,11 @@ public final class UdpServiceHelper {
 			
 			/** <code>
 				this.cacheIncomingQuerySerial(s, m);
-			* </code> */
-			final BaseObject receiveQuerySerialsCache = instance.baseGet(UdpServiceHelper.STR_receiveQuerySerialsCache, BaseObject.UNDEFINED);
-			if (receiveQuerySerialsCache instanceof final CoarseDelayCache coarseDelayCache) {
-				coarseDelayCache.put(messageSerialObject.baseToInt32(), m);
-			} else {
-				receiveQuerySerialsCache.baseDefine(messageSerialObject.baseToInt32(), m);
+			* </code> the reply is kept by the query replay window for repeats */
+			final UdpReplayWindow queryWindow = state.queryWindow();
+			if (queryWindow != null) {
+				queryWindow.put(serial, m);
+				replyWindow = queryWindow;
 			}
 			
 		} else {
@@ -714,12 +1218,8 @@ public final class UdpServiceHelper {
 				if (messageSerialObject != BaseObject.UNDEFINED) {
 					serial = messageSerialObject.baseToJavaInteger();
 				} else {
-					final int thisTx = instance.baseGet(UdpServiceHelper.STR_sTx, BasePrimitiveNumber.ZERO).baseToJavaInteger();
-					final int thisRx = instance.baseGet(UdpServiceHelper.STR_sRx, BasePrimitiveNumber.ZERO).baseToJavaInteger();
-					serial = 1 + Math.max(thisTx, thisRx);
-					final BasePrimitiveNumber serialObject = Base.forInteger(serial);
-					m.baseDefine(UdpServiceHelper.STR_serial, serialObject, BaseProperty.ATTRS_MASK_WED);
-					instance.baseDefine(UdpServiceHelper.STR_sTx, serialObject, BaseProperty.ATTRS_MASK_WED);
+					serial = state.nextSerial();
+					m.baseDefine(UdpServiceHelper.STR_serial, Base.forInteger(serial), BaseProperty.ATTRS_MASK_WED);
 				}
 			}
 		}
@@ -753,55 +1253,58 @@ public final class UdpServiceHelper {
 		/** <code>
 			key.copy(0, b, 16, 12);
 		</code> */
-		final TransferCopier keyBinary = Transfer.createCopierFromBinary(keyObject);
-		if (keyBinary == null || keyBinary.length() == 0) {
-			throw new IllegalArgumentException("non empty 'key' binary property is expected, key object: " + keyObject);
-		}
 		keyBinary.copy(0, b, 16, 12);
 		
 		/** <code>
 			b[16 + 12] = m.code;
 		</code> */
 		b[16 + 12] = (byte) (m.baseGet(UdpServiceHelper.STR_code, BaseObject.UNDEFINED).baseToJavaInteger() & 0xFF);
+		UdpServiceHelper.countTx(state, b[16 + 12]);
+		
+		/** coalesced into the BTCH container, unless it does not fit one */
+		if (batch != null && batch.append(ctx, b, len, a)) {
+			return len;
+		}
 		
 		/** <code>
 			pkt = Transfer.wrapCopier(b, 0, len);
-		</code> */
+		</code> a view over the send buffer of the thread: 'sendUdp' must not keep it past the
+		 * call, see Principal 'sendUdp' */
 		final TransferCopier packetBinary = Transfer.wrapCopier(b, 0, len);
 		
 		{
-			final TransferCopier secret = Transfer.createCopierFromBinary(instance.baseGet(UdpServiceHelper.STR_secret, TransferCopier.NUL_COPIER));
-			if (secret == null || secret.length() == 0) {
-				throw new IllegalArgumentException("non empty 'secret' binary property is expected, secret: " + secret);
-			}
+			/** secret, 'auth' and 'cipher' modes of the principal, see UdpPrincipalCrypto */
+			final UdpPrincipalCrypto crypto = UdpPrincipalCrypto.forPrincipal(instance);
 			
 			/** <code>
 			m.encrypt && this.payloadEncrypt(b, len, d);
 			</code> */
 			if (m.baseGet(UdpServiceHelper.STR_encrypt, BaseObject.UNDEFINED).baseToJavaBoolean()) {
-				final MessageDigest digest = (MessageDigest) ((MessageDigest) digestObject.baseValue()).clone();
-				Transfer.updateMessageDigest(digest, b, 16, 16);
-				secret.updateMessageDigest(digest);
-				Transfer.xorBytes(b, 32, digest.digest(), len);
+				if (context == null) {
+					crypto.encrypt(b, len - 32, digest);
+				} else {
+					crypto.encrypt(context, b, len - 32);
+				}
 			}
 			
-			{
-				/** <code>
-				d = d.clone();
-				pkt.slice(16, len - 16).updateMessageDigest(d);
-				this.secret.updateMessageDigest(d);
-				</code> */
-				final MessageDigest digest = (MessageDigest) ((MessageDigest) digestObject.baseValue()).clone();
-				packetBinary.slice(16, len - 16).updateMessageDigest(digest);
-				secret.updateMessageDigest(digest);
-				
-				/** <code>
-				copyBytes(d.result, 0, b, 0, 16);
-				</code> */
-				Transfer.copyBytes(digest.digest(), 0, b, 0, 16);
+			/** <code>
+			d = d.clone();
+			pkt.slice(16, len - 16).updateMessageDigest(d);
+			this.secret.updateMessageDigest(d);
+			copyBytes(d.result, 0, b, 0, 16);
+			</code> */
+			if (context == null) {
+				crypto.sign(b, len, digest);
+			} else {
+				crypto.sign(context, b, len);
 			}
 		}
 		
+		/** repeats of the request get this very datagram, see UdpReplayWindow 'keepPackets' */
+		if (replyWindow != null && replyWindow.isKeepPackets()) {
+			replyWindow.putPacket(serial, m, Arrays.copyOf(b, len), state.secretObject());
+		}
+		
 		/** <code>
 				if(true === m.log){
 					Object.keys( (m = Object.create(m)) ).forEach(function(k, v){
@@ -851,12 +1354,271 @@ public final class UdpServiceHelper {
 			return this.sendUdp(pkt, a);
 		</code> */
 		{
-			final BaseFunction sendUdpFn = instance.baseGet(UdpServiceHelper.STR_sendUdp, BaseObject.UNDEFINED).baseCall();
-			if (sendUdpFn == null) {
-				throw new IllegalArgumentException("sendUdp function is expected, instance: " + instance);
+			return state.sendUdp(instance).callIE2(ctx, instance, packetBinary, a);
+		}
+	}
+	
+	/** Replays a capture file through the receive pipeline of the UdpService, see
+	 * UdpCaptureReplay.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - UdpService, "buffered" receive mode
+	 * @param pathObject
+	 *            - capture file
+	 * @param optionsObject
+	 *            - optional: {speed: 1}, 0 - as fast as possible
+	 * @return report object
+	 * @throws IOException */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static BaseObject serviceReplayCapture(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject pathObject,
+			final BaseObject optionsObject//
+	) throws IOException {
+		
+		final BaseObject speedObject = optionsObject.baseGet(UdpServiceHelper.STR_speed, BaseObject.UNDEFINED);
+		return UdpCaptureReplay.replay(ctx, instance, new File(pathObject.baseToJavaString()), speedObject == BaseObject.UNDEFINED
+			? 1.0
+			: speedObject.baseToNumber());
+	}
+	
+	/** 'sendUdp' of the UdpService: records the datagram when capturing (see UdpCapture), sends
+	 * it through the pacer when there is one (see UdpSendPacer), 'sock.send' otherwise.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - UdpService
+	 * @param payloadObject
+	 * @param addressObject
+	 * @return 'sock.send' result, payload length when queued, 0 when dropped */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static int serviceSendUdp(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject payloadObject,
+			final BaseObject addressObject//
+	) {
+		
+		if (instance.baseGet(UdpServiceHelper.STR_capture, BaseObject.UNDEFINED).baseValue() instanceof final UdpCapture capture) {
+			capture.record(UdpCapture.OUT, payloadObject, addressObject);
+		}
+		if (instance.baseGet(UdpServiceHelper.STR_pacer, BaseObject.UNDEFINED).baseValue() instanceof final UdpSendPacer pacer) {
+			return pacer.send(ctx, payloadObject, addressObject);
+		}
+		final BaseObject sock = instance.baseGet(UdpServiceHelper.STR_sock, BaseObject.UNDEFINED);
+		final BaseFunction send = sock.baseGet(UdpServiceHelper.STR_send, BaseObject.UNDEFINED).baseCall();
+		if (send == null) {
+			throw new IllegalArgumentException("sock.send function is expected, instance: " + instance);
+		}
+		return send.callIE2(ctx, sock, payloadObject, addressObject);
+	}
+	
+	/** Starts capturing datagrams of the UdpService to a file, see UdpCapture. The capture is
+	 * kept as the 'capture' property of the service, a running one is closed.
+	 *
+	 * @param instance
+	 *            - UdpService
+	 * @param pathObject
+	 *            - capture file, overwritten
+	 * @param optionsObject
+	 *            - optional: {limit: 1073741824} max file size, bytes
+	 * @return UdpCapture
+	 * @throws IOException */
+	@ReflectionExplicit
+	@ReflectionThisArgument
+	public static UdpCapture serviceStartCapture(//
+			final BaseObject instance,
+			final BaseObject pathObject,
+			final BaseObject optionsObject//
+	) throws IOException {
+		
+		final BaseObject limitObject = optionsObject.baseGet(UdpServiceHelper.STR_limit, BaseObject.UNDEFINED);
+		final UdpCapture capture = new UdpCapture(new File(pathObject.baseToJavaString()), limitObject == BaseObject.UNDEFINED
+			? 1L << 30
+			: limitObject.baseToJavaLong());
+		synchronized (instance) {
+			if (instance.baseGet(UdpServiceHelper.STR_capture, BaseObject.UNDEFINED).baseValue() instanceof final UdpCapture running) {
+				running.close();
 			}
-			return sendUdpFn.callIE2(ctx, instance, packetBinary, a);
+			instance.baseDefine(UdpServiceHelper.STR_capture, Base.forUnknown(capture), BaseProperty.ATTRS_MASK_WED);
 		}
+		return capture;
+	}
+	
+	/** Creates outbound pacer for the UdpService, see UdpSendPacer
+	 *
+	 * @param instance
+	 *            - UdpService
+	 * @param optionsObject
+	 *            - {rate: 0, burst: 64, peerRate: 0, peerBurst: 16, queue: 16384}
+	 * @return UdpSendPacer */
+	@ReflectionExplicit
+	@ReflectionThisArgument
+	public static UdpSendPacer serviceSendPacer(//
+			final BaseObject instance,
+			final BaseObject optionsObject//
+	) {
+		
+		return new UdpSendPacer(instance, optionsObject);
+	}
+	
+	/** Creates priority receive queue for the UdpService in "buffered" receive mode: its
+	 * 'offer' is the UdpSocket callback, replies are parsed before requests and source keys
+	 * are served round-robin, see UdpReceiveQueue.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - UdpService
+	 * @param bufferObject
+	 *            - parse buffer, ArrayBuffer(1500)
+	 * @param digestObject
+	 *            - digest prototype
+	 * @param optionsObject
+	 *            - optional: {queue: 256}
+	 * @return UdpReceiveQueue */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static UdpReceiveQueue serviceReceiveQueue(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject bufferObject,
+			final BaseObject digestObject,
+			final BaseObject optionsObject//
+	) {
+		
+		final UdpServiceReceiver receiver = UdpServiceReceiver.forService(instance, bufferObject, digestObject);
+		final ExecProcess rxCtx = Exec.createProcess(UdpServiceHelper.CTX, ctx, "UdpService::receiveQueue");
+		return new UdpReceiveQueue(instance, receiver, rxCtx, optionsObject.baseGet(UdpServiceHelper.STR_queue, BaseObject.UNDEFINED).baseToJavaInteger());
+	}
+	
+	/** Opens batch receive socket for the UdpService: DatagramChannel with a pool of direct
+	 * buffers, every selector wake-up is parsed as one batch by the java receive pipeline.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - UdpService
+	 * @param portObject
+	 * @param bufferObject
+	 *            - parse buffer, ArrayBuffer(1500)
+	 * @param digestObject
+	 *            - digest prototype
+	 * @param optionsObject
+	 *            - optional: {batch: 64, bufferSize: 2048}
+	 * @return UdpDatagramChannel, UdpSocket compatible for 'send', 'port' and 'close'
+	 * @throws IOException */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static UdpDatagramChannel serviceListenBatch(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject portObject,
+			final BaseObject bufferObject,
+			final BaseObject digestObject,
+			final BaseObject optionsObject//
+	) throws IOException {
+		
+		final UdpServiceReceiver receiver = UdpServiceReceiver.forService(instance, bufferObject, digestObject);
+		final UdpDatagramChannel channel = new UdpDatagramChannel(
+				portObject.baseToJavaInteger(),
+				optionsObject.baseGet(UdpServiceHelper.STR_batch, BaseObject.UNDEFINED).baseToJavaInteger(),
+				optionsObject.baseGet(UdpServiceHelper.STR_bufferSize, BaseObject.UNDEFINED).baseToJavaInteger());
+		final ExecProcess rxCtx = Exec.createProcess(UdpServiceHelper.CTX, ctx, "UdpService::receiveBatch, port: " + channel.getPort());
+		return channel.start(batch -> receiver.receiveBatch(rxCtx, batch));
+	}
+	
+	/** Opens sharded receive sockets for the UdpService: N batch sockets bound to the same port
+	 * with SO_REUSEPORT, each with its own receiving thread and parse buffer, principals are
+	 * pinned to shards by their key, see UdpShardedChannel.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - UdpService
+	 * @param portObject
+	 * @param bufferFactoryObject
+	 *            - function returning a new parse buffer, called once per shard
+	 * @param digestObject
+	 *            - digest prototype
+	 * @param optionsObject
+	 *            - optional: {shards: availableProcessors, batch: 64, bufferSize: 2048}
+	 * @return UdpShardedChannel, UdpSocket compatible for 'send', 'port' and 'close'
+	 * @throws IOException */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static UdpShardedChannel serviceListenSharded(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject portObject,
+			final BaseObject bufferFactoryObject,
+			final BaseObject digestObject,
+			final BaseObject optionsObject//
+	) throws IOException {
+		
+		final BaseFunction bufferFactory = bufferFactoryObject.baseCall();
+		if (bufferFactory == null) {
+			throw new IllegalArgumentException("buffer factory function is expected, bufferFactory: " + bufferFactoryObject);
+		}
+		final int requested = optionsObject.baseGet(UdpServiceHelper.STR_shards, BaseObject.UNDEFINED).baseToJavaInteger();
+		final int count = requested > 0
+			? requested
+			: Runtime.getRuntime().availableProcessors();
+		final BaseObject[] buffers = new BaseObject[count];
+		for (int i = 0; i < count; ++i) {
+			buffers[i] = bufferFactory.callNE0(ctx, instance);
+		}
+		return new UdpShardedChannel(
+				instance,
+				Exec.createProcess(UdpServiceHelper.CTX, ctx, "UdpService::receiveSharded"),
+				portObject.baseToJavaInteger(),
+				buffers,
+				digestObject,
+				optionsObject.baseGet(UdpServiceHelper.STR_batch, BaseObject.UNDEFINED).baseToJavaInteger(),
+				optionsObject.baseGet(UdpServiceHelper.STR_bufferSize, BaseObject.UNDEFINED).baseToJavaInteger());
+	}
+	
+	/** Buffered receive callback of the UdpService, drains the queue and runs the whole
+	 * receive pipeline up to 'peer.onReceive' in java, see UdpServiceReceiver.
+	 *
+	 * @param ctx
+	 * @param instance
+	 *            - UdpService
+	 * @param bufferObject
+	 *            - bound parse buffer, ArrayBuffer(1500)
+	 * @param digestObject
+	 *            - bound digest prototype
+	 * @param queueObject
+	 *            - live argument, buffered queue
+	 *
+	 *            <code>
+		const onReceiveBufferImpl = module.exports = UdpServiceHelper.serviceReceiveBuffer || (function(b, d, q, pkt, load, key, peer, crc, m, l, ms, msg){
+			++ this.stRxLoops;
+			for(;;){
+				pkt = q.shift();
+				...
+				peer.onReceive(msg, pkt.sourceAddress, ms);
+			}
+		});
+	 * </code> */
+	@ReflectionExplicit
+	@ReflectionContextArgument
+	@ReflectionThisArgument
+	public static void serviceReceiveBuffer(//
+			final ExecProcess ctx,
+			final BaseObject instance,
+			final BaseObject bufferObject,
+			final BaseObject digestObject,
+			final BaseObject queueObject//
+	) {
+		
+		UdpServiceReceiver.forService(instance, bufferObject, digestObject).receiveQueue(ctx, queueObject);
 	}
 	
 	/** @param instance
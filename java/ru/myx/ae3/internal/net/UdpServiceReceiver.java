@@ -0,0 +1,772 @@
+package ru.myx.ae3.internal.net;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseArray;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.base.BasePrimitiveNumber;
+import ru.myx.ae3.base.BasePrimitiveString;
+import ru.myx.ae3.base.BaseProperty;
+import ru.myx.ae3.binary.Transfer;
+import ru.myx.ae3.binary.TransferCopier;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.report.Report;
+
+/** Java receive pipeline of the UdpService, the typed replacement for the
+ * 'ru.myx.ae3.internal/network/udp/BufferedRxParser' loop.
+ *
+ * One instance per UdpService, not thread-safe: the buffered receive callback never runs
+ * concurrently with itself.
+ *
+ * <ol>
+ * Packet layout:
+ * <li>0..16 - signature</li>
+ * <li>16..28 - principal key</li>
+ * <li>28 - message code</li>
+ * <li>29..32 - message serial</li>
+ * <li>32.. - payload</li>
+ * </ol>
+ *
+ * @author myx */
+final class UdpServiceReceiver {
+
+	private static final char[] BASE16 = "0123456789abcdef".toCharArray();
+
+	/** packet header length: signature + key + code + serial */
+	static final int HEADER_LENGTH = 32;
+
+	/** BTCH container message code, see MSG_Q_BTCH */
+	static final int CODE_BTCH = 0x3a;
+
+	/** BTCH container entry header length: code + serial + length */
+	static final int ENTRY_HEADER_LENGTH = 6;
+
+	private final static BasePrimitiveString STR_capture = Base.forString("capture");
+	private final static BasePrimitiveString STR_checkIncomingQuerySerial = Base.forString("checkIncomingQuerySerial");
+	private final static BasePrimitiveString STR_checkIncomingReplySerial = Base.forString("checkIncomingReplySerial");
+	private final static BasePrimitiveString STR_commandByKey = Base.forString("commandByKey");
+	private final static BasePrimitiveString STR_encrypt = Base.forString("encrypt");
+	private final static BasePrimitiveString STR_isReply = Base.forString("isReply");
+	private final static BasePrimitiveString STR_isRequest = Base.forString("isRequest");
+	private final static BasePrimitiveString STR_onReceive = Base.forString("onReceive");
+	private final static BasePrimitiveString STR_parseBinaryMessage = Base.forString("parseBinaryMessage");
+	private final static BasePrimitiveString STR_payLoad = Base.forString("payLoad");
+	private final static BasePrimitiveString STR_prototype = Base.forString("prototype");
+	private final static BasePrimitiveString STR_peers = Base.forString("peers");
+	private final static BasePrimitiveString STR_resolveClientAsync = Base.forString("resolveClientAsync");
+	private final static BasePrimitiveString STR_resolvePeer = Base.forString("resolvePeer");
+	private final static BasePrimitiveString STR_rxParser = Base.forString("rxParser");
+	private final static BasePrimitiveString STR_sendImpl = Base.forString("sendImpl");
+	private final static BasePrimitiveString STR_sendSingle = Base.forString("sendSingle");
+	private final static BasePrimitiveString STR_shift = Base.forString("shift");
+	private final static BasePrimitiveString STR_sourceAddress = Base.forString("sourceAddress");
+	private final static BasePrimitiveString STR_stBadBody = Base.forString("stBadBody");
+	private final static BasePrimitiveString STR_stCrcFail = Base.forString("stCrcFail");
+	private final static BasePrimitiveString STR_stRxCount = Base.forString("stRxCount");
+	private final static BasePrimitiveString STR_stRxLoops = Base.forString("stRxLoops");
+	private final static BasePrimitiveString STR_stRxSkip = Base.forString("stRxSkip");
+
+	/** Returns the receiver bound to the service instance, creates one on first call.
+	 *
+	 * @param service
+	 * @param bufferObject
+	 *            parse buffer, ArrayBuffer(1500)
+	 * @param digestObject
+	 *            digest prototype, cloned for every use
+	 * @return */
+	static UdpServiceReceiver forService(final BaseObject service, final BaseObject bufferObject, final BaseObject digestObject) {
+
+		final Object existing = service.baseGet(UdpServiceReceiver.STR_rxParser, BaseObject.UNDEFINED).baseValue();
+		if (existing instanceof final UdpServiceReceiver receiver && receiver.bufferObject == bufferObject) {
+			return receiver;
+		}
+		final UdpServiceReceiver receiver = new UdpServiceReceiver(service, bufferObject, digestObject, true);
+		service.baseDefine(UdpServiceReceiver.STR_rxParser, Base.forUnknown(receiver), BaseProperty.ATTRS_MASK_WED);
+		return receiver;
+	}
+
+	/** Inverse of the 3-byte serial encoding in the packet header */
+	static int readSerial(final ByteBuffer packet, final int offset) {
+
+		return (packet.get(offset + 16 + 12 + 1) & 0xFF) << 16 | (packet.get(offset + 16 + 12 + 2) & 0xFF) << 8 | packet.get(offset + 16 + 12 + 3) & 0xFF;
+	}
+
+	private final BaseObject service;
+
+	private final byte[] buffer;
+
+	private final BaseObject bufferObject;
+
+	private final MessageDigest digest;
+
+	private final BaseObject digestObject;
+
+	/** raw packet copy for the TransferCopier (legacy UdpSocket) input */
+	private final byte[] packetBytes;
+
+	private final ByteBuffer packetView;
+
+	/** message class cache, by code */
+	private final BaseObject[] classes = new BaseObject[256];
+
+	private final BaseFunction[] classParsers = new BaseFunction[256];
+
+	private final boolean[] classIsRequest = new boolean[256];
+
+	private final boolean[] classEncrypt = new boolean[256];
+
+	/** valid during the batch */
+	private BaseArray commandByKey;
+
+	/** valid during the batch */
+	private BaseFunction resolvePeer;
+
+	/** valid during the batch, null when the service has no registry */
+	private UdpPeerRegistry peers;
+
+	/** valid during the batch, null when the service does not resolve unknown keys */
+	private BaseFunction resolveClientAsync;
+
+	/** valid during the batch, null when the service is not capturing */
+	private UdpCapture capture;
+
+	/** resolved principal of the packet being replayed, null otherwise */
+	private BaseObject replayPeer;
+
+	long stRxLoops;
+
+	long stRxCount;
+
+	long stRxSkip;
+
+	long stCrcFail;
+
+	long stBadBody;
+
+	/** false for shard receivers, shard counters are aggregated by UdpShardedChannel */
+	private final boolean publishCounters;
+
+	UdpServiceReceiver(final BaseObject service, final BaseObject bufferObject, final BaseObject digestObject, final boolean publishCounters) {
+
+		this.service = service;
+		this.bufferObject = bufferObject;
+		this.buffer = (byte[]) bufferObject.baseValue();
+		if (this.buffer == null) {
+			throw new IllegalArgumentException("byte[] buffer is expected, bufferObject class: " + bufferObject.getClass().getName());
+		}
+		this.digestObject = digestObject;
+		this.digest = (MessageDigest) digestObject.baseValue();
+		if (this.digest == null) {
+			throw new IllegalArgumentException("MessageDigest is expected, digestObject class: " + digestObject.getClass().getName());
+		}
+		this.packetBytes = new byte[this.buffer.length + UdpServiceReceiver.HEADER_LENGTH];
+		this.packetView = ByteBuffer.wrap(this.packetBytes);
+		this.publishCounters = publishCounters;
+	}
+
+	/** Drains the buffered callback queue, each queue element is an arguments array with the
+	 * UdpSocket message object at index 0.
+	 *
+	 * @param ctx
+	 * @param queueObject */
+	synchronized void receiveQueue(final ExecProcess ctx, final BaseObject queueObject) {
+
+		++this.stRxLoops;
+		final BaseFunction shift = queueObject.baseGet(UdpServiceReceiver.STR_shift, BaseObject.UNDEFINED).baseCall();
+		if (shift == null) {
+			throw new IllegalArgumentException("queue object with 'shift' method is expected, queueObject class: " + queueObject.getClass().getName());
+		}
+		this.batchStart();
+		try {
+			for (;;) {
+				final BaseObject argumentsObject = shift.callNE0(ctx, queueObject);
+				if (argumentsObject == null || !argumentsObject.baseToJavaBoolean()) {
+					return;
+				}
+				final BaseArray arguments = argumentsObject.baseArray();
+				final BaseObject pkt = arguments == null
+					? argumentsObject
+					: arguments.baseGet(0, BaseObject.UNDEFINED);
+
+				++this.stRxCount;
+				this.receiveMessage(ctx, pkt);
+			}
+		} finally {
+			this.batchFinish();
+		}
+	}
+
+	/** Runs the pipeline for up to UdpReceiveQueue.BATCH datagrams of the priority queue
+	 *
+	 * @param ctx
+	 * @param queue */
+	synchronized void receiveQueue(final ExecProcess ctx, final UdpReceiveQueue queue) {
+
+		++this.stRxLoops;
+		this.batchStart();
+		try {
+			for (int i = 0; i < UdpReceiveQueue.BATCH; ++i) {
+				final BaseObject pkt = queue.poll();
+				if (pkt == null) {
+					return;
+				}
+				++this.stRxCount;
+				this.receiveMessage(ctx, pkt);
+			}
+		} finally {
+			this.batchFinish();
+		}
+	}
+
+	/** @param pkt
+	 *            UdpSocket message object */
+	private void receiveMessage(final ExecProcess ctx, final BaseObject pkt) {
+
+		final TransferCopier load = Transfer.createCopierFromBinary(pkt.baseGet(UdpServiceReceiver.STR_payLoad, TransferCopier.NUL_COPIER));
+		final BaseObject sourceAddress = pkt.baseGet(UdpServiceReceiver.STR_sourceAddress, BaseObject.UNDEFINED);
+		if (load == null || load.length() > this.packetBytes.length) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: bad-packet: iface: %s, packetLen: %s, addr: %s",
+					this.service,
+					load == null
+						? "null"
+						: Long.toString(load.length()),
+					sourceAddress//
+			);
+			++this.stBadBody;
+			return;
+		}
+		final int length = load.copy(0, this.packetBytes, 0, this.packetBytes.length);
+		this.receivePacket(ctx, this.packetView, 0, length, sourceAddress);
+	}
+
+	/** Runs the pipeline over a batch of pooled datagram views, see UdpDatagramChannel
+	 *
+	 * @param ctx
+	 * @param batch */
+	synchronized void receiveBatch(final ExecProcess ctx, final UdpDatagramBatch batch) {
+
+		++this.stRxLoops;
+		this.batchStart();
+		try {
+			for (int i = 0; i < batch.size; ++i) {
+				++this.stRxCount;
+				final ByteBuffer packet = batch.buffers[i];
+				try {
+					this.receivePacket(ctx, packet, packet.position(), packet.remaining(), Base.forUnknown(batch.addresses[i]));
+				} catch (final RuntimeException e) {
+					ctx.getConsole().log(//
+							"UDP::Read:Java: packet-error: iface: %s, addr: %s, error: %s",
+							this.service,
+							batch.addresses[i],
+							e//
+					);
+					++this.stBadBody;
+				}
+			}
+		} finally {
+			this.batchFinish();
+		}
+	}
+
+	/** Runs the pipeline for a packet parked while its peer was resolved, see UdpPeerResolver.
+	 * Synchronized with the receiving thread: the pipeline buffers are shared.
+	 *
+	 * @param ctx
+	 * @param packet
+	 *            complete packet copy
+	 * @param sourceAddress
+	 * @param peer
+	 *            resolved principal, used even when 'peers' and 'resolvePeer' do not know it */
+	synchronized void replay(final ExecProcess ctx, final byte[] packet, final BaseObject sourceAddress, final BaseObject peer) {
+
+		this.batchStart();
+		this.replayPeer = peer;
+		try {
+			this.receivePacket(ctx, ByteBuffer.wrap(packet), 0, packet.length, sourceAddress);
+		} finally {
+			this.replayPeer = null;
+			this.batchFinish();
+		}
+	}
+
+	/** Prepares per-batch state: command map and peer resolver may be replaced by service
+	 * subclasses at any time, so they are re-read once per batch, not per packet. */
+	void batchStart() {
+
+		this.commandByKey = this.service.baseGet(UdpServiceReceiver.STR_commandByKey, BaseObject.UNDEFINED).baseArray();
+		this.resolvePeer = this.service.baseGet(UdpServiceReceiver.STR_resolvePeer, BaseObject.UNDEFINED).baseCall();
+		this.peers = this.service.baseGet(UdpServiceReceiver.STR_peers, BaseObject.UNDEFINED).baseValue() instanceof final UdpPeerRegistry registry
+			? registry
+			: null;
+		this.resolveClientAsync = this.service.baseGet(UdpServiceReceiver.STR_resolveClientAsync, BaseObject.UNDEFINED).baseCall();
+		this.capture = this.service.baseGet(UdpServiceReceiver.STR_capture, BaseObject.UNDEFINED).baseValue() instanceof final UdpCapture capture
+			? capture
+			: null;
+	}
+
+	/** Publishes counters to the service object once per batch */
+	void batchFinish() {
+
+		if (!this.publishCounters) {
+			return;
+		}
+		UdpServiceReceiver.publishCounters(this.service, this.stRxLoops, this.stRxCount, this.stRxSkip, this.stCrcFail, this.stBadBody);
+	}
+
+	/** Counters of the service object: stRxLoops, stRxCount, stRxSkip, stCrcFail, stBadBody */
+	static void publishCounters(final BaseObject service, final long loops, final long count, final long skip, final long crcFail, final long badBody) {
+
+		service.baseDefine(UdpServiceReceiver.STR_stRxLoops, Base.forLong(loops), BaseProperty.ATTRS_MASK_WED);
+		service.baseDefine(UdpServiceReceiver.STR_stRxCount, Base.forLong(count), BaseProperty.ATTRS_MASK_WED);
+		service.baseDefine(UdpServiceReceiver.STR_stRxSkip, Base.forLong(skip), BaseProperty.ATTRS_MASK_WED);
+		service.baseDefine(UdpServiceReceiver.STR_stCrcFail, Base.forLong(crcFail), BaseProperty.ATTRS_MASK_WED);
+		service.baseDefine(UdpServiceReceiver.STR_stBadBody, Base.forLong(badBody), BaseProperty.ATTRS_MASK_WED);
+	}
+
+	/** Runs the whole receive pipeline for one datagram, up to and including peer.onReceive.
+	 *
+	 * @param ctx
+	 * @param packet
+	 *            datagram bytes, absolute indexing, position and limit are restored
+	 * @param offset
+	 * @param length
+	 * @param sourceAddress
+	 * @return true when the message was delivered to the peer */
+	boolean receivePacket(final ExecProcess ctx, final ByteBuffer packet, final int offset, final int length, final BaseObject sourceAddress) {
+
+		/** replayed packets were captured when first received */
+		if (this.capture != null && this.replayPeer == null) {
+			this.capture.record(UdpCapture.IN, packet, offset, length, sourceAddress);
+		}
+		final long skip = this.stRxSkip;
+		final long crcFail = this.stCrcFail;
+		final long badBody = this.stBadBody;
+		final boolean delivered = this.receivePacketImpl(ctx, packet, offset, length, sourceAddress);
+		/** outcome by the counter that moved, see UdpMetrics */
+		UdpMetrics.INSTANCE.count(
+				length > 16 + 12
+					? packet.get(offset + 16 + 12) & 0xFF
+					: 0,
+				delivered
+					? UdpMetrics.RX_DELIVERED
+					: this.stCrcFail != crcFail
+						? UdpMetrics.RX_CRC_FAIL
+						: this.stBadBody != badBody || this.stRxSkip == skip && length < UdpServiceReceiver.HEADER_LENGTH
+							? UdpMetrics.RX_BAD_BODY
+							: UdpMetrics.RX_SKIP);
+		return delivered;
+	}
+
+	private boolean receivePacketImpl(final ExecProcess ctx, final ByteBuffer packet, final int offset, final int length, final BaseObject sourceAddress) {
+
+		if (length < UdpServiceReceiver.HEADER_LENGTH || length - UdpServiceReceiver.HEADER_LENGTH > this.buffer.length) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: bad-packet: iface: %s, packetLen: %s, addr: %s",
+					this.service,
+					Integer.toString(length),
+					sourceAddress//
+			);
+			++this.stBadBody;
+			return false;
+		}
+
+		final int code = packet.get(offset + 16 + 12) & 0xFF;
+		final BaseObject m = this.messageClass(code);
+		if (m == null) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: skip-command: iface: %s, unsupported command, code: %s%s, addr: %s",
+					this.service,
+					Integer.toString(code),
+					code > 32 && code < 128
+						? ", ascii: " + (char) code
+						: "",
+					sourceAddress//
+			);
+			++this.stRxSkip;
+			return false;
+		}
+
+		final BaseObject peer = this.resolvePeer(ctx, packet, offset);
+		if (peer == null) {
+			final BaseFunction resolveClientAsync = this.resolveClientAsync;
+			if (resolveClientAsync != null) {
+				/** parked packets are replayed when the key is resolved, see UdpPeerResolver */
+				if (!UdpPeerResolver.forService(this.service).park(ctx, this, resolveClientAsync, packet, offset, length, sourceAddress)) {
+					++this.stRxSkip;
+				}
+				return false;
+			}
+			ctx.getConsole().log(//
+					"UDP::Read:Java: client-unknown: iface: %s, peerKey: %s, %s : addr: %s",
+					this.service,
+					UdpServiceReceiver.formatKey(packet, offset),
+					m,
+					sourceAddress//
+			);
+			return false;
+		}
+
+		final UdpPrincipal state = UdpPrincipal.forPrincipal(peer);
+		final int serial = UdpServiceReceiver.readSerial(packet, offset);
+		/** sRx is the floor of the session, repeats and reordering above it are up to the replay
+		 * windows of the peer */
+		{
+			final int peerRx = state.getRx();
+			if (serial <= peerRx) {
+				ctx.getConsole().log(//
+						"UDP::Read:Java: skip-serial: iface: %s, peer: %s, message serial: %s, peer sRx: %s, addr: %s",
+						this.service,
+						peer,
+						Integer.toString(serial),
+						Integer.toString(peerRx),
+						sourceAddress//
+				);
+				++this.stRxSkip;
+				return false;
+			}
+		}
+
+		if (state.secretBinary() == null) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: skip-secret: iface: %s, peer: %s, secret is not set, addr: %s",
+					this.service,
+					peer,
+					sourceAddress//
+			);
+			++this.stRxSkip;
+			return false;
+		}
+
+		/** bulk transfer state handles repeats itself, serial caches are not consulted */
+		if (code == UdpBulkTransfer.CODE_BBLK || code == UdpBulkTransfer.CODE_BRPT) {
+			return this.receiveBulk(ctx, peer, m, code, packet, offset, length, serial, sourceAddress);
+		}
+
+		final BasePrimitiveNumber serialObject = Base.forInteger(serial);
+
+		/** check ignore and, maybe, get cached reply msg */
+		final BaseObject cached;
+		{
+			final BaseFunction check = peer.baseGet(
+					this.classIsRequest[code]
+						? UdpServiceReceiver.STR_checkIncomingQuerySerial
+						: UdpServiceReceiver.STR_checkIncomingReplySerial,
+					BaseObject.UNDEFINED//
+			).baseCall();
+			cached = check == null
+				? null
+				: check.callNE1(ctx, peer, serialObject);
+			if (cached == BaseObject.TRUE) {
+				ctx.getConsole().log(//
+						"UDP::Read:Java: skip-ignore: iface: %s, peer: %s, rejected by peer, class: %s, serial: %s, addr: %s",
+						this.service,
+						peer,
+						m,
+						Integer.toString(serial),
+						sourceAddress//
+				);
+				++this.stRxSkip;
+				return false;
+			}
+		}
+
+		final UdpPrincipalCrypto crypto = UdpPrincipalCrypto.forPrincipal(peer);
+		if (!this.verify(crypto, packet, offset, length)) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: crc-fail: iface: %s, peer: %s, crc mismatch, %s, serial: %s, addr: %s",
+					this.service,
+					peer,
+					m,
+					Integer.toString(serial),
+					sourceAddress//
+			);
+			++this.stCrcFail;
+			return false;
+		}
+
+		final int payloadLength = length - UdpServiceReceiver.HEADER_LENGTH;
+		if (cached == null || cached.baseValue() == null || !cached.baseGet(UdpServiceReceiver.STR_isReply, BaseObject.UNDEFINED).baseToJavaBoolean()) {
+			if (this.classEncrypt[code]) {
+				crypto.decrypt(packet, offset, this.buffer, 0, payloadLength, this.digest);
+			} else {
+				packet.get(offset + UdpServiceReceiver.HEADER_LENGTH, this.buffer, 0, payloadLength);
+			}
+			if (code == UdpServiceReceiver.CODE_BTCH) {
+				return this.receiveContainer(ctx, peer, state, payloadLength, sourceAddress) > 0;
+			}
+		}
+		return this.deliver(ctx, peer, m, code, serial, serialObject, cached, 0, payloadLength, sourceAddress);
+	}
+
+	/** Unpacks BTCH container payload from the parse buffer, every entry is handled as a
+	 * separate datagram of the same peer: serial and ignore checks, cached reply resend,
+	 * parse and onReceive.
+	 *
+	 * <ol>
+	 * Entry layout:
+	 * <li>0 - message code</li>
+	 * <li>1..4 - message serial</li>
+	 * <li>4..6 - payload length</li>
+	 * <li>6.. - payload, not encrypted (the container is)</li>
+	 * </ol>
+	 *
+	 * @return number of messages delivered */
+	private int receiveContainer(final ExecProcess ctx, final BaseObject peer, final UdpPrincipal state, final int payloadLength, final BaseObject sourceAddress) {
+
+		final byte[] buffer = this.buffer;
+		int delivered = 0;
+		for (int position = 0; position < payloadLength;) {
+			if (position + UdpServiceReceiver.ENTRY_HEADER_LENGTH > payloadLength) {
+				++this.stBadBody;
+				break;
+			}
+			final int code = buffer[position] & 0xFF;
+			final int serial = (buffer[position + 1] & 0xFF) << 16 | (buffer[position + 2] & 0xFF) << 8 | buffer[position + 3] & 0xFF;
+			final int length = (buffer[position + 4] & 0xFF) << 8 | buffer[position + 5] & 0xFF;
+			final int entryOffset = position + UdpServiceReceiver.ENTRY_HEADER_LENGTH;
+			position = entryOffset + length;
+			if (position > payloadLength) {
+				ctx.getConsole().log(//
+						"UDP::Read:Java: bad-body: iface: %s, peer: %s, container entry overflow, code: %s, serial: %s",
+						this.service,
+						peer,
+						Integer.toString(code),
+						Integer.toString(serial)//
+				);
+				++this.stBadBody;
+				break;
+			}
+			final BaseObject m = code == UdpServiceReceiver.CODE_BTCH || code == UdpBulkTransfer.CODE_BBLK || code == UdpBulkTransfer.CODE_BRPT
+				? null
+				: this.messageClass(code);
+			if (m == null) {
+				++this.stRxSkip;
+				continue;
+			}
+			if (serial <= state.getRx()) {
+				++this.stRxSkip;
+				continue;
+			}
+			final BasePrimitiveNumber serialObject = Base.forInteger(serial);
+			final BaseFunction check = peer.baseGet(
+					this.classIsRequest[code]
+						? UdpServiceReceiver.STR_checkIncomingQuerySerial
+						: UdpServiceReceiver.STR_checkIncomingReplySerial,
+					BaseObject.UNDEFINED//
+			).baseCall();
+			final BaseObject cached = check == null
+				? null
+				: check.callNE1(ctx, peer, serialObject);
+			if (cached == BaseObject.TRUE) {
+				++this.stRxSkip;
+				continue;
+			}
+			if (cached != null && cached.baseValue() != null && cached.baseGet(UdpServiceReceiver.STR_isReply, BaseObject.UNDEFINED).baseToJavaBoolean()) {
+				/** not sendImpl with the parse buffer: it still holds the rest of the container */
+				if (!UdpServiceHelper.sendRepeat(ctx, peer, state, serial, cached, sourceAddress)) {
+					final BaseFunction sendSingle = peer.baseGet(UdpServiceReceiver.STR_sendSingle, BaseObject.UNDEFINED).baseCall();
+					if (sendSingle != null) {
+						sendSingle.callNE2(ctx, peer, cached, sourceAddress);
+					}
+				}
+				++this.stRxSkip;
+				continue;
+			}
+			if (this.deliver(ctx, peer, m, code, serial, serialObject, null, entryOffset, length, sourceAddress)) {
+				++delivered;
+			}
+		}
+		return delivered;
+	}
+
+	/** BBLK and BRPT: signature check, decryption into the parse buffer and the bulk transfer
+	 * state of the peer */
+	private boolean receiveBulk(final ExecProcess ctx,
+			final BaseObject peer,
+			final BaseObject m,
+			final int code,
+			final ByteBuffer packet,
+			final int offset,
+			final int length,
+			final int serial,
+			final BaseObject sourceAddress) {
+
+		final UdpPrincipalCrypto crypto = UdpPrincipalCrypto.forPrincipal(peer);
+		if (!this.verify(crypto, packet, offset, length)) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: crc-fail: iface: %s, peer: %s, crc mismatch, %s, serial: %s, addr: %s",
+					this.service,
+					peer,
+					m,
+					Integer.toString(serial),
+					sourceAddress//
+			);
+			++this.stCrcFail;
+			return false;
+		}
+		final int payloadLength = length - UdpServiceReceiver.HEADER_LENGTH;
+		if (this.classEncrypt[code]) {
+			crypto.decrypt(packet, offset, this.buffer, 0, payloadLength, this.digest);
+		} else {
+			packet.get(offset + UdpServiceReceiver.HEADER_LENGTH, this.buffer, 0, payloadLength);
+		}
+		if (!UdpBulkTransfer.forPrincipal(peer).receive(ctx, code, this.buffer, 0, payloadLength, sourceAddress)) {
+			++this.stBadBody;
+			return false;
+		}
+		return true;
+	}
+
+	/** Final stage: cached reply resend or parse from the parse buffer and peer.onReceive */
+	private boolean deliver(final ExecProcess ctx,
+			final BaseObject peer,
+			final BaseObject m,
+			final int code,
+			final int serial,
+			final BasePrimitiveNumber serialObject,
+			final BaseObject cached,
+			final int payloadOffset,
+			final int payloadLength,
+			final BaseObject sourceAddress) {
+
+		if (cached != null && cached.baseValue() != null && cached.baseGet(UdpServiceReceiver.STR_isReply, BaseObject.UNDEFINED).baseToJavaBoolean()) {
+			/** message from incoming serial cache **/
+			ctx.getConsole().log(//
+					"UDP::Read:Java: send-repeat: iface: %s, peer: %s, reply re-sent by peer, serial: %s, addr: %s",
+					this.service,
+					peer,
+					Integer.toString(serial),
+					sourceAddress//
+			);
+			/** signed datagram kept by the replay window, or built again */
+			if (!UdpServiceHelper.sendRepeat(ctx, peer, UdpPrincipal.forPrincipal(peer), serial, cached, sourceAddress)) {
+				final BaseFunction sendImpl = peer.baseGet(UdpServiceReceiver.STR_sendImpl, BaseObject.UNDEFINED).baseCall();
+				if (sendImpl != null) {
+					sendImpl.callNEA(ctx, peer, this.bufferObject, this.digestObject, cached, sourceAddress);
+				}
+			}
+			++this.stRxSkip;
+			return false;
+		}
+
+		final long parseStarted = UdpMetrics.start();
+		final BaseObject message = this.classParsers[code].callNEA(ctx, m, this.bufferObject, Base.forInteger(payloadOffset), serialObject, Base.forInteger(payloadLength));
+		UdpMetrics.INSTANCE.record(UdpMetrics.INSTANCE.parse, parseStarted);
+		if (message == null || !message.baseToJavaBoolean()) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: bad-body: iface: %s, peer: %s, invalid payload rejected, %s, serial: %s, payloadLen: %s",
+					this.service,
+					peer,
+					m,
+					Integer.toString(serial),
+					Integer.toString(payloadLength)//
+			);
+			++this.stBadBody;
+			return false;
+		}
+
+		if (Report.MODE_DEBUG) {
+			ctx.getConsole().log(//
+					"UDP::Read:Java: received: iface: %s, peer: %s @ %s, len: %s, serial: %s, %s",
+					this.service,
+					peer,
+					sourceAddress,
+					Integer.toString(payloadLength),
+					Integer.toString(serial),
+					message//
+			);
+		}
+
+		final BaseFunction onReceive = peer.baseGet(UdpServiceReceiver.STR_onReceive, BaseObject.UNDEFINED).baseCall();
+		if (onReceive == null) {
+			throw new IllegalArgumentException("onReceive function is expected, peer: " + peer);
+		}
+		onReceive.callVEA(ctx, peer, message, sourceAddress, serialObject);
+		final UdpPeerMetrics metrics = UdpPrincipal.forPrincipal(peer).metrics();
+		if (metrics != null) {
+			metrics.rx.increment();
+		}
+		return true;
+	}
+
+	private boolean verify(final UdpPrincipalCrypto crypto, final ByteBuffer packet, final int offset, final int length) {
+
+		final long started = UdpMetrics.start();
+		final boolean verified = crypto.verify(packet, offset, length, this.digest);
+		UdpMetrics.INSTANCE.record(UdpMetrics.INSTANCE.verify, started);
+		return verified;
+	}
+
+	/** @return message class registered for the code or null */
+	private BaseObject messageClass(final int code) {
+
+		final BaseArray commandByKey = this.commandByKey;
+		if (commandByKey == null) {
+			return null;
+		}
+		final BaseObject m = commandByKey.baseGet(code, BaseObject.UNDEFINED);
+		if (m == BaseObject.UNDEFINED || m == null || !m.baseToJavaBoolean()) {
+			return null;
+		}
+		if (this.classes[code] != m) {
+			final BaseFunction parser = m.baseGet(UdpServiceReceiver.STR_parseBinaryMessage, BaseObject.UNDEFINED).baseCall();
+			if (parser == null) {
+				return null;
+			}
+			final BaseObject prototype = m.baseGet(UdpServiceReceiver.STR_prototype, BaseObject.UNDEFINED);
+			this.classParsers[code] = parser;
+			this.classIsRequest[code] = prototype.baseGet(UdpServiceReceiver.STR_isRequest, BaseObject.UNDEFINED).baseToJavaBoolean();
+			this.classEncrypt[code] = prototype.baseGet(UdpServiceReceiver.STR_encrypt, BaseObject.UNDEFINED).baseToJavaBoolean();
+			this.classes[code] = m;
+		}
+		return m;
+	}
+
+	/** Registry of the service first, right from the packet, then the 'resolvePeer' method
+	 *
+	 * @return peer object or null */
+	private BaseObject resolvePeer(final ExecProcess ctx, final ByteBuffer packet, final int offset) {
+
+		final BaseObject replayPeer = this.replayPeer;
+		if (replayPeer != null) {
+			return replayPeer;
+		}
+		final UdpPeerRegistry peers = this.peers;
+		if (peers != null) {
+			final BaseObject peer = peers.find(packet, offset + 16);
+			if (peer != null) {
+				return peer;
+			}
+		}
+		final BaseFunction resolvePeer = this.resolvePeer;
+		if (resolvePeer == null) {
+			return null;
+		}
+		final byte[] key = new byte[12];
+		packet.get(offset + 16, key);
+		final BaseObject peer = resolvePeer.callNE1(ctx, this.service, Transfer.wrapCopier(key, 0, 12));
+		return peer == null || peer.baseValue() == null
+			? null
+			: peer;
+	}
+
+	private static String formatKey(final ByteBuffer packet, final int offset) {
+
+		final StringBuilder builder = new StringBuilder(24);
+		for (int i = 16; i < 16 + 12; ++i) {
+			final int b = packet.get(offset + i) & 0xFF;
+			builder.append(UdpServiceReceiver.BASE16[b >> 4]).append(UdpServiceReceiver.BASE16[b & 0x0F]);
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpServiceReceiver rx=" + this.stRxCount + ", skip=" + this.stRxSkip + ", crc=" + this.stCrcFail + ", bad=" + this.stBadBody + "]";
+	}
+}
@@ -0,0 +1,336 @@
+package ru.myx.ae3.internal.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** N batch receive sockets bound to the same port with SO_REUSEPORT, one receiving thread
+ * and parse buffer per shard.
+ *
+ * The kernel spreads datagrams over sockets by the address 4-tuple, principals are pinned
+ * to shards by the hash of their 12-byte key instead: datagrams that arrive on a foreign
+ * shard are copied into a pooled buffer and handed over to the owner shard thread, so
+ * serial and duplicate cache state of a principal is only touched by one thread.
+ *
+ * Every shard counts on its own thread, the sums over all shards are published to the
+ * service (stRxLoops, stRxCount, stRxSkip, stCrcFail, stBadBody) after each batch.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpShardedChannel {
+
+	/** max handoff buffers per shard, datagrams are dropped when exhausted */
+	static final int HANDOFF_LIMIT = 1024;
+
+	/** Pooled copy of a datagram travelling to the owner shard */
+	private static final class Handoff implements Runnable {
+
+		final Shard target;
+
+		final ByteBuffer buffer;
+
+		SocketAddress address;
+
+		Handoff(final Shard target, final int bufferSize) {
+
+			this.target = target;
+			this.buffer = ByteBuffer.allocate(bufferSize);
+		}
+
+		@Override
+		public void run() {
+
+			final Shard target = this.target;
+			try {
+				/** synchronized with replays of parked packets, see UdpPeerResolver */
+				synchronized (target.receiver) {
+					++target.stHandoffIn;
+					++target.receiver.stRxCount;
+					target.receiver.batchStart();
+					target.receiver.receivePacket(target.ctx, this.buffer, 0, this.buffer.limit(), Base.forUnknown(this.address));
+				}
+			} finally {
+				this.address = null;
+				target.free.add(this);
+			}
+		}
+	}
+
+	private static final class Shard {
+
+		final UdpDatagramChannel channel;
+
+		final UdpServiceReceiver receiver;
+
+		final ExecProcess ctx;
+
+		final ConcurrentLinkedQueue<Handoff> free = new ConcurrentLinkedQueue<>();
+
+		final AtomicInteger allocated = new AtomicInteger();
+
+		/** counted by the owner thread, like the rest */
+		long stHandoffIn;
+
+		long stHandoffOut;
+
+		long stHandoffDrop;
+
+		Shard(final UdpDatagramChannel channel, final UdpServiceReceiver receiver, final ExecProcess ctx) {
+
+			this.channel = channel;
+			this.receiver = receiver;
+			this.ctx = ctx;
+		}
+
+		Handoff obtain(final int bufferSize) {
+
+			final Handoff pooled = this.free.poll();
+			if (pooled != null) {
+				return pooled;
+			}
+			if (this.allocated.incrementAndGet() > UdpShardedChannel.HANDOFF_LIMIT) {
+				this.allocated.decrementAndGet();
+				return null;
+			}
+			return new Handoff(this, bufferSize);
+		}
+	}
+
+	/** Shard index for a principal key, same for the datagram header and the principal.
+	 *
+	 * @param packet
+	 * @param offset
+	 *            datagram start, key is at offset + 16
+	 * @param shards
+	 * @return */
+	static int shardOf(final ByteBuffer packet, final int offset, final int shards) {
+
+		long h = 0x9E3779B97F4A7C15L;
+		for (int i = offset + 16; i < offset + 16 + 12; ++i) {
+			h = (h ^ packet.get(i) & 0xFF) * 0x100000001B3L;
+		}
+		h ^= h >>> 29;
+		return (int) ((h & 0x7FFFFFFFL) % shards);
+	}
+
+	private final BaseObject service;
+
+	private final Shard[] shards;
+
+	private final int port;
+
+	private final int bufferSize;
+
+	private final AtomicInteger sendIndex = new AtomicInteger();
+
+	/** @param service
+	 * @param ctx
+	 *            parent context, every shard gets own process
+	 * @param port
+	 *            0 for any
+	 * @param buffers
+	 *            parse buffer objects, ArrayBuffer(1500), one per shard
+	 * @param digest
+	 *            digest prototype, cloned for every use
+	 * @param batchCapacity
+	 * @param bufferSize
+	 * @throws IOException */
+	UdpShardedChannel(
+			final BaseObject service,
+			final ExecProcess ctx,
+			final int port,
+			final BaseObject[] buffers,
+			final BaseObject digest,
+			final int batchCapacity,
+			final int bufferSize) throws IOException {
+
+		final int count = buffers.length;
+		if (count < 1) {
+			throw new IllegalArgumentException("at least one shard is expected");
+		}
+		this.service = service;
+		this.shards = new Shard[count];
+		this.bufferSize = bufferSize > 0
+			? bufferSize
+			: UdpDatagramChannel.DEFAULT_BUFFER;
+		int boundPort = port;
+		try {
+			for (int i = 0; i < count; ++i) {
+				final UdpDatagramChannel channel = new UdpDatagramChannel(UdpDatagramChannel.openBound(boundPort, true), batchCapacity, this.bufferSize);
+				boundPort = channel.getPort();
+				this.shards[i] = new Shard(
+						channel,
+						new UdpServiceReceiver(service, buffers[i], digest, false),
+						Exec.createProcess(ctx, "UdpService::receiveSharded, port: " + boundPort + ", shard: " + i));
+			}
+		} catch (final IOException | RuntimeException e) {
+			this.close();
+			throw e;
+		}
+		this.port = boundPort;
+		for (int i = 0; i < count; ++i) {
+			final int index = i;
+			final Shard shard = this.shards[i];
+			shard.channel.start(batch -> this.onBatch(index, shard, batch));
+		}
+	}
+
+	/** Stops receiving and closes all sockets */
+	@ReflectionExplicit
+	public void close() {
+
+		for (final Shard shard : this.shards) {
+			if (shard != null) {
+				shard.channel.close();
+			}
+		}
+	}
+
+	/** @return local port */
+	@ReflectionExplicit
+	public int getPort() {
+
+		return this.port;
+	}
+
+	/** @return number of shards */
+	@ReflectionExplicit
+	public int getShardCount() {
+
+		return this.shards.length;
+	}
+
+	/** @return datagrams received, all shards */
+	@ReflectionExplicit
+	public long getRxCount() {
+
+		long result = 0;
+		for (final Shard shard : this.shards) {
+			result += shard.receiver.stRxCount;
+		}
+		return result;
+	}
+
+	/** @return datagrams dropped because handoff pool of the owner shard was exhausted */
+	@ReflectionExplicit
+	public long getHandoffDropCount() {
+
+		long result = 0;
+		for (final Shard shard : this.shards) {
+			result += shard.stHandoffDrop;
+		}
+		return result;
+	}
+
+	/** Sends datagram, UdpSocket compatible. Sockets are spread round-robin, they all share
+	 * the same local port.
+	 *
+	 * @param payloadObject
+	 * @param addressObject
+	 * @return bytes sent
+	 * @throws IOException */
+	@ReflectionExplicit
+	public int send(final BaseObject payloadObject, final BaseObject addressObject) throws IOException {
+
+		return this.shards[(this.sendIndex.getAndIncrement() & 0x7FFFFFFF) % this.shards.length].channel.send(payloadObject, addressObject);
+	}
+
+	/** @param datagram
+	 * @param address
+	 * @return bytes sent
+	 * @throws IOException */
+	public int send(final ByteBuffer datagram, final SocketAddress address) throws IOException {
+
+		return this.shards[(this.sendIndex.getAndIncrement() & 0x7FFFFFFF) % this.shards.length].channel.send(datagram, address);
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpShardedChannel port=" + this.port + ", shards=" + this.shards.length + "]";
+	}
+
+	private void onBatch(final int index, final Shard shard, final UdpDatagramBatch batch) {
+
+		/** synchronized with replays of parked packets, see UdpPeerResolver */
+		synchronized (shard.receiver) {
+			this.onBatchImpl(index, shard, batch);
+		}
+		this.publishCounters();
+	}
+
+	private void onBatchImpl(final int index, final Shard shard, final UdpDatagramBatch batch) {
+
+		final Shard[] shards = this.shards;
+		final int count = shards.length;
+		final UdpServiceReceiver receiver = shard.receiver;
+		++receiver.stRxLoops;
+		receiver.batchStart();
+		for (int i = 0; i < batch.size; ++i) {
+			final ByteBuffer packet = batch.buffers[i];
+			final int offset = packet.position();
+			final int length = packet.remaining();
+			final int owner = length < UdpServiceReceiver.HEADER_LENGTH
+				? index
+				: UdpShardedChannel.shardOf(packet, offset, count);
+			if (owner == index) {
+				++receiver.stRxCount;
+				try {
+					receiver.receivePacket(shard.ctx, packet, offset, length, Base.forUnknown(batch.addresses[i]));
+				} catch (final RuntimeException e) {
+					shard.ctx.getConsole().log(//
+							"UDP::Read:Java: packet-error: shard: %s, addr: %s, error: %s",
+							Integer.toString(index),
+							batch.addresses[i],
+							e//
+					);
+					++receiver.stBadBody;
+				}
+				continue;
+			}
+			final Shard target = shards[owner];
+			/** every pooled buffer is 'bufferSize', checked before one is taken from the pool */
+			final Handoff handoff = length > this.bufferSize
+				? null
+				: target.obtain(this.bufferSize);
+			if (handoff == null) {
+				++shard.stHandoffDrop;
+				continue;
+			}
+			handoff.buffer.clear();
+			handoff.buffer.put(0, packet, offset, length);
+			handoff.buffer.limit(length);
+			handoff.address = batch.addresses[i];
+			++shard.stHandoffOut;
+			target.channel.execute(handoff);
+		}
+	}
+
+	/** Sums of the shard counters, other shards' values may be a batch behind */
+	private synchronized void publishCounters() {
+
+		long loops = 0;
+		long count = 0;
+		long skip = 0;
+		long crcFail = 0;
+		long badBody = 0;
+		for (final Shard shard : this.shards) {
+			final UdpServiceReceiver receiver = shard.receiver;
+			loops += receiver.stRxLoops;
+			count += receiver.stRxCount;
+			skip += receiver.stRxSkip;
+			crcFail += receiver.stCrcFail;
+			badBody += receiver.stBadBody;
+		}
+		UdpServiceReceiver.publishCounters(this.service, loops, count, skip, crcFail, badBody);
+	}
+}
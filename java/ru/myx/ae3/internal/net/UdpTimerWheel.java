@@ -0,0 +1,349 @@
+package ru.myx.ae3.internal.net;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.exec.Exec;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Hashed timing wheel shared by the UDP stack: task retries and expiry (TaskUdpSingle,
+ * TaskUdpMultiple) and waiting task serials (UdpWaitingTasks) are scheduled here instead of
+ * a setTimeout or a CoarseDelayCache each.
+ *
+ * Schedule and cancel are O(1) and take no locks: both only append to a queue, the wheel
+ * thread moves new timeouts into their slots and unlinks cancelled ones once per tick. A
+ * slot keeps timeouts of every revolution, each with its remaining rounds, so delays longer
+ * than one revolution cost nothing extra.
+ *
+ * Timeouts expired by one tick are run as a batch on the worker pool, BATCH per process, the
+ * wheel thread itself never runs them. Resolution is TICK milliseconds, timeouts never fire
+ * early.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpTimerWheel {
+
+	/** One scheduled task, see 'cancel' */
+	@ReflectionManual
+	public static final class Timeout {
+
+		private static final VarHandle STATE;
+
+		static {
+			try {
+				STATE = MethodHandles.lookup().findVarHandle(Timeout.class, "state", int.class);
+			} catch (final ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		private final UdpTimerWheel wheel;
+
+		private final Task task;
+
+		/** tick to run at */
+		final long due;
+
+		/** revolutions left, wheel thread only */
+		long rounds;
+
+		/** slot list links, wheel thread only */
+		Timeout prev, next;
+
+		/** slot index or -1 when not in a slot, wheel thread only */
+		int slot = -1;
+
+		private volatile int state;
+
+		Timeout(final UdpTimerWheel wheel, final Task task, final long due) {
+
+			this.wheel = wheel;
+			this.task = task;
+			this.due = due;
+		}
+
+		/** @return false when already expired or cancelled */
+		@ReflectionExplicit
+		public boolean cancel() {
+
+			if (!Timeout.STATE.compareAndSet(this, UdpTimerWheel.ST_INIT, UdpTimerWheel.ST_CANCELLED)) {
+				return false;
+			}
+			this.wheel.cancelled.add(this);
+			return true;
+		}
+
+		/** @return true when cancelled */
+		@ReflectionExplicit
+		public boolean isCancelled() {
+
+			return this.state == UdpTimerWheel.ST_CANCELLED;
+		}
+
+		/** @return true when expired: the task was run or is about to */
+		@ReflectionExplicit
+		public boolean isExpired() {
+
+			return this.state == UdpTimerWheel.ST_EXPIRED;
+		}
+
+		@Override
+		public String toString() {
+
+			return "[UdpTimerWheel.Timeout due=" + this.due + ", state=" + this.state + "]";
+		}
+
+		boolean expire() {
+
+			return Timeout.STATE.compareAndSet(this, UdpTimerWheel.ST_INIT, UdpTimerWheel.ST_EXPIRED);
+		}
+
+		void run(final ExecProcess ctx) {
+
+			try {
+				this.task.run(ctx);
+			} catch (final Throwable e) {
+				ctx.getConsole().log("UDP::TimerWheel:Java: task-error: %s, error: %s", this.task, e);
+			}
+		}
+	}
+
+	/** scheduled code */
+	@FunctionalInterface
+	interface Task {
+
+		/** @param ctx */
+		void run(ExecProcess ctx);
+	}
+
+	/** milliseconds per tick */
+	public static final int TICK = 10;
+
+	/** slots per revolution, power of 2 */
+	public static final int SLOTS = 1024;
+
+	/** timeouts run per process */
+	public static final int BATCH = 64;
+
+	static final int ST_INIT = 0;
+
+	static final int ST_CANCELLED = 1;
+
+	static final int ST_EXPIRED = 2;
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(UdpTimerWheel.TICK);
+
+	private static final ExecProcess CTX = Exec.createProcess(Exec.getRootProcess(), "UdpTimerWheel Context");
+
+	private static final ThreadPoolExecutor WORKERS = UdpTimerWheel.createWorkers();
+
+	/** the wheel */
+	public static final UdpTimerWheel INSTANCE = new UdpTimerWheel();
+
+	private static ThreadPoolExecutor createWorkers() {
+
+		final int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+			final Thread thread = new Thread(task, "UDP-TIMER");
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/** @return the wheel */
+	@ReflectionExplicit
+	public static UdpTimerWheel getInstance() {
+
+		return UdpTimerWheel.INSTANCE;
+	}
+
+	private final Timeout[] slots = new Timeout[UdpTimerWheel.SLOTS];
+
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+	final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	private final List<Timeout> expired = new ArrayList<>();
+
+	private final long started = System.nanoTime();
+
+	/** next tick to process, written by the wheel thread only */
+	private volatile long tick;
+
+	/** timeouts in slots */
+	private volatile int size;
+
+	private volatile long stExpired;
+
+	private UdpTimerWheel() {
+
+		final Thread thread = new Thread(this::run, "UDP-TIMER-WHEEL");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** @return timeouts expired */
+	@ReflectionExplicit
+	public long getExpired() {
+
+		return this.stExpired;
+	}
+
+	/** @return timeouts waiting in the wheel, not counting those scheduled during current tick */
+	@ReflectionExplicit
+	public int getSize() {
+
+		return this.size;
+	}
+
+	/** @return ticks passed */
+	@ReflectionExplicit
+	public long getTick() {
+
+		return this.tick;
+	}
+
+	/** JS: setTimeout replacement
+	 *
+	 * @param function
+	 *            called with no arguments, use 'bind'
+	 * @param delay
+	 *            milliseconds
+	 * @return timeout, see 'cancel' */
+	@ReflectionExplicit
+	public Timeout schedule(final BaseObject function, final int delay) {
+
+		final BaseFunction callable = function.baseCall();
+		if (callable == null) {
+			throw new IllegalArgumentException("function is expected, function: " + function);
+		}
+		return this.schedule(ctx -> callable.callVE0(ctx, BaseObject.UNDEFINED), delay);
+	}
+
+	@Override
+	public String toString() {
+
+		return "[UdpTimerWheel tick=" + this.tick + ", size=" + this.size + ", expired=" + this.stExpired + "]";
+	}
+
+	/** @param task
+	 * @param delay
+	 *            milliseconds
+	 * @return timeout, see 'cancel' */
+	Timeout schedule(final Task task, final long delay) {
+
+		/** ceil: the tick that ends at or after the deadline */
+		final long deadline = System.nanoTime() - this.started + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delay));
+		final Timeout timeout = new Timeout(this, task, (deadline + UdpTimerWheel.TICK_NANOS - 1) / UdpTimerWheel.TICK_NANOS - 1);
+		this.pending.add(timeout);
+		return timeout;
+	}
+
+	private void dispatch() {
+
+		final List<Timeout> expired = this.expired;
+		final int count = expired.size();
+		for (int start = 0; start < count; start += UdpTimerWheel.BATCH) {
+			final Timeout[] batch = expired.subList(start, Math.min(count, start + UdpTimerWheel.BATCH)).toArray(new Timeout[0]);
+			UdpTimerWheel.WORKERS.execute(() -> {
+				final ExecProcess ctx = Exec.createProcess(UdpTimerWheel.CTX, "UdpTimerWheel::expire");
+				for (final Timeout timeout : batch) {
+					timeout.run(ctx);
+				}
+			});
+		}
+		expired.clear();
+		this.stExpired += count;
+	}
+
+	private void expireSlot(final long tick) {
+
+		final int index = (int) (tick & UdpTimerWheel.SLOTS - 1);
+		for (Timeout timeout = this.slots[index], next; timeout != null; timeout = next) {
+			next = timeout.next;
+			if (timeout.rounds > 0) {
+				--timeout.rounds;
+				continue;
+			}
+			this.unlink(timeout);
+			if (timeout.expire()) {
+				this.expired.add(timeout);
+			}
+		}
+	}
+
+	private void link(final Timeout timeout, final long tick) {
+
+		final long due = Math.max(timeout.due, tick);
+		final int index = (int) (due & UdpTimerWheel.SLOTS - 1);
+		timeout.rounds = (due - tick) / UdpTimerWheel.SLOTS;
+		timeout.slot = index;
+		timeout.prev = null;
+		timeout.next = this.slots[index];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		this.slots[index] = timeout;
+		++this.size;
+	}
+
+	private void run() {
+
+		for (;;) {
+			final long tick = this.tick;
+			final long wait = this.started + (tick + 1) * UdpTimerWheel.TICK_NANOS - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			try {
+				for (Timeout timeout; (timeout = this.cancelled.poll()) != null;) {
+					if (timeout.slot != -1) {
+						this.unlink(timeout);
+					}
+				}
+				for (Timeout timeout; (timeout = this.pending.poll()) != null;) {
+					if (!timeout.isCancelled()) {
+						this.link(timeout, tick);
+					}
+				}
+				this.expireSlot(tick);
+				if (!this.expired.isEmpty()) {
+					this.dispatch();
+				}
+			} catch (final Throwable e) {
+				UdpTimerWheel.CTX.getConsole().log("UDP::TimerWheel:Java: tick-error: tick: %s, error: %s", tick, e);
+				this.expired.clear();
+			}
+			this.tick = tick + 1;
+		}
+	}
+
+	private void unlink(final Timeout timeout) {
+
+		if (timeout.prev == null) {
+			this.slots[timeout.slot] = timeout.next;
+		} else {
+			timeout.prev.next = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = timeout.next = null;
+		timeout.slot = -1;
+		--this.size;
+	}
+}
@@ -0,0 +1,126 @@
+package ru.myx.ae3.internal.net;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ru.myx.ae3.base.Base;
+import ru.myx.ae3.base.BaseFunction;
+import ru.myx.ae3.base.BaseObject;
+import ru.myx.ae3.exec.ExecProcess;
+import ru.myx.ae3.reflect.ReflectionExplicit;
+import ru.myx.ae3.reflect.ReflectionManual;
+
+/** Tasks of one principal awaiting replies, by request serial, see
+ * RemoteServicePrincipal.waitingTaskSerialsCache.
+ *
+ * Same contract as the CoarseDelayCache it replaces: 'put' (re)starts the entry's TTL,
+ * 'readCheck' does not, expired entries are passed to the 'onExpire(serial, task)' function.
+ * Expiry is driven by the shared UdpTimerWheel, the principal has no timer of its own.
+ *
+ * @author myx */
+@ReflectionManual
+public final class UdpWaitingTasks {
+
+	private static final class Entry {
+
+		final BaseObject task;
+
+		UdpTimerWheel.Timeout timeout;
+
+		Entry(final BaseObject task) {
+
+			this.task = task;
+		}
+	}
+
+	private final Map<Integer, Entry> entries = new HashMap<>();
+
+	private final int ttl;
+
+	private final BaseFunction onExpire;
+
+	/** @param ttl
+	 *            milliseconds
+	 * @param onExpire
+	 *            function(serial, task) */
+	@ReflectionExplicit
+	public UdpWaitingTasks(final int ttl, final BaseObject onExpire) {
+
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("positive 'ttl' is expected, ttl: " + ttl);
+		}
+		this.ttl = ttl;
+		this.onExpire = onExpire.baseCall();
+		if (this.onExpire == null) {
+			throw new IllegalArgumentException("onExpire function is expected, onExpire: " + onExpire);
+		}
+	}
+
+	/** @return entries */
+	@ReflectionExplicit
+	public synchronized int getSize() {
+
+		return this.entries.size();
+	}
+
+	/** @param serial
+	 * @param task
+	 *            task or false - ignore replies */
+	@ReflectionExplicit
+	public void put(final int serial, final BaseObject task) {
+
+		final Integer key = Integer.valueOf(serial);
+		final Entry entry = new Entry(task);
+		final Entry replaced;
+		synchronized (this) {
+			replaced = this.entries.put(key, entry);
+			entry.timeout = UdpTimerWheel.INSTANCE.schedule(ctx -> this.expire(ctx, key, entry), this.ttl);
+		}
+		if (replaced != null) {
+			replaced.timeout.cancel();
+		}
+	}
+
+	/** @param serial
+	 * @return task, false or undefined */
+	@ReflectionExplicit
+	public synchronized BaseObject readCheck(final int serial) {
+
+		final Entry entry = this.entries.get(Integer.valueOf(serial));
+		return entry == null
+			? BaseObject.UNDEFINED
+			: entry.task;
+	}
+
+	/** @param serial
+	 * @return task, false or undefined */
+	@ReflectionExplicit
+	public BaseObject remove(final int serial) {
+
+		final Entry entry;
+		synchronized (this) {
+			entry = this.entries.remove(Integer.valueOf(serial));
+		}
+		if (entry == null) {
+			return BaseObject.UNDEFINED;
+		}
+		entry.timeout.cancel();
+		return entry.task;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "[UdpWaitingTasks size=" + this.entries.size() + ", ttl=" + this.ttl + "]";
+	}
+
+	private void expire(final ExecProcess ctx, final Integer key, final Entry entry) {
+
+		synchronized (this) {
+			if (!this.entries.remove(key, entry)) {
+				return;
+			}
+		}
+		this.onExpire.callVEA(ctx, BaseObject.UNDEFINED, Base.forInteger(key.intValue()), entry.task);
+	}
+}